@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmark;
+
+import java.io.File;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+
+/**
+ * Measures loading classes and resources from a bundle that imports them
+ * from other bundles, as well as failing lookups of missing resources.
+ * Classes are defined on first use, so after the warmup this measures
+ * the lookup path through the wires of the importing bundle.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ClassLoadingBenchmark
+{
+    private static final int CLASSES = 10;
+
+    @Param({ "10", "100" })
+    public int exporters;
+
+    private File m_dir;
+    private FrameworkFixture m_fixture;
+    private Bundle m_importer;
+    private String[] m_classes;
+    private String[] m_resources;
+    private String[] m_missing;
+    private int m_next;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        m_dir = FrameworkFixture.createTempDir("felix-bench-bundles");
+        m_fixture = new FrameworkFixture();
+        m_fixture.start();
+        m_fixture.install(SyntheticBundles.createExporters(m_dir, exporters, CLASSES));
+        m_importer = m_fixture.getFramework().getBundleContext().installBundle(
+            SyntheticBundles.createImporter(m_dir, exporters).toURI().toString());
+        m_importer.start();
+
+        m_classes = new String[exporters * CLASSES];
+        m_resources = new String[exporters];
+        m_missing = new String[exporters];
+        for (int i = 0; i < exporters; i++)
+        {
+            for (int j = 0; j < CLASSES; j++)
+            {
+                m_classes[i * CLASSES + j] = SyntheticBundles.className(i, j);
+            }
+            String path = (SyntheticBundles.PACKAGE_PREFIX + i).replace('.', '/');
+            m_resources[i] = path + "/" + SyntheticBundles.RESOURCE_NAME;
+            m_missing[i] = path + "/missing.txt";
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        m_fixture.dispose();
+        FrameworkFixture.deleteDir(m_dir);
+    }
+
+    @Benchmark
+    public Class<?> loadClass() throws Exception
+    {
+        return m_importer.loadClass(m_classes[next(m_classes.length)]);
+    }
+
+    @Benchmark
+    public URL getResource()
+    {
+        return m_importer.getResource(m_resources[next(m_resources.length)]);
+    }
+
+    @Benchmark
+    public URL getMissingResource()
+    {
+        return m_importer.getResource(m_missing[next(m_missing.length)]);
+    }
+
+    private int next(int length)
+    {
+        m_next = (m_next + 1) % length;
+        return m_next;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmark;
+
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+
+/**
+ * Measures parsing LDAP filters and matching them against service
+ * properties and service references.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class FilterBenchmark
+{
+    @Param({
+        "(objectClass=java.lang.Runnable)",
+        "(&(index>=10)(group=group3)(!(name=bar*)))",
+        "(|(version>=2.0.0)(&(name=*bench*)(ranking<=5)))" })
+    public String filter;
+
+    private FrameworkFixture m_fixture;
+    private BundleContext m_context;
+    private Filter m_filter;
+    private Hashtable<String, Object> m_props;
+    private ServiceReference<Runnable> m_reference;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        m_fixture = new FrameworkFixture();
+        m_context = m_fixture.start();
+        m_filter = m_context.createFilter(filter);
+
+        m_props = new Hashtable<String, Object>();
+        m_props.put("index", Integer.valueOf(42));
+        m_props.put("group", "group3");
+        m_props.put("name", "foo.bench.service");
+        m_props.put("ranking", Long.valueOf(3));
+        m_props.put("version", new Version(1, 5, 0));
+        m_reference = m_context.registerService(Runnable.class, new Runnable()
+        {
+            public void run()
+            {
+            }
+        }, m_props).getReference();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        m_fixture.dispose();
+    }
+
+    @Benchmark
+    public Filter parse() throws Exception
+    {
+        return m_context.createFilter(filter);
+    }
+
+    @Benchmark
+    public boolean matchProperties()
+    {
+        return m_filter.match(m_props);
+    }
+
+    @Benchmark
+    public boolean matchReference()
+    {
+        return m_filter.match(m_reference);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.felix.framework.Felix;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+
+/**
+ * Runs an embedded framework on a bundle cache in a temporary directory
+ * for the benchmarks.
+**/
+class FrameworkFixture
+{
+    private final File m_storage;
+    private Framework m_framework;
+
+    /**
+     * Creates a fixture with a new, empty bundle cache.
+    **/
+    FrameworkFixture() throws IOException
+    {
+        this(createTempDir("felix-bench-cache"));
+    }
+
+    /**
+     * Creates a fixture using the specified bundle cache, which may hold
+     * bundles installed by a previous fixture.
+    **/
+    FrameworkFixture(File storage)
+    {
+        m_storage = storage;
+    }
+
+    File getStorage()
+    {
+        return m_storage;
+    }
+
+    BundleContext start() throws Exception
+    {
+        Map<String, String> config = new HashMap<String, String>();
+        config.put(Constants.FRAMEWORK_STORAGE, m_storage.getAbsolutePath());
+        m_framework = new Felix(config);
+        m_framework.start();
+        return m_framework.getBundleContext();
+    }
+
+    Framework getFramework()
+    {
+        return m_framework;
+    }
+
+    List<Bundle> install(List<File> bundles) throws Exception
+    {
+        BundleContext context = m_framework.getBundleContext();
+        List<Bundle> installed = new ArrayList<Bundle>(bundles.size());
+        for (File file : bundles)
+        {
+            installed.add(context.installBundle(file.toURI().toString()));
+        }
+        return installed;
+    }
+
+    void stop() throws Exception
+    {
+        if (m_framework != null)
+        {
+            m_framework.stop();
+            m_framework.waitForStop(60000);
+            m_framework = null;
+        }
+    }
+
+    /**
+     * Stops the framework and deletes its bundle cache.
+    **/
+    void dispose() throws Exception
+    {
+        stop();
+        deleteDir(m_storage);
+    }
+
+    static File createTempDir(String prefix) throws IOException
+    {
+        File dir = File.createTempFile(prefix, ".dir");
+        if (!dir.delete() || !dir.mkdirs())
+        {
+            throw new IOException("Unable to create directory: " + dir);
+        }
+        return dir;
+    }
+
+    static void deleteDir(File root)
+    {
+        File[] children = root.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                deleteDir(child);
+            }
+        }
+        root.delete();
+    }
+}
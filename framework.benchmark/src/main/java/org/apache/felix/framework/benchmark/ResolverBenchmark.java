@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmark;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Measures the time to resolve a synthetic repository of installed
+ * bundles. Every invocation installs the repository into a new framework,
+ * which is not part of the measured time.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ResolverBenchmark
+{
+    @Param({ "100", "500" })
+    public int bundles;
+
+    private File m_dir;
+    private List<File> m_repository;
+    private FrameworkFixture m_fixture;
+
+    @Setup(Level.Trial)
+    public void createRepository() throws Exception
+    {
+        m_dir = FrameworkFixture.createTempDir("felix-bench-bundles");
+        m_repository = SyntheticBundles.createRepository(m_dir, bundles);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteRepository()
+    {
+        FrameworkFixture.deleteDir(m_dir);
+    }
+
+    @Setup(Level.Invocation)
+    public void install() throws Exception
+    {
+        m_fixture = new FrameworkFixture();
+        m_fixture.start();
+        m_fixture.install(m_repository);
+    }
+
+    @TearDown(Level.Invocation)
+    public void dispose() throws Exception
+    {
+        m_fixture.dispose();
+    }
+
+    @Benchmark
+    public boolean resolve()
+    {
+        return m_fixture.getFramework().adapt(FrameworkWiring.class)
+            .resolveBundles(null);
+    }
+}
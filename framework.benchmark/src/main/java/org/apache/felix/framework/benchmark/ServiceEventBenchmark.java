@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmark;
+
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Measures the fan-out of service events to service listeners, half of
+ * which have a filter matching the modified service.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ServiceEventBenchmark
+{
+    @Param({ "10", "100", "1000" })
+    public int listeners;
+
+    private final AtomicLong m_delivered = new AtomicLong();
+    private FrameworkFixture m_fixture;
+    private ServiceRegistration<Runnable> m_registration;
+    private Hashtable<String, Object> m_props;
+    private int m_count;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        m_fixture = new FrameworkFixture();
+        BundleContext context = m_fixture.start();
+        for (int i = 0; i < listeners; i++)
+        {
+            context.addServiceListener(new ServiceListener()
+            {
+                public void serviceChanged(ServiceEvent event)
+                {
+                    m_delivered.incrementAndGet();
+                }
+            }, (i % 2 == 0) ? "(service.type=bench)" : "(service.type=other)");
+        }
+
+        m_props = new Hashtable<String, Object>();
+        m_props.put("service.type", "bench");
+        m_registration = context.registerService(Runnable.class, new Runnable()
+        {
+            public void run()
+            {
+            }
+        }, m_props);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        m_fixture.dispose();
+    }
+
+    @Benchmark
+    public long modifyService()
+    {
+        m_props.put("count", Integer.valueOf(m_count++));
+        m_registration.setProperties(m_props);
+        return m_delivered.get();
+    }
+}
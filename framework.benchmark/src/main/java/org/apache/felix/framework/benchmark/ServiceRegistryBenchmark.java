@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmark;
+
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Measures the throughput of registering, looking up, and getting services
+ * with a number of services already registered.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ServiceRegistryBenchmark
+{
+    private static final Runnable SERVICE = new Runnable()
+    {
+        public void run()
+        {
+        }
+    };
+
+    @Param({ "100", "1000" })
+    public int services;
+
+    private FrameworkFixture m_fixture;
+    private BundleContext m_context;
+    private ServiceReference<Runnable> m_reference;
+    private String m_filter;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        m_fixture = new FrameworkFixture();
+        m_context = m_fixture.start();
+        for (int i = 0; i < services; i++)
+        {
+            Hashtable<String, Object> props = new Hashtable<String, Object>();
+            props.put("index", Integer.valueOf(i));
+            props.put("group", "group" + (i % 10));
+            m_context.registerService(Runnable.class, SERVICE, props);
+        }
+        m_filter = "(&(group=group3)(index=" + (services / 2 + 3) + "))";
+        m_reference = m_context.getServiceReferences(Runnable.class, m_filter)
+            .iterator().next();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        m_fixture.dispose();
+    }
+
+    @Benchmark
+    public void registerAndUnregister()
+    {
+        m_context.registerService(Runnable.class, SERVICE, null).unregister();
+    }
+
+    @Benchmark
+    public ServiceReference<Runnable> lookupByClass()
+    {
+        return m_context.getServiceReference(Runnable.class);
+    }
+
+    @Benchmark
+    public Collection<ServiceReference<Runnable>> lookupByFilter() throws Exception
+    {
+        return m_context.getServiceReferences(Runnable.class, m_filter);
+    }
+
+    @Benchmark
+    public Runnable getAndUngetService()
+    {
+        Runnable service = m_context.getService(m_reference);
+        m_context.ungetService(m_reference);
+        return service;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Runnable getAndUngetServiceConcurrently()
+    {
+        Runnable service = m_context.getService(m_reference);
+        m_context.ungetService(m_reference);
+        return service;
+    }
+}
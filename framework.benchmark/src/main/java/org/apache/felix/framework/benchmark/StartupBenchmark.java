@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmark;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+
+/**
+ * Measures starting a framework with a synthetic repository of bundles,
+ * either cold by installing and starting all bundles into an empty bundle
+ * cache, or warm by restarting a framework whose bundle cache already
+ * holds the started bundles. Both include stopping the framework.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class StartupBenchmark
+{
+    @Param({ "100", "500" })
+    public int bundles;
+
+    private File m_dir;
+    private List<File> m_repository;
+    private FrameworkFixture m_warm;
+    private FrameworkFixture m_cold;
+
+    @Setup(Level.Trial)
+    public void createRepository() throws Exception
+    {
+        m_dir = FrameworkFixture.createTempDir("felix-bench-bundles");
+        m_repository = SyntheticBundles.createRepository(m_dir, bundles);
+
+        // Prepare a bundle cache with all bundles installed and started.
+        m_warm = new FrameworkFixture();
+        m_warm.start();
+        for (Bundle bundle : m_warm.install(m_repository))
+        {
+            bundle.start();
+        }
+        m_warm.stop();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteRepository() throws Exception
+    {
+        m_warm.dispose();
+        FrameworkFixture.deleteDir(m_dir);
+    }
+
+    @Setup(Level.Invocation)
+    public void createCache() throws Exception
+    {
+        m_cold = new FrameworkFixture();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteCache() throws Exception
+    {
+        m_cold.dispose();
+        m_warm.stop();
+    }
+
+    @Benchmark
+    public void coldStart() throws Exception
+    {
+        m_cold.start();
+        for (Bundle bundle : m_cold.install(m_repository))
+        {
+            bundle.start();
+        }
+        m_cold.stop();
+    }
+
+    @Benchmark
+    public void warmStart() throws Exception
+    {
+        m_warm.start();
+        m_warm.stop();
+    }
+}
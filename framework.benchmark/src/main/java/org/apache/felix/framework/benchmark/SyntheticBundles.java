@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+/**
+ * Generates the bundles used by the benchmarks. Exported packages contain
+ * generated classes, so that class loading goes through the wires of the
+ * importing bundle just like it does for real bundles.
+**/
+class SyntheticBundles
+{
+    static final String PACKAGE_PREFIX = "bench.pkg";
+    static final String CLASS_PREFIX = "Class";
+    static final String RESOURCE_NAME = "resource.txt";
+
+    /**
+     * Generates bundles that each export one package with the specified
+     * number of classes and a resource.
+    **/
+    static List<File> createExporters(File dir, int count, int classes)
+        throws IOException
+    {
+        List<File> files = new ArrayList<File>(count);
+        for (int i = 0; i < count; i++)
+        {
+            String pkg = PACKAGE_PREFIX + i;
+            List<String> entries = new ArrayList<String>();
+            for (int j = 0; j < classes; j++)
+            {
+                entries.add(className(i, j));
+            }
+            files.add(createBundle(dir, "bench.exporter" + i,
+                "Export-Package: " + pkg + ";version=\"1.0.0\"\n",
+                pkg, entries));
+        }
+        return files;
+    }
+
+    /**
+     * Generates a bundle importing the packages of the specified number
+     * of exporters.
+    **/
+    static File createImporter(File dir, int exporters) throws IOException
+    {
+        StringBuilder imports = new StringBuilder();
+        for (int i = 0; i < exporters; i++)
+        {
+            imports.append((i == 0) ? "" : ",")
+                .append(PACKAGE_PREFIX).append(i)
+                .append(";version=\"[1.0,2.0)\"");
+        }
+        return createBundle(dir, "bench.importer",
+            "Import-Package: " + imports + "\n", null, new ArrayList<String>());
+    }
+
+    /**
+     * Generates a repository of bundles for resolving, where every bundle
+     * exports a package that uses the packages it imports from up to three
+     * of its predecessors. Every tenth package is also exported in a second
+     * version by another bundle, so that the resolver has to choose between
+     * candidates.
+    **/
+    static List<File> createRepository(File dir, int count) throws IOException
+    {
+        List<File> files = new ArrayList<File>(count);
+        for (int i = 0; i < count; i++)
+        {
+            StringBuilder imports = new StringBuilder();
+            for (int j = Math.max(0, i - 3); j < i; j++)
+            {
+                imports.append((imports.length() == 0) ? "" : ",")
+                    .append(PACKAGE_PREFIX).append(j)
+                    .append(";version=\"[1.0,3.0)\"");
+            }
+            String uses = imports.length() == 0 ? ""
+                : ";uses:=\"" + uses(Math.max(0, i - 3), i) + "\"";
+            String headers = "Export-Package: " + PACKAGE_PREFIX + i
+                + ";version=\"1.0.0\"" + uses + "\n"
+                + ((imports.length() == 0) ? "" : "Import-Package: " + imports + "\n");
+            files.add(createBundle(dir, "bench.repository" + i, headers,
+                PACKAGE_PREFIX + i, singleton(className(i, 0))));
+
+            if (i % 10 == 0)
+            {
+                files.add(createBundle(dir, "bench.repository" + i + ".alt",
+                    "Export-Package: " + PACKAGE_PREFIX + i + ";version=\"2.0.0\"\n",
+                    PACKAGE_PREFIX + i, singleton(className(i, 0))));
+            }
+        }
+        return files;
+    }
+
+    static String className(int pkg, int cls)
+    {
+        return PACKAGE_PREFIX + pkg + "." + CLASS_PREFIX + cls;
+    }
+
+    private static String uses(int from, int to)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < to; i++)
+        {
+            sb.append((i == from) ? "" : ",").append(PACKAGE_PREFIX).append(i);
+        }
+        return sb.toString();
+    }
+
+    private static List<String> singleton(String s)
+    {
+        List<String> list = new ArrayList<String>(1);
+        list.add(s);
+        return list;
+    }
+
+    private static File createBundle(File dir, String bsn, String headers,
+        String pkg, List<String> classes) throws IOException
+    {
+        String manifest = "Manifest-Version: 1.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Bundle-SymbolicName: " + bsn + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + headers;
+        Manifest mf = new Manifest(
+            new ByteArrayInputStream(manifest.getBytes("UTF-8")));
+
+        File file = new File(dir, bsn + ".jar");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(file), mf);
+        try
+        {
+            for (String name : classes)
+            {
+                os.putNextEntry(new ZipEntry(name.replace('.', '/') + ".class"));
+                os.write(createClass(name));
+            }
+            if (pkg != null)
+            {
+                os.putNextEntry(new ZipEntry(pkg.replace('.', '/') + "/" + RESOURCE_NAME));
+                os.write(bsn.getBytes("UTF-8"));
+            }
+        }
+        finally
+        {
+            os.close();
+        }
+        return file;
+    }
+
+    /**
+     * Returns the bytes of an empty public class with the specified name.
+    **/
+    static byte[] createClass(String name) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(0xCAFEBABE);
+        // Class file version 49.0, which is Java 5.
+        out.writeShort(0);
+        out.writeShort(49);
+        // Constant pool with the class names.
+        out.writeShort(5);
+        out.writeByte(1);
+        out.writeUTF(name.replace('.', '/'));
+        out.writeByte(7);
+        out.writeShort(1);
+        out.writeByte(1);
+        out.writeUTF("java/lang/Object");
+        out.writeByte(7);
+        out.writeShort(3);
+        // ACC_PUBLIC | ACC_SUPER, this class, super class.
+        out.writeShort(0x0021);
+        out.writeShort(2);
+        out.writeShort(4);
+        // No interfaces, fields, methods, or attributes.
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.close();
+        return baos.toByteArray();
+    }
+}
@@ -42,6 +42,7 @@ public final class SecurityProviderImpl implements SecurityProvider
     private final PermissionAdminImpl m_pai;
     private final ConditionalPermissionAdminImpl m_cpai;
     private final SecureAction m_action;
+    private final Logger m_logger;
 
     SecurityProviderImpl(String crlList, String typeList, String passwdList,
         String storeList, PermissionAdminImpl pai,
@@ -50,6 +51,7 @@ public final class SecurityProviderImpl implements SecurityProvider
         m_pai = pai;
         m_cpai = cpai;
         m_action = action;
+        m_logger = logger;
         m_parser = new BundleDNParser(new TrustManager(crlList, typeList,
             passwdList, storeList, m_action), logger);
     }
@@ -92,6 +94,32 @@ public final class SecurityProviderImpl implements SecurityProvider
             return true;
         }
 
+        // Decisions can be cached by the protection domain as long as the
+        // permission tables did not change and the conditional permission
+        // table only uses immutable conditions, which are never postponed.
+        if ((m_cpai == null) || m_cpai.isCacheable())
+        {
+            long generation = getGeneration(bundle);
+            Boolean decision = pd.getCachedDecision(permission, generation);
+            if (decision == null)
+            {
+                try
+                {
+                    decision = Boolean.valueOf(evalLocal(bundle, module, pd, permission));
+                }
+                catch (Exception ex)
+                {
+                    // Deny, but do not cache the decision, since the failure
+                    // may not happen again.
+                    m_logger.log(bundle, Logger.LOG_ERROR,
+                        "Unable to evaluate permission - " + permission, ex);
+                    return handleDecision(pd, false, direct);
+                }
+                pd.cacheDecision(permission, decision.booleanValue(), generation);
+            }
+            return handleDecision(pd, decision.booleanValue(), direct);
+        }
+
         // System.out.println(info.getBundleId() + " - " + permission);
         // TODO: using true, false, or null seems a bit awkward. Improve this.
         Boolean result = null;
@@ -103,17 +131,7 @@ public final class SecurityProviderImpl implements SecurityProvider
 
         if (result != null)
         {
-            if ((m_cpai != null) && !direct)
-            {
-                boolean allow = result.booleanValue();
-                if (!allow)
-                {
-                    m_cpai.clearPD();
-                    return false;
-                }
-                return m_cpai.handlePAHandle(pd);
-            }
-            return result.booleanValue();
+            return handleDecision(pd, result.booleanValue(), direct);
         }
 
         if (m_cpai != null)
@@ -132,4 +150,60 @@ public final class SecurityProviderImpl implements SecurityProvider
 
         return false;
     }
+
+    /**
+     * Decide whether the given bundle revision has the permission, looking
+     * at its own protection domain only.
+     */
+    private boolean evalLocal(BundleImpl bundle, BundleRevisionImpl module,
+        BundleProtectionDomain pd, Permission permission)
+    {
+        if (m_pai != null)
+        {
+            Boolean result = m_pai.hasPermission(bundle._getLocation(), bundle,
+                permission, m_cpai, pd, module.getContent());
+            if (result != null)
+            {
+                return result.booleanValue();
+            }
+        }
+        if (m_cpai != null)
+        {
+            return m_cpai.evalLocal(module, module.getContent(), permission, m_pai);
+        }
+        return false;
+    }
+
+    /**
+     * In case of a non-direct check the conditional permission admin keeps
+     * track of the protection domains on the stack that still need to be
+     * checked, hence it has to be told about the decision for this one.
+     */
+    private boolean handleDecision(BundleProtectionDomain pd, boolean allow,
+        boolean direct)
+    {
+        if ((m_cpai != null) && !direct)
+        {
+            if (!allow)
+            {
+                m_cpai.clearPD();
+                return false;
+            }
+            return m_cpai.handlePAHandle(pd);
+        }
+        return allow;
+    }
+
+    /**
+     * The generation of the permissions granted to bundles, which changes
+     * whenever a permission table changes or the framework invalidates
+     * the cached decisions.
+     */
+    private long getGeneration(BundleImpl bundle)
+    {
+        long generation = (m_pai != null) ? m_pai.getGeneration() : 0;
+        generation += (m_cpai != null) ? m_cpai.getGeneration() : 0;
+        return (((long) bundle.getFramework().getPermissionGeneration()) << 32)
+            | (generation & 0xffffffffL);
+    }
 }
@@ -72,6 +72,8 @@ import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.Version;
+import org.osgi.service.condpermadmin.BundleLocationCondition;
+import org.osgi.service.condpermadmin.BundleSignerCondition;
 import org.osgi.service.condpermadmin.ConditionInfo;
 import org.osgi.service.condpermadmin.ConditionalPermissionAdmin;
 import org.osgi.service.condpermadmin.ConditionalPermissionInfo;
@@ -219,6 +221,11 @@ public final class ConditionalPermissionAdminImpl implements
     private final LocalPermissions m_localPermissions;
     private final PermissionAdminImpl m_pai;
 
+    // Incremented whenever the conditional permission table changes.
+    private volatile int m_generation = 0;
+    // Whether all conditions in the table are immutable and never postponed.
+    private volatile boolean m_cacheable = true;
+
     public ConditionalPermissionAdminImpl(Permissions permissions,
         Conditions condtions, LocalPermissions localPermissions,
         PropertiesCache cache, PermissionAdminImpl pai) throws IOException
@@ -241,6 +248,53 @@ public final class ConditionalPermissionAdminImpl implements
                     .isAllow()));
         }
         m_pai = pai;
+        m_cacheable = computeCacheable();
+    }
+
+    /**
+     * Returns the generation of the conditional permission table, which
+     * changes every time the table is written.
+     *
+     * @return the current generation of the conditional permission table.
+     */
+    public int getGeneration()
+    {
+        return m_generation;
+    }
+
+    /**
+     * Returns whether decisions based on the current table may be cached
+     * until the generation changes. This is only the case if the table
+     * exclusively uses bundle location and bundle signer conditions, which
+     * are immutable and are never postponed.
+     *
+     * @return <tt>true</tt> if decisions may be cached.
+     */
+    public boolean isCacheable()
+    {
+        return m_cacheable;
+    }
+
+    private boolean computeCacheable()
+    {
+        synchronized (m_condPermInfos)
+        {
+            for (Iterator iter = m_condPermInfos.values().iterator(); iter.hasNext();)
+            {
+                ConditionInfo[] conditions =
+                    ((ConditionalPermissionInfoImpl) iter.next())._getConditionInfos();
+                for (int i = 0; (conditions != null) && (i < conditions.length); i++)
+                {
+                    String type = conditions[i].getType();
+                    if (!BundleLocationCondition.class.getName().equals(type)
+                        && !BundleSignerCondition.class.getName().equals(type))
+                    {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
     }
 
     public ConditionalPermissionInfo addConditionalPermissionInfo(
@@ -300,6 +354,11 @@ public final class ConditionalPermissionAdminImpl implements
                 ex.printStackTrace();
                 throw new IllegalStateException(ex.getMessage());
             }
+            finally
+            {
+                m_cacheable = computeCacheable();
+                m_generation++;
+            }
         }
         synchronized (m_condPermInfos)
         {
@@ -923,6 +982,32 @@ public final class ConditionalPermissionAdminImpl implements
         return m_localPermissions.implies(content, felixBundle, permission);
     }
 
+    /**
+     * Evaluates the local permissions and the conditional permission table
+     * for the given bundle only, without looking at other bundle protection
+     * domains on the stack. This must only be used if the table is
+     * cacheable, since postponed conditions are ignored.
+     *
+     * @param module
+     *            the bundle revision to evaluate the permission for.
+     * @param content
+     *            the content of the bundle revision.
+     * @param permission
+     *            the permission currently checked.
+     * @param admin
+     *            the permission admin, if any.
+     * @return true if the permission is granted to the bundle revision.
+     */
+    public boolean evalLocal(BundleRevisionImpl module, Content content,
+        Permission permission, Object admin)
+    {
+        if (!impliesLocal(module.getBundle(), content, permission))
+        {
+            return false;
+        }
+        return eval(new ArrayList(), module, permission, admin);
+    }
+
     public boolean isEmpty()
     {
         synchronized (m_condPermInfos)
@@ -58,6 +58,9 @@ public final class PermissionAdminImpl implements PermissionAdmin
 
     private PermissionInfo[] m_default = null;
 
+    // Incremented whenever the permission tables change.
+    private volatile int m_generation = 0;
+
     public PermissionAdminImpl(Permissions permissions, PropertiesCache cache)
         throws IOException
     {
@@ -66,6 +69,19 @@ public final class PermissionAdminImpl implements PermissionAdmin
         m_cache.read(PermissionInfo[].class, m_store);
     }
 
+    /**
+     * Returns the generation of the permission tables, which changes every
+     * time the default permissions or the permissions of a location are set.
+     * Decisions based on these tables can be cached as long as the
+     * generation does not change.
+     *
+     * @return the current generation of the permission tables.
+     */
+    public int getGeneration()
+    {
+        return m_generation;
+    }
+
     public PermissionInfo[] getDefaultPermissions()
     {
         synchronized (m_store)
@@ -215,6 +231,10 @@ public final class PermissionAdminImpl implements PermissionAdmin
                 // TODO: log this
                 throw new IllegalStateException(ex.getMessage());
             }
+            finally
+            {
+                m_generation++;
+            }
         }
     }
 
@@ -262,6 +282,10 @@ public final class PermissionAdminImpl implements PermissionAdmin
                     // TODO: log this
                     throw new IllegalStateException(ex.getMessage());
                 }
+                finally
+                {
+                    m_generation++;
+                }
             }
         }
     }
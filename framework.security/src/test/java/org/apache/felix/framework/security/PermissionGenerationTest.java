@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.security;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.security.condpermadmin.ConditionalPermissionAdminImpl;
+import org.apache.felix.framework.security.permissionadmin.PermissionAdminImpl;
+import org.apache.felix.framework.security.util.Conditions;
+import org.apache.felix.framework.security.util.LocalPermissions;
+import org.apache.felix.framework.security.util.Permissions;
+import org.apache.felix.framework.security.util.PropertiesCache;
+import org.apache.felix.framework.util.SecureAction;
+import org.osgi.framework.AdminPermission;
+import org.osgi.service.condpermadmin.BundleLocationCondition;
+import org.osgi.service.condpermadmin.ConditionInfo;
+import org.osgi.service.permissionadmin.PermissionInfo;
+
+/**
+ * Tests that the permission tables signal the changes which invalidate the
+ * permission decisions cached by the security provider.
+ */
+public class PermissionGenerationTest extends TestCase
+{
+    private File m_dir;
+    private PermissionAdminImpl m_pai;
+    private ConditionalPermissionAdminImpl m_cpai;
+
+    protected void setUp() throws Exception
+    {
+        m_dir = File.createTempFile("felix-security", ".dir");
+        m_dir.delete();
+        m_dir.mkdirs();
+
+        SecureAction action = new SecureAction();
+        Permissions permissions = new Permissions(null, action);
+        m_pai = new PermissionAdminImpl(permissions, new PropertiesCache(
+            new File(m_dir, "pa.txt"), m_dir, action));
+        m_cpai = new ConditionalPermissionAdminImpl(permissions,
+            new Conditions(action), new LocalPermissions(permissions),
+            new PropertiesCache(new File(m_dir, "cpa.txt"), m_dir, action),
+            m_pai);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        deleteDir(m_dir);
+    }
+
+    public void testPermissionAdminChangesGeneration() throws Exception
+    {
+        PermissionInfo[] infos = new PermissionInfo[] {
+            new PermissionInfo(AdminPermission.class.getName(), "*", "*") };
+
+        int generation = m_pai.getGeneration();
+        m_pai.setPermissions("test:1", infos);
+        assertTrue(generation != m_pai.getGeneration());
+
+        generation = m_pai.getGeneration();
+        m_pai.setDefaultPermissions(infos);
+        assertTrue(generation != m_pai.getGeneration());
+
+        generation = m_pai.getGeneration();
+        m_pai.setPermissions("test:1", null);
+        assertTrue(generation != m_pai.getGeneration());
+    }
+
+    public void testConditionalPermissionAdminChangesGeneration() throws Exception
+    {
+        PermissionInfo[] infos = new PermissionInfo[] {
+            new PermissionInfo(AdminPermission.class.getName(), "*", "*") };
+
+        // Immutable conditions keep decisions cacheable.
+        int generation = m_cpai.getGeneration();
+        m_cpai.addConditionalPermissionInfo(new ConditionInfo[] {
+            new ConditionInfo(BundleLocationCondition.class.getName(),
+                new String[] { "test:*" }) }, infos);
+        assertTrue(generation != m_cpai.getGeneration());
+        assertTrue(m_cpai.isCacheable());
+
+        // Any other condition may change its mind, so decisions must no
+        // longer be cached.
+        generation = m_cpai.getGeneration();
+        String name = m_cpai.addConditionalPermissionInfo(new ConditionInfo[] {
+            new ConditionInfo("org.example.MutableCondition", new String[0]) },
+            infos).getName();
+        assertTrue(generation != m_cpai.getGeneration());
+        assertFalse(m_cpai.isCacheable());
+
+        // Deleting the condition makes decisions cacheable again.
+        generation = m_cpai.getGeneration();
+        m_cpai.getConditionalPermissionInfo(name).delete();
+        assertTrue(generation != m_cpai.getGeneration());
+        assertTrue(m_cpai.isCacheable());
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            File[] files = root.listFiles();
+            for (int i = 0; i < files.length; i++)
+            {
+                deleteDir(files[i]);
+            }
+        }
+        root.delete();
+    }
+}
@@ -25,7 +25,9 @@ import java.net.URL;
 import java.security.AccessControlContext;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -38,6 +40,7 @@ import java.util.Set;
 import java.util.StringTokenizer;
 
 import org.apache.felix.framework.cache.BundleArchive;
+import org.apache.felix.framework.cache.BundleArchiveRevision;
 import org.apache.felix.framework.util.SecurityManagerEx;
 import org.apache.felix.framework.util.ShrinkableCollection;
 import org.apache.felix.framework.util.StringMap;
@@ -82,6 +85,10 @@ class BundleImpl implements Bundle, BundleRevisions
     // Used for bundle locking.
     private int m_lockCount = 0;
     private Thread m_lockThread = null;
+    // Time in nanoseconds spent the last time this bundle was started
+    // or stopped, if framework metrics were enabled at the time.
+    private volatile long m_lastStartTime = -1;
+    private volatile long m_lastStopTime = -1;
 
     /**
      * This constructor is used by the system bundle (i.e., the framework),
@@ -100,6 +107,17 @@ class BundleImpl implements Bundle, BundleRevisions
     }
 
     BundleImpl(Felix felix, Bundle installingBundle, BundleArchive archive) throws Exception
+    {
+        this(felix, installingBundle, archive, Collections.<Bundle>emptyList());
+    }
+
+    /**
+     * Creates a bundle that is installed together with the specified other
+     * new bundles, which are not installed yet but whose symbolic name and
+     * version must not collide with the ones of this bundle either.
+    **/
+    BundleImpl(Felix felix, Bundle installingBundle, BundleArchive archive,
+        Collection<? extends Bundle> pendingBundles) throws Exception
     {
         __m_felix = felix;
         m_archive = archive;
@@ -110,7 +128,7 @@ class BundleImpl implements Bundle, BundleRevisions
         m_context = null;
         m_installingBundle = installingBundle;
 
-        BundleRevision revision = createRevision(false);
+        BundleRevision revision = createRevision(false, pendingBundles);
         addRevision(revision);
     }
 
@@ -223,6 +241,26 @@ class BundleImpl implements Bundle, BundleRevisions
         m_useDeclaredActivationPolicy = b;
     }
 
+    long getLastStartTime()
+    {
+        return m_lastStartTime;
+    }
+
+    void setLastStartTime(long time)
+    {
+        m_lastStartTime = time;
+    }
+
+    long getLastStopTime()
+    {
+        return m_lastStopTime;
+    }
+
+    void setLastStopTime(long time)
+    {
+        m_lastStopTime = time;
+    }
+
     synchronized BundleActivator getActivator()
     {
         return m_activator;
@@ -1185,7 +1223,7 @@ class BundleImpl implements Bundle, BundleRevisions
         m_archive.revise(location, is);
         try
         {
-            BundleRevision revision = createRevision(true);
+            BundleRevision revision = createRevision(true, Collections.<Bundle>emptyList());
             addRevision(revision);
         }
         catch (Exception ex)
@@ -1236,11 +1274,13 @@ class BundleImpl implements Bundle, BundleRevisions
         }
     }
 
-    private BundleRevision createRevision(boolean isUpdate) throws Exception
+    private BundleRevision createRevision(
+        boolean isUpdate, Collection<? extends Bundle> pendingBundles) throws Exception
     {
         // Get and parse the manifest from the most recent revision and
         // create an associated revision object for it.
-        Map headerMap = m_archive.getCurrentRevision().getManifestHeader();
+        BundleArchiveRevision archiveRevision = m_archive.getCurrentRevision();
+        Map headerMap = archiveRevision.getManifestHeader();
 
         // Create the bundle revision instance.
         BundleRevisionImpl revision = new BundleRevisionImpl(
@@ -1248,7 +1288,8 @@ class BundleImpl implements Bundle, BundleRevisions
             Long.toString(getBundleId())
                 + "." + m_archive.getCurrentRevisionNumber().toString(),
             headerMap,
-            m_archive.getCurrentRevision().getContent());
+            archiveRevision.getContent(),
+            archiveRevision);
 
         // For R4 bundles, verify that the bundle symbolic name + version
         // is unique unless this check has been disabled.
@@ -1265,16 +1306,21 @@ class BundleImpl implements Bundle, BundleRevisions
             String symName = revision.getSymbolicName();
 
             List<Bundle> collisionCanditates = new ArrayList<Bundle>();
-            Bundle[] bundles = getFramework().getBundles();
-            for (int i = 0; (bundles != null) && (i < bundles.length); i++)
+            List<Bundle> bundles = new ArrayList<Bundle>(pendingBundles);
+            Bundle[] installed = getFramework().getBundles();
+            if (installed != null)
+            {
+                bundles.addAll(Arrays.asList(installed));
+            }
+            for (Bundle bundle : bundles)
             {
-                long id = ((BundleImpl) bundles[i]).getBundleId();
+                long id = bundle.getBundleId();
                 if (id != getBundleId())
                 {
-                    if (symName.equals(bundles[i].getSymbolicName())
-                        && bundleVersion.equals(bundles[i].getVersion()))
+                    if (symName.equals(bundle.getSymbolicName())
+                        && bundleVersion.equals(bundle.getVersion()))
                     {
-                        collisionCanditates.add(bundles[i]);
+                        collisionCanditates.add(bundle);
                     }
                 }
             }
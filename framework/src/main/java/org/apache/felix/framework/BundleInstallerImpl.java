@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.felix.framework.ext.BundleInstaller;
+import org.osgi.framework.AdminPermission;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * BundleInstaller service implementation. It is a service factory, so
+ * bundles are installed on behalf of the bundle using the service.
+**/
+class BundleInstallerImpl implements ServiceFactory<BundleInstaller>
+{
+    private final Felix m_felix;
+
+    BundleInstallerImpl(Felix felix)
+    {
+        m_felix = felix;
+    }
+
+    public BundleInstaller getService(
+        Bundle bundle, ServiceRegistration<BundleInstaller> registration)
+    {
+        return new Installer(bundle);
+    }
+
+    public void ungetService(Bundle bundle,
+        ServiceRegistration<BundleInstaller> registration, BundleInstaller service)
+    {
+        // Nothing to release.
+    }
+
+    private class Installer implements BundleInstaller
+    {
+        private final Bundle m_origin;
+
+        Installer(Bundle origin)
+        {
+            m_origin = origin;
+        }
+
+        public List<Bundle> installBundles(Map<String, InputStream> bundles)
+            throws BundleException
+        {
+            List<Bundle> result = m_felix.installBundles(m_origin, bundles);
+
+            // Do check the bundles again in case that they were
+            // installed already.
+            Object sm = System.getSecurityManager();
+            if (sm != null)
+            {
+                for (Bundle bundle : result)
+                {
+                    ((SecurityManager) sm).checkPermission(
+                        new AdminPermission(bundle, AdminPermission.LIFECYCLE));
+                }
+            }
+            return result;
+        }
+
+        public void uninstallBundles(Collection<Bundle> bundles)
+            throws BundleException
+        {
+            // Keep the first failure, which is either a bundle exception or
+            // a security exception, and go on with the other bundles.
+            Exception failure = null;
+            for (Bundle bundle : bundles)
+            {
+                try
+                {
+                    bundle.uninstall();
+                }
+                catch (BundleException ex)
+                {
+                    if (failure == null)
+                    {
+                        failure = ex;
+                    }
+                }
+                catch (SecurityException ex)
+                {
+                    if (failure == null)
+                    {
+                        failure = ex;
+                    }
+                }
+                catch (IllegalStateException ex)
+                {
+                    // The bundle is already uninstalled.
+                }
+            }
+            if (failure instanceof SecurityException)
+            {
+                throw (SecurityException) failure;
+            }
+            else if (failure != null)
+            {
+                throw (BundleException) failure;
+            }
+        }
+    }
+}
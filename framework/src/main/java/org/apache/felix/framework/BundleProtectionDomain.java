@@ -41,6 +41,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
@@ -376,6 +378,8 @@ public class BundleProtectionDomain extends ProtectionDomain
     private final String m_toString;
     private final WeakReference m_revision;
     private volatile PermissionCollection m_woven;
+    // Permission decisions cached by the security provider for this domain.
+    private volatile Decisions m_decisions;
 
     BundleProtectionDomain(Felix felix, BundleImpl bundle, Object certificates)
         throws MalformedURLException
@@ -435,6 +439,42 @@ public class BundleProtectionDomain extends ProtectionDomain
         return (BundleImpl) m_bundle.get();
     }
 
+    /**
+     * Returns the decision the security provider cached for the given
+     * permission, if it was cached for the given generation of the
+     * permissions granted by the provider.
+     * @param permission the checked permission.
+     * @param generation the current generation of the granted permissions.
+     * @return the cached decision or <tt>null</tt> if there is none.
+    **/
+    Boolean getCachedDecision(Permission permission, long generation)
+    {
+        Decisions decisions = m_decisions;
+        return ((decisions != null) && (decisions.m_generation == generation))
+            ? decisions.m_map.get(permission) : null;
+    }
+
+    /**
+     * Caches a decision of the security provider for the given permission.
+     * The generation must have been obtained before making the decision,
+     * so that a decision made while the granted permissions changed is
+     * never returned for the new generation.
+     * @param permission the checked permission.
+     * @param implied whether the permission is implied.
+     * @param generation the generation of the granted permissions.
+    **/
+    void cacheDecision(Permission permission, boolean implied, long generation)
+    {
+        Decisions decisions = m_decisions;
+        if ((decisions == null) || (decisions.m_generation != generation)
+            || (decisions.m_map.size() >= Decisions.MAX_SIZE))
+        {
+            decisions = new Decisions(generation);
+            m_decisions = decisions;
+        }
+        decisions.m_map.put(permission, Boolean.valueOf(implied));
+    }
+
     public int hashCode()
     {
         return m_hashCode;
@@ -457,4 +497,18 @@ public class BundleProtectionDomain extends ProtectionDomain
     {
         return m_toString;
     }
+
+    private static final class Decisions
+    {
+        private static final int MAX_SIZE = 1024;
+
+        private final long m_generation;
+        private final ConcurrentMap<Permission, Boolean> m_map =
+            new ConcurrentHashMap<Permission, Boolean>();
+
+        private Decisions(long generation)
+        {
+            m_generation = generation;
+        }
+    }
 }
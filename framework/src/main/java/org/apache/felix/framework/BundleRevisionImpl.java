@@ -26,13 +26,18 @@ import java.security.ProtectionDomain;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.apache.felix.framework.cache.BundleArchiveRevision;
 import org.apache.felix.framework.cache.Content;
 import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.Util;
+import org.apache.felix.framework.util.manifestparser.ManifestModel;
 import org.apache.felix.framework.util.manifestparser.ManifestParser;
 import org.apache.felix.framework.util.manifestparser.NativeLibrary;
 import org.osgi.framework.Bundle;
@@ -61,9 +66,18 @@ public class BundleRevisionImpl implements BundleRevision, Resource
     private final String m_symbolicName;
     private final Version m_version;
 
-    private final List<BundleCapability> m_declaredCaps;
-    private final List<BundleRequirement> m_declaredReqs;
-    private final List<NativeLibrary> m_declaredNativeLibs;
+    private final boolean m_isSingleton;
+
+    // In lazy mode, the declared capabilities, requirements, and native
+    // libraries are only created when they are first needed; until then
+    // only a summary of the declared capabilities and the compact model of
+    // the parsed manifest they are restored from are kept.
+    private volatile byte[] m_manifestModel;
+    private volatile boolean m_materialized;
+    private volatile Map<String, Set<String>> m_capSummary;
+    private List<BundleCapability> m_declaredCaps;
+    private List<BundleRequirement> m_declaredReqs;
+    private List<NativeLibrary> m_declaredNativeLibs;
     private final int m_declaredActivationPolicy;
     private final List<String> m_activationIncludes;
     private final List<String> m_activationExcludes;
@@ -98,7 +112,11 @@ public class BundleRevisionImpl implements BundleRevision, Resource
         m_symbolicName = null;
         m_isExtension = false;
         m_isFragment = false;
+        m_isSingleton = false;
         m_version = null;
+        m_manifestModel = null;
+        m_materialized = true;
+        m_capSummary = null;
         m_declaredCaps = Collections.EMPTY_LIST;
         m_declaredReqs = Collections.EMPTY_LIST;
         m_declaredNativeLibs = null;
@@ -110,17 +128,43 @@ public class BundleRevisionImpl implements BundleRevision, Resource
     BundleRevisionImpl(
         Bundle bundle, String id, Map headerMap, Content content)
         throws BundleException
+    {
+        this(bundle, id, headerMap, content, null);
+    }
+
+    BundleRevisionImpl(
+        Bundle bundle, String id, Map headerMap, Content content,
+        BundleArchiveRevision archiveRevision)
+        throws BundleException
     {
         m_bundle = bundle;
         m_id = id;
         m_headerMap = headerMap;
         m_content = content;
 
-        ManifestParser mp = new ManifestParser(
-            ((BundleImpl) bundle).getFramework().getLogger(),
-            ((BundleImpl) bundle).getFramework().getConfig(),
-            this,
-            m_headerMap);
+        Logger logger = ((BundleImpl) bundle).getFramework().getLogger();
+        Map configMap = ((BundleImpl) bundle).getFramework().getConfig();
+        boolean lazy = "true".equalsIgnoreCase(
+            String.valueOf(configMap.get(FelixConstants.LAZY_REVISIONS_PROP)));
+
+        // The manifest is always parsed here, so that invalid manifests
+        // are still detected at install time. Restore the parsed manifest
+        // stored with the archive revision, if any; otherwise, parse the
+        // manifest and try to store the result.
+        byte[] model = (archiveRevision == null)
+            ? null : archiveRevision.getParsedManifest();
+        ManifestParser mp = (model == null)
+            ? null : ManifestModel.read(logger, configMap, this, m_headerMap, model);
+        if (mp == null)
+        {
+            mp = new ManifestParser(logger, configMap, this, m_headerMap);
+            model = ((archiveRevision != null) || lazy)
+                ? ManifestModel.write(mp, configMap, m_headerMap) : null;
+            if ((model != null) && (archiveRevision != null))
+            {
+                archiveRevision.setParsedManifest(model);
+            }
+        }
 
         // Record some of the parsed metadata. Note, if this is an extension
         // bundle it's exports are removed, since they will be added to the
@@ -130,6 +174,8 @@ public class BundleRevisionImpl implements BundleRevision, Resource
         m_declaredCaps = mp.getCapabilities();
         m_declaredReqs = mp.getRequirements();
         m_declaredNativeLibs = mp.getLibraries();
+        m_materialized = true;
+        m_isSingleton = Util.isSingleton(this);
         m_declaredActivationPolicy = mp.getActivationPolicy();
         m_activationExcludes = (mp.getActivationExcludeDirective() == null)
             ? null
@@ -140,6 +186,108 @@ public class BundleRevisionImpl implements BundleRevision, Resource
         m_symbolicName = mp.getSymbolicName();
         m_isExtension = mp.isExtension();
         m_isFragment = m_headerMap.containsKey(Constants.FRAGMENT_HOST);
+
+        // In lazy mode, only keep a summary of the capabilities of regular
+        // bundles, which is enough for the resolver to know when they are
+        // needed, as long as the parsed manifest can be kept in its compact
+        // form to restore them from.
+        if (lazy && !m_isExtension && !m_isFragment && (model != null))
+        {
+            m_manifestModel = model;
+            m_capSummary = summarize(m_declaredCaps);
+            m_declaredCaps = null;
+            m_declaredReqs = null;
+            m_declaredNativeLibs = null;
+            m_materialized = false;
+        }
+        else
+        {
+            m_manifestModel = null;
+            m_capSummary = null;
+        }
+    }
+
+    /**
+     * Maps the namespace of each capability to the values of the attribute
+     * named after the namespace, which is how the wiring and identity
+     * namespaces name their capabilities. Capabilities without a string
+     * value for that attribute are summarized as <tt>null</tt>.
+    **/
+    private static Map<String, Set<String>> summarize(List<BundleCapability> caps)
+    {
+        Map<String, Set<String>> summary = new HashMap<String, Set<String>>();
+        for (BundleCapability cap : caps)
+        {
+            Set<String> values = summary.get(cap.getNamespace());
+            if (values == null)
+            {
+                values = new HashSet<String>(1);
+                summary.put(cap.getNamespace(), values);
+            }
+            Object value = cap.getAttributes().get(cap.getNamespace());
+            values.add((value instanceof String) ? (String) value : null);
+        }
+        return summary;
+    }
+
+    /**
+     * Returns the summary of the declared capabilities of this revision
+     * if they have not been created yet; this is only ever the case in
+     * lazy mode.
+     * @return the capability summary or <tt>null</tt> if the declared
+     *         capabilities are available.
+    **/
+    Map<String, Set<String>> getCapabilitySummary()
+    {
+        return m_capSummary;
+    }
+
+    private void materialize()
+    {
+        if (!m_materialized)
+        {
+            synchronized (this)
+            {
+                if (!m_materialized)
+                {
+                    try
+                    {
+                        Logger logger = ((BundleImpl) m_bundle).getFramework().getLogger();
+                        Map configMap = ((BundleImpl) m_bundle).getFramework().getConfig();
+                        // The model was written from the same headers, so it
+                        // can always be restored without parsing them again.
+                        ManifestParser mp = ManifestModel.read(
+                            logger, configMap, this, m_headerMap, m_manifestModel);
+                        if (mp == null)
+                        {
+                            mp = new ManifestParser(logger, configMap, this, m_headerMap);
+                        }
+                        m_declaredCaps = mp.getCapabilities();
+                        m_declaredReqs = mp.getRequirements();
+                        m_declaredNativeLibs = mp.getLibraries();
+                    }
+                    catch (BundleException ex)
+                    {
+                        // This cannot really happen, since the same manifest
+                        // was successfully parsed when the revision was created.
+                        ((BundleImpl) m_bundle).getFramework().getLogger().log(
+                            m_bundle, Logger.LOG_ERROR,
+                            "Unable to parse manifest of " + this, ex);
+                        m_declaredCaps = Collections.EMPTY_LIST;
+                        m_declaredReqs = Collections.EMPTY_LIST;
+                        m_declaredNativeLibs = null;
+                    }
+                    m_capSummary = null;
+                    m_manifestModel = null;
+                    m_materialized = true;
+                }
+            }
+        }
+    }
+
+    boolean isSingleton()
+    {
+        return m_isSingleton;
     }
 
     static SecureAction getSecureAction()
@@ -207,6 +355,7 @@ public class BundleRevisionImpl implements BundleRevision, Resource
 
     public List<BundleCapability> getDeclaredCapabilities(String namespace)
     {
+        materialize();
         List<BundleCapability> result = m_declaredCaps;
         if (namespace != null)
         {
@@ -234,6 +383,7 @@ public class BundleRevisionImpl implements BundleRevision, Resource
 
     public List<BundleRequirement> getDeclaredRequirements(String namespace)
     {
+        materialize();
         List<BundleRequirement> result = m_declaredReqs;
         if (namespace != null)
         {
@@ -285,6 +435,7 @@ public class BundleRevisionImpl implements BundleRevision, Resource
 
     public List<NativeLibrary> getDeclaredNativeLibraries()
     {
+        materialize();
         return m_declaredNativeLibs;
     }
 
@@ -40,6 +40,8 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.felix.framework.cache.Content;
 import org.apache.felix.framework.cache.JarContent;
@@ -154,6 +156,24 @@ public class BundleWiringImpl implements BundleWiring
     // Flag indicating whether this wiring has been disposed.
     private volatile boolean m_isDisposed = false;
 
+    // Names of classes and resources which are in packages that are neither
+    // imported nor required and which neither boot delegation nor the content
+    // of this wiring provide. Lookups of these names go straight to dynamic
+    // imports. Cleared when a dynamic wire is added and bounded in size.
+    private final Map<String, Boolean> m_missingClasses =
+        new ConcurrentHashMap<String, Boolean>();
+    private final Map<String, Boolean> m_missingResources =
+        new ConcurrentHashMap<String, Boolean>();
+    private final AtomicLong m_lookupCacheHits = new AtomicLong();
+    private final AtomicLong m_lookupCacheMisses = new AtomicLong();
+    private static final int MISSING_CACHE_SIZE = 4096;
+
+    // Class loads by delegation for the class loader of this wiring, and
+    // the time spent on them, while metrics are enabled.
+    private final FrameworkMetricsImpl m_metrics;
+    private final AtomicLong m_classLoads = new AtomicLong();
+    private final AtomicLong m_classLoadTime = new AtomicLong();
+
     BundleWiringImpl(
         Logger logger, Map configMap, StatefulResolver resolver,
         BundleRevisionImpl revision, List<BundleRevision> fragments,
@@ -165,6 +185,7 @@ public class BundleWiringImpl implements BundleWiring
         m_logger = logger;
         m_configMap = configMap;
         m_resolver = resolver;
+        m_metrics = (resolver != null) ? resolver.getMetrics() : null;
         m_revision = revision;
         m_importedPkgs = importedPkgs;
         m_requiredPkgs = requiredPkgs;
@@ -487,6 +508,8 @@ public class BundleWiringImpl implements BundleWiring
         }
         m_classLoader = null;
         m_isDisposed = true;
+        m_missingClasses.clear();
+        m_missingResources.clear();
     }
 
 // TODO: OSGi R4.3 - This really shouldn't be public, but it is needed by the
@@ -654,6 +677,50 @@ public class BundleWiringImpl implements BundleWiring
         // to cause any issues.
         m_wires = ImmutableList.newInstance(wires);
         m_importedPkgs = importedPkgs;
+        // The new wire may provide names that were missing.
+        m_missingClasses.clear();
+        m_missingResources.clear();
+    }
+
+    /**
+     * Returns the number of class and resource lookups by delegation that
+     * were answered from the cache of missing names of this wiring.
+     * @return the number of cache hits.
+    **/
+    public long getLookupCacheHits()
+    {
+        return m_lookupCacheHits.get();
+    }
+
+    /**
+     * Returns the number of class and resource lookups by delegation that
+     * had to search boot delegation, imports and content of this wiring.
+     * @return the number of cache misses.
+    **/
+    public long getLookupCacheMisses()
+    {
+        return m_lookupCacheMisses.get();
+    }
+
+    /**
+     * Returns the number of class loads by the class loader of this wiring
+     * that were not answered from the classes it had already loaded, while
+     * framework metrics were enabled.
+     * @return the number of class loads.
+    **/
+    public long getClassLoads()
+    {
+        return m_classLoads.get();
+    }
+
+    /**
+     * Returns the time in nanoseconds spent on the class loads counted by
+     * <tt>getClassLoads()</tt>.
+     * @return the total class load time.
+    **/
+    public long getClassLoadTime()
+    {
+        return m_classLoadTime.get();
     }
 
     public BundleRevision getResource()
@@ -1474,67 +1541,19 @@ public class BundleWiringImpl implements BundleWiring
                     ? Util.getClassPackage(name)
                     : Util.getResourcePackage(name);
 
-                // Delegate any packages listed in the boot delegation
-                // property to the parent class loader.
-                if (shouldBootDelegate(pkgName))
+                // If we already know that only a dynamic import may provide
+                // the class/resource, then try that right away.
+                Map<String, Boolean> missing = (isClass)
+                    ? m_missingClasses : m_missingResources;
+                if (missing.containsKey(name) && !m_importedPkgs.containsKey(pkgName))
                 {
-                    try
-                    {
-                        // Get the appropriate class loader for delegation.
-                        ClassLoader bdcl = getBootDelegationClassLoader();
-                        result = (isClass)
-                            ? (Object) bdcl.loadClass(name)
-                            : (Object) bdcl.getResource(name);
-                        // If this is a java.* package, then always terminate the
-                        // search; otherwise, continue to look locally if not found.
-                        if (pkgName.startsWith("java.") || (result != null))
-                        {
-                            return result;
-                        }
-                    }
-                    catch (ClassNotFoundException ex)
-                    {
-                        // If this is a java.* package, then always terminate the
-                        // search; otherwise, continue to look locally if not found.
-                        if (pkgName.startsWith("java."))
-                        {
-                            throw ex;
-                        }
-                    }
+                    m_lookupCacheHits.incrementAndGet();
+                    result = searchDynamicImports(pkgName, name, isClass);
                 }
-
-                // Look in the revision's imports. Note that the search may
-                // be aborted if this method throws an exception, otherwise
-                // it continues if a null is returned.
-                result = searchImports(pkgName, name, isClass);
-
-                // If not found, try the revision's own class path.
-                if (result == null)
+                else
                 {
-                    if (isClass)
-                    {
-                        ClassLoader cl = getClassLoaderInternal();
-                        if (cl == null)
-                        {
-                            throw new ClassNotFoundException(
-                                "Unable to load class '"
-                                + name
-                                + "' because the bundle wiring for "
-                                + m_revision.getSymbolicName()
-                                + " is no longer valid.");
-                        }
-                        result = ((BundleClassLoader) cl).findClass(name);
-                    }
-                    else
-                    {
-                        result = m_revision.getResourceLocal(name);
-                    }
-
-                    // If still not found, then try the revision's dynamic imports.
-                    if (result == null)
-                    {
-                        result = searchDynamicImports(pkgName, name, isClass);
-                    }
+                    m_lookupCacheMisses.incrementAndGet();
+                    result = searchByDelegation(pkgName, name, isClass, missing);
                 }
             }
             finally
@@ -1567,6 +1586,88 @@ public class BundleWiringImpl implements BundleWiring
         return result;
     }
 
+    private Object searchByDelegation(
+        String pkgName, String name, boolean isClass, Map<String, Boolean> missing)
+        throws ClassNotFoundException, ResourceNotFoundException
+    {
+        Object result = null;
+
+        // Delegate any packages listed in the boot delegation
+        // property to the parent class loader.
+        if (shouldBootDelegate(pkgName))
+        {
+            try
+            {
+                // Get the appropriate class loader for delegation.
+                ClassLoader bdcl = getBootDelegationClassLoader();
+                result = (isClass)
+                    ? (Object) bdcl.loadClass(name)
+                    : (Object) bdcl.getResource(name);
+                // If this is a java.* package, then always terminate the
+                // search; otherwise, continue to look locally if not found.
+                if (pkgName.startsWith("java.") || (result != null))
+                {
+                    return result;
+                }
+            }
+            catch (ClassNotFoundException ex)
+            {
+                // If this is a java.* package, then always terminate the
+                // search; otherwise, continue to look locally if not found.
+                if (pkgName.startsWith("java."))
+                {
+                    throw ex;
+                }
+            }
+        }
+
+        // Look in the revision's imports. Note that the search may
+        // be aborted if this method throws an exception, otherwise
+        // it continues if a null is returned.
+        result = searchImports(pkgName, name, isClass);
+
+        // If not found, try the revision's own class path.
+        if (result == null)
+        {
+            if (isClass)
+            {
+                ClassLoader cl = getClassLoaderInternal();
+                if (cl == null)
+                {
+                    throw new ClassNotFoundException(
+                        "Unable to load class '"
+                        + name
+                        + "' because the bundle wiring for "
+                        + m_revision.getSymbolicName()
+                        + " is no longer valid.");
+                }
+                result = ((BundleClassLoader) cl).findClass(name);
+            }
+            else
+            {
+                result = m_revision.getResourceLocal(name);
+            }
+
+            // If still not found, then try the revision's dynamic imports.
+            if (result == null)
+            {
+                // Remember the name unless required bundles were
+                // searched, since they may find it dynamically later.
+                if (!m_requiredPkgs.containsKey(pkgName))
+                {
+                    if (missing.size() >= MISSING_CACHE_SIZE)
+                    {
+                        missing.clear();
+                    }
+                    missing.put(name, Boolean.TRUE);
+                }
+                result = searchDynamicImports(pkgName, name, isClass);
+            }
+        }
+
+        return result;
+    }
+
     private Object searchImports(String pkgName, String name, boolean isClass)
         throws ClassNotFoundException, ResourceNotFoundException
     {
@@ -1993,9 +2094,17 @@ public class BundleWiringImpl implements BundleWiring
 
             if (clazz == null)
             {
+                FrameworkMetricsImpl metrics = m_wiring.m_metrics;
+                boolean timed = (metrics != null) && metrics.isEnabled();
+                long start = (timed) ? System.nanoTime() : 0;
                 try
                 {
                     clazz = (Class) m_wiring.findClassOrResourceByDelegation(name, true);
+                    if (timed)
+                    {
+                        m_wiring.m_classLoads.incrementAndGet();
+                        m_wiring.m_classLoadTime.addAndGet(System.nanoTime() - start);
+                    }
                 }
                 catch (ResourceNotFoundException ex)
                 {
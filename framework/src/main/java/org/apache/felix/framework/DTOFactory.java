@@ -25,6 +25,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.felix.framework.ext.BundleMetricsDTO;
+import org.apache.felix.framework.ext.FrameworkMetricsDTO;
 import org.osgi.dto.DTO;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -110,6 +112,14 @@ public class DTOFactory
         {
             return type.cast(createFrameworkStartLevelDTO((Framework) bundle));
         }
+        else if (type == BundleMetricsDTO.class && bundle instanceof BundleImpl)
+        {
+            return type.cast(FrameworkMetricsImpl.getBundleMetrics((BundleImpl) bundle));
+        }
+        else if (type == FrameworkMetricsDTO.class && bundle instanceof Felix)
+        {
+            return type.cast(((Felix) bundle).getMetrics().getMetrics());
+        }
         return null;
     }
 
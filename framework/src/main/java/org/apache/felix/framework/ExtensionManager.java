@@ -142,6 +142,10 @@ class ExtensionManager extends URLStreamHandler implements Content
     private volatile Bundle[] m_extensionsCache;
     private final Set m_names;
     private final Map m_sourceToExtensions;
+    // Packages exported through the system bundle by each extension bundle,
+    // so they can be removed again if installing the extension fails.
+    private final Map<Bundle, List<BundleCapability>> m_extensionExports =
+        new HashMap<Bundle, List<BundleCapability>>();
     private final List<ExtensionTuple> m_extensionTuples = Collections.synchronizedList(new ArrayList<ExtensionTuple>());
 
     private static class ExtensionTuple
@@ -454,6 +458,7 @@ class ExtensionManager extends URLStreamHandler implements Content
                     "Unable to add extension bundle to FrameworkClassLoader - Maybe not an URLClassLoader?");
             }
             appendCapabilities(exports);
+            m_extensionExports.put(bundle, exports);
         }
         catch (Exception ex)
         {
@@ -478,6 +483,33 @@ class ExtensionManager extends URLStreamHandler implements Content
         felix.setBundleStateAndNotify(bundle, Bundle.RESOLVED);
     }
 
+    /**
+     * Undoes {@link #addExtensionBundle(Felix, BundleImpl)} for an extension
+     * bundle whose installation failed, so the system bundle neither exports
+     * its packages nor serves its entries anymore. Classes already loaded
+     * from the extension bundle cannot be unloaded.
+     *
+     * @param felix the framework instance the extension bundle was added to.
+     * @param bundle the extension bundle to remove.
+     */
+    synchronized void removeExtensionBundle(Felix felix, BundleImpl bundle)
+    {
+        List<BundleCapability> exports = m_extensionExports.remove(bundle);
+        if (exports != null)
+        {
+            List<BundleCapability> newCaps =
+                new ArrayList<BundleCapability>(m_capabilities);
+            newCaps.removeAll(exports);
+            m_capabilities = ImmutableList.newInstance(newCaps);
+            m_headerMap.put(Constants.EXPORT_PACKAGE, convertCapabilitiesToHeaders(m_headerMap));
+        }
+        if (m_extensionManager != null)
+        {
+            m_extensionManager.removeExtension(felix, bundle);
+        }
+        felix.getDependencies().removeDependencies(bundle);
+    }
+
     /**
      * This is a Felix specific extension mechanism that allows extension bundles
      * to have activators and be started via this method.
@@ -760,13 +792,31 @@ class ExtensionManager extends URLStreamHandler implements Content
                 m_extensions.toArray(new Bundle[m_extensions.size()]);
     }
 
+    private synchronized void removeExtension(Object source, Bundle extension)
+    {
+        List sourceExtensions = (List) m_sourceToExtensions.get(source);
+        if ((sourceExtensions == null) || !sourceExtensions.remove(extension))
+        {
+            return;
+        }
+        if (sourceExtensions.isEmpty())
+        {
+            m_sourceToExtensions.remove(source);
+        }
+        rebuildExtensions();
+    }
+
     private synchronized void _removeExtensions(Object source)
     {
         if (m_sourceToExtensions.remove(source) == null)
         {
             return;
         }
+        rebuildExtensions();
+    }
 
+    private void rebuildExtensions()
+    {
         m_extensions.clear();
         m_names.clear();
 
@@ -778,9 +828,9 @@ class ExtensionManager extends URLStreamHandler implements Content
                 Bundle bundle = (Bundle) extIter.next();
                 _add(bundle.getSymbolicName(), bundle);
             }
-            m_extensionsCache = (Bundle[])
-                m_extensions.toArray(new Bundle[m_extensions.size()]);
         }
+        m_extensionsCache = (Bundle[])
+            m_extensions.toArray(new Bundle[m_extensions.size()]);
     }
 
     private void _add(String name, Bundle extension)
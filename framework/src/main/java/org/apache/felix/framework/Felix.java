@@ -46,9 +46,18 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.StringTokenizer;
-import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.framework.BundleWiringImpl.BundleClassLoader;
 import org.apache.felix.framework.ServiceRegistry.ServiceRegistryCallbacks;
@@ -56,9 +65,12 @@ import org.apache.felix.framework.cache.BundleArchive;
 import org.apache.felix.framework.cache.BundleCache;
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.apache.felix.framework.ext.BundleInstaller;
+import org.apache.felix.framework.ext.FrameworkMetrics;
 import org.apache.felix.framework.ext.SecurityProvider;
 import org.apache.felix.framework.util.EventDispatcher;
 import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.HashTrieMap;
 import org.apache.felix.framework.util.ListenerInfo;
 import org.apache.felix.framework.util.MapToDictionary;
 import org.apache.felix.framework.util.SecureAction;
@@ -148,8 +160,9 @@ public class Felix extends BundleImpl implements Framework
     // Contains two maps, one mapping a String bundle location to a bundle
     // and the other mapping a Long bundle identifier to a bundle.
     // CONCURRENCY: Access guarded by the global lock for writes,
-    // but no lock for reads since it is copy on write.
-    private volatile Map[] m_installedBundles;
+    // but no lock for reads since the maps are persistent and both
+    // are replaced together.
+    private volatile HashTrieMap[] m_installedBundles;
     private static final int LOCATION_MAP_IDX = 0;
     private static final int IDENTIFIER_MAP_IDX = 1;
     // An array of uninstalled bundles before a refresh occurs.
@@ -172,6 +185,8 @@ public class Felix extends BundleImpl implements Framework
     // Keep track of bundles currently being processed by start level thread.
     private final SortedSet<StartLevelTuple> m_startLevelBundles =
         new TreeSet<StartLevelTuple>();
+    // Threads for starting the bundles of a start level concurrently.
+    private ExecutorService m_startLevelExecutor = null;
 
     // Local bundle cache.
     private BundleCache m_cache = null;
@@ -189,6 +204,9 @@ public class Felix extends BundleImpl implements Framework
     // List of event listeners.
     private final EventDispatcher m_dispatcher;
 
+    // Metrics of the framework hot paths.
+    private final FrameworkMetricsImpl m_metrics;
+
     // Reusable bundle URL stream handler.
     private final URLStreamHandler m_bundleStreamHandler;
 
@@ -412,13 +430,17 @@ public class Felix extends BundleImpl implements Framework
         // Create default bundle stream handler.
         m_bundleStreamHandler = new URLHandlersBundleStreamHandler(this);
 
+        // Create the metrics, which are collected from the start if enabled.
+        m_metrics = new FrameworkMetricsImpl(this,
+            "true".equalsIgnoreCase((String) m_configMap.get(FelixConstants.METRICS_PROP)));
+
         // Create service registry.
         m_registry = new ServiceRegistry(m_logger, new ServiceRegistryCallbacks() {
             public void serviceChanged(ServiceEvent event, Dictionary oldProps)
             {
                 fireServiceEvent(event, oldProps);
             }
-        });
+        }, m_metrics);
 
         // Create a resolver and its state.
         m_resolver = new StatefulResolver(this, m_registry);
@@ -438,7 +460,21 @@ public class Felix extends BundleImpl implements Framework
         }
 
         // Create event dispatcher.
-        m_dispatcher = new EventDispatcher(m_logger, m_registry);
+        int dispatchThreads = 1;
+        s = (String) m_configMap.get(FelixConstants.EVENT_DISPATCH_THREADS_PROP);
+        if (s != null)
+        {
+            try
+            {
+                dispatchThreads = Integer.parseInt(s.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                // Ignore and use the shared dispatch thread.
+            }
+        }
+        m_dispatcher = new EventDispatcher(m_logger, m_registry, dispatchThreads);
+        m_metrics.setDispatcher(m_dispatcher);
 
         // Create framework wiring object.
         m_fwkWiring = new FrameworkWiringImpl(this, m_registry);
@@ -461,6 +497,11 @@ public class Felix extends BundleImpl implements Framework
         return m_resolver;
     }
 
+    FrameworkMetricsImpl getMetrics()
+    {
+        return m_metrics;
+    }
+
     BundleRevisionDependencies getDependencies()
     {
         return m_dependencies;
@@ -715,16 +756,13 @@ public class Felix extends BundleImpl implements Framework
                 }
 
                 // Initialize installed bundle data structures.
-                Map[] maps = new Map[] {
-                    new HashMap<String, BundleImpl>(1),
-                    new TreeMap<Long, BundleImpl>()
+                m_installedBundles = new HashTrieMap[] {
+                    HashTrieMap.empty(), HashTrieMap.empty()
                 };
                 m_uninstalledBundles = new ArrayList<BundleImpl>(0);
 
                 // Add the system bundle to the set of installed bundles.
-                maps[LOCATION_MAP_IDX].put(_getLocation(), this);
-                maps[IDENTIFIER_MAP_IDX].put(new Long(0), this);
-                m_installedBundles = maps;
+                addInstalledBundles(Collections.singletonList((BundleImpl) this));
 
                 // Manually resolve the system bundle, which will cause its
                 // state to be set to RESOLVED.
@@ -816,6 +854,23 @@ public class Felix extends BundleImpl implements Framework
                 // keep the max value.
                 m_nextId = Math.max(m_nextId, loadNextId());
 
+                // Load the wirings persisted by the previous run, if enabled,
+                // so unchanged bundles need not be resolved again.
+                if (WiringSnapshot.isEnabled(m_configMap))
+                {
+                    try
+                    {
+                        m_resolver.setWiringSnapshot(WiringSnapshot.load(
+                            m_logger, m_secureAction,
+                            m_cache.getSystemBundleDataFile(WiringSnapshot.SNAPSHOT_FILE)));
+                    }
+                    catch (Exception ex)
+                    {
+                        m_logger.log(
+                            Logger.LOG_WARNING, "Unable to load wiring snapshot.", ex);
+                    }
+                }
+
                 // The framework is now in its startup sequence.
                 setBundleStateAndNotify(this, Bundle.STARTING);
 
@@ -836,6 +891,12 @@ public class Felix extends BundleImpl implements Framework
                 m_resolver.start();
                 m_fwkWiring.start();
                 m_fwkStartLevel.start();
+                m_registry.registerService(_getBundleContext(),
+                    new String[] { BundleInstaller.class.getName() },
+                    new BundleInstallerImpl(this), null);
+                m_registry.registerService(_getBundleContext(),
+                    new String[] { FrameworkMetrics.class.getName() },
+                    m_metrics, null);
 
                 try
                 {
@@ -874,13 +935,7 @@ public class Felix extends BundleImpl implements Framework
                             catch (Exception ex)
                             {
                                 ((BundleImpl) bundle).close();
-                                maps = new Map[] {
-                                    new HashMap<String, BundleImpl>(m_installedBundles[LOCATION_MAP_IDX]),
-                                    new TreeMap<Long, BundleImpl>(m_installedBundles[IDENTIFIER_MAP_IDX])
-                                };
-                                maps[LOCATION_MAP_IDX].remove(((BundleImpl) bundle)._getLocation());
-                                maps[IDENTIFIER_MAP_IDX].remove(new Long(((BundleImpl) bundle).getBundleId()));
-                                m_installedBundles = maps;
+                                removeInstalledBundle(((BundleImpl) bundle)._getLocation());
 
                                 m_logger.log(
                                     Logger.LOG_ERROR,
@@ -1018,6 +1073,8 @@ public class Felix extends BundleImpl implements Framework
 
         if ((getState() & (Bundle.INSTALLED | Bundle.RESOLVED)) == 0)
         {
+            // Do not let a long running resolve delay the shutdown.
+            m_resolver.cancelResolve();
             // Spec says stop() on SystemBundle should return immediately and
             // shutdown framework on another thread.
             new Thread(new Runnable() {
@@ -1282,10 +1339,15 @@ public class Felix extends BundleImpl implements Framework
             int high = (isLowering) ? m_activeStartLevel : m_targetStartLevel;
             m_activeStartLevel = (isLowering) ? high : low;
 
+            // Determine how many bundles of a start level may be started
+            // concurrently when raising the start level.
+            int parallelism = (isLowering) ? 1 : getStartLevelParallelism();
+
             // Process bundles and stop or start them accordingly.
             while (bundlesRemaining)
             {
                 StartLevelTuple tuple;
+                List<StartLevelTuple> batch = null;
 
                 // Remove our tuple to be processed while holding the queue lock
                 // and update the active start level accordingly, which allows
@@ -1306,101 +1368,60 @@ public class Felix extends BundleImpl implements Framework
                     if ((tuple.m_level >= low) && (tuple.m_level <= high))
                     {
                         m_activeStartLevel = tuple.m_level;
+
+                        // If bundles may be started concurrently, then take
+                        // all queued bundles of the active start level.
+                        if (parallelism > 1)
+                        {
+                            batch = new ArrayList<StartLevelTuple>();
+                            for (StartLevelTuple t : m_startLevelBundles)
+                            {
+                                if (t.m_level != tuple.m_level)
+                                {
+                                    break;
+                                }
+                                batch.add(t);
+                            }
+                        }
                     }
                 }
 
-                // Ignore the system bundle, since its start() and
-                // stop() methods get called explicitly in Felix.start()
-                // and Felix.stop(), respectively.
-                if (tuple.m_bundle.getBundleId() != 0)
+                List<StartLevelTask> tasks = new ArrayList<StartLevelTask>();
+                if ((batch != null) && (batch.size() > 1))
                 {
-                    // Lock the current bundle.
-                    try
+                    for (StartLevelTuple t : batch)
                     {
-                        acquireBundleLock(tuple.m_bundle,
-                            Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
-                            | Bundle.STARTING | Bundle.STOPPING);
+                        tasks.add(new StartLevelTask(t, isLowering));
                     }
-                    catch (IllegalStateException ex)
+                    startBundlesConcurrently(tasks, parallelism);
+                }
+                else
+                {
+                    StartLevelTask task = new StartLevelTask(tuple, isLowering);
+                    task.call();
+                    tasks.add(task);
+                }
+
+                // Fire errors in start level order and remove the processed
+                // tuples; tuples whose bundle could not be locked remain queued
+                // and are retried.
+                for (StartLevelTask task : tasks)
+                {
+                    if (task.m_error != null)
                     {
-                        // Ignore if the bundle has been uninstalled.
-                        if (tuple.m_bundle.getState() != Bundle.UNINSTALLED)
-                        {
-                            fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, ex);
-                            m_logger.log(tuple.m_bundle,
-                                Logger.LOG_ERROR,
-                                "Error locking " + tuple.m_bundle._getLocation(), ex);
-                        }
-                        else
-                        {
-                            synchronized (m_startLevelBundles)
-                            {
-                                m_startLevelBundles.remove(tuple);
-                                bundlesRemaining = !m_startLevelBundles.isEmpty();
-                            }
-                        }
-                        continue;
+                        fireFrameworkEvent(
+                            FrameworkEvent.ERROR, task.m_tuple.m_bundle, task.m_error);
                     }
-
-                    try
+                    if (task.m_processed)
                     {
-                        // Start the bundle if necessary.
-                        // Note that we only attempt to start the bundle if
-                        // its start level is equal to the active start level,
-                        // which means we assume lower bundles are in the state
-                        // they should be in (i.e., we won't attempt to restart
-                        // them if they previously failed to start).
-                        if (!isLowering
-                            && (((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
-                                || (tuple.m_bundle.getPersistentState() == Bundle.STARTING))
-                                && (tuple.m_level == m_activeStartLevel)))
+                        synchronized (m_startLevelBundles)
                         {
-                            try
-                            {
-// TODO: LAZY - Not sure if this is the best way...
-                                int options = Bundle.START_TRANSIENT;
-                                options = (tuple.m_bundle.getPersistentState() == Bundle.STARTING)
-                                    ? options | Bundle.START_ACTIVATION_POLICY
-                                    : options;
-                                startBundle(tuple.m_bundle, options);
-                            }
-                            catch (Throwable th)
-                            {
-                                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
-                                m_logger.log(tuple.m_bundle,
-                                    Logger.LOG_ERROR,
-                                    "Error starting " + tuple.m_bundle._getLocation(), th);
-                            }
-                        }
-                        // Stop the bundle if necessary.
-                        else if (isLowering
-                            && (((tuple.m_bundle.getState() == Bundle.ACTIVE)
-                                || (tuple.m_bundle.getState() == Bundle.STARTING))
-                                && (tuple.m_level == m_activeStartLevel)))
-                        {
-                            try
-                            {
-                                stopBundle(tuple.m_bundle, false);
-                            }
-                            catch (Throwable th)
-                            {
-                                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
-                                m_logger.log(tuple.m_bundle,
-                                    Logger.LOG_ERROR,
-                                    "Error stopping " + tuple.m_bundle._getLocation(), th);
-                            }
+                            m_startLevelBundles.remove(task.m_tuple);
                         }
                     }
-                    finally
-                    {
-                        // Always release bundle lock.
-                        releaseBundleLock(tuple.m_bundle);
-                    }
                 }
-
                 synchronized (m_startLevelBundles)
                 {
-                    m_startLevelBundles.remove(tuple);
                     bundlesRemaining = !m_startLevelBundles.isEmpty();
                 }
             }
@@ -1432,6 +1453,96 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    /**
+     * Starts the bundles of the given tasks, which all belong to the same
+     * start level, concurrently and waits until all of them are processed.
+     * Any errors are recorded in the tasks for the caller to report.
+    **/
+    private void startBundlesConcurrently(List<StartLevelTask> tasks, int parallelism)
+    {
+        // Resolve the bundles of the start level together up front, so the
+        // concurrent starts do not need to compete for the global lock to
+        // resolve them one at a time.
+        List<Bundle> unresolved = new ArrayList<Bundle>();
+        for (StartLevelTask task : tasks)
+        {
+            BundleImpl bundle = task.m_tuple.m_bundle;
+            if ((bundle.getBundleId() != 0)
+                && (bundle.getState() == Bundle.INSTALLED)
+                && ((bundle.getPersistentState() == Bundle.ACTIVE)
+                    || (bundle.getPersistentState() == Bundle.STARTING)))
+            {
+                unresolved.add(bundle);
+            }
+        }
+        if (!unresolved.isEmpty())
+        {
+            resolveBundles(unresolved);
+        }
+
+        ExecutorService executor;
+        synchronized (m_startLevelBundles)
+        {
+            if (m_startLevelExecutor == null)
+            {
+                m_startLevelExecutor = Executors.newFixedThreadPool(
+                    parallelism, new StartLevelThreadFactory());
+            }
+            executor = m_startLevelExecutor;
+        }
+
+        try
+        {
+            executor.invokeAll(tasks);
+        }
+        catch (InterruptedException ex)
+        {
+            // Tasks that did not run are not marked as processed,
+            // so they remain queued.
+            Thread.currentThread().interrupt();
+        }
+        catch (RejectedExecutionException ex)
+        {
+            // The executor was shut down, so process the tuples sequentially.
+            for (StartLevelTask task : tasks)
+            {
+                task.call();
+            }
+        }
+    }
+
+    /**
+     * Stops the threads used to start bundles concurrently, if any.
+    **/
+    private void stopStartLevelExecutor()
+    {
+        synchronized (m_startLevelBundles)
+        {
+            if (m_startLevelExecutor != null)
+            {
+                m_startLevelExecutor.shutdown();
+                m_startLevelExecutor = null;
+            }
+        }
+    }
+
+    private int getStartLevelParallelism()
+    {
+        String s = (String) m_configMap.get(FelixConstants.STARTLEVEL_PARALLELISM_PROP);
+        if (s != null)
+        {
+            try
+            {
+                return Integer.parseInt(s.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                // Ignore and return the default value.
+            }
+        }
+        return 1;
+    }
+
     /**
      * Returns the start level into which newly installed bundles will
      * be placed by default; this method implements functionality for
@@ -1923,6 +2034,24 @@ public class Felix extends BundleImpl implements Framework
      * Implementation for Bundle.start().
     **/
     void startBundle(BundleImpl bundle, int options) throws BundleException
+    {
+        boolean timed = m_metrics.isEnabled();
+        long start = (timed) ? System.nanoTime() : 0;
+        try
+        {
+            startBundleInternal(bundle, options);
+        }
+        finally
+        {
+            if (timed)
+            {
+                m_metrics.bundleStarted(bundle, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private void startBundleInternal(BundleImpl bundle, int options)
+        throws BundleException
     {
         // CONCURRENCY NOTE:
         // We will first acquire the bundle lock for the specific bundle
@@ -2020,7 +2149,7 @@ public class Felix extends BundleImpl implements Framework
             // queued but processed synchronously.
             // Note: Don't queue starts from the start level thread, otherwise
             // we'd never get anything started.
-            if (!Thread.currentThread().getName().equals(FrameworkStartLevelImpl.THREAD_NAME))
+            if (!FrameworkStartLevelImpl.isStartLevelThread(Thread.currentThread()))
             {
                 synchronized (m_startLevelBundles)
                 {
@@ -2515,6 +2644,24 @@ public class Felix extends BundleImpl implements Framework
 
     void stopBundle(BundleImpl bundle, boolean record)
         throws BundleException
+    {
+        boolean timed = m_metrics.isEnabled();
+        long start = (timed) ? System.nanoTime() : 0;
+        try
+        {
+            stopBundleInternal(bundle, record);
+        }
+        finally
+        {
+            if (timed)
+            {
+                m_metrics.bundleStopped(bundle, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private void stopBundleInternal(BundleImpl bundle, boolean record)
+        throws BundleException
     {
         // Acquire bundle lock.
         try
@@ -2724,18 +2871,10 @@ public class Felix extends BundleImpl implements Framework
             }
             try
             {
-                // Use a copy-on-write approach to remove the bundle
-                // from the installed maps.
-                Map[] maps = new Map[] {
-                    new HashMap<String, BundleImpl>(m_installedBundles[LOCATION_MAP_IDX]),
-                    new TreeMap<Long, BundleImpl>(m_installedBundles[IDENTIFIER_MAP_IDX])
-                };
-                target = (BundleImpl) maps[LOCATION_MAP_IDX].remove(bundle._getLocation());
+                // Remove the bundle from the installed maps.
+                target = removeInstalledBundle(bundle._getLocation());
                 if (target != null)
                 {
-                    maps[IDENTIFIER_MAP_IDX].remove(new Long(target.getBundleId()));
-                    m_installedBundles = maps;
-
                     // Set the bundle's persistent state to uninstalled.
                     bundle.setPersistentStateUninstalled();
 
@@ -2867,15 +3006,8 @@ public class Felix extends BundleImpl implements Framework
                     m_resolver.addRevision(m_extensionManager.getRevision());
                 }
 
-                // Use a copy-on-write approach to add the bundle
-                // to the installed maps.
-                Map[] maps = new Map[] {
-                    new HashMap<String, BundleImpl>(m_installedBundles[LOCATION_MAP_IDX]),
-                    new TreeMap<Long, BundleImpl>(m_installedBundles[IDENTIFIER_MAP_IDX])
-                };
-                maps[LOCATION_MAP_IDX].put(bundle._getLocation(), bundle);
-                maps[IDENTIFIER_MAP_IDX].put(new Long(bundle.getBundleId()), bundle);
-                m_installedBundles = maps;
+                // Add the bundle to the installed maps.
+                addInstalledBundles(Collections.singletonList(bundle));
             }
             finally
             {
@@ -3038,15 +3170,8 @@ public class Felix extends BundleImpl implements Framework
                 }
                 try
                 {
-                    // Use a copy-on-write approach to add the bundle
-                    // to the installed maps.
-                    Map[] maps = new Map[] {
-                        new HashMap<String, BundleImpl>(m_installedBundles[LOCATION_MAP_IDX]),
-                        new TreeMap<Long, BundleImpl>(m_installedBundles[IDENTIFIER_MAP_IDX])
-                    };
-                    maps[LOCATION_MAP_IDX].put(location, bundle);
-                    maps[IDENTIFIER_MAP_IDX].put(new Long(bundle.getBundleId()), bundle);
-                    m_installedBundles = maps;
+                    // Add the bundle to the installed maps.
+                    addInstalledBundles(Collections.singletonList(bundle));
                 }
                 finally
                 {
@@ -3080,58 +3205,418 @@ public class Felix extends BundleImpl implements Framework
 
         if (existing != null)
         {
-            Set<ServiceReference<org.osgi.framework.hooks.bundle.FindHook>> hooks =
-                getHooks(org.osgi.framework.hooks.bundle.FindHook.class);
-            if (!hooks.isEmpty())
+            checkExistingBundle(origin, existing);
+        }
+        else
+        {
+            // Fire bundle event.
+            fireBundleEvent(BundleEvent.INSTALLED, bundle, origin);
+        }
+
+        // Return new bundle.
+        return (existing != null) ? existing : bundle;
+    }
+
+    /**
+     * Installs several bundles at once. The bundle archives are created
+     * concurrently and all new bundles are added to the installed bundles
+     * in one step, so either all or none of them are installed. Locations
+     * that are already installed yield the existing bundle.
+     * @param origin the bundle performing the install.
+     * @param streams the input streams of the bundles by location, where a
+     *        <tt>null</tt> stream means that the location is read.
+     * @return the bundles in the order of the specified locations.
+    **/
+    List<Bundle> installBundles(Bundle origin, Map<String, InputStream> streams)
+        throws BundleException
+    {
+        List<String> lockedLocations = new ArrayList<String>();
+        Map<String, BundleImpl> existing = new HashMap<String, BundleImpl>();
+        List<BundleImpl> bundles = new ArrayList<BundleImpl>();
+
+        try
+        {
+            // Acquire the install locks in a fixed order, so concurrent bulk
+            // installs of overlapping locations cannot deadlock.
+            for (String location : new TreeSet<String>(streams.keySet()))
+            {
+                acquireInstallLock(location);
+                lockedLocations.add(location);
+            }
+
+            // Check to see if the framework is still running;
+            if ((getState() == Bundle.STOPPING) ||
+                (getState() == Bundle.UNINSTALLED))
+            {
+                throw new BundleException("The framework has been shutdown.");
+            }
+
+            List<String> locations = new ArrayList<String>();
+            for (String location : streams.keySet())
+            {
+                BundleImpl bundle = (BundleImpl) getBundle(location);
+                if (bundle != null)
+                {
+                    existing.put(location, bundle);
+                }
+                else
+                {
+                    locations.add(location);
+                }
+            }
+
+            // Fail before anything is installed if the hooks hide an
+            // existing bundle from the origin.
+            for (BundleImpl bundle : existing.values())
+            {
+                checkExistingBundle(origin, bundle);
+            }
+
+            List<BundleArchive> archives = createArchives(locations, streams);
+            List<BundleImpl> extensions = new ArrayList<BundleImpl>();
+
+            try
+            {
+                // Acquire the global lock to create the bundles,
+                // since this impacts the global state.
+                boolean locked = acquireGlobalLock();
+                if (!locked)
+                {
+                    throw new BundleException(
+                        "Unable to acquire the global lock to install the bundles.");
+                }
+                try
+                {
+                    for (BundleArchive ba : archives)
+                    {
+                        bundles.add(new BundleImpl(this, origin, ba, bundles));
+                    }
+                }
+                finally
+                {
+                    // Always release the global lock.
+                    releaseGlobalLock();
+                }
+
+                for (BundleImpl bundle : bundles)
+                {
+                    if (!bundle.isExtension())
+                    {
+                        Object sm = System.getSecurityManager();
+                        if (sm != null)
+                        {
+                            ((SecurityManager) sm).checkPermission(
+                                new AdminPermission(bundle, AdminPermission.LIFECYCLE));
+                        }
+                    }
+                    else
+                    {
+                        extensions.add(bundle);
+                        m_extensionManager.addExtensionBundle(this, bundle);
+                        m_resolver.addRevision(m_extensionManager.getRevision());
+                    }
+                }
+            }
+            catch (Throwable ex)
             {
-                Collection<Bundle> bundles = new ArrayList<Bundle>(1);
-                bundles.add(existing);
-                bundles = new ShrinkableCollection<Bundle>(bundles);
-                for (ServiceReference<org.osgi.framework.hooks.bundle.FindHook> hook : hooks)
+                // Detach the extension bundles of the batch again.
+                if (!extensions.isEmpty())
                 {
-                    org.osgi.framework.hooks.bundle.FindHook fh = getService(this, hook, false);
-                    if (fh != null)
+                    for (BundleImpl bundle : extensions)
                     {
-                        try
+                        m_extensionManager.removeExtensionBundle(this, bundle);
+                    }
+                    m_resolver.addRevision(m_extensionManager.getRevision());
+                }
+                // Remove all new bundles from the cache.
+                for (int i = 0; i < archives.size(); i++)
+                {
+                    try
+                    {
+                        if (i < bundles.size())
                         {
-                            m_secureAction.invokeBundleFindHook(
-                                fh, origin.getBundleContext(), bundles);
+                            bundles.get(i).closeAndDelete();
                         }
-                        catch (Throwable th)
+                        else
                         {
-                            m_logger.doLog(
-                                hook.getBundle(),
-                                hook,
-                                Logger.LOG_WARNING,
-                                "Problem invoking bundle hook.",
-                                th);
+                            archives.get(i).closeAndDelete();
                         }
                     }
+                    catch (Exception ex1)
+                    {
+                        m_logger.log(
+                            Logger.LOG_ERROR,
+                            "Could not remove from cache.", ex1);
+                    }
+                }
+                if (ex instanceof BundleException)
+                {
+                    throw (BundleException) ex;
                 }
+                else if (ex instanceof AccessControlException)
+                {
+                    throw (AccessControlException) ex;
+                }
+                else
+                {
+                    throw new BundleException("Could not create bundle object.", ex);
+                }
+            }
 
-                if (origin != this)
+            // Acquire global lock.
+            boolean locked = acquireGlobalLock();
+            if (!locked)
+            {
+                // If the calling thread holds bundle locks, then we might not
+                // be able to get the global lock.
+                throw new IllegalStateException(
+                    "Unable to acquire global lock to add bundles.");
+            }
+            try
+            {
+                addInstalledBundles(bundles);
+            }
+            finally
+            {
+                releaseGlobalLock();
+            }
+
+            for (BundleImpl bundle : bundles)
+            {
+                if (bundle.isExtension())
+                {
+                    m_extensionManager.startExtensionBundle(this, bundle);
+                }
+            }
+        }
+        finally
+        {
+            // Always release the install locks.
+            for (String location : lockedLocations)
+            {
+                releaseInstallLock(location);
+            }
+
+            // Always try to close the input streams.
+            for (InputStream is : streams.values())
+            {
+                try
+                {
+                    if (is != null) is.close();
+                }
+                catch (IOException ex)
                 {
-                    // If the origin was something else than the system bundle, reject this action if
-                    // the bundle has been removed by the hooks. However, if it is the system bundle,
-                    // the install action should always succeed, regardless of whether the hooks are
-                    // trying to prevent it.
-                    if (bundles.isEmpty())
+                    m_logger.log(
+                        Logger.LOG_ERROR,
+                        "Unable to close input stream.", ex);
+                }
+            }
+        }
+
+        for (BundleImpl bundle : bundles)
+        {
+            fireBundleEvent(BundleEvent.INSTALLED, bundle, origin);
+        }
+
+        List<Bundle> result = new ArrayList<Bundle>(streams.size());
+        Iterator<BundleImpl> newBundles = bundles.iterator();
+        for (String location : streams.keySet())
+        {
+            BundleImpl bundle = existing.get(location);
+            result.add((bundle != null) ? bundle : newBundles.next());
+        }
+        return result;
+    }
+
+    /**
+     * Creates the archives for the specified locations concurrently. If the
+     * archive of any location cannot be created, or the calling thread is
+     * interrupted, then all created archives are deleted again.
+    **/
+    private List<BundleArchive> createArchives(
+        List<String> locations, final Map<String, InputStream> streams)
+        throws BundleException
+    {
+        final int startLevel = getInitialBundleStartLevel();
+        // Every created archive, including the ones of tasks whose result
+        // is lost because they were cancelled.
+        final List<BundleArchive> created =
+            Collections.synchronizedList(new ArrayList<BundleArchive>());
+        List<Callable<BundleArchive>> tasks =
+            new ArrayList<Callable<BundleArchive>>(locations.size());
+        for (final String location : locations)
+        {
+            final long id = getNextId();
+            tasks.add(new Callable<BundleArchive>()
+            {
+                public BundleArchive call() throws Exception
+                {
+                    InputStream is = streams.get(location);
+                    try
                     {
-                        throw new BundleException(
-                            "Bundle installation rejected by hook.",
-                            BundleException.REJECTED_BY_HOOK);
+                        BundleArchive ba = m_cache.create(id, startLevel, location, is);
+                        created.add(ba);
+                        return ba;
+                    }
+                    finally
+                    {
+                        if (is != null) is.close();
+                    }
+                }
+            });
+        }
+
+        List<Future<BundleArchive>> futures;
+        int parallelism = Math.min(
+            tasks.size(), Runtime.getRuntime().availableProcessors());
+        if (parallelism > 1)
+        {
+            ExecutorService executor = Executors.newFixedThreadPool(
+                parallelism, new InstallThreadFactory());
+            try
+            {
+                futures = executor.invokeAll(tasks);
+            }
+            catch (InterruptedException ex)
+            {
+                // The pending tasks were cancelled, but wait for the running
+                // ones, so that no archive is created after the created ones
+                // are deleted and no stream is still read once the caller
+                // closes them.
+                executor.shutdown();
+                while (true)
+                {
+                    try
+                    {
+                        if (executor.awaitTermination(1, TimeUnit.SECONDS))
+                        {
+                            break;
+                        }
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        // Keep waiting; the interrupt is restored below.
                     }
                 }
+                deleteArchives(created);
+                Thread.currentThread().interrupt();
+                throw new BundleException("Unable to install, thread interrupted.");
+            }
+            finally
+            {
+                executor.shutdown();
             }
         }
         else
         {
-            // Fire bundle event.
-            fireBundleEvent(BundleEvent.INSTALLED, bundle, origin);
+            futures = new ArrayList<Future<BundleArchive>>(tasks.size());
+            for (Callable<BundleArchive> task : tasks)
+            {
+                FutureTask<BundleArchive> future = new FutureTask<BundleArchive>(task);
+                future.run();
+                futures.add(future);
+            }
         }
 
-        // Return new bundle.
-        return (existing != null) ? existing : bundle;
+        List<BundleArchive> archives = new ArrayList<BundleArchive>(futures.size());
+        BundleException failure = null;
+        for (int i = 0; i < futures.size(); i++)
+        {
+            try
+            {
+                archives.add(futures.get(i).get());
+            }
+            catch (Exception ex)
+            {
+                if (failure == null)
+                {
+                    Throwable cause = (ex instanceof ExecutionException)
+                        ? ex.getCause() : ex;
+                    failure = new BundleException(
+                        "Unable to cache bundle: " + locations.get(i), cause);
+                }
+            }
+        }
+
+        if (failure != null)
+        {
+            deleteArchives(created);
+            throw failure;
+        }
+        return archives;
+    }
+
+    private void deleteArchives(List<BundleArchive> archives)
+    {
+        synchronized (archives)
+        {
+            for (BundleArchive ba : archives)
+            {
+                try
+                {
+                    ba.closeAndDelete();
+                }
+                catch (Exception ex)
+                {
+                    m_logger.log(
+                        Logger.LOG_ERROR,
+                        "Could not remove from cache.", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Invokes the bundle find hooks for a bundle that was requested to be
+     * installed, but whose location is already installed.
+     * @throws BundleException if the hooks hide the bundle from the origin.
+    **/
+    private void checkExistingBundle(Bundle origin, BundleImpl existing)
+        throws BundleException
+    {
+        Set<ServiceReference<org.osgi.framework.hooks.bundle.FindHook>> hooks =
+            getHooks(org.osgi.framework.hooks.bundle.FindHook.class);
+        if (!hooks.isEmpty())
+        {
+            Collection<Bundle> bundles = new ArrayList<Bundle>(1);
+            bundles.add(existing);
+            bundles = new ShrinkableCollection<Bundle>(bundles);
+            for (ServiceReference<org.osgi.framework.hooks.bundle.FindHook> hook : hooks)
+            {
+                org.osgi.framework.hooks.bundle.FindHook fh = getService(this, hook, false);
+                if (fh != null)
+                {
+                    try
+                    {
+                        m_secureAction.invokeBundleFindHook(
+                            fh, origin.getBundleContext(), bundles);
+                    }
+                    catch (Throwable th)
+                    {
+                        m_logger.doLog(
+                            hook.getBundle(),
+                            hook,
+                            Logger.LOG_WARNING,
+                            "Problem invoking bundle hook.",
+                            th);
+                    }
+                }
+            }
+
+            if (origin != this)
+            {
+                // If the origin was something else than the system bundle, reject this action if
+                // the bundle has been removed by the hooks. However, if it is the system bundle,
+                // the install action should always succeed, regardless of whether the hooks are
+                // trying to prevent it.
+                if (bundles.isEmpty())
+                {
+                    throw new BundleException(
+                        "Bundle installation rejected by hook.",
+                        BundleException.REJECTED_BY_HOOK);
+                }
+            }
+        }
     }
 
     /**
@@ -3146,6 +3631,41 @@ public class Felix extends BundleImpl implements Framework
         return (Bundle) m_installedBundles[LOCATION_MAP_IDX].get(location);
     }
 
+    /**
+     * Adds bundles to the installed maps, which replaces both maps in one
+     * step. The caller must hold the global lock.
+    **/
+    private void addInstalledBundles(Collection<BundleImpl> bundles)
+    {
+        HashTrieMap locations = m_installedBundles[LOCATION_MAP_IDX];
+        HashTrieMap ids = m_installedBundles[IDENTIFIER_MAP_IDX];
+        for (BundleImpl bundle : bundles)
+        {
+            locations = locations.plus(bundle._getLocation(), bundle);
+            ids = ids.plus(new Long(bundle.getBundleId()), bundle);
+        }
+        m_installedBundles = new HashTrieMap[] { locations, ids };
+    }
+
+    /**
+     * Removes the bundle with the specified location from the installed
+     * maps. The caller must hold the global lock.
+     * @return the removed bundle or <tt>null</tt>.
+    **/
+    private BundleImpl removeInstalledBundle(String location)
+    {
+        HashTrieMap[] maps = m_installedBundles;
+        BundleImpl bundle = (BundleImpl) maps[LOCATION_MAP_IDX].get(location);
+        if (bundle != null)
+        {
+            m_installedBundles = new HashTrieMap[] {
+                maps[LOCATION_MAP_IDX].minus(location),
+                maps[IDENTIFIER_MAP_IDX].minus(new Long(bundle.getBundleId()))
+            };
+        }
+        return bundle;
+    }
+
     /**
      * Implementation for BundleContext.getBundle(). Retrieves a
      * bundle from its identifier.
@@ -3541,7 +4061,7 @@ public class Felix extends BundleImpl implements Framework
         {
             try
             {
-                filter = SimpleFilter.parse(expr);
+                filter = SimpleFilter.parseCached(expr);
             }
             catch (Exception ex)
             {
@@ -4384,6 +4904,12 @@ public class Felix extends BundleImpl implements Framework
 
     private volatile SecurityProvider m_securityProvider;
 
+    // Incremented whenever permission decisions cached by the security
+    // provider may no longer hold, which is the case when the provider
+    // changes and when the properties of a service change, since service
+    // permissions may be granted by filters over the service properties.
+    private final AtomicInteger m_permissionGeneration = new AtomicInteger();
+
     SecurityProvider getSecurityProvider()
     {
         return m_securityProvider;
@@ -4392,6 +4918,17 @@ public class Felix extends BundleImpl implements Framework
     void setSecurityProvider(SecurityProvider securityProvider)
     {
         m_securityProvider = securityProvider;
+        invalidatePermissionDecisions();
+    }
+
+    int getPermissionGeneration()
+    {
+        return m_permissionGeneration.get();
+    }
+
+    void invalidatePermissionDecisions()
+    {
+        m_permissionGeneration.incrementAndGet();
     }
 
     Object getSignerMatcher(BundleImpl bundle, int signersType)
@@ -4533,6 +5070,10 @@ public class Felix extends BundleImpl implements Framework
     **/
     private void fireServiceEvent(ServiceEvent event, Dictionary oldProps)
     {
+        if ((event.getType() == ServiceEvent.MODIFIED) && (m_securityProvider != null))
+        {
+            invalidatePermissionDecisions();
+        }
         m_dispatcher.fireServiceEvent(event, oldProps, this);
     }
 
@@ -4848,6 +5389,7 @@ public class Felix extends BundleImpl implements Framework
             m_fwkWiring.stop();
             // Stop framework start level thread.
             m_fwkStartLevel.stop();
+            stopStartLevelExecutor();
 
             // Shutdown event dispatching queue.
             m_dispatcher.stopDispatching();
@@ -4894,8 +5436,26 @@ public class Felix extends BundleImpl implements Framework
                 }
             }
 
-            // Dispose of the bundles to close their associated contents.
+            // Persist the current wirings, if enabled, before the bundles
+            // are closed.
             bundles = getBundles();
+            if (WiringSnapshot.isEnabled(m_configMap))
+            {
+                try
+                {
+                    WiringSnapshot.save(
+                        m_logger, m_secureAction,
+                        m_cache.getSystemBundleDataFile(WiringSnapshot.SNAPSHOT_FILE),
+                        bundles);
+                }
+                catch (Exception ex)
+                {
+                    m_logger.log(
+                        Logger.LOG_WARNING, "Unable to save wiring snapshot.", ex);
+                }
+            }
+
+            // Dispose of the bundles to close their associated contents.
             for (int i = 0; i < bundles.length; i++)
             {
                 ((BundleImpl) bundles[i]).close();
@@ -5047,6 +5607,153 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    /**
+     * Starts or stops the bundle of a start level tuple as needed for the
+     * active start level.
+    **/
+    private class StartLevelTask implements Callable<Object>
+    {
+        private final StartLevelTuple m_tuple;
+        private final boolean m_isLowering;
+        // Whether the tuple is done; false if the bundle could not be locked.
+        private volatile boolean m_processed = false;
+        // Error to report as a framework event, if any.
+        private volatile Throwable m_error = null;
+
+        StartLevelTask(StartLevelTuple tuple, boolean isLowering)
+        {
+            m_tuple = tuple;
+            m_isLowering = isLowering;
+        }
+
+        public Object call()
+        {
+            // Ignore the system bundle, since its start() and
+            // stop() methods get called explicitly in Felix.start()
+            // and Felix.stop(), respectively.
+            if (m_tuple.m_bundle.getBundleId() == 0)
+            {
+                m_processed = true;
+                return null;
+            }
+
+            // Lock the current bundle.
+            try
+            {
+                acquireBundleLock(m_tuple.m_bundle,
+                    Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
+                    | Bundle.STARTING | Bundle.STOPPING);
+            }
+            catch (IllegalStateException ex)
+            {
+                // Ignore if the bundle has been uninstalled.
+                if (m_tuple.m_bundle.getState() != Bundle.UNINSTALLED)
+                {
+                    m_error = ex;
+                    m_logger.log(m_tuple.m_bundle,
+                        Logger.LOG_ERROR,
+                        "Error locking " + m_tuple.m_bundle._getLocation(), ex);
+                }
+                else
+                {
+                    m_processed = true;
+                }
+                return null;
+            }
+
+            try
+            {
+                // Start the bundle if necessary.
+                // Note that we only attempt to start the bundle if
+                // its start level is equal to the active start level,
+                // which means we assume lower bundles are in the state
+                // they should be in (i.e., we won't attempt to restart
+                // them if they previously failed to start).
+                if (!m_isLowering
+                    && (((m_tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
+                        || (m_tuple.m_bundle.getPersistentState() == Bundle.STARTING))
+                        && (m_tuple.m_level == m_activeStartLevel)))
+                {
+                    try
+                    {
+// TODO: LAZY - Not sure if this is the best way...
+                        int options = Bundle.START_TRANSIENT;
+                        options = (m_tuple.m_bundle.getPersistentState() == Bundle.STARTING)
+                            ? options | Bundle.START_ACTIVATION_POLICY
+                            : options;
+                        startBundle(m_tuple.m_bundle, options);
+                    }
+                    catch (Throwable th)
+                    {
+                        m_error = th;
+                        m_logger.log(m_tuple.m_bundle,
+                            Logger.LOG_ERROR,
+                            "Error starting " + m_tuple.m_bundle._getLocation(), th);
+                    }
+                }
+                // Stop the bundle if necessary.
+                else if (m_isLowering
+                    && (((m_tuple.m_bundle.getState() == Bundle.ACTIVE)
+                        || (m_tuple.m_bundle.getState() == Bundle.STARTING))
+                        && (m_tuple.m_level == m_activeStartLevel)))
+                {
+                    try
+                    {
+                        stopBundle(m_tuple.m_bundle, false);
+                    }
+                    catch (Throwable th)
+                    {
+                        m_error = th;
+                        m_logger.log(m_tuple.m_bundle,
+                            Logger.LOG_ERROR,
+                            "Error stopping " + m_tuple.m_bundle._getLocation(), th);
+                    }
+                }
+            }
+            finally
+            {
+                // Always release bundle lock.
+                releaseBundleLock(m_tuple.m_bundle);
+            }
+            m_processed = true;
+            return null;
+        }
+    }
+
+    /**
+     * Creates the daemon threads used to start the bundles of a start level
+     * concurrently. Their names identify them as start level threads, so
+     * bundle starts they trigger are processed synchronously.
+    **/
+    private static class StartLevelThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r,
+                FrameworkStartLevelImpl.THREAD_NAME + "-" + m_count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * Creates the threads that create the archives of bundles installed
+     * together.
+    **/
+    private static class InstallThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "FelixInstaller-" + m_count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
     // Compares bundles by start level. Within a start level,
     // bundles are sorted by bundle ID.
     private static class StartLevelTuple implements Comparable<StartLevelTuple>
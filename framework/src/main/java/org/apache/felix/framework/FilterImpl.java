@@ -39,12 +39,13 @@ import org.osgi.framework.wiring.BundleRevision;
 public class FilterImpl implements Filter
 {
     private final SimpleFilter m_filter;
+    private volatile String m_string;
 
     public FilterImpl(String filterStr) throws InvalidSyntaxException
     {
         try
         {
-            m_filter = SimpleFilter.parse(filterStr);
+            m_filter = SimpleFilter.parseCached(filterStr);
         }
         catch (Throwable th)
         {
@@ -91,7 +92,13 @@ public class FilterImpl implements Filter
 
     public String toString()
     {
-        return m_filter.toString();
+        String s = m_string;
+        if (s == null)
+        {
+            s = m_filter.toString();
+            m_string = s;
+        }
+        return s;
     }
 
     static class WrapperCapability extends BundleCapabilityImpl
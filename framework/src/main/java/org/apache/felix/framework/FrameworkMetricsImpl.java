@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.felix.framework.ext.BundleMetricsDTO;
+import org.apache.felix.framework.ext.FrameworkMetrics;
+import org.apache.felix.framework.ext.FrameworkMetricsDTO;
+import org.apache.felix.framework.ext.ListenerMetricsDTO;
+import org.apache.felix.framework.util.EventDispatcher;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Collects the framework-wide metrics and implements the metrics service.
+ * Instrumented code reads <tt>isEnabled()</tt> once per operation and
+ * only measures and records the operation if it returned <tt>true</tt>,
+ * so disabled metrics neither allocate nor take the time.
+**/
+class FrameworkMetricsImpl implements FrameworkMetrics
+{
+    private final Felix m_felix;
+    private volatile boolean m_enabled;
+    private EventDispatcher m_dispatcher;
+
+    private final AtomicLong m_resolves = new AtomicLong();
+    private final AtomicLong m_failedResolves = new AtomicLong();
+    private final AtomicLong m_resolveTime = new AtomicLong();
+    private final AtomicLong m_maxResolveTime = new AtomicLong();
+    private final AtomicLong m_serviceLookups = new AtomicLong();
+    private final AtomicLong m_serviceLookupTime = new AtomicLong();
+    private final AtomicLong m_serviceContentions = new AtomicLong();
+    private final AtomicLong m_bundleStarts = new AtomicLong();
+    private final AtomicLong m_bundleStartTime = new AtomicLong();
+    private final AtomicLong m_bundleStops = new AtomicLong();
+    private final AtomicLong m_bundleStopTime = new AtomicLong();
+
+    FrameworkMetricsImpl(Felix felix, boolean enabled)
+    {
+        m_felix = felix;
+        m_enabled = enabled;
+    }
+
+    /**
+     * Sets the event dispatcher whose listeners are timed while metrics
+     * are enabled.
+    **/
+    synchronized void setDispatcher(EventDispatcher dispatcher)
+    {
+        m_dispatcher = dispatcher;
+        dispatcher.setCallbackTiming(m_enabled);
+    }
+
+    public boolean isEnabled()
+    {
+        return m_enabled;
+    }
+
+    public synchronized void setEnabled(boolean enabled)
+    {
+        m_enabled = enabled;
+        if (m_dispatcher != null)
+        {
+            m_dispatcher.setCallbackTiming(enabled);
+        }
+    }
+
+    void resolved(long time, boolean succeeded)
+    {
+        m_resolves.incrementAndGet();
+        if (!succeeded)
+        {
+            m_failedResolves.incrementAndGet();
+        }
+        m_resolveTime.addAndGet(time);
+        long max = m_maxResolveTime.get();
+        while ((time > max) && !m_maxResolveTime.compareAndSet(max, time))
+        {
+            max = m_maxResolveTime.get();
+        }
+    }
+
+    void serviceLookedUp(long time)
+    {
+        m_serviceLookups.incrementAndGet();
+        m_serviceLookupTime.addAndGet(time);
+    }
+
+    void serviceContended()
+    {
+        m_serviceContentions.incrementAndGet();
+    }
+
+    void bundleStarted(BundleImpl bundle, long time)
+    {
+        m_bundleStarts.incrementAndGet();
+        m_bundleStartTime.addAndGet(time);
+        bundle.setLastStartTime(time);
+    }
+
+    void bundleStopped(BundleImpl bundle, long time)
+    {
+        m_bundleStops.incrementAndGet();
+        m_bundleStopTime.addAndGet(time);
+        bundle.setLastStopTime(time);
+    }
+
+    public FrameworkMetricsDTO getMetrics()
+    {
+        FrameworkMetricsDTO dto = new FrameworkMetricsDTO();
+        dto.enabled = m_enabled;
+        dto.resolves = m_resolves.get();
+        dto.failedResolves = m_failedResolves.get();
+        dto.resolveTime = m_resolveTime.get();
+        dto.maxResolveTime = m_maxResolveTime.get();
+        dto.serviceLookups = m_serviceLookups.get();
+        dto.serviceLookupTime = m_serviceLookupTime.get();
+        dto.serviceContentions = m_serviceContentions.get();
+        dto.bundleStarts = m_bundleStarts.get();
+        dto.bundleStartTime = m_bundleStartTime.get();
+        dto.bundleStops = m_bundleStops.get();
+        dto.bundleStopTime = m_bundleStopTime.get();
+
+        Bundle[] bundles = m_felix.getBundles();
+        dto.bundles = new BundleMetricsDTO[bundles.length];
+        for (int i = 0; i < bundles.length; i++)
+        {
+            dto.bundles[i] = getBundleMetrics((BundleImpl) bundles[i]);
+        }
+
+        EventDispatcher dispatcher;
+        synchronized (this)
+        {
+            dispatcher = m_dispatcher;
+        }
+        if (dispatcher != null)
+        {
+            dto.eventQueueDepth = dispatcher.getQueueDepth();
+            List<ListenerMetricsDTO> listeners = dispatcher.getListenerMetrics();
+            dto.listeners = listeners.toArray(new ListenerMetricsDTO[listeners.size()]);
+        }
+        else
+        {
+            dto.listeners = new ListenerMetricsDTO[0];
+        }
+        return dto;
+    }
+
+    static BundleMetricsDTO getBundleMetrics(BundleImpl bundle)
+    {
+        BundleMetricsDTO dto = new BundleMetricsDTO();
+        dto.id = bundle.getBundleId();
+        BundleWiring wiring = bundle.adapt(BundleRevisionImpl.class).getWiring();
+        if (wiring instanceof BundleWiringImpl)
+        {
+            dto.classLoads = ((BundleWiringImpl) wiring).getClassLoads();
+            dto.classLoadTime = ((BundleWiringImpl) wiring).getClassLoadTime();
+        }
+        dto.lastStartTime = bundle.getLastStartTime();
+        dto.lastStopTime = bundle.getLastStopTime();
+        return dto;
+    }
+}
@@ -60,6 +60,17 @@ class FrameworkStartLevelImpl implements FrameworkStartLevel, Runnable
                 null);
     }
 
+    /**
+     * Returns whether the given thread processes start level changes, which
+     * is either the start level thread itself or one of the threads it uses
+     * to start the bundles of a start level concurrently.
+    **/
+    static boolean isStartLevelThread(Thread thread)
+    {
+        String name = thread.getName();
+        return name.equals(THREAD_NAME) || name.startsWith(THREAD_NAME + "-");
+    }
+
     // Should only be called hold requestList lock.
     private void startThread()
     {
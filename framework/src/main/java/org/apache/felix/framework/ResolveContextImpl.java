@@ -26,6 +26,7 @@ import java.util.Map;
 
 import org.apache.felix.framework.StatefulResolver.ResolverHookRecord;
 import org.apache.felix.framework.resolver.CandidateComparator;
+import org.apache.felix.resolver.BoundedResolveContext;
 import org.apache.felix.resolver.FelixResolveContext;
 import org.osgi.framework.wiring.BundleCapability;
 import org.osgi.framework.wiring.BundleRequirement;
@@ -41,7 +42,8 @@ import org.osgi.service.resolver.ResolveContext;
  *
  * @author rickhall
  */
-public class ResolveContextImpl extends ResolveContext implements FelixResolveContext
+public class ResolveContextImpl extends ResolveContext
+    implements FelixResolveContext, BoundedResolveContext
 {
     private final StatefulResolver m_state;
     private final Map<Resource, Wiring> m_wirings;
@@ -80,6 +82,26 @@ public class ResolveContextImpl extends ResolveContext implements FelixResolveCo
         return new ArrayList<Resource>(m_ondemand);
     }
 
+    public int getMaxPermutations()
+    {
+        return m_state.getMaxPermutations();
+    }
+
+    public long getResolveTimeout()
+    {
+        return m_state.getResolveTimeout();
+    }
+
+    public boolean isCancelled()
+    {
+        return m_state.isResolveCancelled();
+    }
+
+    public void onProgress(int permutations, long elapsed)
+    {
+        m_state.resolveProgress(permutations, elapsed);
+    }
+
     @Override
     public List<Capability> findProviders(Requirement br)
     {
@@ -30,6 +30,8 @@ import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
@@ -49,17 +51,29 @@ public class ServiceRegistry
     private long m_currentServiceId = 1L;
     // Maps bundle to an array of service registrations.
     private final Map<Bundle, ServiceRegistration<?>[]> m_regsMap = Collections.synchronizedMap(new HashMap<Bundle, ServiceRegistration<?>[]>());
-    // Capability set for all service registrations.
+    // Capability set for all service registrations; it is only modified
+    // while holding the registry lock, but looked up without it.
     private final CapabilitySet m_regCapSet;
 
     // Maps registration to thread to keep track when a
     // registration is in use, which will cause other
-    // threads to wait.
-    private final Map<ServiceRegistration<?>, Object> m_lockedRegsMap = new HashMap<ServiceRegistration<?>, Object>();
-    // Maps bundle to an array of usage counts.
-    private final Map<Bundle, UsageCount[]> m_inUseMap = new HashMap<Bundle, UsageCount[]>();
+    // threads to wait. Entries are guarded by the usage
+    // lock of the registration.
+    private final Map<ServiceRegistration<?>, Object> m_lockedRegsMap =
+        new ConcurrentHashMap<ServiceRegistration<?>, Object>();
+    // Maps bundle to an array of usage counts. Arrays are never modified
+    // once published, they are replaced atomically instead. The counts of
+    // a usage are guarded by the usage lock of its registration.
+    private final ConcurrentMap<Bundle, UsageCount[]> m_inUseMap =
+        new ConcurrentHashMap<Bundle, UsageCount[]>();
+    // Locks guarding the usage of service registrations, so that getting
+    // and ungetting different services does not contend on one lock.
+    private static final int USAGE_LOCK_STRIPES = 64;
+    private final Object[] m_usageLocks = new Object[USAGE_LOCK_STRIPES];
 
     private final ServiceRegistryCallbacks m_callbacks;
+    // Metrics of service lookups and contention, if any.
+    private final FrameworkMetricsImpl m_metrics;
 
     private final WeakHashMap<ServiceReference<?>, ServiceReference<?>> m_blackList =
         new WeakHashMap<ServiceReference<?>, ServiceReference<?>>();
@@ -82,9 +96,21 @@ public class ServiceRegistry
         new HashMap<Class<?>, Set<ServiceReference<?>>>();
 
     public ServiceRegistry(Logger logger, ServiceRegistryCallbacks callbacks)
+    {
+        this(logger, callbacks, null);
+    }
+
+    ServiceRegistry(
+        Logger logger, ServiceRegistryCallbacks callbacks, FrameworkMetricsImpl metrics)
     {
         m_logger = logger;
         m_callbacks = callbacks;
+        m_metrics = metrics;
+
+        for (int i = 0; i < m_usageLocks.length; i++)
+        {
+            m_usageLocks[i] = new Object();
+        }
 
         List indices = new ArrayList();
         indices.add(Constants.OBJECTCLASS);
@@ -239,7 +265,7 @@ public class ServiceRegistry
         }
     }
 
-    public synchronized Collection getServiceReferences(String className, SimpleFilter filter)
+    public Collection getServiceReferences(String className, SimpleFilter filter)
     {
         if ((className == null) && (filter == null))
         {
@@ -261,10 +287,17 @@ public class ServiceRegistry
         }
         // else just use the specified filter.
 
-        return m_regCapSet.match(filter, false);
+        boolean timed = (m_metrics != null) && m_metrics.isEnabled();
+        long start = (timed) ? System.nanoTime() : 0;
+        Collection refs = m_regCapSet.match(filter, false);
+        if (timed)
+        {
+            m_metrics.serviceLookedUp(System.nanoTime() - start);
+        }
+        return refs;
     }
 
-    public synchronized ServiceReference<?>[] getServicesInUse(Bundle bundle)
+    public ServiceReference<?>[] getServicesInUse(Bundle bundle)
     {
         UsageCount[] usages = m_inUseMap.get(bundle);
         if (usages != null)
@@ -290,8 +323,9 @@ public class ServiceRegistry
         // Get the service registration.
         final ServiceRegistrationImpl reg =
             ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
+        final Object lock = getUsageLock(reg);
 
-        synchronized (this)
+        synchronized (lock)
         {
             // First make sure that no existing operation is currently
             // being performed by another thread on the service registration.
@@ -307,9 +341,13 @@ public class ServiceRegistry
                 }
 
                 // Otherwise, wait for it to be freed.
+                if ((m_metrics != null) && m_metrics.isEnabled())
+                {
+                    m_metrics.serviceContended();
+                }
                 try
                 {
-                    wait();
+                    lock.wait();
                 }
                 catch (InterruptedException ex)
                 {
@@ -362,7 +400,7 @@ public class ServiceRegistry
             // cache it in the usage count. If not, we should flush the usage
             // count. Either way, we need to unlock the service registration
             // so that any threads waiting for it can continue.
-            synchronized (this)
+            synchronized (lock)
             {
                 // Before caching the service object, double check to see if
                 // the registration is still valid, since it may have been
@@ -376,7 +414,7 @@ public class ServiceRegistry
                     usage.m_svcObj = svcObj;
                 }
                 m_lockedRegsMap.remove(reg);
-                notifyAll();
+                lock.notifyAll();
             }
         }
 
@@ -391,8 +429,9 @@ public class ServiceRegistry
     	UsageCount usage = null;
         ServiceRegistrationImpl reg =
             ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
+        final Object lock = getUsageLock(reg);
 
-        synchronized (this)
+        synchronized (lock)
         {
             // First make sure that no existing operation is currently
             // being performed by another thread on the service registration.
@@ -406,9 +445,13 @@ public class ServiceRegistry
                 }
 
                 // Otherwise, wait for it to be freed.
+                if ((m_metrics != null) && m_metrics.isEnabled())
+                {
+                    m_metrics.serviceContended();
+                }
                 try
                 {
-                    wait();
+                    lock.wait();
                 }
                 catch (InterruptedException ex)
                 {
@@ -457,7 +500,7 @@ public class ServiceRegistry
             // the registration became invalid while we were not holding the
             // lock. Either way, unlock the service registration so that any
             // threads waiting for it can continue.
-            synchronized (this)
+            synchronized (lock)
             {
                 // Decrement usage count, which spec says should happen after
                 // ungetting the service object.
@@ -474,7 +517,7 @@ public class ServiceRegistry
                 // Release the registration lock so any waiting threads can
                 // continue.
                 m_lockedRegsMap.remove(reg);
-                notifyAll();
+                lock.notifyAll();
             }
         }
 
@@ -489,12 +532,7 @@ public class ServiceRegistry
     **/
     public void ungetServices(Bundle bundle)
     {
-        UsageCount[] usages;
-        synchronized (this)
-        {
-            usages = m_inUseMap.get(bundle);
-        }
-
+        UsageCount[] usages = m_inUseMap.get(bundle);
         if (usages == null)
         {
             return;
@@ -517,7 +555,7 @@ public class ServiceRegistry
         }
     }
 
-    public synchronized Bundle[] getUsingBundles(ServiceReference<?> ref)
+    public Bundle[] getUsingBundles(ServiceReference<?> ref)
     {
         Bundle[] bundles = null;
         for (Iterator<Map.Entry<Bundle, UsageCount[]>> iter = m_inUseMap.entrySet().iterator(); iter.hasNext(); )
@@ -641,27 +679,33 @@ public class ServiceRegistry
     **/
     private UsageCount addUsageCount(Bundle bundle, ServiceReference<?> ref, boolean isPrototype)
     {
-        UsageCount[] usages = m_inUseMap.get(bundle);
-
         UsageCount usage = new UsageCount();
         usage.m_ref = ref;
         usage.m_prototype = isPrototype;
 
-        if (usages == null)
+        // Other services of the bundle may be got concurrently, so retry
+        // until the array we copied is still the current one.
+        for (;;)
         {
-            usages = new UsageCount[] { usage };
-        }
-        else
-        {
-            UsageCount[] newUsages = new UsageCount[usages.length + 1];
-            System.arraycopy(usages, 0, newUsages, 0, usages.length);
-            newUsages[usages.length] = usage;
-            usages = newUsages;
+            UsageCount[] usages = m_inUseMap.get(bundle);
+            if (usages == null)
+            {
+                if (m_inUseMap.putIfAbsent(bundle, new UsageCount[] { usage }) == null)
+                {
+                    return usage;
+                }
+            }
+            else
+            {
+                UsageCount[] newUsages = new UsageCount[usages.length + 1];
+                System.arraycopy(usages, 0, newUsages, 0, usages.length);
+                newUsages[usages.length] = usage;
+                if (m_inUseMap.replace(bundle, usages, newUsages))
+                {
+                    return usage;
+                }
+            }
         }
-
-        m_inUseMap.put(bundle, usages);
-
-        return usage;
     }
 
     /**
@@ -678,7 +722,20 @@ public class ServiceRegistry
     **/
     private void flushUsageCount(Bundle bundle, ServiceReference<?> ref, UsageCount uc)
     {
-        UsageCount[] usages = m_inUseMap.get(bundle);
+        // Other services of the bundle may be got concurrently, so retry
+        // until the array we copied is still the current one.
+        UsageCount[] current;
+        do
+        {
+            current = m_inUseMap.get(bundle);
+        }
+        while ((current != null) && !flushUsageCount(bundle, ref, uc, current));
+    }
+
+    private boolean flushUsageCount(
+        Bundle bundle, ServiceReference<?> ref, UsageCount uc, UsageCount[] current)
+    {
+        UsageCount[] usages = current;
         for (int i = 0; (usages != null) && (i < usages.length); i++)
         {
             if ((uc == null && usages[i].m_ref.equals(ref)) || (uc == usages[i]))
@@ -704,16 +761,26 @@ public class ServiceRegistry
             }
         }
 
-        if (usages != null)
+        if (usages == current)
         {
-            m_inUseMap.put(bundle, usages);
+            return true;
+        }
+        else if (usages != null)
+        {
+            return m_inUseMap.replace(bundle, current, usages);
         }
         else
         {
-            m_inUseMap.remove(bundle);
+            return m_inUseMap.remove(bundle, current);
         }
     }
 
+    private Object getUsageLock(ServiceRegistration<?> reg)
+    {
+        return m_usageLocks[
+            (System.identityHashCode(reg) & 0x7fffffff) % m_usageLocks.length];
+    }
+
     //
     // Hook-related methods.
     //
@@ -25,17 +25,21 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.resolver.CandidateComparator;
 import org.apache.felix.framework.resolver.ResolveException;
+import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.ShrinkableCollection;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.manifestparser.NativeLibrary;
@@ -71,7 +75,12 @@ class StatefulResolver
     private final Felix m_felix;
     private final ServiceRegistry m_registry;
     private final ResolverImpl m_resolver;
+    // Limits of the search for a consistent class space; zero if unlimited.
+    private final int m_maxPermutations;
+    private final long m_resolveTimeout;
     private boolean m_isResolving = false;
+    // Set to cancel the resolve operation in progress.
+    private volatile boolean m_isCancelled = false;
 
     // Set of all revisions.
     private final Set<BundleRevision> m_revisions;
@@ -79,6 +88,12 @@ class StatefulResolver
     private final Set<BundleRevision> m_fragments;
     // Capability sets.
     private final Map<String, CapabilitySet> m_capSets;
+    // Revisions whose capabilities are not indexed yet, since they were
+    // not needed so far, mapped to their capability summaries.
+    private final Map<BundleRevisionImpl, Map<String, Set<String>>> m_lazyRevisions;
+    // Revisions whose capabilities are not indexed yet by namespace and
+    // the values of the attribute named after the namespace.
+    private final Map<String, Map<String, Set<BundleRevisionImpl>>> m_lazyCaps;
     // Maps singleton symbolic names to list of bundle revisions sorted by version.
     private final Map<String, List<BundleRevision>> m_singletons;
     // Selected singleton bundle revisions.
@@ -87,17 +102,32 @@ class StatefulResolver
     private final String m_fwkExecEnvStr;
     // Parsed framework environments
     private final Set<String> m_fwkExecEnvSet;
+    // Wirings persisted by the previous framework run, if any.
+    private volatile WiringSnapshot m_snapshot;
+    // Version of the resolver state, which changes whenever a revision is
+    // added, removed, or re-indexed after being resolved.
+    private final AtomicLong m_stateVersion = new AtomicLong();
+    // Dynamic imports known to fail, by importing revision and package,
+    // mapped to the version of the resolver state they failed in.
+    private final ConcurrentHashMap<BundleRevision, Map<String, Long>> m_failedDynamicImports =
+        new ConcurrentHashMap<BundleRevision, Map<String, Long>>();
+    private static final int FAILED_DYNAMIC_IMPORTS_SIZE = 1024;
 
     StatefulResolver(Felix felix, ServiceRegistry registry)
     {
         m_felix = felix;
         m_registry = registry;
         m_logger = m_felix.getLogger();
-        m_resolver = new ResolverImpl(m_logger);
+        m_resolver = new ResolverImpl(m_logger, getResolverParallelism());
+        m_maxPermutations = (int) Math.min(Integer.MAX_VALUE,
+            getResolverLimit(FelixConstants.RESOLVER_PERMUTATIONS_PROP));
+        m_resolveTimeout = getResolverLimit(FelixConstants.RESOLVER_TIMEOUT_PROP);
 
         m_revisions = new HashSet<BundleRevision>();
         m_fragments = new HashSet<BundleRevision>();
         m_capSets = new HashMap<String, CapabilitySet>();
+        m_lazyRevisions = new HashMap<BundleRevisionImpl, Map<String, Set<String>>>();
+        m_lazyCaps = new HashMap<String, Map<String, Set<BundleRevisionImpl>>>();
         m_singletons = new HashMap<String, List<BundleRevision>>();
         m_selectedSingletons = new HashSet<BundleRevision>();
 
@@ -106,17 +136,98 @@ class StatefulResolver
         m_fwkExecEnvStr = (fwkExecEnvStr != null) ? fwkExecEnvStr.trim() : null;
         m_fwkExecEnvSet = parseExecutionEnvironments(fwkExecEnvStr);
 
+        // Index the wiring namespaces by name and, for each name, by version,
+        // so that requirements with version ranges only look at candidates
+        // in their range.
         List<String> indices = new ArrayList<String>();
         indices.add(BundleRevision.BUNDLE_NAMESPACE);
-        m_capSets.put(BundleRevision.BUNDLE_NAMESPACE, new CapabilitySet(indices, true));
+        m_capSets.put(BundleRevision.BUNDLE_NAMESPACE, new CapabilitySet(indices,
+            Collections.singletonMap(BundleRevision.BUNDLE_NAMESPACE,
+                Constants.BUNDLE_VERSION_ATTRIBUTE), true));
 
         indices = new ArrayList<String>();
         indices.add(BundleRevision.PACKAGE_NAMESPACE);
-        m_capSets.put(BundleRevision.PACKAGE_NAMESPACE, new CapabilitySet(indices, true));
+        m_capSets.put(BundleRevision.PACKAGE_NAMESPACE, new CapabilitySet(indices,
+            Collections.singletonMap(BundleRevision.PACKAGE_NAMESPACE,
+                Constants.VERSION_ATTRIBUTE), true));
 
         indices = new ArrayList<String>();
         indices.add(BundleRevision.HOST_NAMESPACE);
-        m_capSets.put(BundleRevision.HOST_NAMESPACE,  new CapabilitySet(indices, true));
+        m_capSets.put(BundleRevision.HOST_NAMESPACE,  new CapabilitySet(indices,
+            Collections.singletonMap(BundleRevision.HOST_NAMESPACE,
+                Constants.BUNDLE_VERSION_ATTRIBUTE), true));
+    }
+
+    private int getResolverParallelism()
+    {
+        String s = (String) m_felix.getConfig().get(FelixConstants.RESOLVER_PARALLELISM_PROP);
+        if (s != null)
+        {
+            try
+            {
+                return Integer.parseInt(s.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                // Ignore and use the default parallelism.
+            }
+        }
+        return 1;
+    }
+
+    private long getResolverLimit(String prop)
+    {
+        String s = (String) m_felix.getConfig().get(prop);
+        if (s != null)
+        {
+            try
+            {
+                return Math.max(0, Long.parseLong(s.trim()));
+            }
+            catch (NumberFormatException ex)
+            {
+                m_logger.log(Logger.LOG_WARNING, "Invalid value for " + prop + ": " + s);
+            }
+        }
+        return 0;
+    }
+
+    int getMaxPermutations()
+    {
+        return m_maxPermutations;
+    }
+
+    long getResolveTimeout()
+    {
+        return m_resolveTimeout;
+    }
+
+    /**
+     * Cancels the resolve operation in progress, if any, which then fails
+     * with a resolution exception the next time the resolver checks for
+     * cancellation. Resolve operations started afterwards are not affected.
+    **/
+    void cancelResolve()
+    {
+        m_isCancelled = true;
+    }
+
+    boolean isResolveCancelled()
+    {
+        return m_isCancelled;
+    }
+
+    void resolveProgress(int permutations, long elapsed)
+    {
+        m_logger.log(
+            Logger.LOG_INFO,
+            "Resolver is still searching for a consistent class space after checking "
+            + permutations + " permutations in " + elapsed + " ms.");
+    }
+
+    void setWiringSnapshot(WiringSnapshot snapshot)
+    {
+        m_snapshot = ((snapshot != null) && !snapshot.isEmpty()) ? snapshot : null;
     }
 
     void start()
@@ -131,13 +242,20 @@ class StatefulResolver
     {
         // Always attempt to remove the revision, since
         // this method can be used for re-indexing a revision
-        // after it has been resolved.
-        removeRevision(br);
+        // after it has been resolved. A revision that was not there
+        // before is a new input for the wirings persisted by the previous
+        // run, so they cannot be trusted anymore.
+        if (!removeRevisionFromState(br))
+        {
+            m_snapshot = null;
+        }
 
         m_revisions.add(br);
 
         // Add singletons to the singleton map.
-        boolean isSingleton = Util.isSingleton(br);
+        boolean isSingleton = (br instanceof BundleRevisionImpl)
+            ? ((BundleRevisionImpl) br).isSingleton()
+            : Util.isSingleton(br);
         if (isSingleton)
         {
             // Index the new singleton.
@@ -154,16 +272,45 @@ class StatefulResolver
             {
                 m_fragments.add(br);
             }
-            indexCapabilities(br);
+            // Revisions in lazy mode are only indexed when a requirement
+            // may match one of their capabilities.
+            Map<String, Set<String>> summary = (br instanceof BundleRevisionImpl)
+                ? ((BundleRevisionImpl) br).getCapabilitySummary()
+                : null;
+            if ((summary != null) && (br.getWiring() == null))
+            {
+                addLazyRevision((BundleRevisionImpl) br, summary);
+            }
+            else
+            {
+                indexCapabilities(br);
+            }
         }
+
+        m_stateVersion.incrementAndGet();
     }
 
     synchronized void removeRevision(BundleRevision br)
     {
+        // Removing a revision may change the wirings of the revisions
+        // that depend on it, so the persisted wirings are dropped.
+        if (removeRevisionFromState(br))
+        {
+            m_snapshot = null;
+        }
+    }
+
+    private boolean removeRevisionFromState(BundleRevision br)
+    {
+        m_failedDynamicImports.remove(br);
         if (m_revisions.remove(br))
         {
+            m_stateVersion.incrementAndGet();
             m_fragments.remove(br);
-            deindexCapabilities(br);
+            if (!removeLazyRevision(br))
+            {
+                deindexCapabilities(br);
+            }
 
             // If this module is a singleton, then remove it from the
             // singleton map.
@@ -176,7 +323,9 @@ class StatefulResolver
                     m_singletons.remove(br.getSymbolicName());
                 }
             }
+            return true;
         }
+        return false;
     }
 
     boolean isEffective(Requirement req)
@@ -201,30 +350,33 @@ class StatefulResolver
     {
         List<BundleCapability> result = new ArrayList<BundleCapability>();
 
-        CapabilitySet capSet = m_capSets.get(req.getNamespace());
-        if (capSet != null)
+        // Get the requirement's filter; if this is our own impl we
+        // have a shortcut to get the already parsed filter, otherwise
+        // we must parse it from the directive.
+        SimpleFilter sf;
+        if (req instanceof BundleRequirementImpl)
+        {
+            sf = ((BundleRequirementImpl) req).getFilter();
+        }
+        else
         {
-            // Get the requirement's filter; if this is our own impl we
-            // have a shortcut to get the already parsed filter, otherwise
-            // we must parse it from the directive.
-            SimpleFilter sf;
-            if (req instanceof BundleRequirementImpl)
+            String filter = req.getDirectives().get(Constants.FILTER_DIRECTIVE);
+            if (filter == null)
             {
-                sf = ((BundleRequirementImpl) req).getFilter();
+                sf = new SimpleFilter(null, null, SimpleFilter.MATCH_ALL);
             }
             else
             {
-                String filter = req.getDirectives().get(Constants.FILTER_DIRECTIVE);
-                if (filter == null)
-                {
-                    sf = new SimpleFilter(null, null, SimpleFilter.MATCH_ALL);
-                }
-                else
-                {
-                    sf = SimpleFilter.parse(filter);
-                }
+                sf = SimpleFilter.parse(filter);
             }
+        }
+
+        // Index the capabilities of any lazy revisions that may match.
+        indexLazyRevisions(req.getNamespace(), sf);
 
+        CapabilitySet capSet = m_capSets.get(req.getNamespace());
+        if (capSet != null)
+        {
             // Find the matching candidates.
             Set<Capability> matches = capSet.match(sf, obeyMandatory);
             // Filter matching candidates.
@@ -357,6 +509,11 @@ class StatefulResolver
         return false;
     }
 
+    FrameworkMetricsImpl getMetrics()
+    {
+        return m_felix.getMetrics();
+    }
+
     void resolve(
         Set<BundleRevision> mandatory,
         Set<BundleRevision> optional)
@@ -378,8 +535,10 @@ class StatefulResolver
             throw new IllegalStateException("Nested resolve operations not allowed.");
         }
         m_isResolving = true;
+        m_isCancelled = false;
 
         Map<Resource, List<Wire>> wireMap = null;
+        Map<Resource, List<Wire>> snapshotWireMap = null;
         try
         {
             // Make our own copy of revisions.
@@ -422,25 +581,67 @@ class StatefulResolver
                 }
             }
 
+            // Rehydrate the wirings persisted by the previous framework run
+            // for any revisions whose inputs did not change. This is skipped
+            // if there are resolver hooks, since they may influence the result.
+            WiringSnapshot snapshot = m_snapshot;
+            if ((snapshot != null) && record.getResolverHookRefs().isEmpty())
+            {
+                Set<BundleRevision> revisions = new LinkedHashSet<BundleRevision>(mandatory);
+                revisions.addAll(optional);
+                Map<Resource, List<Wire>> snapshotWires =
+                    snapshot.getWires(this, m_felix, revisions);
+                if (!snapshotWires.isEmpty())
+                {
+                    try
+                    {
+                        markResolvedRevisions(snapshotWires);
+                        mandatory.removeAll(snapshotWires.keySet());
+                        optional.removeAll(snapshotWires.keySet());
+                        snapshotWireMap = snapshotWires;
+                    }
+                    catch (ResolveException ex)
+                    {
+                        // Fall back to resolving the revisions.
+                        m_logger.log(
+                            Logger.LOG_DEBUG,
+                            "Unable to rehydrate wirings from snapshot.", ex);
+                    }
+                }
+            }
+
             // Catch any resolve exception to rethrow later because
             // we may need to call end() on resolver hooks.
             ResolutionException rethrow = null;
+            FrameworkMetricsImpl metrics = m_felix.getMetrics();
+            boolean timed = false;
+            long start = 0;
             try
             {
-                // Resolve the revision.
-                wireMap = m_resolver.resolve(
-                    new ResolveContextImpl(
-                        this,
-                        getWirings(),
-                        record,
-                        mandatory,
-                        optional,
-                        getFragments()));
+                // Resolve the revision, unless everything was rehydrated.
+                if (!mandatory.isEmpty() || !optional.isEmpty()
+                    || (snapshotWireMap == null))
+                {
+                    timed = metrics.isEnabled();
+                    start = (timed) ? System.nanoTime() : 0;
+                    wireMap = m_resolver.resolve(
+                        new ResolveContextImpl(
+                            this,
+                            getWirings(),
+                            record,
+                            mandatory,
+                            optional,
+                            getFragments()));
+                }
             }
             catch (ResolutionException ex)
             {
                 rethrow = ex;
             }
+            if (timed)
+            {
+                metrics.resolved(System.nanoTime() - start, rethrow == null);
+            }
 
             // Release resolver hooks, if any.
             releaseResolverHooks(record);
@@ -460,6 +661,9 @@ class StatefulResolver
             m_isResolving = false;
             // Always release the global lock.
             m_felix.releaseGlobalLock();
+            // Rehydrated revisions stay resolved even if resolving the
+            // remaining revisions failed.
+            fireResolvedEvents(snapshotWireMap);
         }
 
         fireResolvedEvents(wireMap);
@@ -470,12 +674,24 @@ class StatefulResolver
     {
         BundleRevision provider = null;
 
+        // If the dynamic import already failed and nothing changed since,
+        // then it will fail again, so do not bother.
+        if (isFailedDynamicImport(revision, pkgName))
+        {
+            return null;
+        }
+
         // We cannot dynamically import if the revision is not already resolved
         // or if it is not allowed, so check that first. Note: We check if the
         // dynamic import is allowed without holding any locks, but this is
         // okay since the resolver will double check later after we have
         // acquired the global lock below.
-        if ((revision.getWiring() != null) && isAllowedDynamicImport(revision, pkgName))
+        long version = m_stateVersion.get();
+        if ((revision.getWiring() == null) || !isAllowedDynamicImport(revision, pkgName))
+        {
+            addFailedDynamicImport(revision, pkgName, version);
+        }
+        else
         {
             // Acquire global lock.
             boolean locked = m_felix.acquireGlobalLock();
@@ -493,6 +709,7 @@ class StatefulResolver
                 throw new IllegalStateException("Nested resolve operations not allowed.");
             }
             m_isResolving = true;
+            m_isCancelled = false;
 
             Map<Resource, List<Wire>> wireMap = null;
             try
@@ -503,7 +720,10 @@ class StatefulResolver
                 // then just return it instead.
                 provider = ((BundleWiringImpl) revision.getWiring())
                     .getImportedPackageSource(pkgName);
-                if (provider == null)
+                // Likewise, another thread may have just failed to import
+                // the package, in which case there is no need to try again.
+                version = m_stateVersion.get();
+                if ((provider == null) && !isFailedDynamicImport(revision, pkgName))
                 {
                     // Prepare resolver hooks, if any.
                     ResolverHookRecord record =
@@ -516,6 +736,9 @@ class StatefulResolver
                     // Catch any resolve exception to rethrow later because
                     // we may need to call end() on resolver hooks.
                     ResolutionException rethrow = null;
+                    FrameworkMetricsImpl metrics = m_felix.getMetrics();
+                    boolean timed = metrics.isEnabled();
+                    long start = (timed) ? System.nanoTime() : 0;
                     try
                     {
                         List<BundleRequirement> dynamics =
@@ -586,13 +809,23 @@ class StatefulResolver
                     {
                         rethrow = ex;
                     }
+                    if (timed)
+                    {
+                        metrics.resolved(System.nanoTime() - start, rethrow == null);
+                    }
 
                     // Release resolver hooks, if any.
                     releaseResolverHooks(record);
 
-                    // If the resolve failed, rethrow the exception.
+                    // If the resolve failed, rethrow the exception. The
+                    // failure is only remembered if it cannot depend on
+                    // resolver hooks.
                     if (rethrow != null)
                     {
+                        if (record.getResolverHookRefs().isEmpty())
+                        {
+                            addFailedDynamicImport(revision, pkgName, version);
+                        }
                         throw rethrow;
                     }
 
@@ -628,6 +861,10 @@ class StatefulResolver
                                 m_felix.getDependencies().addDependent(bw);
 
                                 ((BundleWiringImpl) revision.getWiring()).addDynamicWire(bw);
+                                // The new wire changes the class space of the
+                                // importer, so its earlier failures may no
+                                // longer hold.
+                                m_failedDynamicImports.remove(revision);
 
                                 m_felix.getLogger().log(
                                     Logger.LOG_DEBUG,
@@ -638,6 +875,10 @@ class StatefulResolver
                             }
                         }
                     }
+                    else if (record.getResolverHookRefs().isEmpty())
+                    {
+                        addFailedDynamicImport(revision, pkgName, version);
+                    }
                 }
             }
             finally
@@ -654,6 +895,38 @@ class StatefulResolver
         return provider;
     }
 
+    private boolean isFailedDynamicImport(BundleRevision revision, String pkgName)
+    {
+        Map<String, Long> failed = m_failedDynamicImports.get(revision);
+        Long version = (failed != null) ? failed.get(pkgName) : null;
+        return (version != null) && (version.longValue() == m_stateVersion.get());
+    }
+
+    private void addFailedDynamicImport(
+        BundleRevision revision, String pkgName, long version)
+    {
+        // Permissions may change without changing the resolver state, so
+        // failures are not remembered when there is a security manager.
+        if ((System.getSecurityManager() != null)
+            || (version != m_stateVersion.get()))
+        {
+            return;
+        }
+        Map<String, Long> failed = m_failedDynamicImports.get(revision);
+        if (failed == null)
+        {
+            failed = new ConcurrentHashMap<String, Long>();
+            Map<String, Long> existing =
+                m_failedDynamicImports.putIfAbsent(revision, failed);
+            failed = (existing != null) ? existing : failed;
+        }
+        else if (failed.size() >= FAILED_DYNAMIC_IMPORTS_SIZE)
+        {
+            failed.clear();
+        }
+        failed.put(pkgName, Long.valueOf(version));
+    }
+
     private ResolverHookRecord prepareResolverHooks(
         Set<BundleRevision> mandatory, Set<BundleRevision> optional)
         throws BundleException, ResolutionException
@@ -1343,6 +1616,124 @@ class StatefulResolver
         }
     }
 
+    private synchronized void addLazyRevision(
+        BundleRevisionImpl br, Map<String, Set<String>> summary)
+    {
+        m_lazyRevisions.put(br, summary);
+        for (Entry<String, Set<String>> entry : summary.entrySet())
+        {
+            Map<String, Set<BundleRevisionImpl>> byValue = m_lazyCaps.get(entry.getKey());
+            if (byValue == null)
+            {
+                byValue = new HashMap<String, Set<BundleRevisionImpl>>();
+                m_lazyCaps.put(entry.getKey(), byValue);
+            }
+            for (String value : entry.getValue())
+            {
+                Set<BundleRevisionImpl> revisions = byValue.get(value);
+                if (revisions == null)
+                {
+                    revisions = new HashSet<BundleRevisionImpl>();
+                    byValue.put(value, revisions);
+                }
+                revisions.add(br);
+            }
+        }
+    }
+
+    private synchronized boolean removeLazyRevision(BundleRevision br)
+    {
+        Map<String, Set<String>> summary = m_lazyRevisions.remove(br);
+        if (summary == null)
+        {
+            return false;
+        }
+        for (Entry<String, Set<String>> entry : summary.entrySet())
+        {
+            Map<String, Set<BundleRevisionImpl>> byValue = m_lazyCaps.get(entry.getKey());
+            for (String value : entry.getValue())
+            {
+                Set<BundleRevisionImpl> revisions = byValue.get(value);
+                revisions.remove(br);
+                if (revisions.isEmpty())
+                {
+                    byValue.remove(value);
+                }
+            }
+            if (byValue.isEmpty())
+            {
+                m_lazyCaps.remove(entry.getKey());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indexes the capabilities of the lazy revisions that may provide
+     * a capability in the given namespace matching the given filter. If
+     * the filter requires a specific value for the attribute named after
+     * the namespace, only revisions declaring this value are indexed.
+    **/
+    private synchronized void indexLazyRevisions(String namespace, SimpleFilter sf)
+    {
+        Map<String, Set<BundleRevisionImpl>> byValue = m_lazyCaps.get(namespace);
+        if (byValue == null)
+        {
+            return;
+        }
+
+        List<BundleRevisionImpl> revisions = new ArrayList<BundleRevisionImpl>();
+        String value = getRequiredValue(namespace, sf);
+        if (value == null)
+        {
+            for (Set<BundleRevisionImpl> set : byValue.values())
+            {
+                revisions.addAll(set);
+            }
+        }
+        else
+        {
+            if (byValue.containsKey(value))
+            {
+                revisions.addAll(byValue.get(value));
+            }
+            if (byValue.containsKey(null))
+            {
+                revisions.addAll(byValue.get(null));
+            }
+        }
+
+        for (BundleRevisionImpl br : revisions)
+        {
+            if (removeLazyRevision(br))
+            {
+                indexCapabilities(br);
+            }
+        }
+    }
+
+    private static String getRequiredValue(String namespace, SimpleFilter sf)
+    {
+        if ((sf.getOperation() == SimpleFilter.EQ)
+            && namespace.equals(sf.getName())
+            && (sf.getValue() instanceof String))
+        {
+            return (String) sf.getValue();
+        }
+        else if (sf.getOperation() == SimpleFilter.AND)
+        {
+            for (SimpleFilter child : (List<SimpleFilter>) sf.getValue())
+            {
+                String value = getRequiredValue(namespace, child);
+                if (value != null)
+                {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
     private synchronized void deindexCapabilities(BundleRevision br)
     {
         // We only need be concerned with declared capabilities here,
@@ -1362,7 +1753,7 @@ class StatefulResolver
         }
     }
 
-    private synchronized boolean isSelectedSingleton(BundleRevision br)
+    synchronized boolean isSelectedSingleton(BundleRevision br)
     {
         return m_selectedSingletons.contains(br);
     }
@@ -29,6 +29,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.SecureAction;
@@ -92,9 +94,14 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
     // The list to hold all enabled frameworks registered with this handlers
     private static final List m_frameworks = new ArrayList();
     private static int m_counter = 0;
-
-    private static Map m_contentHandlerCache = null;
-    private static Map m_streamHandlerCache = null;
+    // The only registered framework if no context search is needed to
+    // find the framework of the caller, null otherwise.
+    private static volatile Object m_singleFramework = null;
+
+    private static final ConcurrentMap<String, ContentHandler> m_contentHandlerCache =
+        new ConcurrentHashMap<String, ContentHandler>();
+    private static final ConcurrentMap<String, URLStreamHandler> m_streamHandlerCache =
+        new ConcurrentHashMap<String, URLStreamHandler>();
     private static URLStreamHandlerFactory m_streamHandlerFactory;
     private static ContentHandlerFactory m_contentHandlerFactory;
     private static final String STREAM_HANDLER_PACKAGE_PROP = "java.protocol.handler.pkgs";
@@ -297,6 +304,10 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
             synchronized (m_classloaderToFrameworkLists)
             {
                 m_classloaderToFrameworkLists.put(index, frameworkLists);
+                synchronized (m_frameworks)
+                {
+                    updateSingleFramework();
+                }
             }
         }
     }
@@ -308,6 +319,10 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
             synchronized (m_classloaderToFrameworkLists)
             {
                 m_classloaderToFrameworkLists.remove(index);
+                synchronized (m_frameworks)
+                {
+                    updateSingleFramework();
+                }
                 if (m_classloaderToFrameworkLists.isEmpty() )
                 {
                     synchronized (m_frameworks)
@@ -527,51 +542,34 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
             (m_contentHandlerFactory != this) ? m_contentHandlerFactory : null));
     }
 
-    private synchronized ContentHandler addToContentCache(String mimeType, ContentHandler handler)
+    private ContentHandler addToContentCache(String mimeType, ContentHandler handler)
     {
-        if (m_contentHandlerCache == null)
+        if (handler == null)
         {
-            m_contentHandlerCache = new HashMap();
+            return null;
         }
-        return (ContentHandler) addToCache(m_contentHandlerCache, mimeType, handler);
+        ContentHandler result = m_contentHandlerCache.putIfAbsent(mimeType, handler);
+        return (result != null) ? result : handler;
     }
 
-    private synchronized ContentHandler getFromContentCache(String mimeType)
+    private ContentHandler getFromContentCache(String mimeType)
     {
-        return (ContentHandler) ((m_contentHandlerCache != null) ?
-            m_contentHandlerCache.get(mimeType) : null);
+        return m_contentHandlerCache.get(mimeType);
     }
 
-    private synchronized URLStreamHandler addToStreamCache(String protocol, URLStreamHandler handler)
+    private URLStreamHandler addToStreamCache(String protocol, URLStreamHandler handler)
     {
-        if (m_streamHandlerCache == null)
+        if (handler == null)
         {
-            m_streamHandlerCache = new HashMap();
+            return null;
         }
-        return (URLStreamHandler) addToCache(m_streamHandlerCache, protocol, handler);
+        URLStreamHandler result = m_streamHandlerCache.putIfAbsent(protocol, handler);
+        return (result != null) ? result : handler;
     }
 
-    private synchronized URLStreamHandler getFromStreamCache(String protocol)
+    private URLStreamHandler getFromStreamCache(String protocol)
     {
-        return (URLStreamHandler) ((m_streamHandlerCache != null) ?
-            m_streamHandlerCache.get(protocol) : null);
-    }
-
-    private Object addToCache(Map cache, String key, Object value)
-    {
-        if (value == null)
-        {
-            return null;
-        }
-
-        Object result = cache.get(key);
-
-        if (result == null)
-        {
-            cache.put(key, value);
-            result = value;
-        }
-        return result;
+        return m_streamHandlerCache.get(protocol);
     }
 
     /**
@@ -610,6 +608,7 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
             {
                 m_counter++;
             }
+            updateSingleFramework();
         }
         if (register)
         {
@@ -625,6 +624,7 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
                         }
                         m_frameworks.add(framework);
                         m_counter++;
+                        updateSingleFramework();
                     }
                 }
             }
@@ -660,6 +660,7 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
             {
                 m_counter--;
             }
+            updateSingleFramework();
         }
         if (unregister)
         {
@@ -671,6 +672,7 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
                     {
                         m_frameworks.remove(framework);
                         m_counter--;
+                        updateSingleFramework();
                         if (m_frameworks.isEmpty() && m_handler != null)
                         {
 
@@ -696,6 +698,21 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
         }
     }
 
+    /**
+     * Determines whether the only registered framework can be returned to
+     * callers without searching the call stack. The caller must hold the
+     * lock of the framework list.
+    **/
+    private static void updateSingleFramework()
+    {
+        // Every change to the framework lists for context search is followed
+        // by an update while holding the lock of the framework list, so the
+        // last update always sees the current lists.
+        m_singleFramework = (m_classloaderToFrameworkLists.isEmpty()
+            && (m_counter == 1) && (m_frameworks.size() == 1))
+            ? m_frameworks.get(0) : null;
+    }
+
     /**
      * <p>
      * This method returns the system bundle context for the caller.
@@ -710,18 +727,11 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
     public static Object getFrameworkFromContext()
     {
         // This is a hack. The idea is to return the only registered framework
-        synchronized (m_classloaderToFrameworkLists)
+        // without walking the call stack.
+        Object framework = m_singleFramework;
+        if (framework != null)
         {
-            if (m_classloaderToFrameworkLists.isEmpty())
-            {
-                synchronized (m_frameworks)
-                {
-                    if ((m_counter == 1) && (m_frameworks.size() == 1))
-                    {
-                        return m_frameworks.get(0);
-                    }
-                }
-            }
+            return framework;
         }
         // get the current class call stack.
         Class[] stack = m_sm.getClassContext();
@@ -765,7 +775,7 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
                         // Check the registry of framework instances
                         for (int i = 0; i < frameworks.size(); i++)
                         {
-                            Object framework = frameworks.get(i);
+                            framework = frameworks.get(i);
                             try
                             {
                                 if (m_secureAction.invoke(
@@ -0,0 +1,486 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import org.apache.felix.framework.capabilityset.CapabilitySet;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.SecureAction;
+import org.apache.felix.framework.util.Util;
+import org.apache.felix.framework.wiring.BundleRequirementImpl;
+import org.apache.felix.framework.wiring.BundleWireImpl;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+
+/**
+ * Persistent snapshot of the wirings of resolved bundle revisions. The
+ * snapshot is written to the bundle cache when the framework stops and is
+ * used on the next start to rehydrate the wirings of revisions whose bundle
+ * archives have not changed, instead of resolving them again. Wires are
+ * recorded by revision identifier and by the index of the requirement and
+ * capability in the declaring revision, so every wire is checked against the
+ * current metadata before it is reused. A revision is only rehydrated if all
+ * of its unresolved providers and attached fragments can be rehydrated too;
+ * everything else is left to the resolver. The snapshot is discarded as
+ * soon as a revision is added to or removed from the resolver state, since
+ * new or removed providers could change the wirings.
+**/
+class WiringSnapshot
+{
+    static final String SNAPSHOT_FILE = "resolver.wirings";
+
+    private static final String REVISION = "R";
+    private static final String FRAGMENT = "F";
+    private static final String WIRE = "W";
+
+    private final Map<String, Entry> m_entries;
+
+    private WiringSnapshot(Map<String, Entry> entries)
+    {
+        m_entries = entries;
+    }
+
+    /**
+     * Returns whether wiring snapshots are enabled in the given configuration.
+    **/
+    static boolean isEnabled(Map configMap)
+    {
+        String s = (String) configMap.get(FelixConstants.RESOLVER_SNAPSHOT_PROP);
+        return (s != null) && Boolean.valueOf(s.trim()).booleanValue();
+    }
+
+    boolean isEmpty()
+    {
+        return m_entries.isEmpty();
+    }
+
+    /**
+     * Reads a previously saved snapshot. Returns an empty snapshot if no
+     * snapshot exists or if it cannot be read.
+    **/
+    static WiringSnapshot load(Logger logger, SecureAction secureAction, File file)
+    {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        InputStream is = null;
+        BufferedReader br = null;
+        try
+        {
+            is = secureAction.getFileInputStream(file);
+            br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+            Entry entry = null;
+            for (String line = br.readLine(); line != null; line = br.readLine())
+            {
+                StringTokenizer st = new StringTokenizer(line, " ");
+                if (!st.hasMoreTokens())
+                {
+                    continue;
+                }
+                String type = st.nextToken();
+                if (type.equals(REVISION))
+                {
+                    entry = new Entry(st.nextToken(), Long.parseLong(st.nextToken()));
+                    entries.put(entry.m_revisionId, entry);
+                }
+                else if (type.equals(FRAGMENT) && (entry != null))
+                {
+                    entry.m_fragments.add(st.nextToken());
+                }
+                else if (type.equals(WIRE) && (entry != null))
+                {
+                    entry.m_wires.add(new WireEntry(
+                        st.nextToken(), Integer.parseInt(st.nextToken()),
+                        st.nextToken(),
+                        st.nextToken(), Integer.parseInt(st.nextToken())));
+                }
+                else
+                {
+                    throw new IllegalArgumentException("Malformed line: " + line);
+                }
+            }
+        }
+        catch (FileNotFoundException ex)
+        {
+            // Ignore this case because there is simply no snapshot yet.
+        }
+        catch (Exception ex)
+        {
+            entries.clear();
+            logger.log(
+                Logger.LOG_WARNING,
+                "Unable to read wiring snapshot from persistent storage.",
+                ex);
+        }
+        finally
+        {
+            try
+            {
+                if (br != null) br.close();
+                if (is != null) is.close();
+            }
+            catch (Exception ex)
+            {
+                logger.log(
+                    Logger.LOG_WARNING,
+                    "Unable to close wiring snapshot file.",
+                    ex);
+            }
+        }
+        return new WiringSnapshot(entries);
+    }
+
+    /**
+     * Writes the current wirings of the given bundles. Extension bundles and
+     * dynamic wires are not recorded, since neither is produced by a regular
+     * resolve.
+    **/
+    static void save(
+        Logger logger, SecureAction secureAction, File file, Bundle[] bundles)
+    {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        OutputStream os = null;
+        BufferedWriter bw = null;
+        boolean saved = false;
+        try
+        {
+            os = secureAction.getFileOutputStream(tmp);
+            bw = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+            for (Bundle bundle : bundles)
+            {
+                if ((bundle.getBundleId() == 0) || ((BundleImpl) bundle).isExtension())
+                {
+                    continue;
+                }
+                BundleRevision revision = bundle.adapt(BundleRevision.class);
+                BundleWiring wiring = (revision == null) ? null : revision.getWiring();
+                if ((wiring == null) || !wiring.isCurrent())
+                {
+                    continue;
+                }
+
+                StringBuffer sb = new StringBuffer();
+                sb.append(REVISION).append(' ').append(((BundleRevisionImpl) revision).getId())
+                    .append(' ').append(bundle.getLastModified()).append('\n');
+                for (BundleRevision fragment : Util.getFragments(wiring))
+                {
+                    sb.append(FRAGMENT).append(' ')
+                        .append(((BundleRevisionImpl) fragment).getId()).append('\n');
+                }
+                for (BundleWire wire : wiring.getRequiredWires(null))
+                {
+                    if (FelixConstants.RESOLUTION_DYNAMIC.equals(wire.getRequirement()
+                        .getDirectives().get(FelixConstants.RESOLUTION_DIRECTIVE)))
+                    {
+                        continue;
+                    }
+                    BundleRevisionImpl reqRevision =
+                        (BundleRevisionImpl) wire.getRequirement().getRevision();
+                    BundleRevisionImpl capRevision =
+                        (BundleRevisionImpl) wire.getCapability().getRevision();
+                    int reqIdx = reqRevision.getDeclaredRequirements(null)
+                        .indexOf(wire.getRequirement());
+                    int capIdx = capRevision.getDeclaredCapabilities(null)
+                        .indexOf(wire.getCapability());
+                    if ((reqIdx < 0) || (capIdx < 0))
+                    {
+                        // The wire cannot be identified by index, so do not
+                        // record a partial wiring for this revision.
+                        sb = null;
+                        break;
+                    }
+                    sb.append(WIRE)
+                        .append(' ').append(reqRevision.getId())
+                        .append(' ').append(reqIdx)
+                        .append(' ').append(((BundleRevisionImpl) wire.getProvider()).getId())
+                        .append(' ').append(capRevision.getId())
+                        .append(' ').append(capIdx).append('\n');
+                }
+                if (sb != null)
+                {
+                    bw.write(sb.toString());
+                }
+            }
+            bw.close();
+            bw = null;
+            os = null;
+            saved = true;
+        }
+        catch (Exception ex)
+        {
+            logger.log(
+                Logger.LOG_WARNING,
+                "Unable to save wiring snapshot to persistent storage.",
+                ex);
+        }
+        finally
+        {
+            try
+            {
+                if (bw != null) bw.close();
+                if (os != null) os.close();
+            }
+            catch (Exception ex)
+            {
+                logger.log(
+                    Logger.LOG_WARNING,
+                    "Unable to close wiring snapshot file.",
+                    ex);
+            }
+        }
+
+        // Replace the old snapshot only once the new one is complete, so an
+        // interrupted write never leaves a truncated snapshot behind.
+        if (saved)
+        {
+            secureAction.deleteFile(file);
+            if (!secureAction.renameFile(tmp, file))
+            {
+                secureAction.deleteFile(tmp);
+                logger.log(
+                    Logger.LOG_WARNING,
+                    "Unable to replace wiring snapshot in persistent storage.");
+            }
+        }
+        else
+        {
+            secureAction.deleteFile(tmp);
+        }
+    }
+
+    /**
+     * Returns a wire map for the given unresolved revisions, including any
+     * unresolved providers and fragments they depend on, as recorded in the
+     * snapshot. Revisions whose recorded wiring is no longer valid, or which
+     * depend on such revisions, are not included in the result.
+    **/
+    Map<Resource, List<Wire>> getWires(
+        StatefulResolver state, Felix felix, Collection<BundleRevision> revisions)
+    {
+        // First collect all unresolved revisions reachable from the given
+        // revisions through the snapshot and check them individually.
+        Map<BundleRevision, List<Wire>> candidates =
+            new HashMap<BundleRevision, List<Wire>>();
+        Map<BundleRevision, Set<BundleRevision>> dependencies =
+            new HashMap<BundleRevision, Set<BundleRevision>>();
+        Set<BundleRevision> invalid = new HashSet<BundleRevision>();
+        List<BundleRevision> queue = new ArrayList<BundleRevision>(revisions);
+        while (!queue.isEmpty())
+        {
+            BundleRevision revision = queue.remove(queue.size() - 1);
+            if (candidates.containsKey(revision) || invalid.contains(revision))
+            {
+                continue;
+            }
+            Set<BundleRevision> deps = new HashSet<BundleRevision>();
+            List<Wire> wires = createWires(state, felix, revision, deps);
+            if (wires == null)
+            {
+                invalid.add(revision);
+            }
+            else
+            {
+                candidates.put(revision, wires);
+                dependencies.put(revision, deps);
+                queue.addAll(deps);
+            }
+        }
+
+        // Then remove every revision depending on an invalid revision until
+        // only revisions remain whose dependencies can all be rehydrated.
+        boolean changed = !invalid.isEmpty();
+        while (changed)
+        {
+            changed = false;
+            for (Iterator<Map.Entry<BundleRevision, Set<BundleRevision>>> it =
+                dependencies.entrySet().iterator(); it.hasNext(); )
+            {
+                Map.Entry<BundleRevision, Set<BundleRevision>> entry = it.next();
+                for (BundleRevision dep : entry.getValue())
+                {
+                    if (invalid.contains(dep))
+                    {
+                        invalid.add(entry.getKey());
+                        candidates.remove(entry.getKey());
+                        it.remove();
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        // Finally only return the closure of the requested revisions, since
+        // a revision that was merely reachable from an invalid one does not
+        // need to be resolved now.
+        Map<Resource, List<Wire>> wireMap = new LinkedHashMap<Resource, List<Wire>>();
+        queue = new ArrayList<BundleRevision>(revisions);
+        while (!queue.isEmpty())
+        {
+            BundleRevision revision = queue.remove(queue.size() - 1);
+            List<Wire> wires = candidates.get(revision);
+            if ((wires != null) && !wireMap.containsKey(revision))
+            {
+                wireMap.put(revision, wires);
+                queue.addAll(dependencies.get(revision));
+            }
+        }
+        return wireMap;
+    }
+
+    private List<Wire> createWires(
+        StatefulResolver state, Felix felix, BundleRevision revision,
+        Set<BundleRevision> dependencies)
+    {
+        Entry entry = m_entries.get(((BundleRevisionImpl) revision).getId());
+        BundleImpl bundle = (BundleImpl) revision.getBundle();
+        if ((entry == null)
+            || (revision.getWiring() != null)
+            || bundle.isExtension()
+            || (entry.m_lastModified != bundle.getLastModified())
+            || (Util.isSingleton(revision) && !state.isSelectedSingleton(revision)))
+        {
+            return null;
+        }
+
+        for (String fragmentId : entry.m_fragments)
+        {
+            BundleRevision fragment = getRevision(felix, fragmentId);
+            if ((fragment == null) || (fragment.getWiring() != null))
+            {
+                return null;
+            }
+            dependencies.add(fragment);
+        }
+
+        List<Wire> wires = new ArrayList<Wire>(entry.m_wires.size());
+        for (WireEntry we : entry.m_wires)
+        {
+            BundleRevision reqRevision = getRevision(felix, we.m_reqRevisionId);
+            BundleRevision provider = getRevision(felix, we.m_providerId);
+            BundleRevision capRevision = getRevision(felix, we.m_capRevisionId);
+            if ((reqRevision == null) || (provider == null) || (capRevision == null)
+                || ((reqRevision != revision) && !dependencies.contains(reqRevision)))
+            {
+                return null;
+            }
+            List<BundleRequirement> reqs = reqRevision.getDeclaredRequirements(null);
+            List<BundleCapability> caps = capRevision.getDeclaredCapabilities(null);
+            if ((we.m_reqIdx >= reqs.size()) || (we.m_capIdx >= caps.size()))
+            {
+                return null;
+            }
+            BundleRequirement req = reqs.get(we.m_reqIdx);
+            BundleCapability cap = caps.get(we.m_capIdx);
+            if (!req.getNamespace().equals(cap.getNamespace())
+                || !CapabilitySet.matches(cap, ((BundleRequirementImpl) req).getFilter()))
+            {
+                return null;
+            }
+
+            if (provider.getWiring() == null)
+            {
+                dependencies.add(provider);
+            }
+            // Fragments do not attach to already resolved hosts.
+            else if (req.getNamespace().equals(BundleRevision.HOST_NAMESPACE))
+            {
+                return null;
+            }
+            // The provider is already resolved, so the capability must be
+            // part of its current wiring.
+            else if ((capRevision == provider)
+                ? !provider.getWiring().getCapabilities(null).contains(cap)
+                : !Util.getFragments(provider.getWiring()).contains(capRevision))
+            {
+                return null;
+            }
+
+            wires.add(new BundleWireImpl(reqRevision, req, provider, cap));
+        }
+        return wires;
+    }
+
+    private static BundleRevision getRevision(Felix felix, String revisionId)
+    {
+        Bundle bundle = felix.getBundle(Util.getBundleIdFromRevisionId(revisionId));
+        BundleRevision revision =
+            (bundle == null) ? null : bundle.adapt(BundleRevision.class);
+        return ((revision instanceof BundleRevisionImpl)
+            && revisionId.equals(((BundleRevisionImpl) revision).getId()))
+            ? revision : null;
+    }
+
+    private static class Entry
+    {
+        private final String m_revisionId;
+        private final long m_lastModified;
+        private final Set<String> m_fragments = new LinkedHashSet<String>();
+        private final List<WireEntry> m_wires = new ArrayList<WireEntry>();
+
+        Entry(String revisionId, long lastModified)
+        {
+            m_revisionId = revisionId;
+            m_lastModified = lastModified;
+        }
+    }
+
+    private static class WireEntry
+    {
+        private final String m_reqRevisionId;
+        private final int m_reqIdx;
+        private final String m_providerId;
+        private final String m_capRevisionId;
+        private final int m_capIdx;
+
+        WireEntry(
+            String reqRevisionId, int reqIdx, String providerId,
+            String capRevisionId, int capIdx)
+        {
+            m_reqRevisionId = reqRevisionId;
+            m_reqIdx = reqIdx;
+            m_providerId = providerId;
+            m_capRevisionId = capRevisionId;
+            m_capIdx = capIdx;
+        }
+    }
+}
@@ -20,11 +20,19 @@ package org.apache.felix.framework.cache;
 
 import java.io.*;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.util.WeakZipFileFactory;
+import org.apache.felix.framework.util.manifestparser.ManifestParser;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.Constants;
 
@@ -81,6 +89,7 @@ public class BundleArchive
     private final WeakZipFileFactory m_zipFactory;
     private final File m_archiveRootDir;
     private final boolean m_isSingleBundleFile;
+    private final BundleInfoJournal m_journal;
 
     private long m_id = -1;
     private String m_originalLocation = null;
@@ -106,6 +115,12 @@ public class BundleArchive
     private final SortedMap<Long, BundleArchiveRevision> m_revisions
         = new TreeMap<Long, BundleArchiveRevision>();
 
+    // Executor used to extract embedded JAR files in the background, which
+    // is null unless enabled by the bundle cache.
+    private Executor m_extractor;
+    // The background extraction of the current revision, if any.
+    private volatile Extraction m_extraction;
+
     /**
      * <p>
      * This constructor is used for creating new archives when a bundle is
@@ -126,10 +141,24 @@ public class BundleArchive
     public BundleArchive(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
         File archiveRootDir, long id, int startLevel, String location, InputStream is)
         throws Exception
+    {
+        this(logger, configMap, zipFactory, null, archiveRootDir,
+            id, startLevel, location, is);
+    }
+
+    /**
+     * Creates a new archive, which records changes of its bundle info in
+     * the specified journal, if any, instead of its <tt>bundle.info</tt> file.
+    **/
+    BundleArchive(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        BundleInfoJournal journal, File archiveRootDir, long id, int startLevel,
+        String location, InputStream is)
+        throws Exception
     {
         m_logger = logger;
         m_configMap = configMap;
         m_zipFactory = zipFactory;
+        m_journal = journal;
         m_archiveRootDir = archiveRootDir;
         m_id = id;
         if (m_id <= 0)
@@ -168,10 +197,22 @@ public class BundleArchive
     public BundleArchive(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
         File archiveRootDir)
         throws Exception
+    {
+        this(logger, configMap, zipFactory, null, archiveRootDir);
+    }
+
+    /**
+     * Reconstructs an existing archive, preferring the bundle info in the
+     * specified journal, if any, over its <tt>bundle.info</tt> file.
+    **/
+    BundleArchive(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        BundleInfoJournal journal, File archiveRootDir)
+        throws Exception
     {
         m_logger = logger;
         m_configMap = configMap;
         m_zipFactory = zipFactory;
+        m_journal = journal;
         m_archiveRootDir = archiveRootDir;
 
         String s = (String) m_configMap.get(BundleCache.CACHE_SINGLEBUNDLEFILE_PROP);
@@ -179,7 +220,21 @@ public class BundleArchive
 
         if (m_isSingleBundleFile)
         {
-            readBundleInfo();
+            BundleInfoJournal.Info info = (m_journal == null)
+                ? null : m_journal.get(m_archiveRootDir.getName());
+            if (info != null)
+            {
+                m_id = info.m_id;
+                m_originalLocation = info.m_location;
+                m_persistentState = info.m_persistentState;
+                m_startLevel = info.m_startLevel;
+                m_lastModified = info.m_lastModified;
+                m_refreshCount = info.m_refreshCount;
+            }
+            else
+            {
+                readBundleInfo();
+            }
         }
 
         // Add a revision number for each revision that exists in the file
@@ -520,6 +575,134 @@ public class BundleArchive
             : new Long(m_revisions.lastKey().longValue() + 1);
 
         reviseInternal(false, revNum, location, is);
+
+        if (m_extractor != null)
+        {
+            startExtraction();
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the number of embedded JAR files on the bundle class path of
+     * the current revision that are extracted in the background. This is
+     * zero if background extraction is not enabled.
+     * </p>
+     * @return the number of embedded JAR files to extract.
+    **/
+    public int getEmbeddedJarCount()
+    {
+        Extraction extraction = m_extraction;
+        return (extraction == null) ? 0 : extraction.m_entries.size();
+    }
+
+    /**
+     * <p>
+     * Returns the number of embedded JAR files of the current revision that
+     * the background extraction has processed so far.
+     * </p>
+     * @return the number of extracted embedded JAR files.
+    **/
+    public int getExtractedJarCount()
+    {
+        Extraction extraction = m_extraction;
+        return (extraction == null) ? 0 : extraction.m_extracted.get();
+    }
+
+    /**
+     * <p>
+     * Waits for the background extraction of the embedded JAR files of the
+     * current revision to finish.
+     * </p>
+     * @param timeout the maximum time to wait in milliseconds.
+     * @return <tt>true</tt> if the extraction is finished or there is none,
+     *         <tt>false</tt> if the timeout elapsed first.
+     * @throws InterruptedException if the waiting thread is interrupted.
+    **/
+    public boolean awaitExtraction(long timeout) throws InterruptedException
+    {
+        Extraction extraction = m_extraction;
+        return (extraction == null)
+            || extraction.m_done.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Enables background extraction of embedded JAR files for revisions
+     * added to this archive from now on.
+     * @param extractor the executor running the extractions.
+    **/
+    synchronized void setExtractor(Executor extractor)
+    {
+        m_extractor = extractor;
+    }
+
+    /**
+     * Schedules the extraction of the embedded JAR files on the bundle
+     * class path of the current revision, cancelling any extraction of a
+     * previous revision.
+    **/
+    synchronized void startExtraction()
+    {
+        cancelExtraction();
+
+        BundleArchiveRevision revision = getCurrentRevision();
+        List<String> entries = new ArrayList<String>();
+        try
+        {
+            String classPath = (String) revision.getManifestHeader()
+                .get(Constants.BUNDLE_CLASSPATH);
+            for (String clause : ManifestParser.parseDelimitedString(classPath, ","))
+            {
+                for (String path : ManifestParser.parseDelimitedString(clause, ";"))
+                {
+                    if (path.endsWith(".jar") && (path.indexOf('=') < 0))
+                    {
+                        entries.add(path);
+                    }
+                }
+            }
+        }
+        catch (Exception ex)
+        {
+            // Leave the class path to be extracted on demand.
+            m_logger.log(Logger.LOG_DEBUG,
+                "Unable to read class path of revision - "
+                + revision.getRevisionRootDir(), ex);
+        }
+
+        if (!entries.isEmpty())
+        {
+            Extraction extraction = new Extraction(revision, entries);
+            m_extraction = extraction;
+            try
+            {
+                m_extractor.execute(extraction);
+            }
+            catch (RejectedExecutionException ex)
+            {
+                // The cache is shutting down.
+                extraction.m_cancelled = true;
+                extraction.m_done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Stops any background extraction, waiting for an embedded JAR file
+     * being extracted, so that the revision directories can be safely
+     * closed, renamed, or deleted afterwards.
+    **/
+    private void cancelExtraction()
+    {
+        Extraction extraction = m_extraction;
+        if (extraction != null)
+        {
+            extraction.m_cancelled = true;
+            synchronized (extraction.m_revision)
+            {
+                m_extraction = null;
+            }
+        }
     }
 
     /**
@@ -582,6 +765,10 @@ public class BundleArchive
             return false;
         }
 
+        // The extraction of the latest revision must be stopped before its
+        // directory is deleted.
+        cancelExtraction();
+
         Long revNum = m_revisions.lastKey();
         BundleArchiveRevision revision = m_revisions.remove(revNum);
 
@@ -603,6 +790,13 @@ public class BundleArchive
             BundleCache.deleteDirectoryTree(revisionDir);
         }
 
+        // Resume the extraction of the previous revision, which was
+        // cancelled by the revision being rolled back.
+        if (m_extractor != null)
+        {
+            startExtraction();
+        }
+
         return true;
     }
 
@@ -650,6 +844,8 @@ public class BundleArchive
 
     public synchronized void close()
     {
+        cancelExtraction();
+
         // Get the current revision count.
         for (BundleArchiveRevision revision : m_revisions.values())
         {
@@ -684,6 +880,10 @@ public class BundleArchive
     {
         // Close the revisions and delete the archive directory.
         close();
+        if (m_journal != null)
+        {
+            m_journal.remove(m_archiveRootDir.getName());
+        }
         if (!BundleCache.deleteDirectoryTree(m_archiveRootDir))
         {
             m_logger.log(
@@ -788,7 +988,13 @@ public class BundleArchive
 
             if (m_isSingleBundleFile)
             {
-                writeBundleInfo();
+                // The new bundle info file supersedes any journaled info
+                // of a previous archive in the same directory.
+                if (m_journal != null)
+                {
+                    m_journal.remove(m_archiveRootDir.getName());
+                }
+                writeBundleInfo(m_archiveRootDir, getBundleInfo());
             }
             else
             {
@@ -983,7 +1189,34 @@ public class BundleArchive
         }
     }
 
+    private BundleInfoJournal.Info getBundleInfo()
+    {
+        return new BundleInfoJournal.Info(m_id, m_originalLocation,
+            m_persistentState, m_startLevel, m_lastModified, m_refreshCount);
+    }
+
     private void writeBundleInfo() throws Exception
+    {
+        BundleInfoJournal.Info info = getBundleInfo();
+        try
+        {
+            if ((m_journal == null)
+                || !m_journal.put(m_archiveRootDir.getName(), info))
+            {
+                writeBundleInfo(m_archiveRootDir, info);
+            }
+        }
+        catch (IOException ex)
+        {
+            m_logger.log(
+                Logger.LOG_ERROR,
+                getClass().getName() + ": Unable to cache bundle info - " + ex);
+            throw ex;
+        }
+    }
+
+    static void writeBundleInfo(File archiveRootDir, BundleInfoJournal.Info info)
+        throws IOException
     {
         // Write the bundle start level.
         OutputStream os = null;
@@ -991,41 +1224,34 @@ public class BundleArchive
         try
         {
             os = BundleCache.getSecureAction()
-                .getFileOutputStream(new File(m_archiveRootDir, BUNDLE_INFO_FILE));
+                .getFileOutputStream(new File(archiveRootDir, BUNDLE_INFO_FILE));
             bw = new BufferedWriter(new OutputStreamWriter(os));
 
             // Write id.
-            String s = Long.toString(m_id);
+            String s = Long.toString(info.m_id);
             bw.write(s, 0, s.length());
             bw.newLine();
             // Write location.
-            s = (m_originalLocation == null) ? "" : m_originalLocation;
+            s = (info.m_location == null) ? "" : info.m_location;
             bw.write(s, 0, s.length());
             bw.newLine();
             // Write state.
-            s = Integer.toString(m_persistentState);
+            s = Integer.toString(info.m_persistentState);
             bw.write(s, 0, s.length());
             bw.newLine();
             // Write start level.
-            s = Integer.toString(m_startLevel);
+            s = Integer.toString(info.m_startLevel);
             bw.write(s, 0, s.length());
             bw.newLine();
             // Write last modified.
-            s = Long.toString(m_lastModified);
+            s = Long.toString(info.m_lastModified);
             bw.write(s, 0, s.length());
             bw.newLine();
             // Write refresh count.
-            s = Long.toString(m_refreshCount);
+            s = Long.toString(info.m_refreshCount);
             bw.write(s, 0, s.length());
             bw.newLine();
         }
-        catch (IOException ex)
-        {
-            m_logger.log(
-                Logger.LOG_ERROR,
-                getClass().getName() + ": Unable to cache bundle info - " + ex);
-            throw ex;
-        }
         finally
         {
             if (bw != null) bw.close();
@@ -1375,4 +1601,67 @@ public class BundleArchive
 
         return count;
     }
+
+    /**
+     * Extracts the embedded JAR files of a revision one after the other.
+     * Each file is extracted while holding the revision lock, which is the
+     * same lock the revision content uses to extract on demand, so a class
+     * loader needing one of the files either waits for it or finds it.
+    **/
+    private class Extraction implements Runnable
+    {
+        private final BundleArchiveRevision m_revision;
+        private final List<String> m_entries;
+        private final AtomicInteger m_extracted = new AtomicInteger();
+        private final CountDownLatch m_done = new CountDownLatch(1);
+        private volatile boolean m_cancelled;
+
+        Extraction(BundleArchiveRevision revision, List<String> entries)
+        {
+            m_revision = revision;
+            m_entries = entries;
+        }
+
+        public void run()
+        {
+            Content content = null;
+            try
+            {
+                content = m_revision.getContent();
+                for (String entry : m_entries)
+                {
+                    synchronized (m_revision)
+                    {
+                        if (m_cancelled)
+                        {
+                            break;
+                        }
+                        Content embedded = content.getEntryAsContent(entry);
+                        if (embedded != null)
+                        {
+                            embedded.close();
+                        }
+                    }
+                    m_extracted.incrementAndGet();
+                }
+            }
+            catch (Exception ex)
+            {
+                if (!m_cancelled)
+                {
+                    m_logger.log(Logger.LOG_WARNING,
+                        "Unable to extract embedded JAR files of revision - "
+                        + m_revision.getRevisionRootDir(), ex);
+                }
+            }
+            finally
+            {
+                if (content != null)
+                {
+                    content.close();
+                }
+                m_done.countDown();
+            }
+        }
+    }
 }
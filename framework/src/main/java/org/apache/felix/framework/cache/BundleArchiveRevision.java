@@ -18,7 +18,11 @@
  */
 package org.apache.felix.framework.cache;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Map;
 
 import org.apache.felix.framework.Logger;
@@ -41,6 +45,8 @@ import org.apache.felix.framework.Logger;
 **/
 public abstract class BundleArchiveRevision
 {
+    private static final transient String PARSED_MANIFEST_FILE = "manifest.model";
+
     private final Logger m_logger;
     private final Map m_configMap;
     private final File m_revisionRootDir;
@@ -129,6 +135,111 @@ public abstract class BundleArchiveRevision
 
     public abstract Content getContent() throws Exception;
 
+    /**
+     * <p>
+     * Returns the parsed manifest stored with this revision, if the
+     * <tt>felix.cache.parsedmanifest</tt> configuration property is
+     * <tt>true</tt>. The bytes are opaque to the cache.
+     * </p>
+     * @return the stored parsed manifest or <tt>null</tt> if there is none.
+    **/
+    public byte[] getParsedManifest()
+    {
+        File file = new File(m_revisionRootDir, PARSED_MANIFEST_FILE);
+        if (!isParsedManifestEnabled()
+            || !BundleCache.getSecureAction().fileExists(file))
+        {
+            return null;
+        }
+
+        InputStream is = null;
+        try
+        {
+            is = BundleCache.getSecureAction().getFileInputStream(file);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[BundleCache.BUFSIZE];
+            int len;
+            while ((len = is.read(buf)) >= 0)
+            {
+                baos.write(buf, 0, len);
+            }
+            return baos.toByteArray();
+        }
+        catch (IOException ex)
+        {
+            m_logger.log(Logger.LOG_DEBUG,
+                "Unable to read parsed manifest - " + file, ex);
+            return null;
+        }
+        finally
+        {
+            try
+            {
+                if (is != null) is.close();
+            }
+            catch (IOException ex)
+            {
+                // Not much we can do.
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Stores the parsed manifest of this revision, if the
+     * <tt>felix.cache.parsedmanifest</tt> configuration property is
+     * <tt>true</tt>; otherwise, this method does nothing.
+     * </p>
+     * @param bytes the parsed manifest to store.
+    **/
+    public void setParsedManifest(byte[] bytes)
+    {
+        if (!isParsedManifestEnabled())
+        {
+            return;
+        }
+
+        // Write to a temporary file first, so that a partially written
+        // file is never read.
+        File file = new File(m_revisionRootDir, PARSED_MANIFEST_FILE);
+        File tmpFile = new File(m_revisionRootDir, PARSED_MANIFEST_FILE + ".tmp");
+        OutputStream os = null;
+        try
+        {
+            os = BundleCache.getSecureAction().getFileOutputStream(tmpFile);
+            os.write(bytes);
+            os.close();
+            os = null;
+            BundleCache.getSecureAction().deleteFile(file);
+            if (!BundleCache.getSecureAction().renameFile(tmpFile, file))
+            {
+                BundleCache.getSecureAction().deleteFile(tmpFile);
+            }
+        }
+        catch (IOException ex)
+        {
+            m_logger.log(Logger.LOG_DEBUG,
+                "Unable to store parsed manifest - " + file, ex);
+        }
+        finally
+        {
+            try
+            {
+                if (os != null) os.close();
+            }
+            catch (IOException ex)
+            {
+                // Not much we can do.
+            }
+        }
+    }
+
+    private boolean isParsedManifestEnabled()
+    {
+        Object enabled = m_configMap.get(BundleCache.CACHE_PARSEDMANIFEST_PROP);
+        return (enabled != null) && Boolean.valueOf(enabled.toString()).booleanValue();
+    }
+
     /**
      * <p>
      * This method is called when the revision is no longer needed. The directory
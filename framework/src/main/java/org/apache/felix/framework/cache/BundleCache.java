@@ -19,13 +19,21 @@
 package org.apache.felix.framework.cache;
 
 import java.io.*;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.WeakZipFileFactory;
+import org.apache.felix.framework.util.WeakZipFileFactory.WeakZipFile;
 import org.osgi.framework.Constants;
 
 /**
@@ -68,6 +76,30 @@ import org.osgi.framework.Constants;
  *       string provides control over the size of the internal buffer of the
  *       disk cache for performance reasons.
  *   </li>
+ *   <li><tt>felix.cache.mapped</tt> - Enables or disables memory mapping of
+ *       bundle JAR files, which allows entries to be read concurrently
+ *       without locking. This is disabled by default; JAR files that cannot
+ *       be mapped are read as usual.
+ *   </li>
+ *   <li><tt>felix.cache.extractthreads</tt> - Sets the number of threads
+ *       that extract the embedded JAR files on the bundle class path of
+ *       installed and updated bundles in the background. The default value
+ *       is zero, which means embedded JAR files are extracted on first use.
+ *       The progress of the extraction is available from
+ *       <tt>BundleArchive</tt>.
+ *   </li>
+ *   <li><tt>felix.cache.journal</tt> - Enables or disables journaling of
+ *       bundle info changes, such as start level or persistent state changes,
+ *       in a single append-only file instead of rewriting the
+ *       <tt>bundle.info</tt> file of the bundle for each change. The
+ *       <tt>bundle.info</tt> files are updated when the cache is released.
+ *       This is disabled by default.
+ *   </li>
+ *   <li><tt>felix.cache.parsedmanifest</tt> - Enables or disables storing
+ *       the parsed capabilities and requirements of each bundle revision in
+ *       its revision directory, so that the manifest does not need to be
+ *       parsed again when the framework restarts. This is disabled by default.
+ *   </li>
  * <p>
  * For specific information on how to configure the Felix framework, refer
  * to the Felix framework usage documentation.
@@ -80,6 +112,10 @@ public class BundleCache
     public static final String CACHE_ROOTDIR_PROP = "felix.cache.rootdir";
     public static final String CACHE_LOCKING_PROP = "felix.cache.locking";
     public static final String CACHE_FILELIMIT_PROP = "felix.cache.filelimit";
+    public static final String CACHE_MAPPED_PROP = "felix.cache.mapped";
+    public static final String CACHE_EXTRACTTHREADS_PROP = "felix.cache.extractthreads";
+    public static final String CACHE_JOURNAL_PROP = "felix.cache.journal";
+    public static final String CACHE_PARSEDMANIFEST_PROP = "felix.cache.parsedmanifest";
     // TODO: CACHE - This should eventually be removed along with the code
     //       supporting the old multi-file bundle cache format.
     public static final String CACHE_SINGLEBUNDLEFILE_PROP = "felix.cache.singlebundlefile";
@@ -97,6 +133,9 @@ public class BundleCache
     private final Map m_configMap;
     private final WeakZipFileFactory m_zipFactory;
     private final Object m_lock;
+    private final int m_extractThreads;
+    private ExecutorService m_extractor;
+    private volatile BundleInfoJournal m_journal;
 
     public BundleCache(Logger logger, Map configMap)
         throws Exception
@@ -119,6 +158,21 @@ public class BundleCache
         }
         m_zipFactory = new WeakZipFileFactory(limit);
 
+        int threads = 0;
+        String threadsStr = (String) m_configMap.get(CACHE_EXTRACTTHREADS_PROP);
+        if (threadsStr != null)
+        {
+            try
+            {
+                threads = Integer.parseInt(threadsStr.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                threads = 0;
+            }
+        }
+        m_extractThreads = threads;
+
         // Create the cache directory, if it does not exist.
         File cacheDir = determineCacheDir(m_configMap);
         if (!getSecureAction().fileExists(cacheDir))
@@ -184,6 +238,39 @@ public class BundleCache
 
     public synchronized void release()
     {
+        // Finish all writes to the cache before releasing the lock, since
+        // another process may open the cache as soon as it is released.
+        // Let running extractions finish, since interrupting them would
+        // leave partially written files behind.
+        if (m_extractor != null)
+        {
+            m_extractor.shutdown();
+            boolean interrupted = false;
+            while (true)
+            {
+                try
+                {
+                    if (m_extractor.awaitTermination(1, TimeUnit.SECONDS))
+                    {
+                        break;
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+            m_extractor = null;
+        }
+        if (m_journal != null)
+        {
+            m_journal.close();
+            m_journal = null;
+        }
         if (m_lock != null)
         {
             try
@@ -232,6 +319,15 @@ public class BundleCache
 
         // Create the existing bundle archives in the directory, if any exist.
         File cacheDir = determineCacheDir(m_configMap);
+
+        // Open the bundle info journal, which replays any info that was not
+        // exported to the archives before the cache was last used.
+        String journal = (String) m_configMap.get(CACHE_JOURNAL_PROP);
+        if ((m_journal == null) && Boolean.valueOf(journal).booleanValue())
+        {
+            m_journal = new BundleInfoJournal(m_logger, cacheDir);
+        }
+
         List archiveList = new ArrayList();
         File[] children = getSecureAction().listDirectory(cacheDir);
         for (int i = 0; (children != null) && (i < children.length); i++)
@@ -244,9 +340,13 @@ public class BundleCache
                 // Recreate the bundle archive.
                 try
                 {
-                    archiveList.add(
-                        new BundleArchive(
-                            m_logger, m_configMap, m_zipFactory, children[i]));
+                    BundleArchive ba = new BundleArchive(
+                        m_logger, m_configMap, m_zipFactory, m_journal, children[i]);
+                    if (m_extractThreads > 0)
+                    {
+                        ba.setExtractor(getExtractor());
+                    }
+                    archiveList.add(ba);
                 }
                 catch (Exception ex)
                 {
@@ -276,8 +376,13 @@ public class BundleCache
             // Create the archive and add it to the list of archives.
             BundleArchive ba =
                 new BundleArchive(
-                    m_logger, m_configMap, m_zipFactory, archiveRootDir,
-                    id, startLevel, location, is);
+                    m_logger, m_configMap, m_zipFactory, m_journal,
+                    archiveRootDir, id, startLevel, location, is);
+            if (m_extractThreads > 0)
+            {
+                ba.setExtractor(getExtractor());
+                ba.startExtraction();
+            }
             return ba;
         }
         catch (Exception ex)
@@ -338,6 +443,36 @@ public class BundleCache
     // Static file-related utility methods.
     //
 
+    /**
+     * This method creates the content for a JAR file, which is memory mapped
+     * if the <tt>felix.cache.mapped</tt> property is enabled, and otherwise,
+     * or if the file cannot be mapped, read through the zip file factory.
+     * @param zipFile the already opened zip file to use if the JAR file is
+     *        not mapped or <tt>null</tt> to open it.
+    **/
+    static Content createJarContent(Logger logger, Map configMap,
+        WeakZipFileFactory zipFactory, Object revisionLock, File rootDir,
+        File file, WeakZipFile zipFile)
+    {
+        Object mapped = configMap.get(CACHE_MAPPED_PROP);
+        if ((mapped != null) && mapped.toString().equalsIgnoreCase(Boolean.TRUE.toString()))
+        {
+            try
+            {
+                return new MappedJarContent(
+                    logger, configMap, zipFactory, revisionLock, rootDir, file, null);
+            }
+            catch (IOException ex)
+            {
+                logger.log(
+                    Logger.LOG_DEBUG,
+                    "Unable to map JAR file, reading it instead: " + file, ex);
+            }
+        }
+        return new JarContent(
+            logger, configMap, zipFactory, revisionLock, rootDir, file, zipFile);
+    }
+
     /**
      * This method copies an input stream to the specified file.
      * @param is the input stream to copy.
@@ -346,17 +481,22 @@ public class BundleCache
     static void copyStreamToFile(InputStream is, File outputFile)
         throws IOException
     {
-        OutputStream os = null;
+        FileOutputStream os = null;
 
         try
         {
             os = getSecureAction().getFileOutputStream(outputFile);
-            os = new BufferedOutputStream(os, BUFSIZE);
-            byte[] b = new byte[BUFSIZE];
-            int len = 0;
-            while ((len = is.read(b)) != -1)
+            FileChannel out = os.getChannel();
+            // Let the channels transfer the content; a file can be copied
+            // without passing it through a buffer of our own.
+            ReadableByteChannel in = (is instanceof FileInputStream)
+                ? ((FileInputStream) is).getChannel()
+                : Channels.newChannel(is);
+            long pos = 0;
+            long len = 0;
+            while ((len = out.transferFrom(in, pos, BUFSIZE * 16)) > 0)
             {
-                os.write(b, 0, len);
+                pos += len;
             }
         }
         finally
@@ -386,6 +526,26 @@ public class BundleCache
     // Private methods.
     //
 
+    private synchronized ExecutorService getExtractor()
+    {
+        if (m_extractor == null)
+        {
+            final AtomicInteger count = new AtomicInteger();
+            m_extractor = Executors.newFixedThreadPool(m_extractThreads,
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r,
+                            "FelixCacheExtractor-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        return m_extractor;
+    }
+
     private static File determineCacheDir(Map configMap)
     {
         File cacheDir;
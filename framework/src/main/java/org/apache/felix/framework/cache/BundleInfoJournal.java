@@ -0,0 +1,515 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+import org.apache.felix.framework.Logger;
+
+/**
+ * <p>
+ * This class implements an append-only journal of the bundle info of all
+ * archives in the bundle cache. Instead of rewriting the
+ * <tt>bundle.info</tt> file of an archive on every start level, state, or
+ * last modified change, a record with the new info is appended to a single
+ * journal file. Appends are written to the file immediately, but forced to
+ * disk by a background thread, so that all records appended while the
+ * previous force was in progress are committed together.
+ * </p>
+ * <p>
+ * The <tt>bundle.info</tt> files remain the format of the bundle cache at
+ * rest; when the journal is closed, the info of all archives with records
+ * in the journal is exported to their <tt>bundle.info</tt> files and the
+ * journal file is deleted. If the framework exits without closing the
+ * journal, the records are replayed when the cache is opened again and take
+ * precedence over the <tt>bundle.info</tt> files. The journal is compacted
+ * when it holds many more records than archives.
+ * </p>
+**/
+class BundleInfoJournal implements Runnable
+{
+    private static final transient String JOURNAL_FILE = "info.journal";
+    private static final transient String JOURNAL_TMP_FILE = "info.journal.tmp";
+    private static final transient String JOURNAL_OLD_FILE = "info.journal.old";
+    private static final transient int COMPACT_THRESHOLD = 1024;
+    private static final transient int MAX_RECORD_SIZE = 1 << 20;
+
+    private final Logger m_logger;
+    private final File m_cacheDir;
+    private final File m_file;
+    private final File m_tmpFile;
+    private final File m_oldFile;
+    // Maps archive directory names to their latest info, where null means
+    // the archive was deleted.
+    private final Map<String, Info> m_infos = new HashMap<String, Info>();
+    private FileOutputStream m_os;
+    private int m_records;
+    private boolean m_unsynced;
+    private boolean m_closed;
+    private long m_syncCount;
+    private final Thread m_committer;
+
+    BundleInfoJournal(Logger logger, File cacheDir) throws IOException
+    {
+        m_logger = logger;
+        m_cacheDir = cacheDir;
+        m_file = new File(cacheDir, JOURNAL_FILE);
+        m_tmpFile = new File(cacheDir, JOURNAL_TMP_FILE);
+        m_oldFile = new File(cacheDir, JOURNAL_OLD_FILE);
+
+        // A compaction may have been interrupted after the new journal was
+        // written but before it was renamed, in which case the new journal
+        // is complete. Otherwise, any new journal is incomplete and the old
+        // journal is still in place.
+        if (!BundleCache.getSecureAction().fileExists(m_file))
+        {
+            if (BundleCache.getSecureAction().fileExists(m_tmpFile))
+            {
+                BundleCache.getSecureAction().renameFile(m_tmpFile, m_file);
+            }
+            else if (BundleCache.getSecureAction().fileExists(m_oldFile))
+            {
+                BundleCache.getSecureAction().renameFile(m_oldFile, m_file);
+            }
+        }
+        BundleCache.getSecureAction().deleteFile(m_tmpFile);
+        BundleCache.getSecureAction().deleteFile(m_oldFile);
+
+        if (BundleCache.getSecureAction().fileExists(m_file))
+        {
+            replay();
+            // Start over with a compacted journal, which also drops any
+            // incomplete record at the end of the file.
+            compact();
+        }
+
+        m_committer = new Thread(this, "FelixCacheJournal");
+        m_committer.setDaemon(true);
+        m_committer.start();
+    }
+
+    /**
+     * Returns the journaled info of the specified archive.
+     * @param key the name of the archive root directory.
+     * @return the journaled info or <tt>null</tt> if the journal does not
+     *         have any info for the archive.
+    **/
+    synchronized Info get(String key)
+    {
+        return m_infos.get(key);
+    }
+
+    /**
+     * Appends the info of the specified archive to the journal.
+     * @param key the name of the archive root directory.
+     * @param info the new info of the archive.
+     * @return <tt>true</tt> if the info was journaled or <tt>false</tt> if
+     *         the journal is closed.
+     * @throws IOException if the journal cannot be written.
+    **/
+    synchronized boolean put(String key, Info info) throws IOException
+    {
+        if (m_closed)
+        {
+            return false;
+        }
+        append(key, info);
+        m_infos.put(key, info);
+        return true;
+    }
+
+    /**
+     * Records that the specified archive has been deleted.
+     * @param key the name of the archive root directory.
+    **/
+    synchronized void remove(String key)
+    {
+        if (!m_closed && m_infos.containsKey(key))
+        {
+            try
+            {
+                append(key, null);
+                m_infos.put(key, null);
+            }
+            catch (IOException ex)
+            {
+                m_logger.log(Logger.LOG_ERROR,
+                    "Unable to journal removal of archive - " + key, ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of times the journal has been forced to disk,
+     * which is the number of committed batches of records.
+     * @return the number of forces.
+    **/
+    synchronized long getSyncCount()
+    {
+        return m_syncCount;
+    }
+
+    /**
+     * Forces all records to disk, exports the journaled info to the
+     * <tt>bundle.info</tt> files of the archives, and deletes the journal.
+    **/
+    void close()
+    {
+        synchronized (this)
+        {
+            if (m_closed)
+            {
+                return;
+            }
+            m_closed = true;
+            notifyAll();
+        }
+        try
+        {
+            m_committer.join();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this)
+        {
+            boolean exported = true;
+            for (Entry<String, Info> entry : m_infos.entrySet())
+            {
+                File archiveRootDir = new File(m_cacheDir, entry.getKey());
+                if ((entry.getValue() != null)
+                    && BundleCache.getSecureAction().fileExists(archiveRootDir))
+                {
+                    try
+                    {
+                        BundleArchive.writeBundleInfo(archiveRootDir, entry.getValue());
+                    }
+                    catch (IOException ex)
+                    {
+                        m_logger.log(Logger.LOG_ERROR,
+                            "Unable to export bundle info - " + archiveRootDir, ex);
+                        exported = false;
+                    }
+                }
+            }
+            closeStream();
+            // Keep the journal if any info could not be exported, so that
+            // it is replayed the next time.
+            if (exported)
+            {
+                BundleCache.getSecureAction().deleteFile(m_file);
+            }
+        }
+    }
+
+    /**
+     * Forces appended records to disk in batches until the journal is
+     * closed. The force happens outside of the journal lock, so records
+     * appended in the meantime form the next batch.
+    **/
+    public void run()
+    {
+        while (true)
+        {
+            FileOutputStream os;
+            synchronized (this)
+            {
+                while (!m_unsynced && !m_closed)
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        // Ignore and check the state again.
+                    }
+                }
+                os = m_os;
+                m_unsynced = false;
+            }
+
+            try
+            {
+                if (os != null)
+                {
+                    os.getChannel().force(false);
+                }
+            }
+            catch (IOException ex)
+            {
+                // The stream may have been replaced by a compaction, which
+                // forces the new journal itself.
+            }
+
+            synchronized (this)
+            {
+                if (os != null)
+                {
+                    m_syncCount++;
+                }
+                if (m_closed)
+                {
+                    return;
+                }
+                if ((m_records > COMPACT_THRESHOLD)
+                    && (m_records > 2 * m_infos.size()))
+                {
+                    try
+                    {
+                        compact();
+                    }
+                    catch (IOException ex)
+                    {
+                        m_logger.log(Logger.LOG_WARNING,
+                            "Unable to compact bundle info journal.", ex);
+                    }
+                }
+            }
+        }
+    }
+
+    private void append(String key, Info info) throws IOException
+    {
+        if (m_os == null)
+        {
+            m_os = BundleCache.getSecureAction().getFileAppendOutputStream(m_file);
+        }
+        m_os.write(encode(key, info));
+        m_records++;
+        m_unsynced = true;
+        notifyAll();
+    }
+
+    /**
+     * Writes the current info of all archives to a new journal, which then
+     * replaces the existing one. Deleted archives are dropped. If the new
+     * journal cannot replace the existing one, the existing one is kept
+     * and appended to as before.
+    **/
+    private void compact() throws IOException
+    {
+        for (Iterator<Info> it = m_infos.values().iterator(); it.hasNext(); )
+        {
+            if (it.next() == null)
+            {
+                it.remove();
+            }
+        }
+
+        FileOutputStream os =
+            BundleCache.getSecureAction().getFileOutputStream(m_tmpFile);
+        try
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            for (Entry<String, Info> entry : m_infos.entrySet())
+            {
+                baos.write(encode(entry.getKey(), entry.getValue()));
+            }
+            os.write(baos.toByteArray());
+            os.getChannel().force(false);
+        }
+        catch (IOException ex)
+        {
+            os.close();
+            BundleCache.getSecureAction().deleteFile(m_tmpFile);
+            throw ex;
+        }
+        // The new journal must be closed before it can be renamed on
+        // some platforms.
+        os.close();
+
+        closeStream();
+        boolean replaced = BundleCache.getSecureAction().renameFile(m_tmpFile, m_file);
+        if (!replaced
+            && BundleCache.getSecureAction().renameFile(m_file, m_oldFile))
+        {
+            // Renaming does not replace an existing file on some platforms,
+            // so move the old journal out of the way first.
+            replaced = BundleCache.getSecureAction().renameFile(m_tmpFile, m_file);
+            if (replaced)
+            {
+                BundleCache.getSecureAction().deleteFile(m_oldFile);
+            }
+            else
+            {
+                BundleCache.getSecureAction().renameFile(m_oldFile, m_file);
+            }
+        }
+        if (!replaced)
+        {
+            BundleCache.getSecureAction().deleteFile(m_tmpFile);
+        }
+        else
+        {
+            m_records = m_infos.size();
+        }
+
+        m_os = BundleCache.getSecureAction().getFileAppendOutputStream(m_file);
+        if (!replaced)
+        {
+            throw new IOException("Unable to rename compacted journal.");
+        }
+    }
+
+    private void closeStream()
+    {
+        if (m_os != null)
+        {
+            try
+            {
+                m_os.getChannel().force(false);
+                m_os.close();
+            }
+            catch (IOException ex)
+            {
+                // Not much we can do here.
+            }
+            m_os = null;
+        }
+    }
+
+    private void replay() throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            BundleCache.getSecureAction().getFileInputStream(m_file)));
+        try
+        {
+            while (true)
+            {
+                int length;
+                try
+                {
+                    length = in.readInt();
+                }
+                catch (EOFException ex)
+                {
+                    break;
+                }
+                if ((length < 0) || (length > MAX_RECORD_SIZE))
+                {
+                    m_logger.log(Logger.LOG_WARNING,
+                        "Ignoring corrupt end of bundle info journal.");
+                    break;
+                }
+                byte[] record = new byte[length];
+                long crc;
+                try
+                {
+                    in.readFully(record);
+                    crc = in.readLong();
+                }
+                catch (EOFException ex)
+                {
+                    m_logger.log(Logger.LOG_WARNING,
+                        "Ignoring incomplete end of bundle info journal.");
+                    break;
+                }
+                CRC32 check = new CRC32();
+                check.update(record);
+                if (check.getValue() != crc)
+                {
+                    m_logger.log(Logger.LOG_WARNING,
+                        "Ignoring corrupt end of bundle info journal.");
+                    break;
+                }
+                decode(record);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static byte[] encode(String key, Info info) throws IOException
+    {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeUTF(key);
+        out.writeBoolean(info != null);
+        if (info != null)
+        {
+            out.writeLong(info.m_id);
+            out.writeUTF((info.m_location == null) ? "" : info.m_location);
+            out.writeInt(info.m_persistentState);
+            out.writeInt(info.m_startLevel);
+            out.writeLong(info.m_lastModified);
+            out.writeLong(info.m_refreshCount);
+        }
+        out.close();
+
+        byte[] bytes = record.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(bytes.length + 12);
+        out = new DataOutputStream(frame);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeLong(crc.getValue());
+        out.close();
+        return frame.toByteArray();
+    }
+
+    private void decode(byte[] record) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        String key = in.readUTF();
+        Info info = null;
+        if (in.readBoolean())
+        {
+            info = new Info(in.readLong(), in.readUTF(), in.readInt(),
+                in.readInt(), in.readLong(), in.readLong());
+        }
+        m_infos.put(key, info);
+        m_records++;
+    }
+
+    /**
+     * The immutable info of an archive, which is the content of its
+     * <tt>bundle.info</tt> file.
+    **/
+    static class Info
+    {
+        final long m_id;
+        final String m_location;
+        final int m_persistentState;
+        final int m_startLevel;
+        final long m_lastModified;
+        final long m_refreshCount;
+
+        Info(long id, String location, int persistentState, int startLevel,
+            long lastModified, long refreshCount)
+        {
+            m_id = id;
+            m_location = location;
+            m_persistentState = persistentState;
+            m_startLevel = startLevel;
+            m_lastModified = lastModified;
+            m_refreshCount = refreshCount;
+        }
+    }
+}
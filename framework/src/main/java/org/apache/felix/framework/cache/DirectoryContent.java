@@ -204,7 +204,7 @@ public class DirectoryContent implements Content
                     }
                 }
             }
-            return new JarContent(
+            return BundleCache.createJarContent(
                 m_logger, m_configMap, m_zipFactory, m_revisionLock,
                 extractDir, file, null);
         }
@@ -289,7 +289,7 @@ public class JarContent implements Content
                         "Unable to extract embedded JAR file.", ex);
                 }
             }
-            return new JarContent(
+            return BundleCache.createJarContent(
                 m_logger, m_configMap, m_zipFactory, m_revisionLock,
                 extractJar.getParentFile(), extractJar, null);
         }
@@ -360,34 +360,7 @@ public class JarContent implements Content
                                 throw new IOException("No input stream: " + entryName);
                             }
 
-                            // Create the file.
-                            BundleCache.copyStreamToFile(is, libFile);
-
-                            // Perform exec permission command on extracted library
-                            // if one is configured.
-                            String command = (String) m_configMap.get(
-                                Constants.FRAMEWORK_EXECPERMISSION);
-                            if (command != null)
-                            {
-                                Properties props = new Properties();
-                                props.setProperty("abspath", libFile.toString());
-                                command = Util.substVars(command, "command", null, props);
-                                Process p = BundleCache.getSecureAction().exec(command);
-                                // We have to make sure we read stdout and stderr because
-                                // otherwise we will block on certain unbuffered os's
-                                // (like eg. windows)
-                                Thread stdOut = new Thread(
-                                    new DevNullRunnable(p.getInputStream()));
-                                Thread stdErr = new Thread(
-                                    new DevNullRunnable(p.getErrorStream()));
-                                stdOut.setDaemon(true);
-                                stdErr.setDaemon(true);
-                                stdOut.start();
-                                stdErr.start();
-                                p.waitFor();
-                                stdOut.join();
-                                stdErr.join();
-                            }
+                            copyNativeLibrary(m_configMap, is, libFile);
 
                             // Return the path to the extracted native library.
                             result = BundleCache.getSecureAction().getAbsolutePath(libFile);
@@ -432,6 +405,43 @@ public class JarContent implements Content
         return m_file;
     }
 
+    /**
+     * Copies an embedded native library to the specified file and performs
+     * the configured exec permission command on it, if any.
+    **/
+    static void copyNativeLibrary(Map configMap, InputStream is, File libFile)
+        throws Exception
+    {
+        // Create the file.
+        BundleCache.copyStreamToFile(is, libFile);
+
+        // Perform exec permission command on extracted library
+        // if one is configured.
+        String command = (String) configMap.get(
+            Constants.FRAMEWORK_EXECPERMISSION);
+        if (command != null)
+        {
+            Properties props = new Properties();
+            props.setProperty("abspath", libFile.toString());
+            command = Util.substVars(command, "command", null, props);
+            Process p = BundleCache.getSecureAction().exec(command);
+            // We have to make sure we read stdout and stderr because
+            // otherwise we will block on certain unbuffered os's
+            // (like eg. windows)
+            Thread stdOut = new Thread(
+                new DevNullRunnable(p.getInputStream()));
+            Thread stdErr = new Thread(
+                new DevNullRunnable(p.getErrorStream()));
+            stdOut.setDaemon(true);
+            stdErr.setDaemon(true);
+            stdOut.start();
+            stdErr.start();
+            p.waitFor();
+            stdOut.join();
+            stdErr.join();
+        }
+    }
+
     /**
      * This method extracts an embedded JAR file from the bundle's
      * JAR file.
@@ -107,7 +107,7 @@ class JarRevision extends BundleArchiveRevision
 
     public synchronized Content getContent() throws Exception
     {
-        return new JarContent(getLogger(), getConfig(), m_zipFactory,
+        return BundleCache.createJarContent(getLogger(), getConfig(), m_zipFactory,
             this, getRevisionRootDir(), m_bundleFile, m_zipFile);
     }
 
@@ -0,0 +1,332 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.MappedZipFile;
+import org.apache.felix.framework.util.WeakZipFileFactory;
+
+/**
+ * This class implements the content of a bundle JAR file on top of a
+ * memory mapped zip file, which serves entries without locking. It is
+ * used instead of <tt>JarContent</tt> when the
+ * <tt>felix.cache.mapped</tt> configuration property is <tt>true</tt>.
+ * Embedded JAR files and native libraries are extracted just like
+ * <tt>JarContent</tt> does.
+ * @see org.apache.felix.framework.util.MappedZipFile
+**/
+public class MappedJarContent implements Content
+{
+    private static final transient String EMBEDDED_DIRECTORY = "-embedded";
+    private static final transient String LIBRARY_DIRECTORY = "-lib";
+
+    private final Logger m_logger;
+    private final Map m_configMap;
+    private final WeakZipFileFactory m_zipFactory;
+    private final Object m_revisionLock;
+    private final File m_rootDir;
+    private final File m_file;
+    private final MappedZipFile m_zipFile;
+    private final boolean m_isZipFileOwner;
+    private Map m_nativeLibMap;
+
+    public MappedJarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        Object revisionLock, File rootDir, File file, MappedZipFile zipFile)
+        throws IOException
+    {
+        m_logger = logger;
+        m_configMap = configMap;
+        m_zipFactory = zipFactory;
+        m_revisionLock = revisionLock;
+        m_rootDir = rootDir;
+        m_file = file;
+        m_zipFile = (zipFile == null) ? new MappedZipFile(file) : zipFile;
+        m_isZipFileOwner = (zipFile == null);
+    }
+
+    public void close()
+    {
+        if (m_isZipFileOwner)
+        {
+            m_zipFile.close();
+        }
+    }
+
+    public boolean hasEntry(String name) throws IllegalStateException
+    {
+        return m_zipFile.getEntryIndex(name) >= 0;
+    }
+
+    public Enumeration<String> getEntries()
+    {
+        // Spec says to return null if there are no entries.
+        return (m_zipFile.size() > 0) ? m_zipFile.names() : null;
+    }
+
+    public byte[] getEntryAsBytes(String name) throws IllegalStateException
+    {
+        try
+        {
+            int idx = m_zipFile.getEntryIndex(name);
+            return (idx < 0) ? null : m_zipFile.getBytes(idx);
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(
+                Logger.LOG_ERROR,
+                "MappedJarContent: Unable to read bytes for file " + name + " in ZIP file " + m_file.getAbsolutePath(), ex);
+            return null;
+        }
+    }
+
+    public InputStream getEntryAsStream(String name)
+        throws IllegalStateException, IOException
+    {
+        try
+        {
+            int idx = m_zipFile.getEntryIndex(name);
+            return (idx < 0) ? null : m_zipFile.getInputStream(idx);
+        }
+        catch (Exception ex)
+        {
+            return null;
+        }
+    }
+
+    public URL getEntryAsURL(String name)
+    {
+        try
+        {
+            return new URL("jar:" + m_file.toURI().toURL().toExternalForm() + "!/" + name);
+        }
+        catch (MalformedURLException e)
+        {
+            return null;
+        }
+    }
+
+    public Content getEntryAsContent(String entryName)
+    {
+        // If the entry name refers to the content itself, then
+        // just return it immediately.
+        if (entryName.equals(FelixConstants.CLASS_PATH_DOT))
+        {
+            try
+            {
+                return new MappedJarContent(m_logger, m_configMap, m_zipFactory,
+                    m_revisionLock, m_rootDir, m_file, m_zipFile);
+            }
+            catch (IOException ex)
+            {
+                // Cannot happen, since the zip file is already mapped.
+                return null;
+            }
+        }
+
+        // Remove any leading slash.
+        entryName = (entryName.startsWith("/")) ? entryName.substring(1) : entryName;
+
+        // Any embedded JAR files will be extracted to the embedded directory.
+        // Since embedded JAR file names may clash when extracting from multiple
+        // embedded JAR files, the embedded directory is per embedded JAR file.
+        File embedDir = new File(m_rootDir, m_file.getName() + EMBEDDED_DIRECTORY);
+
+        // Determine if the entry is an emdedded JAR file or
+        // directory in the bundle JAR file. Ignore any entries
+        // that do not exist per the spec.
+        int idx = m_zipFile.getEntryIndex(entryName);
+        if ((idx >= 0) && m_zipFile.isDirectory(idx))
+        {
+            File extractDir = new File(embedDir, entryName);
+
+            // See JarContent for why the revision lock is needed here.
+            synchronized (m_revisionLock)
+            {
+                if (!BundleCache.getSecureAction().fileExists(extractDir))
+                {
+                    if (!BundleCache.getSecureAction().mkdirs(extractDir))
+                    {
+                        m_logger.log(
+                            Logger.LOG_ERROR,
+                            "Unable to extract embedded directory.");
+                    }
+                }
+            }
+            return new ContentDirectoryContent(this, entryName);
+        }
+        else if ((idx >= 0) && m_zipFile.getName(idx).endsWith(".jar"))
+        {
+            File extractJar = new File(embedDir, entryName);
+
+            synchronized (m_revisionLock)
+            {
+                try
+                {
+                    extractEmbeddedJar(idx, extractJar);
+                }
+                catch (Exception ex)
+                {
+                    m_logger.log(
+                        Logger.LOG_ERROR,
+                        "Unable to extract embedded JAR file.", ex);
+                }
+            }
+            return BundleCache.createJarContent(
+                m_logger, m_configMap, m_zipFactory, m_revisionLock,
+                extractJar.getParentFile(), extractJar, null);
+        }
+
+        // The entry could not be found, so return null.
+        return null;
+    }
+
+    public String getEntryAsNativeLibrary(String entryName)
+    {
+        // Return result.
+        String result = null;
+
+        // Remove any leading slash.
+        entryName = (entryName.startsWith("/")) ? entryName.substring(1) : entryName;
+
+        // Any embedded native libraries will be extracted to the lib directory.
+        // Since embedded library file names may clash when extracting from multiple
+        // embedded JAR files, the embedded lib directory is per embedded JAR file.
+        File libDir = new File(m_rootDir, m_file.getName() + LIBRARY_DIRECTORY);
+
+        // The entry name must refer to a file type, since it is
+        // a native library, not a directory.
+        int idx = m_zipFile.getEntryIndex(entryName);
+        if ((idx >= 0) && !m_zipFile.isDirectory(idx))
+        {
+            synchronized (m_revisionLock)
+            {
+                // Since native libraries cannot be shared, we must extract a
+                // separate copy per request, so use the request library counter
+                // as part of the extracted path.
+                if (m_nativeLibMap == null)
+                {
+                    m_nativeLibMap = new HashMap();
+                }
+                Integer libCount = (Integer) m_nativeLibMap.get(entryName);
+                // Either set or increment the library count.
+                libCount = (libCount == null) ? new Integer(0) : new Integer(libCount.intValue() + 1);
+                m_nativeLibMap.put(entryName, libCount);
+                File libFile = new File(
+                    libDir, libCount.toString() + File.separatorChar + entryName);
+
+                if (!BundleCache.getSecureAction().fileExists(libFile))
+                {
+                    if (!BundleCache.getSecureAction().fileExists(libFile.getParentFile())
+                        && !BundleCache.getSecureAction().mkdirs(libFile.getParentFile()))
+                    {
+                        m_logger.log(
+                            Logger.LOG_ERROR,
+                            "Unable to create library directory.");
+                    }
+                    else
+                    {
+                        InputStream is = null;
+
+                        try
+                        {
+                            is = m_zipFile.getInputStream(idx);
+                            JarContent.copyNativeLibrary(m_configMap, is, libFile);
+
+                            // Return the path to the extracted native library.
+                            result = BundleCache.getSecureAction().getAbsolutePath(libFile);
+                        }
+                        catch (Exception ex)
+                        {
+                            m_logger.log(
+                                Logger.LOG_ERROR,
+                                "Extracting native library.", ex);
+                        }
+                        finally
+                        {
+                            try
+                            {
+                                if (is != null) is.close();
+                            }
+                            catch (IOException ex)
+                            {
+                                // Not much we can do.
+                            }
+                        }
+                    }
+                }
+                else
+                {
+                    // Return the path to the extracted native library.
+                    result = BundleCache.getSecureAction().getAbsolutePath(libFile);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public String toString()
+    {
+        return "JAR " + m_file.getPath();
+    }
+
+    public File getFile()
+    {
+        return m_file;
+    }
+
+    private void extractEmbeddedJar(int idx, File jarFile) throws Exception
+    {
+        // If the entry is a directory, then ignore it since we don't need
+        // to extract it; otherwise, it points to an embedded JAR file.
+        if (!BundleCache.getSecureAction().fileExists(jarFile)
+            && !m_zipFile.isDirectory(idx))
+        {
+            // Make sure that the embedded JAR's parent directory exists;
+            // it may be in a sub-directory.
+            File jarDir = jarFile.getParentFile();
+            if (!BundleCache.getSecureAction().fileExists(jarDir))
+            {
+                if (!BundleCache.getSecureAction().mkdirs(jarDir))
+                {
+                    throw new IOException("Unable to create embedded JAR directory.");
+                }
+            }
+
+            InputStream is = m_zipFile.getInputStream(idx);
+            try
+            {
+                BundleCache.copyStreamToFile(is, jarFile);
+            }
+            finally
+            {
+                is.close();
+            }
+        }
+    }
+}
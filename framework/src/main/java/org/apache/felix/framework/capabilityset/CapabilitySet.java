@@ -22,9 +22,12 @@ import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -32,6 +35,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.StringComparator;
@@ -41,10 +45,16 @@ import org.osgi.framework.Version;
 import org.osgi.framework.wiring.BundleCapability;
 import org.osgi.resource.Capability;
 
+/**
+ * Updates of a capability set must be serialized by the caller, but the
+ * capability set may be matched concurrently with updates, in which case
+ * a match sees each capability either before or after its update.
+**/
 public class CapabilitySet
 {
     private final Map<String, Map<Object, Set<BundleCapability>>> m_indices;
-    private final Set<Capability> m_capSet = new HashSet<Capability>();
+    private final Set<Capability> m_capSet = new ConcurrentSet<Capability>();
+    private final List<RangeIndex> m_rangeIndices = new ArrayList<RangeIndex>();
     private final static SecureAction m_secureAction = new SecureAction();
 
     public void dump()
@@ -77,6 +87,25 @@ public class CapabilitySet
     }
 
     public CapabilitySet(List<String> indexProps, boolean caseSensitive)
+    {
+        this(indexProps, null, caseSensitive);
+    }
+
+    /**
+     * Creates a capability set with equality indices for the specified
+     * attributes and range indices, which map an attribute to an attribute
+     * whose values are sorted for each of its values. For example, mapping
+     * <tt>osgi.wiring.package</tt> to <tt>version</tt> makes package
+     * requirements with version ranges look at the capabilities of the
+     * requested package and version range only.
+     * @param indexProps the attributes to index by value.
+     * @param rangeIndexProps the key attributes mapped to the attributes
+     *        whose values are sorted for each key value.
+     * @param caseSensitive whether attribute names are case sensitive.
+    **/
+    public CapabilitySet(
+        List<String> indexProps, Map<String, String> rangeIndexProps,
+        boolean caseSensitive)
     {
         m_indices = (caseSensitive)
             ? new TreeMap<String, Map<Object, Set<BundleCapability>>>()
@@ -85,7 +114,22 @@ public class CapabilitySet
         for (int i = 0; (indexProps != null) && (i < indexProps.size()); i++)
         {
             m_indices.put(
-                indexProps.get(i), new HashMap<Object, Set<BundleCapability>>());
+                indexProps.get(i), new ConcurrentHashMap<Object, Set<BundleCapability>>());
+        }
+        if (rangeIndexProps != null)
+        {
+            for (Entry<String, String> entry : rangeIndexProps.entrySet())
+            {
+                // Key attributes must be indexed by value too, so that
+                // both indices agree on which capabilities have a key.
+                if (!m_indices.containsKey(entry.getKey()))
+                {
+                    m_indices.put(entry.getKey(),
+                        new ConcurrentHashMap<Object, Set<BundleCapability>>());
+                }
+                m_rangeIndices.add(new RangeIndex(
+                    entry.getKey(), entry.getValue(), caseSensitive));
+            }
         }
     }
 
@@ -93,6 +137,11 @@ public class CapabilitySet
     {
         m_capSet.add(cap);
 
+        for (RangeIndex index : m_rangeIndices)
+        {
+            index.addCapability(cap);
+        }
+
         // Index capability.
         for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
         {
@@ -128,7 +177,7 @@ public class CapabilitySet
         Set<BundleCapability> caps = index.get(capValue);
         if (caps == null)
         {
-            caps = new HashSet<BundleCapability>();
+            caps = new ConcurrentSet<BundleCapability>();
             index.put(capValue, caps);
         }
         caps.add(cap);
@@ -138,6 +187,11 @@ public class CapabilitySet
     {
         if (m_capSet.remove(cap))
         {
+            for (RangeIndex index : m_rangeIndices)
+            {
+                index.removeCapability(cap);
+            }
+
             for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
             {
                 Object value = cap.getAttributes().get(entry.getKey());
@@ -199,6 +253,17 @@ public class CapabilitySet
         }
         else if (sf.getOperation() == SimpleFilter.AND)
         {
+            // If a range index applies, only evaluate the subfilters
+            // against the capabilities in the requested range.
+            for (int i = 0; (caps == m_capSet) && (i < m_rangeIndices.size()); i++)
+            {
+                Set<Capability> candidates = m_rangeIndices.get(i).getCandidates(sf);
+                if (candidates != null)
+                {
+                    caps = candidates;
+                }
+            }
+
             // Evaluate each subfilter against the remaining capabilities.
             // For AND we calculate the intersection of each subfilter.
             // We can short-circuit the AND operation if there are no
@@ -254,7 +319,7 @@ public class CapabilitySet
                     Object lhs = cap.getAttributes().get(sf.getName());
                     if (lhs != null)
                     {
-                        if (compare(lhs, sf.getValue(), sf.getOperation()))
+                        if (compare(lhs, sf))
                         {
                             matches.add(cap);
                         }
@@ -318,7 +383,7 @@ public class CapabilitySet
             Object lhs = cap.getAttributes().get(sf.getName());
             if (lhs != null)
             {
-                matched = compare(lhs, sf.getValue(), sf.getOperation());
+                matched = compare(lhs, sf);
             }
         }
 
@@ -377,14 +442,22 @@ public class CapabilitySet
 
     private static final Class<?>[] STRING_CLASS = new Class[] { String.class };
     private static final String VALUE_OF_METHOD_NAME = "valueOf";
-
-    private static boolean compare(Object lhs, Object rhsUnknown, int op)
+    // Types whose coerced operands can be shared by concurrent matches.
+    private static final Set<Class> IMMUTABLE_TYPES = new HashSet<Class>(
+        Arrays.asList(new Class[] {
+            String.class, Version.class, Boolean.class, Character.class,
+            Byte.class, Short.class, Integer.class, Long.class,
+            Float.class, Double.class, BigInteger.class, BigDecimal.class }));
+
+    private static boolean compare(Object lhs, SimpleFilter sf)
     {
         if (lhs == null)
         {
             return false;
         }
 
+        int op = sf.getOperation();
+
         // If this is a PRESENT operation, then just return true immediately
         // since we wouldn't be here if the attribute wasn't present.
         if (op == SimpleFilter.PRESENT)
@@ -396,16 +469,7 @@ public class CapabilitySet
         //Version is comparable so we need to check this first
         if(lhs instanceof Version && op == SimpleFilter.EQ)
         {
-            Object rhs = null;
-            try
-            {
-                rhs = coerceType(lhs, (String) rhsUnknown);
-            }
-            catch (Exception ex)
-            {
-                //Do nothing will check later if rhs is null
-            }
-            
+            Object rhs = coerceOperand(lhs, sf);
             if(rhs != null && rhs instanceof VersionRange)
             {
                 return ((VersionRange)rhs).isInRange((Version)lhs);
@@ -425,15 +489,12 @@ public class CapabilitySet
             Object rhs;
             if (op == SimpleFilter.SUBSTRING)
             {
-                rhs = rhsUnknown;
+                rhs = sf.getValue();
             }
             else
             {
-                try
-                {
-                    rhs = coerceType(lhs, (String) rhsUnknown);
-                }
-                catch (Exception ex)
+                rhs = coerceOperand(lhs, sf);
+                if (rhs == null)
                 {
                     return false;
                 }
@@ -480,12 +541,8 @@ public class CapabilitySet
         // Booleans do not implement comparable, so special case them.
         else if (lhs instanceof Boolean)
         {
-            Object rhs;
-            try
-            {
-                rhs = coerceType(lhs, (String) rhsUnknown);
-            }
-            catch (Exception ex)
+            Object rhs = coerceOperand(lhs, sf);
+            if (rhs == null)
             {
                 return false;
             }
@@ -517,7 +574,7 @@ public class CapabilitySet
         {
             for (Iterator iter = ((Collection) lhs).iterator(); iter.hasNext(); )
             {
-                if (compare(iter.next(), rhsUnknown, op))
+                if (compare(iter.next(), sf))
                 {
                     return true;
                 }
@@ -534,22 +591,56 @@ public class CapabilitySet
 
         // Since we cannot identify the LHS type, then we can only perform
         // equality comparison.
+        Object rhs = coerceOperand(lhs, sf);
+        return (rhs != null) && lhs.equals(rhs);
+    }
+
+    /**
+     * Coerces the operand of the specified filter to the type of the
+     * specified attribute value. The result is kept in the filter for
+     * immutable types, so that matching the same filter repeatedly does
+     * not need to convert its operand reflectively each time. Operands
+     * of approximate filters have their white space removed already.
+     * @param lhs the attribute value.
+     * @param sf the filter whose operand is coerced.
+     * @return the coerced operand or <tt>null</tt> if it cannot be coerced.
+    **/
+    private static Object coerceOperand(Object lhs, SimpleFilter sf)
+    {
+        Class type = lhs.getClass();
+        Coercion coercion = (Coercion) sf.getCoercion();
+        if ((coercion != null) && (coercion.m_type == type))
+        {
+            return coercion.m_value;
+        }
+
+        Object rhs;
         try
         {
-            return lhs.equals(coerceType(lhs, (String) rhsUnknown));
+            rhs = coerceType(lhs, (String) sf.getValue());
         }
         catch (Exception ex)
         {
-            return false;
+            rhs = null;
+        }
+        if ((sf.getOperation() == SimpleFilter.APPROX) && (rhs instanceof String))
+        {
+            rhs = removeWhitespace((String) rhs);
         }
+
+        if (IMMUTABLE_TYPES.contains(type))
+        {
+            sf.setCoercion(new Coercion(type, rhs));
+        }
+        return rhs;
     }
 
     private static boolean compareApproximate(Object lhs, Object rhs)
     {
+        // String operands have their white space removed already.
         if (rhs instanceof String)
         {
-            return removeWhitespace((String) lhs)
-                .equalsIgnoreCase(removeWhitespace((String) rhs));
+            return removeWhitespace((String) lhs).equalsIgnoreCase((String) rhs);
         }
         else if (rhs instanceof Character)
         {
@@ -572,7 +663,7 @@ public class CapabilitySet
         return sb.toString();
     }
 
-    private static Object coerceType(Object lhs, String rhsString) throws Exception
+    static Object coerceType(Object lhs, String rhsString) throws Exception
     {
         // If the LHS expects a string, then we can just return
         // the RHS since it is a string.
@@ -649,7 +740,7 @@ public class CapabilitySet
      * @param array An array of primitive types.
      * @return An corresponding array using pritive wrapper objects.
     **/
-    private static List convertArrayToList(Object array)
+    static List convertArrayToList(Object array)
     {
         int len = Array.getLength(array);
         List list = new ArrayList(len);
@@ -659,4 +750,55 @@ public class CapabilitySet
         }
         return list;
     }
+
+    private static class Coercion
+    {
+        private final Class m_type;
+        private final Object m_value;
+
+        Coercion(Class type, Object value)
+        {
+            m_type = type;
+            m_value = value;
+        }
+    }
+
+    /**
+     * A set backed by a <tt>ConcurrentHashMap</tt>, which may be iterated
+     * while it is being modified.
+    **/
+    private static class ConcurrentSet<T> extends AbstractSet<T>
+    {
+        private final Map<T, Boolean> m_map = new ConcurrentHashMap<T, Boolean>();
+
+        @Override
+        public boolean add(T t)
+        {
+            return m_map.put(t, Boolean.TRUE) == null;
+        }
+
+        @Override
+        public boolean remove(Object o)
+        {
+            return m_map.remove(o) != null;
+        }
+
+        @Override
+        public boolean contains(Object o)
+        {
+            return m_map.containsKey(o);
+        }
+
+        @Override
+        public Iterator<T> iterator()
+        {
+            return m_map.keySet().iterator();
+        }
+
+        @Override
+        public int size()
+        {
+            return m_map.size();
+        }
+    }
 }
@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.resource.Capability;
+
+/**
+ * Composite index of capabilities by the value of a key attribute and,
+ * for each key value, by the sorted values of a range attribute. This
+ * turns filters like
+ * <tt>(&(osgi.wiring.package=foo)(version>=1.0.0)(!(version>=2.0.0)))</tt>
+ * into a range query over the versions of package <tt>foo</tt>. Range
+ * values that cannot be sorted together with the others, for example
+ * because they are of a different type, are always returned as
+ * candidates. The entry of a key value is copied on write, so the index
+ * may be read while it is being updated.
+**/
+class RangeIndex
+{
+    private final String m_keyAttr;
+    private final String m_rangeAttr;
+    private final boolean m_caseSensitive;
+    private final Map<Object, Entry> m_entries =
+        new ConcurrentHashMap<Object, Entry>();
+
+    RangeIndex(String keyAttr, String rangeAttr, boolean caseSensitive)
+    {
+        m_keyAttr = keyAttr;
+        m_rangeAttr = rangeAttr;
+        m_caseSensitive = caseSensitive;
+    }
+
+    String getKeyAttribute()
+    {
+        return m_keyAttr;
+    }
+
+    void addCapability(BundleCapability cap)
+    {
+        Object range = cap.getAttributes().get(m_rangeAttr);
+        for (Object key : getKeys(cap))
+        {
+            Entry entry = m_entries.get(key);
+            m_entries.put(key, (entry == null)
+                ? new Entry().add(cap, range)
+                : entry.copy().add(cap, range));
+        }
+    }
+
+    void removeCapability(BundleCapability cap)
+    {
+        Object range = cap.getAttributes().get(m_rangeAttr);
+        for (Object key : getKeys(cap))
+        {
+            Entry entry = m_entries.get(key);
+            if (entry != null)
+            {
+                entry = entry.copy().remove(cap, range);
+                if (entry.isEmpty())
+                {
+                    m_entries.remove(key);
+                }
+                else
+                {
+                    m_entries.put(key, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the capabilities that may match the specified conjunction,
+     * which is a superset of the actual matches, or <tt>null</tt> if the
+     * filter does not select a key value and restrict the range attribute.
+     * @param sf an <tt>AND</tt> filter.
+     * @return the candidate capabilities or <tt>null</tt>.
+    **/
+    Set<Capability> getCandidates(SimpleFilter sf)
+    {
+        Object key = null;
+        Object lower = null;
+        Object upper = null;
+        for (SimpleFilter child : (List<SimpleFilter>) sf.getValue())
+        {
+            if ((child.getOperation() == SimpleFilter.EQ)
+                && isAttribute(child, m_keyAttr))
+            {
+                key = child.getValue();
+            }
+            else if ((child.getOperation() == SimpleFilter.GTE)
+                && isAttribute(child, m_rangeAttr))
+            {
+                lower = child;
+            }
+            else if ((child.getOperation() == SimpleFilter.LTE)
+                && isAttribute(child, m_rangeAttr))
+            {
+                upper = child;
+            }
+            else if ((child.getOperation() == SimpleFilter.NOT)
+                && (((List) child.getValue()).size() == 1))
+            {
+                // A negated bound bounds the other side, which we treat as
+                // inclusive, since candidates may be a superset.
+                SimpleFilter negated =
+                    (SimpleFilter) ((List) child.getValue()).get(0);
+                if ((negated.getOperation() == SimpleFilter.GTE)
+                    && isAttribute(negated, m_rangeAttr))
+                {
+                    upper = negated;
+                }
+                else if ((negated.getOperation() == SimpleFilter.LTE)
+                    && isAttribute(negated, m_rangeAttr))
+                {
+                    lower = negated;
+                }
+            }
+        }
+
+        if ((key == null) || ((lower == null) && (upper == null)))
+        {
+            return null;
+        }
+
+        Set<Capability> candidates = new HashSet<Capability>();
+        Entry entry = m_entries.get(key);
+        if (entry != null)
+        {
+            entry.getCandidates(candidates,
+                entry.coerce((SimpleFilter) lower), entry.coerce((SimpleFilter) upper));
+        }
+        return candidates;
+    }
+
+    private boolean isAttribute(SimpleFilter sf, String attr)
+    {
+        return m_caseSensitive
+            ? attr.equals(sf.getName())
+            : attr.equalsIgnoreCase(sf.getName());
+    }
+
+    private Collection<Object> getKeys(BundleCapability cap)
+    {
+        Object value = cap.getAttributes().get(m_keyAttr);
+        Collection<Object> keys = new HashSet<Object>();
+        if (value != null)
+        {
+            if (value.getClass().isArray())
+            {
+                value = CapabilitySet.convertArrayToList(value);
+            }
+            if (value instanceof Collection)
+            {
+                keys.addAll((Collection) value);
+            }
+            else
+            {
+                keys.add(value);
+            }
+        }
+        return keys;
+    }
+
+    private static class Entry
+    {
+        // Capabilities by their range value, all of which are of one type.
+        private final TreeMap<Object, Set<BundleCapability>> m_sorted;
+        // Capabilities whose range value is missing or of another type.
+        private final Set<BundleCapability> m_unsorted;
+
+        Entry()
+        {
+            m_sorted = new TreeMap<Object, Set<BundleCapability>>();
+            m_unsorted = new HashSet<BundleCapability>();
+        }
+
+        private Entry(Entry entry)
+        {
+            m_sorted = new TreeMap<Object, Set<BundleCapability>>(entry.m_sorted);
+            m_unsorted = new HashSet<BundleCapability>(entry.m_unsorted);
+        }
+
+        Entry copy()
+        {
+            return new Entry(this);
+        }
+
+        boolean isEmpty()
+        {
+            return m_sorted.isEmpty() && m_unsorted.isEmpty();
+        }
+
+        Entry add(BundleCapability cap, Object range)
+        {
+            if (isSortable(range))
+            {
+                Set<BundleCapability> caps = m_sorted.get(range);
+                caps = (caps == null)
+                    ? new HashSet<BundleCapability>()
+                    : new HashSet<BundleCapability>(caps);
+                caps.add(cap);
+                m_sorted.put(range, caps);
+            }
+            else
+            {
+                m_unsorted.add(cap);
+            }
+            return this;
+        }
+
+        Entry remove(BundleCapability cap, Object range)
+        {
+            if (isSortable(range))
+            {
+                Set<BundleCapability> caps = m_sorted.get(range);
+                if (caps != null)
+                {
+                    caps = new HashSet<BundleCapability>(caps);
+                    caps.remove(cap);
+                    if (caps.isEmpty())
+                    {
+                        m_sorted.remove(range);
+                    }
+                    else
+                    {
+                        m_sorted.put(range, caps);
+                    }
+                }
+            }
+            m_unsorted.remove(cap);
+            return this;
+        }
+
+        private boolean isSortable(Object range)
+        {
+            return (range instanceof Comparable)
+                && (m_sorted.isEmpty()
+                    || (m_sorted.firstKey().getClass() == range.getClass()));
+        }
+
+        /**
+         * Coerces the operand of the specified bound to the type of the
+         * sorted range values, which is how the filter compares them.
+        **/
+        Object coerce(SimpleFilter bound)
+        {
+            if ((bound == null) || m_sorted.isEmpty()
+                || !(bound.getValue() instanceof String))
+            {
+                return null;
+            }
+            Object sample = m_sorted.firstKey();
+            try
+            {
+                Object value = CapabilitySet.coerceType(sample, (String) bound.getValue());
+                return (value.getClass() == sample.getClass()) ? value : null;
+            }
+            catch (Exception ex)
+            {
+                return null;
+            }
+        }
+
+        void getCandidates(Set<Capability> candidates, Object lower, Object upper)
+        {
+            candidates.addAll(m_unsorted);
+            Map<Object, Set<BundleCapability>> sorted =
+                (lower == null) ? m_sorted : m_sorted.tailMap(lower);
+            for (Map.Entry<Object, Set<BundleCapability>> entry : sorted.entrySet())
+            {
+                if ((upper != null) && (((Comparable) entry.getKey()).compareTo(upper) > 0))
+                {
+                    break;
+                }
+                candidates.addAll(entry.getValue());
+            }
+        }
+    }
+}
@@ -19,9 +19,11 @@
 package org.apache.felix.framework.capabilityset;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.felix.framework.util.VersionRange;
 
 public class SimpleFilter
@@ -37,9 +39,17 @@ public class SimpleFilter
     public static final int PRESENT = 8;
     public static final int APPROX = 9;
 
+    // Maximum number of parsed filters kept by parseCached().
+    private static final int CACHE_SIZE = 1024;
+    private static final Map<String, SimpleFilter> m_cache =
+        new ConcurrentHashMap<String, SimpleFilter>();
+
     private final String m_name;
     private final Object m_value;
     private final int m_op;
+    // The operand coerced to the type of the attribute it was last
+    // compared to, maintained by CapabilitySet.
+    private volatile Object m_coercion;
 
     public SimpleFilter(String attr, Object value, int op)
     {
@@ -155,6 +165,45 @@ public class SimpleFilter
         return o.toString();
     }
 
+    /**
+     * Parses the specified filter like <tt>parse()</tt>, but returns the
+     * same filter instance for repeatedly parsed filter strings. Filters
+     * returned by this method must not be modified.
+     * @param filter the filter string to parse.
+     * @return the parsed filter.
+    **/
+    public static SimpleFilter parseCached(String filter)
+    {
+        SimpleFilter sf = m_cache.get(filter);
+        if (sf == null)
+        {
+            sf = parse(filter);
+            // Bound the cache by evicting an arbitrary filter, which is
+            // cheaper than keeping track of the least recently used one.
+            if (m_cache.size() >= CACHE_SIZE)
+            {
+                Iterator<String> it = m_cache.keySet().iterator();
+                if (it.hasNext())
+                {
+                    it.next();
+                    it.remove();
+                }
+            }
+            m_cache.put(filter, sf);
+        }
+        return sf;
+    }
+
+    Object getCoercion()
+    {
+        return m_coercion;
+    }
+
+    void setCoercion(Object coercion)
+    {
+        m_coercion = coercion;
+    }
+
     public static SimpleFilter parse(String filter)
     {
         int idx = skipWhitespace(filter, 0);
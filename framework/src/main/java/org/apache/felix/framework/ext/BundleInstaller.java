@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.ext;
+
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+
+/**
+ * Felix-specific service, registered by the system bundle, for installing
+ * and uninstalling many bundles at once, for example when provisioning a
+ * framework.
+**/
+public interface BundleInstaller
+{
+    /**
+     * Installs the specified bundles. Their archives are created
+     * concurrently and the new bundles are installed together, so either
+     * all or none of them are installed. Locations that are already
+     * installed yield the existing bundle, as with
+     * <tt>BundleContext.installBundle()</tt>. All input streams are closed.
+     * @param bundles the input streams of the bundles by location; a
+     *        <tt>null</tt> stream means that the location is read.
+     * @return the bundles in the iteration order of the specified map.
+     * @throws BundleException if any of the bundles cannot be installed,
+     *         if two of them have the same symbolic name and version, or if
+     *         an existing bundle is hidden by a bundle find hook.
+    **/
+    List<Bundle> installBundles(Map<String, InputStream> bundles)
+        throws BundleException;
+
+    /**
+     * Uninstalls the specified bundles. Every bundle is uninstalled, even
+     * if uninstalling another one fails.
+     * @param bundles the bundles to uninstall.
+     * @throws BundleException if the first failure while uninstalling a
+     *         bundle was a bundle exception.
+     * @throws SecurityException if the first failure while uninstalling a
+     *         bundle was a missing permission.
+    **/
+    void uninstallBundles(Collection<Bundle> bundles) throws BundleException;
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.ext;
+
+import org.osgi.dto.DTO;
+
+/**
+ * Data Transfer Object for the metrics of a bundle. All times are in
+ * nanoseconds. Class loading metrics belong to the current wiring of the
+ * bundle, so they restart when the bundle is refreshed.
+ * @see FrameworkMetrics
+**/
+public class BundleMetricsDTO extends DTO
+{
+    /**
+     * The id of the bundle.
+    **/
+    public long id;
+
+    /**
+     * The number of class loads by the class loader of the bundle that
+     * were not answered from the classes it had already loaded.
+    **/
+    public long classLoads;
+
+    /**
+     * The total time spent loading those classes.
+    **/
+    public long classLoadTime;
+
+    /**
+     * The time spent the last time the bundle was started, or -1 if
+     * that was not measured.
+    **/
+    public long lastStartTime;
+
+    /**
+     * The time spent the last time the bundle was stopped, or -1 if
+     * that was not measured.
+    **/
+    public long lastStopTime;
+}
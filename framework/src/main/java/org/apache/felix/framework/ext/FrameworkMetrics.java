@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.ext;
+
+/**
+ * Felix-specific service, registered by the system bundle, exposing
+ * metrics of the hot paths of the framework, such as class loading,
+ * resolving, service lookups, event delivery and starting and stopping
+ * bundles. Metrics are only collected while they are enabled, which is
+ * initially the case if the <tt>felix.metrics</tt> configuration property
+ * is <tt>true</tt>. While disabled, collecting them costs a single
+ * volatile read per operation. The metrics are also available by adapting
+ * the system bundle to <tt>FrameworkMetricsDTO</tt> and any bundle to
+ * <tt>BundleMetricsDTO</tt>.
+**/
+public interface FrameworkMetrics
+{
+    /**
+     * Returns whether metrics are currently collected.
+     * @return <tt>true</tt> if metrics are collected.
+    **/
+    boolean isEnabled();
+
+    /**
+     * Enables or disables collecting metrics. Metrics collected so far
+     * are kept when disabling.
+     * @param enabled whether metrics should be collected.
+    **/
+    void setEnabled(boolean enabled);
+
+    /**
+     * Returns a snapshot of the metrics collected so far.
+     * @return the metrics of the framework and its bundles and listeners.
+    **/
+    FrameworkMetricsDTO getMetrics();
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.ext;
+
+import org.osgi.dto.DTO;
+
+/**
+ * Data Transfer Object for the metrics of a framework. All times are in
+ * nanoseconds. It can be obtained from the <tt>FrameworkMetrics</tt>
+ * service or by adapting the system bundle.
+ * @see FrameworkMetrics
+**/
+public class FrameworkMetricsDTO extends DTO
+{
+    /**
+     * Whether metrics are currently collected.
+    **/
+    public boolean enabled;
+
+    /**
+     * The number of resolve operations, including dynamic imports.
+    **/
+    public long resolves;
+
+    /**
+     * The number of resolve operations that failed.
+    **/
+    public long failedResolves;
+
+    /**
+     * The total time spent resolving.
+    **/
+    public long resolveTime;
+
+    /**
+     * The longest time spent in a single resolve operation.
+    **/
+    public long maxResolveTime;
+
+    /**
+     * The number of service reference lookups in the service registry.
+    **/
+    public long serviceLookups;
+
+    /**
+     * The total time spent looking up service references.
+    **/
+    public long serviceLookupTime;
+
+    /**
+     * The number of times a thread getting or ungetting a service had to
+     * wait for another thread using the same service registration.
+    **/
+    public long serviceContentions;
+
+    /**
+     * The number of asynchronous events waiting to be delivered.
+    **/
+    public int eventQueueDepth;
+
+    /**
+     * The number of times a bundle was started.
+    **/
+    public long bundleStarts;
+
+    /**
+     * The total time spent starting bundles.
+    **/
+    public long bundleStartTime;
+
+    /**
+     * The number of times a bundle was stopped.
+    **/
+    public long bundleStops;
+
+    /**
+     * The total time spent stopping bundles.
+    **/
+    public long bundleStopTime;
+
+    /**
+     * The metrics of the installed bundles.
+    **/
+    public BundleMetricsDTO[] bundles;
+
+    /**
+     * The metrics of the registered framework, bundle and service
+     * listeners that received events while metrics were collected.
+    **/
+    public ListenerMetricsDTO[] listeners;
+}
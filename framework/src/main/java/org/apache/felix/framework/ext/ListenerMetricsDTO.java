@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.ext;
+
+import org.osgi.dto.DTO;
+
+/**
+ * Data Transfer Object for the metrics of a framework, bundle or service
+ * listener. All times are in nanoseconds.
+ * @see FrameworkMetrics
+**/
+public class ListenerMetricsDTO extends DTO
+{
+    /**
+     * The id of the bundle that registered the listener.
+    **/
+    public long bundle;
+
+    /**
+     * The class name of the listener.
+    **/
+    public String listener;
+
+    /**
+     * The number of asynchronous events waiting to be delivered to the
+     * listener, if events are delivered to listeners concurrently.
+    **/
+    public int queueDepth;
+
+    /**
+     * The number of events dispatched to the listener, including those
+     * its filter did not match.
+    **/
+    public long callbacks;
+
+    /**
+     * The total time spent dispatching events to the listener, including
+     * matching its filter.
+    **/
+    public long callbackTime;
+
+    /**
+     * The longest time spent dispatching a single event to the listener.
+    **/
+    public long maxCallbackTime;
+}
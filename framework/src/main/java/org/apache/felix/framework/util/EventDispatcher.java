@@ -21,6 +21,7 @@ package org.apache.felix.framework.util;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Dictionary;
@@ -28,18 +29,33 @@ import java.util.EventListener;
 import java.util.EventObject;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ServiceRegistry;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.apache.felix.framework.ext.ListenerMetricsDTO;
 import org.osgi.framework.AllServiceListener;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkEvent;
 import org.osgi.framework.FrameworkListener;
@@ -65,6 +81,8 @@ public class EventDispatcher
         m_syncBndlListeners = Collections.EMPTY_MAP;
     private Map<BundleContext, List<ListenerInfo>>
         m_svcListeners = Collections.EMPTY_MAP;
+    // Lazily built index of the current service listener snapshot.
+    private volatile ServiceListenerIndex m_svcListenerIndex;
 
     // A single thread is used to deliver events for all dispatchers.
     private static Thread m_thread = null;
@@ -79,14 +97,51 @@ public class EventDispatcher
 
     private static final SecureAction m_secureAction = new SecureAction();
 
+    // Number of threads used to deliver asynchronous events of this
+    // dispatcher to different listeners concurrently; if not greater
+    // than one, the shared dispatch thread is used instead.
+    private final int m_threads;
+    private volatile ExecutorService m_executor = null;
+    // Whether the time spent dispatching events to each listener is measured.
+    private volatile boolean m_callbackTiming = false;
+
     public EventDispatcher(Logger logger, ServiceRegistry registry)
+    {
+        this(logger, registry, 1);
+    }
+
+    /**
+     * Creates an event dispatcher that delivers asynchronous events on a
+     * pool of the given number of threads if the number is greater than one.
+     * Events are still delivered to each listener in the order in which
+     * they were fired, but different listeners receive their events
+     * concurrently, so a slow listener only delays its own events.
+     * @param logger the logger.
+     * @param registry the service registry.
+     * @param threads the number of threads delivering asynchronous events.
+    **/
+    public EventDispatcher(Logger logger, ServiceRegistry registry, int threads)
     {
         m_logger = logger;
         m_registry = registry;
+        m_threads = threads;
     }
 
     public void startDispatching()
     {
+        if (m_threads > 1)
+        {
+            synchronized (this)
+            {
+                if (m_executor == null)
+                {
+                    m_executor = Executors.newFixedThreadPool(
+                        m_threads, new DispatchThreadFactory());
+                }
+            }
+            return;
+        }
+
         synchronized (m_threadLock)
         {
             // Start event dispatching thread if necessary.
@@ -125,6 +180,35 @@ public class EventDispatcher
 
     public void stopDispatching()
     {
+        if (m_threads > 1)
+        {
+            ExecutorService executor;
+            synchronized (this)
+            {
+                executor = m_executor;
+                m_executor = null;
+            }
+            if (executor != null)
+            {
+                // Deliver the events that are already queued, but no
+                // longer accept new ones.
+                executor.shutdown();
+                boolean terminated = false;
+                while (!terminated)
+                {
+                    try
+                    {
+                        terminated = executor.awaitTermination(
+                            Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                    }
+                    catch (InterruptedException ex)
+                    {
+                    }
+                }
+            }
+            return;
+        }
+
         synchronized (m_threadLock)
         {
             // Return if already dead or stopping.
@@ -456,6 +540,124 @@ public class EventDispatcher
         return listeners;
     }
 
+    /**
+     * Returns delivery statistics for the framework and asynchronous bundle
+     * listeners of this dispatcher. Statistics are only collected if events
+     * are delivered to different listeners concurrently; otherwise the
+     * returned list is empty.
+     * @return the statistics of each listener that received events.
+    **/
+    public List<ListenerStatistics> getListenerStatistics()
+    {
+        List<ListenerStatistics> stats = new ArrayList<ListenerStatistics>();
+        if (m_threads > 1)
+        {
+            Map<BundleContext, List<ListenerInfo>> fwkListeners;
+            Map<BundleContext, List<ListenerInfo>> bndlListeners;
+            synchronized (this)
+            {
+                fwkListeners = m_fwkListeners;
+                bndlListeners = m_bndlListeners;
+            }
+            addListenerStatistics(fwkListeners, stats);
+            addListenerStatistics(bndlListeners, stats);
+        }
+        return stats;
+    }
+
+    private static void addListenerStatistics(
+        Map<BundleContext, List<ListenerInfo>> listeners,
+        List<ListenerStatistics> stats)
+    {
+        for (List<ListenerInfo> infos : listeners.values())
+        {
+            for (ListenerInfo info : infos)
+            {
+                ListenerQueue queue = info.getEventQueue();
+                if (queue != null)
+                {
+                    stats.add(queue.getStatistics());
+                }
+            }
+        }
+    }
+
+    /**
+     * Enables or disables measuring the time spent dispatching events to
+     * each listener, which is reported by <tt>getListenerMetrics()</tt>.
+     * @param enabled whether dispatching should be timed.
+    **/
+    public void setCallbackTiming(boolean enabled)
+    {
+        m_callbackTiming = enabled;
+    }
+
+    /**
+     * Returns the number of asynchronous events waiting to be delivered.
+     * If events are not delivered to different listeners concurrently,
+     * this includes the events of all dispatchers sharing the dispatch
+     * thread.
+     * @return the number of pending asynchronous events.
+    **/
+    public int getQueueDepth()
+    {
+        if (m_threads > 1)
+        {
+            int depth = 0;
+            for (ListenerStatistics stats : getListenerStatistics())
+            {
+                depth += stats.getQueueDepth();
+            }
+            return depth;
+        }
+        synchronized (m_requestList)
+        {
+            return m_requestList.size();
+        }
+    }
+
+    /**
+     * Returns the metrics of all listeners of this dispatcher that had
+     * events dispatched to them while dispatching was timed.
+     * @return the metrics of each timed listener.
+    **/
+    public List<ListenerMetricsDTO> getListenerMetrics()
+    {
+        List<ListenerMetricsDTO> metrics = new ArrayList<ListenerMetricsDTO>();
+        List<Map<BundleContext, List<ListenerInfo>>> listeners =
+            new ArrayList<Map<BundleContext, List<ListenerInfo>>>(4);
+        synchronized (this)
+        {
+            listeners.add(m_fwkListeners);
+            listeners.add(m_bndlListeners);
+            listeners.add(m_syncBndlListeners);
+            listeners.add(m_svcListeners);
+        }
+        for (Map<BundleContext, List<ListenerInfo>> map : listeners)
+        {
+            for (List<ListenerInfo> infos : map.values())
+            {
+                for (ListenerInfo info : infos)
+                {
+                    CallbackTiming timing = info.getCallbackTiming();
+                    if (timing != null)
+                    {
+                        ListenerMetricsDTO dto = new ListenerMetricsDTO();
+                        dto.bundle = info.getBundle().getBundleId();
+                        dto.listener = info.getListener().getClass().getName();
+                        ListenerQueue queue = info.getEventQueue();
+                        dto.queueDepth = (queue == null) ? 0 : queue.m_depth.get();
+                        dto.callbacks = timing.m_callbacks.get();
+                        dto.callbackTime = timing.m_totalTime.get();
+                        dto.maxCallbackTime = timing.m_maxTime.get();
+                        metrics.add(dto);
+                    }
+                }
+            }
+        }
+        return metrics;
+    }
+
     public void fireFrameworkEvent(FrameworkEvent event)
     {
         // Take a snapshot of the listener array.
@@ -514,7 +716,7 @@ public class EventDispatcher
 
         // Fire synchronous bundle listeners immediately on the calling thread.
         fireEventImmediately(
-            this, Request.BUNDLE_EVENT, syncListeners, event, null);
+            this, Request.BUNDLE_EVENT, syncListeners, event, null, null);
 
         // The spec says that asynchronous bundle listeners do not get events
         // of types STARTING, STOPPING, or LAZY_ACTIVATION.
@@ -538,12 +740,32 @@ public class EventDispatcher
             listeners = m_svcListeners;
         }
 
-        // Use service registry hooks to filter target listeners.
+        // Get the index of the snapshot, rebuilding it if the listeners
+        // changed since it was last used.
+        ServiceListenerIndex index = m_svcListenerIndex;
+        if ((index == null) || (index.getListeners() != listeners))
+        {
+            index = new ServiceListenerIndex(listeners);
+            m_svcListenerIndex = index;
+        }
+
+        // Use service registry hooks to filter target listeners. Hooks
+        // still see all listeners, not only the candidates.
         listeners = filterListenersUsingHooks(event, felix, listeners);
 
+        // Only deliver the event to listeners whose filter could match
+        // the object class of the service.
+        listeners = index.getCandidates(listeners, event, oldProps);
+
+        // The permission to get the service does not depend on the listener,
+        // so it is created once per event rather than once per listener.
+        ServicePermission perm = (System.getSecurityManager() != null)
+            ? new ServicePermission(event.getServiceReference(), ServicePermission.GET)
+            : null;
+
         // Fire all service events immediately on the calling thread.
         fireEventImmediately(
-            this, Request.SERVICE_EVENT, listeners, event, oldProps);
+            this, Request.SERVICE_EVENT, listeners, event, oldProps, perm);
     }
 
 // TODO: OSGi R4.3 - This is ugly and inefficient.
@@ -769,6 +991,25 @@ public class EventDispatcher
         Map<BundleContext, List<ListenerInfo>> listeners,
         EventObject event)
     {
+        // If events are delivered concurrently, then queue the event
+        // for each listener separately.
+        if (dispatcher.m_threads > 1)
+        {
+            ExecutorService executor = dispatcher.m_executor;
+            if (executor != null)
+            {
+                for (List<ListenerInfo> infos : listeners.values())
+                {
+                    for (ListenerInfo info : infos)
+                    {
+                        info.getOrCreateEventQueue(dispatcher)
+                            .add(executor, type, event);
+                    }
+                }
+            }
+            return;
+        }
+
         //TODO: should possibly check this within thread lock, seems to be ok though without
         // If dispatch thread is stopped, then ignore dispatch request.
         if (m_stopping || m_thread == null)
@@ -809,7 +1050,7 @@ public class EventDispatcher
     private static void fireEventImmediately(
         EventDispatcher dispatcher, int type,
         Map<BundleContext, List<ListenerInfo>> listeners,
-        EventObject event, Dictionary oldProps)
+        EventObject event, Dictionary oldProps, ServicePermission perm)
     {
         if (!listeners.isEmpty())
         {
@@ -818,44 +1059,57 @@ public class EventDispatcher
             {
                 for (ListenerInfo info : entry.getValue())
                 {
-                    Bundle bundle = info.getBundle();
-                    EventListener l = info.getListener();
-                    Filter filter = info.getParsedFilter();
-                    Object acc = info.getSecurityContext();
-
-                    try
-                    {
-                        if (type == Request.FRAMEWORK_EVENT)
-                        {
-                            invokeFrameworkListenerCallback(bundle, l, event);
-                        }
-                        else if (type == Request.BUNDLE_EVENT)
-                        {
-                            invokeBundleListenerCallback(bundle, l, event);
-                        }
-                        else if (type == Request.SERVICE_EVENT)
-                        {
-                            invokeServiceListenerCallback(
-                                bundle, l, filter, acc, event, oldProps);
-                        }
-                    }
-                    catch (Throwable th)
-                    {
-                        if ((type != Request.FRAMEWORK_EVENT)
-                            || (((FrameworkEvent) event).getType() != FrameworkEvent.ERROR))
-                        {
-                            dispatcher.m_logger.log(bundle,
-                                Logger.LOG_ERROR,
-                                "EventDispatcher: Error during dispatch.", th);
-                            dispatcher.fireFrameworkEvent(
-                                new FrameworkEvent(FrameworkEvent.ERROR, bundle, th));
-                        }
-                    }
+                    invokeListener(dispatcher, type, info, event, oldProps, perm);
                 }
             }
         }
     }
 
+    private static void invokeListener(
+        EventDispatcher dispatcher, int type, ListenerInfo info,
+        EventObject event, Dictionary oldProps, ServicePermission perm)
+    {
+        Bundle bundle = info.getBundle();
+        EventListener l = info.getListener();
+        Filter filter = info.getParsedFilter();
+        Object acc = info.getSecurityContext();
+
+        boolean timed = dispatcher.m_callbackTiming;
+        long start = (timed) ? System.nanoTime() : 0;
+        try
+        {
+            if (type == Request.FRAMEWORK_EVENT)
+            {
+                invokeFrameworkListenerCallback(bundle, l, event);
+            }
+            else if (type == Request.BUNDLE_EVENT)
+            {
+                invokeBundleListenerCallback(bundle, l, event);
+            }
+            else if (type == Request.SERVICE_EVENT)
+            {
+                invokeServiceListenerCallback(
+                    bundle, l, filter, acc, event, oldProps, perm);
+            }
+        }
+        catch (Throwable th)
+        {
+            if ((type != Request.FRAMEWORK_EVENT)
+                || (((FrameworkEvent) event).getType() != FrameworkEvent.ERROR))
+            {
+                dispatcher.m_logger.log(bundle,
+                    Logger.LOG_ERROR,
+                    "EventDispatcher: Error during dispatch.", th);
+                dispatcher.fireFrameworkEvent(
+                    new FrameworkEvent(FrameworkEvent.ERROR, bundle, th));
+            }
+        }
+        if (timed)
+        {
+            info.getOrCreateCallbackTiming().add(System.nanoTime() - start);
+        }
+    }
+
     private static void invokeFrameworkListenerCallback(
         Bundle bundle, final EventListener l, final EventObject event)
     {
@@ -917,7 +1171,8 @@ public class EventDispatcher
 
     private static void invokeServiceListenerCallback(
         Bundle bundle, final EventListener l, Filter filter, Object acc,
-        final EventObject event, final Dictionary oldProps)
+        final EventObject event, final Dictionary oldProps,
+        ServicePermission perm)
     {
         // Service events should be delivered to STARTING,
         // STOPPING, and ACTIVE bundles.
@@ -931,17 +1186,18 @@ public class EventDispatcher
         // Check that the bundle has permission to get at least
         // one of the service interfaces; the objectClass property
         // of the service stores its service interfaces.
-        ServiceReference ref = ((ServiceEvent) event).getServiceReference();
-
         boolean hasPermission = true;
         Object sm = System.getSecurityManager();
         if ((acc != null) && (sm != null))
         {
             try
             {
-                ServicePermission perm =
-                    new ServicePermission(
-                        ref, ServicePermission.GET);
+                if (perm == null)
+                {
+                    perm = new ServicePermission(
+                        ((ServiceEvent) event).getServiceReference(),
+                        ServicePermission.GET);
+                }
                 ((SecurityManager) sm).checkPermission(perm, acc);
             }
             catch (Exception ex)
@@ -1142,7 +1398,7 @@ public class EventDispatcher
             // catching Throwables when it invokes callbacks.
             fireEventImmediately(
                 req.m_dispatcher, req.m_type, req.m_listeners,
-                req.m_event, null);
+                req.m_event, null, null);
 
             // Put dispatch request in cache.
             synchronized (m_requestPool)
@@ -1156,6 +1412,454 @@ public class EventDispatcher
         }
     }
 
+    /**
+     * Index of the service listeners of one listener map snapshot by the
+     * object classes their filters require. A listener whose filter only
+     * matches services carrying one of a fixed set of object classes is
+     * only a candidate for events of such services; all other listeners
+     * are candidates for every event. Listeners are numbered in the
+     * iteration order of the snapshot, so that candidates are delivered
+     * in the same order as with a full scan.
+    **/
+    static class ServiceListenerIndex
+    {
+        private final Map<BundleContext, List<ListenerInfo>> m_listeners;
+        private final ListenerInfo[] m_infos;
+        private final Map<String, int[]> m_byObjectClass;
+        private final int[] m_unindexed;
+
+        ServiceListenerIndex(Map<BundleContext, List<ListenerInfo>> listeners)
+        {
+            m_listeners = listeners;
+
+            List<ListenerInfo> infos = new ArrayList<ListenerInfo>();
+            for (List<ListenerInfo> list : listeners.values())
+            {
+                infos.addAll(list);
+            }
+            m_infos = infos.toArray(new ListenerInfo[infos.size()]);
+
+            Map<String, List<Integer>> byObjectClass =
+                new HashMap<String, List<Integer>>();
+            List<Integer> unindexed = new ArrayList<Integer>();
+            for (int i = 0; i < m_infos.length; i++)
+            {
+                String[] objectClasses = m_infos[i].getFilterObjectClasses();
+                if (objectClasses == null)
+                {
+                    unindexed.add(i);
+                }
+                else
+                {
+                    for (String objectClass : objectClasses)
+                    {
+                        List<Integer> positions = byObjectClass.get(objectClass);
+                        if (positions == null)
+                        {
+                            positions = new ArrayList<Integer>();
+                            byObjectClass.put(objectClass, positions);
+                        }
+                        positions.add(i);
+                    }
+                }
+            }
+            m_byObjectClass = new HashMap<String, int[]>(byObjectClass.size());
+            for (Entry<String, List<Integer>> entry : byObjectClass.entrySet())
+            {
+                m_byObjectClass.put(entry.getKey(), toArray(entry.getValue()));
+            }
+            m_unindexed = toArray(unindexed);
+        }
+
+        Map<BundleContext, List<ListenerInfo>> getListeners()
+        {
+            return m_listeners;
+        }
+
+        /**
+         * Returns the listeners of the given map that may match the given
+         * event, keeping the order of the map. The map is either the
+         * snapshot of this index or a subset of it created by hooks.
+        **/
+        Map<BundleContext, List<ListenerInfo>> getCandidates(
+            Map<BundleContext, List<ListenerInfo>> listeners,
+            ServiceEvent event, Dictionary oldProps)
+        {
+            if (m_unindexed.length == m_infos.length)
+            {
+                return listeners;
+            }
+
+            BitSet candidates = new BitSet(m_infos.length);
+            mark(candidates, m_unindexed);
+            mark(candidates,
+                event.getServiceReference().getProperty(Constants.OBJECTCLASS));
+            if (oldProps != null)
+            {
+                mark(candidates, oldProps.get(Constants.OBJECTCLASS));
+            }
+
+            Map<BundleContext, List<ListenerInfo>> result =
+                new LinkedHashMap<BundleContext, List<ListenerInfo>>();
+            if (listeners == m_listeners)
+            {
+                for (int i = candidates.nextSetBit(0); i >= 0;
+                    i = candidates.nextSetBit(i + 1))
+                {
+                    add(result, m_infos[i]);
+                }
+            }
+            else
+            {
+                Map<ListenerInfo, ListenerInfo> selected =
+                    new IdentityHashMap<ListenerInfo, ListenerInfo>();
+                for (int i = candidates.nextSetBit(0); i >= 0;
+                    i = candidates.nextSetBit(i + 1))
+                {
+                    selected.put(m_infos[i], m_infos[i]);
+                }
+                for (List<ListenerInfo> list : listeners.values())
+                {
+                    for (ListenerInfo info : list)
+                    {
+                        if (selected.containsKey(info))
+                        {
+                            add(result, info);
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+
+        private void mark(BitSet candidates, Object objectClass)
+        {
+            if (objectClass instanceof String[])
+            {
+                for (String s : (String[]) objectClass)
+                {
+                    mark(candidates, m_byObjectClass.get(s));
+                }
+            }
+            else if (objectClass instanceof String)
+            {
+                mark(candidates, m_byObjectClass.get(objectClass));
+            }
+        }
+
+        private static void mark(BitSet candidates, int[] positions)
+        {
+            if (positions != null)
+            {
+                for (int i : positions)
+                {
+                    candidates.set(i);
+                }
+            }
+        }
+
+        private static void add(
+            Map<BundleContext, List<ListenerInfo>> result, ListenerInfo info)
+        {
+            List<ListenerInfo> infos = result.get(info.getBundleContext());
+            if (infos == null)
+            {
+                infos = new ArrayList<ListenerInfo>();
+                result.put(info.getBundleContext(), infos);
+            }
+            infos.add(info);
+        }
+
+        private static int[] toArray(List<Integer> list)
+        {
+            int[] array = new int[list.size()];
+            for (int i = 0; i < array.length; i++)
+            {
+                array[i] = list.get(i);
+            }
+            return array;
+        }
+
+        /**
+         * Returns the object classes of which a service must carry at least
+         * one to match the filter of the given listener, or <tt>null</tt> if
+         * the listener may match services of any object class.
+        **/
+        static String[] getObjectClasses(EventListener listener, Filter filter)
+        {
+            // An UnfilteredServiceListener sees all events, regardless
+            // of its filter.
+            if ((filter == null) || (listener instanceof UnfilteredServiceListener))
+            {
+                return null;
+            }
+            try
+            {
+                Set<String> objectClasses =
+                    getObjectClasses(SimpleFilter.parse(filter.toString()));
+                return (objectClasses == null)
+                    ? null
+                    : objectClasses.toArray(new String[objectClasses.size()]);
+            }
+            catch (Exception ex)
+            {
+                return null;
+            }
+        }
+
+        private static Set<String> getObjectClasses(SimpleFilter sf)
+        {
+            switch (sf.getOperation())
+            {
+                case SimpleFilter.EQ:
+                    // Leave values with surrounding white space to the
+                    // filter, since parsers may differ in trimming them.
+                    if (Constants.OBJECTCLASS.equalsIgnoreCase(sf.getName())
+                        && (sf.getValue() instanceof String)
+                        && ((String) sf.getValue()).trim().equals(sf.getValue()))
+                    {
+                        return Collections.singleton((String) sf.getValue());
+                    }
+                    return null;
+                case SimpleFilter.AND:
+                    // Any operand restricting the object class will do, so
+                    // pick the most selective one.
+                    Set<String> smallest = null;
+                    for (SimpleFilter child : (List<SimpleFilter>) sf.getValue())
+                    {
+                        Set<String> objectClasses = getObjectClasses(child);
+                        if ((objectClasses != null)
+                            && ((smallest == null)
+                                || (objectClasses.size() < smallest.size())))
+                        {
+                            smallest = objectClasses;
+                        }
+                    }
+                    return smallest;
+                case SimpleFilter.OR:
+                    // Every operand must restrict the object class.
+                    Set<String> union = new HashSet<String>();
+                    for (SimpleFilter child : (List<SimpleFilter>) sf.getValue())
+                    {
+                        Set<String> objectClasses = getObjectClasses(child);
+                        if (objectClasses == null)
+                        {
+                            return null;
+                        }
+                        union.addAll(objectClasses);
+                    }
+                    return union.isEmpty() ? null : union;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * Pending asynchronous events of a single listener. At most one pool
+     * thread delivers the events of a queue at any time, which keeps the
+     * events of each listener in order while different listeners receive
+     * their events concurrently.
+    **/
+    static class ListenerQueue implements Runnable
+    {
+        private final EventDispatcher m_dispatcher;
+        private final ListenerInfo m_info;
+        private final Queue<QueuedEvent> m_events =
+            new ConcurrentLinkedQueue<QueuedEvent>();
+        private final AtomicInteger m_depth = new AtomicInteger();
+        private final AtomicBoolean m_scheduled = new AtomicBoolean();
+        private final AtomicLong m_delivered = new AtomicLong();
+        private final AtomicLong m_totalLatency = new AtomicLong();
+        private final AtomicLong m_maxLatency = new AtomicLong();
+
+        ListenerQueue(EventDispatcher dispatcher, ListenerInfo info)
+        {
+            m_dispatcher = dispatcher;
+            m_info = info;
+        }
+
+        void add(ExecutorService executor, int type, EventObject event)
+        {
+            m_events.add(new QueuedEvent(type, event, System.nanoTime()));
+            m_depth.incrementAndGet();
+            if (m_scheduled.compareAndSet(false, true))
+            {
+                try
+                {
+                    executor.execute(this);
+                }
+                catch (RejectedExecutionException ex)
+                {
+                    // The dispatcher is stopping, so the event is dropped
+                    // just like events fired after the dispatch thread stopped.
+                    m_scheduled.set(false);
+                }
+            }
+        }
+
+        public void run()
+        {
+            while (true)
+            {
+                QueuedEvent qe;
+                while ((qe = m_events.poll()) != null)
+                {
+                    m_depth.decrementAndGet();
+                    // NOTE: We don't catch any exceptions here, because
+                    // the invoked method shields us from exceptions by
+                    // catching Throwables when it invokes callbacks.
+                    invokeListener(m_dispatcher, qe.m_type, m_info, qe.m_event, null, null);
+
+                    long latency = System.nanoTime() - qe.m_queued;
+                    m_delivered.incrementAndGet();
+                    m_totalLatency.addAndGet(latency);
+                    long max = m_maxLatency.get();
+                    while ((latency > max) && !m_maxLatency.compareAndSet(max, latency))
+                    {
+                        max = m_maxLatency.get();
+                    }
+                }
+
+                // Events added after the last poll but before the queue is
+                // unscheduled must be delivered by this thread, unless another
+                // thread already scheduled the queue again.
+                m_scheduled.set(false);
+                if (m_events.isEmpty() || !m_scheduled.compareAndSet(false, true))
+                {
+                    return;
+                }
+            }
+        }
+
+        ListenerStatistics getStatistics()
+        {
+            return new ListenerStatistics(
+                m_info.getBundle(), m_info.getListener(), m_depth.get(),
+                m_delivered.get(), m_totalLatency.get(), m_maxLatency.get());
+        }
+    }
+
+    /**
+     * Snapshot of the asynchronous event delivery statistics of a listener.
+    **/
+    public static class ListenerStatistics
+    {
+        private final Bundle m_bundle;
+        private final EventListener m_listener;
+        private final int m_queueDepth;
+        private final long m_delivered;
+        private final long m_totalLatency;
+        private final long m_maxLatency;
+
+        ListenerStatistics(
+            Bundle bundle, EventListener listener, int queueDepth,
+            long delivered, long totalLatency, long maxLatency)
+        {
+            m_bundle = bundle;
+            m_listener = listener;
+            m_queueDepth = queueDepth;
+            m_delivered = delivered;
+            m_totalLatency = totalLatency;
+            m_maxLatency = maxLatency;
+        }
+
+        /**
+         * Returns the bundle that registered the listener.
+        **/
+        public Bundle getBundle()
+        {
+            return m_bundle;
+        }
+
+        public EventListener getListener()
+        {
+            return m_listener;
+        }
+
+        /**
+         * Returns the number of events waiting to be delivered to the listener.
+        **/
+        public int getQueueDepth()
+        {
+            return m_queueDepth;
+        }
+
+        /**
+         * Returns the number of events delivered to the listener.
+        **/
+        public long getDeliveredEvents()
+        {
+            return m_delivered;
+        }
+
+        /**
+         * Returns the average time in nanoseconds between firing an event
+         * and the listener returning from its callback.
+        **/
+        public long getAverageLatency()
+        {
+            return (m_delivered == 0) ? 0 : m_totalLatency / m_delivered;
+        }
+
+        /**
+         * Returns the longest time in nanoseconds between firing an event
+         * and the listener returning from its callback.
+        **/
+        public long getMaxLatency()
+        {
+            return m_maxLatency;
+        }
+    }
+
+    /**
+     * Time spent dispatching events to a single listener, which is only
+     * measured while callback timing is enabled.
+    **/
+    static class CallbackTiming
+    {
+        private final AtomicLong m_callbacks = new AtomicLong();
+        private final AtomicLong m_totalTime = new AtomicLong();
+        private final AtomicLong m_maxTime = new AtomicLong();
+
+        void add(long time)
+        {
+            m_callbacks.incrementAndGet();
+            m_totalTime.addAndGet(time);
+            long max = m_maxTime.get();
+            while ((time > max) && !m_maxTime.compareAndSet(max, time))
+            {
+                max = m_maxTime.get();
+            }
+        }
+    }
+
+    private static class QueuedEvent
+    {
+        private final int m_type;
+        private final EventObject m_event;
+        private final long m_queued;
+
+        QueuedEvent(int type, EventObject event, long queued)
+        {
+            m_type = type;
+            m_event = event;
+            m_queued = queued;
+        }
+    }
+
+    private static class DispatchThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "FelixDispatchQueue-" + m_count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
     private static class Request
     {
         public static final int FRAMEWORK_EVENT = 0;
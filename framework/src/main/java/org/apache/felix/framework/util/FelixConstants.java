@@ -47,12 +47,20 @@ public interface FelixConstants extends org.osgi.framework.Constants
     String LOG_LOGGER_PROP = "felix.log.logger";
     String SYSTEMBUNDLE_ACTIVATORS_PROP = "felix.systembundle.activators";
     String BUNDLE_STARTLEVEL_PROP = "felix.startlevel.bundle";
+    String STARTLEVEL_PARALLELISM_PROP = "felix.startlevel.parallelism";
     String SERVICE_URLHANDLERS_PROP = "felix.service.urlhandlers";
     String IMPLICIT_BOOT_DELEGATION_PROP = "felix.bootdelegation.implicit";
     String BOOT_CLASSLOADERS_PROP = "felix.bootdelegation.classloaders";
     String USE_LOCALURLS_PROP = "felix.jarurls";
     String NATIVE_OS_NAME_ALIAS_PREFIX = "felix.native.osname.alias";
     String NATIVE_PROC_NAME_ALIAS_PREFIX = "felix.native.processor.alias";
+    String RESOLVER_PARALLELISM_PROP = "felix.resolver.parallelism";
+    String RESOLVER_SNAPSHOT_PROP = "felix.resolver.snapshot";
+    String RESOLVER_PERMUTATIONS_PROP = "felix.resolver.permutations";
+    String RESOLVER_TIMEOUT_PROP = "felix.resolver.timeout";
+    String EVENT_DISPATCH_THREADS_PROP = "felix.eventdispatcher.threads";
+    String METRICS_PROP = "felix.metrics";
+    String LAZY_REVISIONS_PROP = "felix.revision.lazy";
 
     // Missing OSGi constant for resolution directive.
     String RESOLUTION_DYNAMIC = "dynamic";
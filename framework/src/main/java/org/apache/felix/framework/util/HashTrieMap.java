@@ -0,0 +1,535 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map implemented as a hash array mapped trie. Adding or
+ * removing a key returns a new map that shares all but the path to the
+ * key with this map, so snapshots of a map that changes one key at a
+ * time are cheap. The trie consumes hash codes from their most significant
+ * bits, so entries are iterated in ascending unsigned order of the hash
+ * codes of their keys; for example, <tt>Long</tt> keys between zero and
+ * 2^32 are iterated in ascending order. Keys must not be <tt>null</tt>.
+**/
+public class HashTrieMap<K, V> extends AbstractMap<K, V>
+{
+    private static final int BITS = 5;
+    private static final int FIRST_SHIFT = 30;
+
+    private static final HashTrieMap EMPTY = new HashTrieMap(null, 0);
+
+    private final Node m_root;
+    private final int m_size;
+
+    private HashTrieMap(Node root, int size)
+    {
+        m_root = root;
+        m_size = size;
+    }
+
+    public static <K, V> HashTrieMap<K, V> empty()
+    {
+        return EMPTY;
+    }
+
+    /**
+     * Returns a map with the specified entry added to this map, replacing
+     * the entry of the key, if any.
+     * @param key the key.
+     * @param value the value.
+     * @return the new map, or this map if it already maps the key to
+     *         the value.
+    **/
+    public HashTrieMap<K, V> plus(K key, V value)
+    {
+        if (key == null)
+        {
+            throw new NullPointerException("Key must not be null.");
+        }
+        Leaf leaf = new Leaf(key.hashCode(), key, value);
+        if (m_root == null)
+        {
+            return new HashTrieMap<K, V>(new BitmapNode(leaf, FIRST_SHIFT), 1);
+        }
+        boolean[] added = new boolean[1];
+        Node root = m_root.plus(leaf, FIRST_SHIFT, added);
+        return (root == m_root)
+            ? this
+            : new HashTrieMap<K, V>(root, added[0] ? m_size + 1 : m_size);
+    }
+
+    /**
+     * Returns a map with all entries of the specified map added to this map.
+     * @param map the entries to add.
+     * @return the new map.
+    **/
+    public HashTrieMap<K, V> plusAll(Map<? extends K, ? extends V> map)
+    {
+        HashTrieMap<K, V> result = this;
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet())
+        {
+            result = result.plus(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Returns a map with the entry of the specified key removed from this map.
+     * @param key the key.
+     * @return the new map, or this map if it does not contain the key.
+    **/
+    public HashTrieMap<K, V> minus(Object key)
+    {
+        if ((key == null) || (m_root == null))
+        {
+            return this;
+        }
+        Node root = m_root.minus(key.hashCode(), key, FIRST_SHIFT);
+        return (root == m_root)
+            ? this
+            : new HashTrieMap<K, V>(root, m_size - 1);
+    }
+
+    @Override
+    public V get(Object key)
+    {
+        if ((key == null) || (m_root == null))
+        {
+            return null;
+        }
+        Leaf leaf = m_root.find(key.hashCode(), key, FIRST_SHIFT);
+        return (leaf == null) ? null : (V) leaf.m_value;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return (key != null) && (m_root != null)
+            && (m_root.find(key.hashCode(), key, FIRST_SHIFT) != null);
+    }
+
+    @Override
+    public int size()
+    {
+        return m_size;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet()
+    {
+        return new AbstractSet<Entry<K, V>>()
+        {
+            @Override
+            public Iterator<Entry<K, V>> iterator()
+            {
+                return new EntryIterator(m_root);
+            }
+
+            @Override
+            public int size()
+            {
+                return m_size;
+            }
+        };
+    }
+
+    private static int index(int hash, int shift)
+    {
+        return (hash >>> shift) & ((1 << BITS) - 1);
+    }
+
+    private static abstract class Node
+    {
+        abstract Leaf find(int hash, Object key, int shift);
+
+        abstract Node plus(Leaf leaf, int shift, boolean[] added);
+
+        // Returns null if the node becomes empty.
+        abstract Node minus(int hash, Object key, int shift);
+
+        // Returns the leaves and child nodes in iteration order.
+        abstract Object[] children();
+    }
+
+    private static class Leaf implements Map.Entry
+    {
+        final int m_hash;
+        final Object m_key;
+        final Object m_value;
+
+        Leaf(int hash, Object key, Object value)
+        {
+            m_hash = hash;
+            m_key = key;
+            m_value = value;
+        }
+
+        public Object getKey()
+        {
+            return m_key;
+        }
+
+        public Object getValue()
+        {
+            return m_value;
+        }
+
+        public Object setValue(Object value)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Map.Entry))
+            {
+                return false;
+            }
+            Map.Entry e = (Map.Entry) o;
+            return m_key.equals(e.getKey())
+                && ((m_value == null) ? (e.getValue() == null) : m_value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return m_key.hashCode() ^ ((m_value == null) ? 0 : m_value.hashCode());
+        }
+
+        @Override
+        public String toString()
+        {
+            return m_key + "=" + m_value;
+        }
+    }
+
+    /**
+     * A node with a slot per <tt>BITS</tt> bits of the hash code at its
+     * level, of which only the occupied ones are stored in index order.
+     * Each occupied slot holds a leaf or a child node.
+    **/
+    private static class BitmapNode extends Node
+    {
+        private final int m_bitmap;
+        private final Object[] m_slots;
+
+        BitmapNode(Leaf leaf, int shift)
+        {
+            m_bitmap = 1 << index(leaf.m_hash, shift);
+            m_slots = new Object[] { leaf };
+        }
+
+        private BitmapNode(int bitmap, Object[] slots)
+        {
+            m_bitmap = bitmap;
+            m_slots = slots;
+        }
+
+        private int position(int bit)
+        {
+            return Integer.bitCount(m_bitmap & (bit - 1));
+        }
+
+        Leaf find(int hash, Object key, int shift)
+        {
+            int bit = 1 << index(hash, shift);
+            if ((m_bitmap & bit) == 0)
+            {
+                return null;
+            }
+            Object slot = m_slots[position(bit)];
+            if (slot instanceof Leaf)
+            {
+                Leaf leaf = (Leaf) slot;
+                return ((leaf.m_hash == hash) && leaf.m_key.equals(key)) ? leaf : null;
+            }
+            return ((Node) slot).find(hash, key, shift - BITS);
+        }
+
+        Node plus(Leaf leaf, int shift, boolean[] added)
+        {
+            int bit = 1 << index(leaf.m_hash, shift);
+            int pos = position(bit);
+            if ((m_bitmap & bit) == 0)
+            {
+                Object[] slots = new Object[m_slots.length + 1];
+                System.arraycopy(m_slots, 0, slots, 0, pos);
+                slots[pos] = leaf;
+                System.arraycopy(m_slots, pos, slots, pos + 1, m_slots.length - pos);
+                added[0] = true;
+                return new BitmapNode(m_bitmap | bit, slots);
+            }
+
+            Object slot = m_slots[pos];
+            Object replacement;
+            if (slot instanceof Leaf)
+            {
+                Leaf existing = (Leaf) slot;
+                if ((existing.m_hash == leaf.m_hash) && existing.m_key.equals(leaf.m_key))
+                {
+                    if (existing.m_value == leaf.m_value)
+                    {
+                        return this;
+                    }
+                    replacement = leaf;
+                }
+                else
+                {
+                    replacement = merge(existing, leaf, shift - BITS);
+                    added[0] = true;
+                }
+            }
+            else
+            {
+                replacement = ((Node) slot).plus(leaf, shift - BITS, added);
+                if (replacement == slot)
+                {
+                    return this;
+                }
+            }
+            Object[] slots = m_slots.clone();
+            slots[pos] = replacement;
+            return new BitmapNode(m_bitmap, slots);
+        }
+
+        private static Node merge(Leaf l1, Leaf l2, int shift)
+        {
+            if (shift < 0)
+            {
+                return new CollisionNode(new Leaf[] { l1, l2 });
+            }
+            int i1 = index(l1.m_hash, shift);
+            int i2 = index(l2.m_hash, shift);
+            if (i1 == i2)
+            {
+                return new BitmapNode(1 << i1, new Object[] { merge(l1, l2, shift - BITS) });
+            }
+            return new BitmapNode((1 << i1) | (1 << i2),
+                (i1 < i2) ? new Object[] { l1, l2 } : new Object[] { l2, l1 });
+        }
+
+        Node minus(int hash, Object key, int shift)
+        {
+            int bit = 1 << index(hash, shift);
+            if ((m_bitmap & bit) == 0)
+            {
+                return this;
+            }
+            int pos = position(bit);
+            Object slot = m_slots[pos];
+            Object replacement;
+            if (slot instanceof Leaf)
+            {
+                Leaf leaf = (Leaf) slot;
+                if ((leaf.m_hash != hash) || !leaf.m_key.equals(key))
+                {
+                    return this;
+                }
+                replacement = null;
+            }
+            else
+            {
+                replacement = ((Node) slot).minus(hash, key, shift - BITS);
+                if (replacement == slot)
+                {
+                    return this;
+                }
+                // Pull a single remaining leaf up into this node.
+                if ((replacement != null)
+                    && (((Node) replacement).children().length == 1)
+                    && (((Node) replacement).children()[0] instanceof Leaf))
+                {
+                    replacement = ((Node) replacement).children()[0];
+                }
+            }
+
+            if (replacement != null)
+            {
+                Object[] slots = m_slots.clone();
+                slots[pos] = replacement;
+                return new BitmapNode(m_bitmap, slots);
+            }
+            if (m_slots.length == 1)
+            {
+                return null;
+            }
+            Object[] slots = new Object[m_slots.length - 1];
+            System.arraycopy(m_slots, 0, slots, 0, pos);
+            System.arraycopy(m_slots, pos + 1, slots, pos, slots.length - pos);
+            return new BitmapNode(m_bitmap & ~bit, slots);
+        }
+
+        Object[] children()
+        {
+            return m_slots;
+        }
+    }
+
+    /**
+     * A node for the leaves of keys with equal hash codes, which is only
+     * used below the last level of bitmap nodes.
+    **/
+    private static class CollisionNode extends Node
+    {
+        private final Leaf[] m_leaves;
+
+        CollisionNode(Leaf[] leaves)
+        {
+            m_leaves = leaves;
+        }
+
+        private int indexOf(Object key)
+        {
+            for (int i = 0; i < m_leaves.length; i++)
+            {
+                if (m_leaves[i].m_key.equals(key))
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        Leaf find(int hash, Object key, int shift)
+        {
+            int idx = indexOf(key);
+            return (idx < 0) ? null : m_leaves[idx];
+        }
+
+        Node plus(Leaf leaf, int shift, boolean[] added)
+        {
+            int idx = indexOf(leaf.m_key);
+            if (idx >= 0)
+            {
+                if (m_leaves[idx].m_value == leaf.m_value)
+                {
+                    return this;
+                }
+                Leaf[] leaves = m_leaves.clone();
+                leaves[idx] = leaf;
+                return new CollisionNode(leaves);
+            }
+            Leaf[] leaves = new Leaf[m_leaves.length + 1];
+            System.arraycopy(m_leaves, 0, leaves, 0, m_leaves.length);
+            leaves[m_leaves.length] = leaf;
+            added[0] = true;
+            return new CollisionNode(leaves);
+        }
+
+        Node minus(int hash, Object key, int shift)
+        {
+            int idx = indexOf(key);
+            if (idx < 0)
+            {
+                return this;
+            }
+            if (m_leaves.length == 1)
+            {
+                return null;
+            }
+            Leaf[] leaves = new Leaf[m_leaves.length - 1];
+            System.arraycopy(m_leaves, 0, leaves, 0, idx);
+            System.arraycopy(m_leaves, idx + 1, leaves, idx, leaves.length - idx);
+            return new CollisionNode(leaves);
+        }
+
+        Object[] children()
+        {
+            return m_leaves;
+        }
+    }
+
+    private static class EntryIterator implements Iterator
+    {
+        // Stack of the nodes being iterated and the next position in each.
+        private final List<Object[]> m_nodes = new ArrayList<Object[]>();
+        private final List<Integer> m_positions = new ArrayList<Integer>();
+        private Leaf m_next;
+
+        EntryIterator(Node root)
+        {
+            if (root != null)
+            {
+                m_nodes.add(root.children());
+                m_positions.add(0);
+            }
+            advance();
+        }
+
+        private void advance()
+        {
+            m_next = null;
+            while ((m_next == null) && !m_nodes.isEmpty())
+            {
+                int top = m_nodes.size() - 1;
+                Object[] children = m_nodes.get(top);
+                int pos = m_positions.get(top);
+                if (pos == children.length)
+                {
+                    m_nodes.remove(top);
+                    m_positions.remove(top);
+                }
+                else
+                {
+                    m_positions.set(top, pos + 1);
+                    if (children[pos] instanceof Leaf)
+                    {
+                        m_next = (Leaf) children[pos];
+                    }
+                    else
+                    {
+                        m_nodes.add(((Node) children[pos]).children());
+                        m_positions.add(0);
+                    }
+                }
+            }
+        }
+
+        public boolean hasNext()
+        {
+            return m_next != null;
+        }
+
+        public Object next()
+        {
+            if (m_next == null)
+            {
+                throw new NoSuchElementException();
+            }
+            Leaf next = m_next;
+            advance();
+            return next;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -34,6 +34,15 @@ public class ListenerInfo implements ListenerHook.ListenerInfo
     private final Filter m_filter;
     private final Object m_acc;
     private final boolean m_removed;
+    // Pending asynchronous events for this listener, if the event dispatcher
+    // delivers events to different listeners concurrently.
+    private EventDispatcher.ListenerQueue m_queue;
+    // Object classes required by the filter of a service listener, used
+    // to index service listeners; computed on first use.
+    private String[] m_objectClasses;
+    private boolean m_objectClassesComputed;
+    // Time spent dispatching events to this listener, if it is measured.
+    private volatile EventDispatcher.CallbackTiming m_timing;
 
     public ListenerInfo(
         Bundle bundle, BundleContext context, Class listenerClass, EventListener listener,
@@ -106,6 +115,54 @@ public class ListenerInfo implements ListenerHook.ListenerInfo
         return m_removed;
     }
 
+    synchronized EventDispatcher.ListenerQueue getEventQueue()
+    {
+        return m_queue;
+    }
+
+    synchronized EventDispatcher.ListenerQueue getOrCreateEventQueue(
+        EventDispatcher dispatcher)
+    {
+        if (m_queue == null)
+        {
+            m_queue = new EventDispatcher.ListenerQueue(dispatcher, this);
+        }
+        return m_queue;
+    }
+
+    EventDispatcher.CallbackTiming getCallbackTiming()
+    {
+        return m_timing;
+    }
+
+    EventDispatcher.CallbackTiming getOrCreateCallbackTiming()
+    {
+        EventDispatcher.CallbackTiming timing = m_timing;
+        if (timing == null)
+        {
+            synchronized (this)
+            {
+                if (m_timing == null)
+                {
+                    m_timing = new EventDispatcher.CallbackTiming();
+                }
+                timing = m_timing;
+            }
+        }
+        return timing;
+    }
+
+    synchronized String[] getFilterObjectClasses()
+    {
+        if (!m_objectClassesComputed)
+        {
+            m_objectClasses = EventDispatcher.ServiceListenerIndex
+                .getObjectClasses(m_listener, m_filter);
+            m_objectClassesComputed = true;
+        }
+        return m_objectClasses;
+    }
+
     @Override
     public boolean equals(Object obj)
     {
@@ -0,0 +1,567 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * This class implements a read-only zip file that is memory mapped. The
+ * central directory is parsed once into an open-addressed hash index of
+ * the entry names, after which entries are looked up and read without any
+ * locking. Stored entries are read directly from the mapped file, while
+ * deflated entries are inflated with pooled inflaters. Zip files larger
+ * than 2GB, ZIP64 archives and archives with leading data are not
+ * supported and are rejected with an exception when opened.
+ * <p>
+ * Closing a mapped zip file only drops its reference to the mapping; the
+ * mapping itself is released when it is garbage collected, which means
+ * that on some platforms the file cannot be deleted before then.
+ * </p>
+ */
+public class MappedZipFile
+{
+    private static final int LOCSIG = 0x04034b50;
+    private static final int CENSIG = 0x02014b50;
+    private static final int ENDSIG = 0x06054b50;
+    private static final int LOCHDR = 30;
+    private static final int CENHDR = 46;
+    private static final int ENDHDR = 22;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private static final int INFLATER_POOL_SIZE = 32;
+    private static final Queue<Inflater> m_inflaters =
+        new ConcurrentLinkedQueue<Inflater>();
+    private static final AtomicInteger m_inflaterCount = new AtomicInteger();
+
+    private static final SecureAction m_secureAction = new SecureAction();
+
+    private final File m_file;
+    private volatile ByteBuffer m_buffer;
+    // Entry names and the offsets of their central directory headers,
+    // in central directory order.
+    private final String[] m_names;
+    private final int[] m_cenOffsets;
+    // Open-addressed hash table of entry indices plus one, where zero
+    // marks an empty slot.
+    private final int[] m_table;
+
+    /**
+     * Maps the specified zip file and parses its central directory.
+     * @param file the target zip file.
+     * @throws IOException if the file cannot be mapped or is not a
+     *         supported zip file.
+     */
+    public MappedZipFile(File file) throws IOException
+    {
+        m_file = file;
+
+        FileInputStream fis = m_secureAction.getFileInputStream(file);
+        ByteBuffer buffer;
+        try
+        {
+            FileChannel channel = fis.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+            {
+                throw new ZipException("Zip file too large to map: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally
+        {
+            fis.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        int end = findEndOfCentralDirectory(buffer);
+        int count = getShort(buffer, end + 10);
+        long cenSize = getInt(buffer, end + 12);
+        long cenOffset = getInt(buffer, end + 16);
+        if ((count == 0xFFFF) || (cenOffset == 0xFFFFFFFFL))
+        {
+            throw new ZipException("ZIP64 is not supported: " + file);
+        }
+        if (cenOffset + cenSize != end)
+        {
+            throw new ZipException("Unsupported leading data in zip file: " + file);
+        }
+
+        String[] names = new String[count];
+        int[] cenOffsets = new int[count];
+        int tableSize = 1;
+        while (tableSize < count * 2)
+        {
+            tableSize <<= 1;
+        }
+        int[] table = new int[tableSize];
+
+        int pos = (int) cenOffset;
+        for (int i = 0; i < count; i++)
+        {
+            if ((pos + CENHDR > end) || (buffer.getInt(pos) != CENSIG))
+            {
+                throw new ZipException("Invalid central directory in zip file: " + file);
+            }
+            int nameLen = getShort(buffer, pos + 28);
+            int extraLen = getShort(buffer, pos + 30);
+            int commentLen = getShort(buffer, pos + 32);
+            if (pos + CENHDR + nameLen > end)
+            {
+                throw new ZipException("Invalid central directory in zip file: " + file);
+            }
+            byte[] name = new byte[nameLen];
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(pos + CENHDR);
+            dup.get(name);
+            names[i] = new String(name, "UTF-8");
+            cenOffsets[i] = pos;
+
+            // Keep the first of duplicate names, as the JDK does.
+            int slot = names[i].hashCode() & (tableSize - 1);
+            while ((table[slot] != 0) && !names[table[slot] - 1].equals(names[i]))
+            {
+                slot = (slot + 1) & (tableSize - 1);
+            }
+            if (table[slot] == 0)
+            {
+                table[slot] = i + 1;
+            }
+
+            pos += CENHDR + nameLen + extraLen + commentLen;
+        }
+
+        m_buffer = buffer;
+        m_names = names;
+        m_cenOffsets = cenOffsets;
+        m_table = table;
+    }
+
+    /**
+     * Returns the mapped file.
+     * @return the mapped file.
+     */
+    public File getFile()
+    {
+        return m_file;
+    }
+
+    /**
+     * Releases the reference to the mapped file. Entries can no longer be
+     * read afterwards, but already opened streams remain valid.
+     */
+    public void close()
+    {
+        m_buffer = null;
+    }
+
+    /**
+     * Returns the index of the entry with the specified name. Like
+     * <tt>ZipFile.getEntry()</tt>, a directory entry is also found by its
+     * name without the trailing slash.
+     * @param name the entry name.
+     * @return the index of the entry or <tt>-1</tt> if there is no such entry.
+     */
+    public int getEntryIndex(String name)
+    {
+        int idx = find(name);
+        if ((idx < 0) && !name.endsWith("/"))
+        {
+            idx = find(name + "/");
+        }
+        return idx;
+    }
+
+    private int find(String name)
+    {
+        int mask = m_table.length - 1;
+        int slot = name.hashCode() & mask;
+        int idx;
+        while ((idx = m_table[slot]) != 0)
+        {
+            if (m_names[idx - 1].equals(name))
+            {
+                return idx - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of entries.
+     * @return the number of entries.
+     */
+    public int size()
+    {
+        return m_names.length;
+    }
+
+    /**
+     * Returns the name of the entry at the specified index.
+     * @param idx the entry index.
+     * @return the entry name.
+     */
+    public String getName(int idx)
+    {
+        return m_names[idx];
+    }
+
+    /**
+     * Returns whether the entry at the specified index is a directory.
+     * @param idx the entry index.
+     * @return <tt>true</tt> if the entry is a directory.
+     */
+    public boolean isDirectory(int idx)
+    {
+        return m_names[idx].endsWith("/");
+    }
+
+    /**
+     * Returns the uncompressed size of the entry at the specified index.
+     * @param idx the entry index.
+     * @return the uncompressed size.
+     */
+    public long getSize(int idx)
+    {
+        return getInt(getBuffer(), m_cenOffsets[idx] + 24);
+    }
+
+    /**
+     * Returns an enumeration of the entry names in the order of the
+     * central directory.
+     * @return an enumeration of the entry names.
+     */
+    public Enumeration<String> names()
+    {
+        return new Enumeration<String>()
+        {
+            private int m_idx = 0;
+
+            public boolean hasMoreElements()
+            {
+                return m_idx < m_names.length;
+            }
+
+            public String nextElement()
+            {
+                if (m_idx >= m_names.length)
+                {
+                    throw new NoSuchElementException();
+                }
+                return m_names[m_idx++];
+            }
+        };
+    }
+
+    /**
+     * Returns the uncompressed contents of the entry at the specified index.
+     * @param idx the entry index.
+     * @return the entry contents.
+     * @throws IOException if the entry cannot be read.
+     */
+    public byte[] getBytes(int idx) throws IOException
+    {
+        ByteBuffer buffer = getBuffer();
+        int cen = m_cenOffsets[idx];
+        int method = getMethod(buffer, cen);
+        long size = getInt(buffer, cen + 24);
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new ZipException("Entry too large: " + m_names[idx]);
+        }
+        ByteBuffer data = getData(buffer, cen, idx);
+
+        byte[] bytes = new byte[(int) size];
+        if (method == STORED)
+        {
+            data.get(bytes);
+            return bytes;
+        }
+
+        // The inflater may need an extra dummy byte to finish a raw
+        // deflate stream.
+        byte[] input = new byte[data.remaining() + 1];
+        data.get(input, 0, input.length - 1);
+        Inflater inflater = getInflater();
+        try
+        {
+            inflater.setInput(input);
+            int n = 0;
+            while (n < bytes.length)
+            {
+                int count = inflater.inflate(bytes, n, bytes.length - n);
+                if ((count == 0) && (inflater.finished()
+                    || inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+                n += count;
+            }
+            if (n != bytes.length)
+            {
+                throw new ZipException("Invalid entry size: " + m_names[idx]);
+            }
+            return bytes;
+        }
+        catch (DataFormatException ex)
+        {
+            throw new ZipException(ex.getMessage());
+        }
+        finally
+        {
+            releaseInflater(inflater);
+        }
+    }
+
+    /**
+     * Returns an input stream for the uncompressed contents of the entry at
+     * the specified index.
+     * @param idx the entry index.
+     * @return an input stream for the entry contents.
+     * @throws IOException if the entry cannot be read.
+     */
+    public InputStream getInputStream(int idx) throws IOException
+    {
+        ByteBuffer buffer = getBuffer();
+        int cen = m_cenOffsets[idx];
+        int method = getMethod(buffer, cen);
+        ByteBuffer data = getData(buffer, cen, idx);
+        if (method == STORED)
+        {
+            return new ByteBufferInputStream(data);
+        }
+        return new PooledInflaterInputStream(
+            new ByteBufferInputStream(data), getInt(buffer, cen + 24));
+    }
+
+    private ByteBuffer getBuffer()
+    {
+        ByteBuffer buffer = m_buffer;
+        if (buffer == null)
+        {
+            throw new IllegalStateException("Zip file is closed: " + m_file);
+        }
+        return buffer;
+    }
+
+    private int getMethod(ByteBuffer buffer, int cen) throws IOException
+    {
+        if ((getShort(buffer, cen + 8) & 1) != 0)
+        {
+            throw new ZipException("Encrypted entries are not supported.");
+        }
+        int method = getShort(buffer, cen + 10);
+        if ((method != STORED) && (method != DEFLATED))
+        {
+            throw new ZipException("Unsupported compression method: " + method);
+        }
+        return method;
+    }
+
+    // Returns a buffer positioned at the entry data and limited to its
+    // compressed size, which is shared with the mapped file.
+    private ByteBuffer getData(ByteBuffer buffer, int cen, int idx) throws IOException
+    {
+        long csize = getInt(buffer, cen + 20);
+        long loc = getInt(buffer, cen + 42);
+        if ((loc + LOCHDR > buffer.limit()) || (buffer.getInt((int) loc) != LOCSIG))
+        {
+            throw new ZipException("Invalid local header: " + m_names[idx]);
+        }
+        long start = loc + LOCHDR
+            + getShort(buffer, (int) loc + 26) + getShort(buffer, (int) loc + 28);
+        if (start + csize > buffer.limit())
+        {
+            throw new ZipException("Invalid entry data: " + m_names[idx]);
+        }
+        ByteBuffer data = buffer.duplicate();
+        data.position((int) start);
+        data.limit((int) (start + csize));
+        return data;
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer buffer) throws ZipException
+    {
+        int min = Math.max(0, buffer.limit() - ENDHDR - 0xFFFF);
+        for (int pos = buffer.limit() - ENDHDR; pos >= min; pos--)
+        {
+            if ((buffer.getInt(pos) == ENDSIG)
+                && (pos + ENDHDR + getShort(buffer, pos + 20) == buffer.limit()))
+            {
+                return pos;
+            }
+        }
+        throw new ZipException("Not a zip file.");
+    }
+
+    private static int getShort(ByteBuffer buffer, int pos)
+    {
+        return buffer.getShort(pos) & 0xFFFF;
+    }
+
+    private static long getInt(ByteBuffer buffer, int pos)
+    {
+        return buffer.getInt(pos) & 0xFFFFFFFFL;
+    }
+
+    private static Inflater getInflater()
+    {
+        Inflater inflater = m_inflaters.poll();
+        if (inflater != null)
+        {
+            m_inflaterCount.decrementAndGet();
+            return inflater;
+        }
+        return new Inflater(true);
+    }
+
+    private static void releaseInflater(Inflater inflater)
+    {
+        if (m_inflaterCount.incrementAndGet() <= INFLATER_POOL_SIZE)
+        {
+            inflater.reset();
+            m_inflaters.offer(inflater);
+        }
+        else
+        {
+            m_inflaterCount.decrementAndGet();
+            inflater.end();
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer m_data;
+
+        ByteBufferInputStream(ByteBuffer data)
+        {
+            m_data = data;
+        }
+
+        public int read()
+        {
+            return m_data.hasRemaining() ? (m_data.get() & 0xFF) : -1;
+        }
+
+        public int read(byte[] b, int off, int len)
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!m_data.hasRemaining())
+            {
+                return -1;
+            }
+            len = Math.min(len, m_data.remaining());
+            m_data.get(b, off, len);
+            return len;
+        }
+
+        public long skip(long n)
+        {
+            int count = (int) Math.max(0, Math.min(n, m_data.remaining()));
+            m_data.position(m_data.position() + count);
+            return count;
+        }
+
+        public int available()
+        {
+            return m_data.remaining();
+        }
+    }
+
+    private static class PooledInflaterInputStream extends InflaterInputStream
+    {
+        private final long m_size;
+        private boolean m_eof = false;
+        private boolean m_closed = false;
+
+        PooledInflaterInputStream(InputStream in, long size)
+        {
+            super(in, getInflater(), (int) Math.max(512, Math.min(size, 8192)));
+            m_size = size;
+        }
+
+        protected void fill() throws IOException
+        {
+            if (m_eof)
+            {
+                throw new EOFException("Unexpected end of ZLIB input stream");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1)
+            {
+                // Supply a dummy byte, which a raw deflate stream may need
+                // to finish.
+                buf[0] = 0;
+                len = 1;
+                m_eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            // The inflater is returned to the pool when the stream is
+            // closed, so it must not be used afterwards.
+            if (m_closed)
+            {
+                throw new IOException("Stream closed");
+            }
+            return super.read(b, off, len);
+        }
+
+        public int available() throws IOException
+        {
+            if (m_closed)
+            {
+                return 0;
+            }
+            long avail = m_size - inf.getBytesWritten();
+            return (avail > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) avail;
+        }
+
+        public void close() throws IOException
+        {
+            if (!m_closed)
+            {
+                m_closed = true;
+                releaseInflater(inf);
+                in.close();
+            }
+        }
+    }
+}
@@ -479,6 +479,31 @@ public class SecureAction
         }
     }
 
+    public FileOutputStream getFileAppendOutputStream(File file) throws IOException
+    {
+        if (System.getSecurityManager() != null)
+        {
+            try
+            {
+                Actions actions = (Actions) m_actions.get();
+                actions.set(Actions.GET_FILE_APPEND_OUTPUT_ACTION, file);
+                return (FileOutputStream) AccessController.doPrivileged(actions, m_acc);
+            }
+            catch (PrivilegedActionException ex)
+            {
+                if (ex.getException() instanceof IOException)
+                {
+                    throw (IOException) ex.getException();
+                }
+                throw (RuntimeException) ex.getException();
+            }
+        }
+        else
+        {
+            return new FileOutputStream(file, true);
+        }
+    }
+
     public URI toURI(File file)
     {
         if (System.getSecurityManager() != null)
@@ -1532,6 +1557,7 @@ public class SecureAction
         public static final int OPEN_JARFILE_ACTION = 54;
         public static final int DELETE_FILEONEXIT_ACTION = 55;
         public static final int INVOKE_WOVEN_CLASS_LISTENER = 56;
+        public static final int GET_FILE_APPEND_OUTPUT_ACTION = 57;
 
         private int m_action = -1;
         private Object m_arg1 = null;
@@ -1669,6 +1695,8 @@ public class SecureAction
                     return new FileInputStream((File) arg1);
                 case GET_FILE_OUTPUT_ACTION:
                     return new FileOutputStream((File) arg1);
+                case GET_FILE_APPEND_OUTPUT_ACTION:
+                    return new FileOutputStream((File) arg1, true);
                 case TO_URI_ACTION:
                     return ((File) arg1).toURI();
                 case GET_METHOD_ACTION:
@@ -0,0 +1,374 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util.manifestparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.VersionRange;
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.apache.felix.framework.wiring.BundleRequirementImpl;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * This class stores the result of parsing a bundle manifest in a compact
+ * binary form, so that a <tt>ManifestParser</tt> for the same manifest can
+ * be restored without tokenizing its headers and converting the clauses to
+ * capabilities and requirements again. A stored model records the headers
+ * it was parsed from as well as the framework version, and it is only
+ * restored if both still match.
+**/
+public class ManifestModel
+{
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int NULL_VALUE = 0;
+    private static final int STRING_VALUE = 1;
+    private static final int VERSION_VALUE = 2;
+    private static final int VERSIONRANGE_VALUE = 3;
+    private static final int LONG_VALUE = 4;
+    private static final int DOUBLE_VALUE = 5;
+    private static final int LIST_VALUE = 6;
+    private static final int FILTER_VALUE = 7;
+
+    /**
+     * Stores the specified parsed manifest.
+     * @param mp the parser holding the parsed manifest.
+     * @param configMap the framework configuration.
+     * @param headerMap the manifest headers that were parsed.
+     * @return the stored model or <tt>null</tt> if the parsed manifest
+     *         cannot be stored, for example because it declares native code.
+    **/
+    public static byte[] write(ManifestParser mp, Map configMap, Map headerMap)
+    {
+        // Native library clauses are matched against the configuration
+        // later on, so do not bother storing them.
+        if (headerMap.get(Constants.BUNDLE_NATIVECODE) != null)
+        {
+            return null;
+        }
+
+        try
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            out.writeInt(FORMAT_VERSION);
+            writeString(out, (String) configMap.get(FelixConstants.FELIX_VERSION_PROPERTY));
+
+            out.writeInt(headerMap.size());
+            for (Object o : headerMap.entrySet())
+            {
+                Entry entry = (Entry) o;
+                writeString(out, entry.getKey().toString());
+                writeString(out, entry.getValue().toString());
+            }
+
+            writeString(out, mp.getSymbolicName());
+            writeString(out, (mp.getBundleVersion() == null)
+                ? null : mp.getBundleVersion().toString());
+            out.writeInt(mp.getActivationPolicy());
+            writeString(out, mp.getActivationIncludeDirective());
+            writeString(out, mp.getActivationExcludeDirective());
+            out.writeBoolean(mp.isExtension());
+
+            List<BundleCapability> caps = mp.getCapabilities();
+            out.writeInt(caps.size());
+            for (BundleCapability cap : caps)
+            {
+                if (cap.getClass() != BundleCapabilityImpl.class)
+                {
+                    return null;
+                }
+                writeString(out, cap.getNamespace());
+                writeMap(out, cap.getDirectives());
+                writeMap(out, cap.getAttributes());
+            }
+
+            List<BundleRequirement> reqs = mp.getRequirements();
+            out.writeInt(reqs.size());
+            for (BundleRequirement req : reqs)
+            {
+                if (req.getClass() != BundleRequirementImpl.class)
+                {
+                    return null;
+                }
+                writeString(out, req.getNamespace());
+                writeMap(out, req.getDirectives());
+                writeMap(out, req.getAttributes());
+                writeValue(out, ((BundleRequirementImpl) req).getFilter());
+            }
+
+            out.close();
+            return baos.toByteArray();
+        }
+        catch (IOException ex)
+        {
+            // The manifest contains values that cannot be stored.
+            return null;
+        }
+    }
+
+    /**
+     * Restores a parsed manifest from the specified stored model.
+     * @param logger the framework logger.
+     * @param configMap the framework configuration.
+     * @param owner the revision owning the restored capabilities and
+     *        requirements.
+     * @param headerMap the current manifest headers of the revision.
+     * @param model the stored model.
+     * @return the restored parser or <tt>null</tt> if the model is not
+     *         readable or was stored for different headers or by a
+     *         different framework version.
+    **/
+    public static ManifestParser read(Logger logger, Map configMap,
+        BundleRevision owner, Map headerMap, byte[] model)
+    {
+        try
+        {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(model));
+            if (in.readInt() != FORMAT_VERSION)
+            {
+                return null;
+            }
+            String version = readString(in);
+            if ((version == null)
+                ? configMap.get(FelixConstants.FELIX_VERSION_PROPERTY) != null
+                : !version.equals(configMap.get(FelixConstants.FELIX_VERSION_PROPERTY)))
+            {
+                return null;
+            }
+
+            int size = in.readInt();
+            if (size != headerMap.size())
+            {
+                return null;
+            }
+            for (int i = 0; i < size; i++)
+            {
+                Object value = headerMap.get(readString(in));
+                if ((value == null) || !value.toString().equals(readString(in)))
+                {
+                    return null;
+                }
+            }
+
+            String symbolicName = readString(in);
+            String bundleVersion = readString(in);
+            int activationPolicy = in.readInt();
+            String activationInclude = readString(in);
+            String activationExclude = readString(in);
+            boolean isExtension = in.readBoolean();
+
+            size = in.readInt();
+            List<BundleCapability> caps = new ArrayList<BundleCapability>(size);
+            for (int i = 0; i < size; i++)
+            {
+                String namespace = readString(in);
+                Map dirs = readMap(in);
+                Map attrs = readMap(in);
+                caps.add(new BundleCapabilityImpl(owner, namespace, dirs, attrs));
+            }
+
+            size = in.readInt();
+            List<BundleRequirement> reqs = new ArrayList<BundleRequirement>(size);
+            for (int i = 0; i < size; i++)
+            {
+                String namespace = readString(in);
+                Map dirs = readMap(in);
+                Map attrs = readMap(in);
+                SimpleFilter filter = (SimpleFilter) readValue(in);
+                reqs.add(new BundleRequirementImpl(owner, namespace, dirs, attrs, filter));
+            }
+
+            return new ManifestParser(logger, configMap, headerMap,
+                symbolicName,
+                (bundleVersion == null) ? null : Version.parseVersion(bundleVersion),
+                caps, reqs, activationPolicy, activationInclude, activationExclude,
+                isExtension);
+        }
+        catch (Exception ex)
+        {
+            logger.log(Logger.LOG_DEBUG, "Unable to read parsed manifest.", ex);
+            return null;
+        }
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, ?> map)
+        throws IOException
+    {
+        out.writeInt(map.size());
+        for (Entry<String, ?> entry : map.entrySet())
+        {
+            writeString(out, entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private static Map readMap(DataInputStream in) throws IOException
+    {
+        int size = in.readInt();
+        Map<String, Object> map = new LinkedHashMap<String, Object>(size);
+        for (int i = 0; i < size; i++)
+        {
+            map.put(readString(in), readValue(in));
+        }
+        return map;
+    }
+
+    private static void writeValue(DataOutputStream out, Object value)
+        throws IOException
+    {
+        if (value == null)
+        {
+            out.writeByte(NULL_VALUE);
+        }
+        else if (value instanceof String)
+        {
+            out.writeByte(STRING_VALUE);
+            writeString(out, (String) value);
+        }
+        else if (value instanceof Version)
+        {
+            out.writeByte(VERSION_VALUE);
+            writeString(out, value.toString());
+        }
+        else if (value instanceof VersionRange)
+        {
+            VersionRange range = (VersionRange) value;
+            out.writeByte(VERSIONRANGE_VALUE);
+            writeString(out, range.getFloor().toString());
+            out.writeBoolean(range.isFloorInclusive());
+            writeString(out, (range.getCeiling() == null)
+                ? null : range.getCeiling().toString());
+            out.writeBoolean(range.isCeilingInclusive());
+        }
+        else if (value instanceof Long)
+        {
+            out.writeByte(LONG_VALUE);
+            out.writeLong(((Long) value).longValue());
+        }
+        else if (value instanceof Double)
+        {
+            out.writeByte(DOUBLE_VALUE);
+            out.writeDouble(((Double) value).doubleValue());
+        }
+        else if (value instanceof List)
+        {
+            List list = (List) value;
+            out.writeByte(LIST_VALUE);
+            out.writeInt(list.size());
+            for (Object o : list)
+            {
+                writeValue(out, o);
+            }
+        }
+        else if (value instanceof SimpleFilter)
+        {
+            SimpleFilter filter = (SimpleFilter) value;
+            out.writeByte(FILTER_VALUE);
+            out.writeInt(filter.getOperation());
+            writeString(out, filter.getName());
+            writeValue(out, filter.getValue());
+        }
+        else
+        {
+            throw new IOException("Unsupported value type: " + value.getClass());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException
+    {
+        switch (in.readByte())
+        {
+            case NULL_VALUE:
+                return null;
+            case STRING_VALUE:
+                return readString(in);
+            case VERSION_VALUE:
+                return Version.parseVersion(readString(in));
+            case VERSIONRANGE_VALUE:
+                Version floor = Version.parseVersion(readString(in));
+                boolean isFloorInclusive = in.readBoolean();
+                String ceiling = readString(in);
+                return new VersionRange(floor, isFloorInclusive,
+                    (ceiling == null) ? null : Version.parseVersion(ceiling),
+                    in.readBoolean());
+            case LONG_VALUE:
+                return new Long(in.readLong());
+            case DOUBLE_VALUE:
+                return new Double(in.readDouble());
+            case LIST_VALUE:
+                int size = in.readInt();
+                List list = new ArrayList(size);
+                for (int i = 0; i < size; i++)
+                {
+                    list.add(readValue(in));
+                }
+                return list;
+            case FILTER_VALUE:
+                int op = in.readInt();
+                String name = readString(in);
+                return new SimpleFilter(name, readValue(in), op);
+            default:
+                throw new IOException("Unknown value type.");
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException
+    {
+        if (s == null)
+        {
+            out.writeInt(-1);
+        }
+        else
+        {
+            byte[] bytes = s.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0)
+        {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -296,6 +296,32 @@ public class ManifestParser
         m_isExtension = checkExtensionBundle(headerMap);
     }
 
+    /**
+     * Creates a parser for a manifest that has already been parsed, which
+     * is used by <tt>ManifestModel</tt> to restore a stored model. Manifests
+     * declaring native code are never stored, so there are no native
+     * library clauses.
+    **/
+    ManifestParser(Logger logger, Map configMap, Map headerMap,
+        String symbolicName, Version bundleVersion,
+        List<BundleCapability> capabilities, List<BundleRequirement> requirements,
+        int activationPolicy, String activationIncludeDir,
+        String activationExcludeDir, boolean isExtension)
+    {
+        m_logger = logger;
+        m_configMap = configMap;
+        m_headerMap = headerMap;
+        m_bundleSymbolicName = symbolicName;
+        m_bundleVersion = bundleVersion;
+        m_capabilities = capabilities;
+        m_requirements = requirements;
+        m_libraryClauses = new ArrayList<NativeLibraryClause>(0);
+        m_activationPolicy = activationPolicy;
+        m_activationIncludeDir = activationIncludeDir;
+        m_activationExcludeDir = activationExcludeDir;
+        m_isExtension = isExtension;
+    }
+
     private static List<ParsedHeaderClause> normalizeImportClauses(
         Logger logger, List<ParsedHeaderClause> clauses, String mv)
         throws BundleException
@@ -0,0 +1,306 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.ext.BundleInstaller;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.hooks.bundle.FindHook;
+import org.osgi.framework.launch.Framework;
+
+public class BundleInstallerTest extends TestCase
+{
+    private File m_cacheDir;
+    private Framework m_framework;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        m_framework = new Felix(params);
+        m_framework.init();
+        m_framework.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_framework.stop();
+        m_framework.waitForStop(10000);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testInstallAndUninstallBundles() throws Exception
+    {
+        BundleContext context = m_framework.getBundleContext();
+        Bundle existing = context.installBundle(
+            location("existing"), createBundle("test.existing"));
+
+        final List<Bundle> events = new ArrayList<Bundle>();
+        context.addBundleListener(new SynchronousBundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+                if (event.getType() == BundleEvent.INSTALLED)
+                {
+                    events.add(event.getBundle());
+                }
+            }
+        });
+
+        Map<String, InputStream> streams = new LinkedHashMap<String, InputStream>();
+        for (int i = 0; i < 20; i++)
+        {
+            streams.put(location(Integer.toString(i)), createBundle("test.bundle" + i));
+        }
+        streams.put(location("existing"), null);
+
+        ServiceReference<BundleInstaller> ref =
+            context.getServiceReference(BundleInstaller.class);
+        BundleInstaller installer = context.getService(ref);
+        List<Bundle> bundles = installer.installBundles(streams);
+
+        assertEquals(21, bundles.size());
+        for (int i = 0; i < 20; i++)
+        {
+            assertEquals("test.bundle" + i, bundles.get(i).getSymbolicName());
+            assertEquals(location(Integer.toString(i)), bundles.get(i).getLocation());
+            assertSame(bundles.get(i), context.getBundle(location(Integer.toString(i))));
+            assertSame(bundles.get(i), context.getBundle(bundles.get(i).getBundleId()));
+        }
+        assertSame(existing, bundles.get(20));
+        assertEquals(bundles.subList(0, 20), events);
+        assertEquals(22, context.getBundles().length);
+
+        // Bundles are still ordered by identifier.
+        long last = -1;
+        for (Bundle b : context.getBundles())
+        {
+            assertTrue(b.getBundleId() > last);
+            last = b.getBundleId();
+        }
+
+        // Nothing is installed if any bundle fails.
+        streams.clear();
+        streams.put(location("new"), createBundle("test.new"));
+        streams.put(location("broken"), new ByteArrayInputStream(new byte[0]));
+        try
+        {
+            installer.installBundles(streams);
+            fail("Bundle installation should fail");
+        }
+        catch (BundleException ex)
+        {
+            // Expected
+        }
+        assertNull(context.getBundle(location("new")));
+        assertEquals(22, context.getBundles().length);
+
+        // Bundles of one batch must not collide with each other either.
+        streams.clear();
+        streams.put(location("same1"), createBundle("test.same"));
+        streams.put(location("same2"), createBundle("test.same"));
+        try
+        {
+            installer.installBundles(streams);
+            fail("Bundles with the same symbolic name and version should fail");
+        }
+        catch (BundleException ex)
+        {
+            assertEquals(BundleException.DUPLICATE_BUNDLE_ERROR, ex.getType());
+        }
+        assertNull(context.getBundle(location("same1")));
+        assertNull(context.getBundle(location("same2")));
+
+        // Nothing is installed if a find hook hides an existing bundle
+        // from the bundle installing the batch.
+        final Bundle client = context.installBundle(
+            location("client"), createBundle("test.client"));
+        client.start();
+        final Bundle hidden = existing;
+        ServiceRegistration<FindHook> reg = context.registerService(
+            FindHook.class, new FindHook()
+            {
+                public void find(BundleContext ctx, Collection<Bundle> found)
+                {
+                    if (ctx.getBundle() == client)
+                    {
+                        found.remove(hidden);
+                    }
+                }
+            }, null);
+        BundleContext clientContext = client.getBundleContext();
+        ServiceReference<BundleInstaller> clientRef =
+            clientContext.getServiceReference(BundleInstaller.class);
+        events.clear();
+        streams.clear();
+        streams.put(location("new"), createBundle("test.new"));
+        streams.put(location("existing"), null);
+        try
+        {
+            clientContext.getService(clientRef).installBundles(streams);
+            fail("Bundle installation should fail");
+        }
+        catch (BundleException ex)
+        {
+            // Expected
+        }
+        assertNull(context.getBundle(location("new")));
+        assertTrue(events.isEmpty());
+        clientContext.ungetService(clientRef);
+        reg.unregister();
+        client.uninstall();
+
+        installer.uninstallBundles(bundles);
+        assertEquals(1, context.getBundles().length);
+        for (Bundle b : bundles)
+        {
+            assertEquals(Bundle.UNINSTALLED, b.getState());
+            assertNull(context.getBundle(b.getBundleId()));
+        }
+        context.ungetService(ref);
+    }
+
+    public void testUninstallBundlesContinuesAfterFailures() throws Exception
+    {
+        BundleContext context = m_framework.getBundleContext();
+        Bundle first = context.installBundle(
+            location("first"), createBundle("test.first"));
+        Bundle second = context.installBundle(
+            location("second"), createBundle("test.second"));
+        Bundle third = context.installBundle(
+            location("third"), createBundle("test.third"));
+
+        ServiceReference<BundleInstaller> ref =
+            context.getServiceReference(BundleInstaller.class);
+        BundleInstaller installer = context.getService(ref);
+
+        // The first failure is reported after all other bundles were
+        // uninstalled, even if it is a missing permission.
+        SecurityException denied = new SecurityException("denied");
+        try
+        {
+            installer.uninstallBundles(Arrays.asList(
+                first, failingBundle(denied),
+                failingBundle(new BundleException("failed")), second));
+            fail("Uninstalling should fail");
+        }
+        catch (SecurityException ex)
+        {
+            assertSame(denied, ex);
+        }
+        assertEquals(Bundle.UNINSTALLED, first.getState());
+        assertEquals(Bundle.UNINSTALLED, second.getState());
+
+        BundleException failed = new BundleException("failed");
+        try
+        {
+            installer.uninstallBundles(Arrays.asList(
+                failingBundle(failed), failingBundle(denied), third));
+            fail("Uninstalling should fail");
+        }
+        catch (BundleException ex)
+        {
+            assertSame(failed, ex);
+        }
+        assertEquals(Bundle.UNINSTALLED, third.getState());
+        assertEquals(1, context.getBundles().length);
+        context.ungetService(ref);
+    }
+
+    private static Bundle failingBundle(final Exception failure)
+    {
+        return (Bundle) Proxy.newProxyInstance(
+            BundleInstallerTest.class.getClassLoader(),
+            new Class[] { Bundle.class }, new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable
+                {
+                    if (method.getName().equals("uninstall"))
+                    {
+                        throw failure;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    private String location(String name)
+    {
+        // Bundles are installed from streams, so the files do not exist.
+        return new File(m_cacheDir, name + ".jar").toURI().toString();
+    }
+
+    private static InputStream createBundle(String bsn) throws IOException
+    {
+        String manifest = "Bundle-SymbolicName: " + bsn + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n";
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        JarOutputStream os = new JarOutputStream(baos, mf);
+        os.close();
+        return new ByteArrayInputStream(baos.toByteArray());
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
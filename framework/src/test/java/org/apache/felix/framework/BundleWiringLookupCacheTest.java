@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class BundleWiringLookupCacheTest extends TestCase
+{
+    private File m_cacheDir;
+    private Framework m_framework;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        m_framework = new Felix(params);
+        m_framework.init();
+        m_framework.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_framework.stop();
+        m_framework.waitForStop(10000);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testMissingResourcesAreCached() throws Exception
+    {
+        Bundle importer = install("test.importer",
+            "DynamicImport-Package: test.dyn\n", "test/local/a.txt");
+        assertNotNull(importer.getResource("test/local/a.txt"));
+        BundleWiringImpl wiring =
+            (BundleWiringImpl) importer.adapt(BundleWiring.class);
+
+        long misses = wiring.getLookupCacheMisses();
+        assertNull(importer.getResource("test/local/missing.txt"));
+        assertEquals(misses + 1, wiring.getLookupCacheMisses());
+        assertEquals(0, wiring.getLookupCacheHits());
+
+        assertNull(importer.getResource("test/local/missing.txt"));
+        assertNull(importer.getResource("test/dyn/b.txt"));
+        assertNull(importer.getResource("test/dyn/b.txt"));
+        assertEquals(2, wiring.getLookupCacheHits());
+
+        // A provider installed later is still found by dynamic import,
+        // after which the package is searched through its wire.
+        install("test.exporter", "Export-Package: test.dyn\n", "test/dyn/b.txt");
+        assertNotNull(importer.getResource("test/dyn/b.txt"));
+        assertEquals(3, wiring.getLookupCacheHits());
+        assertNotNull(importer.getResource("test/dyn/b.txt"));
+        assertEquals(3, wiring.getLookupCacheHits());
+
+        // Refreshing creates a new wiring with a new cache.
+        final Object lock = new Object();
+        final boolean[] done = new boolean[1];
+        m_framework.adapt(FrameworkWiring.class).refreshBundles(
+            Collections.singletonList(importer), new FrameworkListener()
+            {
+                public void frameworkEvent(FrameworkEvent event)
+                {
+                    synchronized (lock)
+                    {
+                        done[0] = true;
+                        lock.notifyAll();
+                    }
+                }
+            });
+        synchronized (lock)
+        {
+            long end = System.currentTimeMillis() + 10000;
+            while (!done[0] && (System.currentTimeMillis() < end))
+            {
+                lock.wait(1000);
+            }
+        }
+        assertTrue(done[0]);
+        assertNull(importer.getResource("test/local/missing.txt"));
+        BundleWiringImpl refreshed =
+            (BundleWiringImpl) importer.adapt(BundleWiring.class);
+        assertNotSame(wiring, refreshed);
+        assertEquals(0, refreshed.getLookupCacheHits());
+    }
+
+    private Bundle install(String bsn, String headers, String entry) throws Exception
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+
+        String manifest = "Bundle-SymbolicName: " + bsn + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + headers;
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.putNextEntry(new ZipEntry(entry));
+        os.write(bsn.getBytes("utf-8"));
+        os.close();
+
+        return m_framework.getBundleContext().installBundle(f.toURI().toString());
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.ext.FrameworkMetricsDTO;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+
+public class DynamicImportCacheTest extends TestCase
+{
+    private File m_cacheDir;
+    private Framework m_framework;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(FelixConstants.METRICS_PROP, "true");
+        m_framework = new Felix(params);
+        m_framework.init();
+        m_framework.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_framework.stop();
+        m_framework.waitForStop(10000);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testFailedDynamicImportsAreCached() throws Exception
+    {
+        Bundle importer = install("test.importer",
+            "DynamicImport-Package: test.dyn\n", "test/local/a.txt");
+        install("test.exporter",
+            "Export-Package: test.dyn\nImport-Package: test.missing\n", "test/dyn/b.txt");
+        assertNotNull(importer.getResource("test/local/a.txt"));
+
+        // The exporter cannot be resolved, so the dynamic import fails.
+        long failed = getFailedResolves();
+        assertNull(importer.getResource("test/dyn/b.txt"));
+        assertEquals(failed + 1, getFailedResolves());
+
+        // Trying again does not run the resolver.
+        assertNull(importer.getResource("test/dyn/b.txt"));
+        assertNull(importer.getResource("test/dyn/c.txt"));
+        assertEquals(failed + 1, getFailedResolves());
+
+        // Installing the missing package makes the import possible.
+        install("test.missing", "Export-Package: test.missing\n", "test/missing/d.txt");
+        assertNotNull(importer.getResource("test/dyn/b.txt"));
+        assertEquals(failed + 1, getFailedResolves());
+    }
+
+    private long getFailedResolves()
+    {
+        return m_framework.adapt(FrameworkMetricsDTO.class).failedResolves;
+    }
+
+    private Bundle install(String bsn, String headers, String entry) throws Exception
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+
+        String manifest = "Bundle-SymbolicName: " + bsn + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + headers;
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.putNextEntry(new ZipEntry(entry));
+        os.write(bsn.getBytes("utf-8"));
+        os.close();
+
+        return m_framework.getBundleContext().installBundle(f.toURI().toString());
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
@@ -21,8 +21,10 @@ package org.apache.felix.framework;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import junit.framework.TestCase;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.Version;
 
 public class FilterTest extends TestCase
 {
@@ -43,4 +45,60 @@ public class FilterTest extends TestCase
         }
         assertFalse("Filter should not match: " + filter, filter.match(dict));
     }
+
+    public void testRepeatedMatchOfDifferentTypes() throws Exception
+    {
+        Filter filter = new FilterImpl("(value>=10)");
+
+        // The operand is coerced to each type it is compared to.
+        for (int i = 0; i < 2; i++)
+        {
+            assertTrue(filter.match(dict("value", new Long(11))));
+            assertFalse(filter.match(dict("value", new Long(9))));
+            assertTrue(filter.match(dict("value", "9")));
+            assertFalse(filter.match(dict("value", "09")));
+            assertTrue(filter.match(dict("value", new Version(10, 0, 0))));
+            assertTrue(filter.match(dict("value", new Integer[] { 1, 12 })));
+        }
+
+        filter = new FilterImpl("(value=[1.0,2.0\\))");
+        for (int i = 0; i < 2; i++)
+        {
+            assertTrue(filter.match(dict("value", new Version(1, 5, 0))));
+            assertFalse(filter.match(dict("value", new Version(2, 0, 0))));
+            assertFalse(filter.match(dict("value", new Long(1))));
+        }
+
+        filter = new FilterImpl("(value~=Hello World)");
+        for (int i = 0; i < 2; i++)
+        {
+            assertTrue(filter.match(dict("value", "helloworld")));
+            assertTrue(filter.match(dict("value", " HELLO  world ")));
+            assertFalse(filter.match(dict("value", "hello")));
+        }
+    }
+
+    public void testParseCached() throws Exception
+    {
+        SimpleFilter sf = SimpleFilter.parseCached("(&(a=b)(c>=1))");
+        assertSame(sf, SimpleFilter.parseCached("(&(a=b)(c>=1))"));
+        assertEquals(SimpleFilter.parse("(&(a=b)(c>=1))").toString(), sf.toString());
+        try
+        {
+            SimpleFilter.parseCached("(a=b");
+            fail("Filter should not parse");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // Expected
+        }
+        assertEquals(new FilterImpl("(&(a=b)(c>=1))"), new FilterImpl("(&(a=b)(c>=1))"));
+    }
+
+    private static Dictionary dict(String key, Object value)
+    {
+        Dictionary dict = new Hashtable();
+        dict.put(key, value);
+        return dict;
+    }
 }
@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.ext.BundleMetricsDTO;
+import org.apache.felix.framework.ext.FrameworkMetrics;
+import org.apache.felix.framework.ext.FrameworkMetricsDTO;
+import org.apache.felix.framework.ext.ListenerMetricsDTO;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.launch.Framework;
+
+public class FrameworkMetricsTest extends TestCase
+{
+    private File m_cacheDir;
+    private Framework m_framework;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(FelixConstants.METRICS_PROP, "true");
+        m_framework = new Felix(params);
+        m_framework.init();
+        m_framework.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_framework.stop();
+        m_framework.waitForStop(10000);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testMetricsAreCollectedWhileEnabled() throws Exception
+    {
+        BundleContext context = m_framework.getBundleContext();
+        ServiceReference<FrameworkMetrics> ref =
+            context.getServiceReference(FrameworkMetrics.class);
+        assertNotNull(ref);
+        FrameworkMetrics metrics = context.getService(ref);
+        assertTrue(metrics.isEnabled());
+
+        final int[] events = new int[1];
+        SynchronousBundleListener listener = new SynchronousBundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+                events[0]++;
+            }
+        };
+        context.addBundleListener(listener);
+
+        Bundle bundle = install("test.metrics");
+        bundle.start();
+        assertNotNull(bundle.loadClass("java.lang.String"));
+        bundle.stop();
+        assertNotNull(context.getServiceReferences(FrameworkMetrics.class, null));
+
+        FrameworkMetricsDTO dto = m_framework.adapt(FrameworkMetricsDTO.class);
+        assertTrue(dto.enabled);
+        assertTrue(dto.resolves >= 1);
+        assertEquals(0, dto.failedResolves);
+        assertTrue(dto.resolveTime >= dto.maxResolveTime);
+        assertTrue(dto.serviceLookups >= 2);
+        assertEquals(1, dto.bundleStarts);
+        assertEquals(1, dto.bundleStops);
+
+        BundleMetricsDTO bundleDto = bundle.adapt(BundleMetricsDTO.class);
+        assertEquals(bundle.getBundleId(), bundleDto.id);
+        assertEquals(1, bundleDto.classLoads);
+        assertTrue(bundleDto.lastStartTime >= 0);
+        assertTrue(bundleDto.lastStopTime >= 0);
+        boolean found = false;
+        for (BundleMetricsDTO b : dto.bundles)
+        {
+            found |= (b.id == bundle.getBundleId());
+        }
+        assertTrue(found);
+
+        ListenerMetricsDTO listenerDto = null;
+        for (ListenerMetricsDTO l : dto.listeners)
+        {
+            if (l.listener.equals(listener.getClass().getName()))
+            {
+                listenerDto = l;
+            }
+        }
+        assertNotNull(listenerDto);
+        assertEquals(0, listenerDto.bundle);
+        assertEquals(events[0], listenerDto.callbacks);
+        assertTrue(listenerDto.callbackTime >= listenerDto.maxCallbackTime);
+
+        // Nothing is collected while disabled.
+        metrics.setEnabled(false);
+        bundle.start();
+        bundle.loadClass("java.lang.Integer");
+        dto = metrics.getMetrics();
+        assertFalse(dto.enabled);
+        assertEquals(1, dto.bundleStarts);
+        assertEquals(1, bundle.adapt(BundleMetricsDTO.class).classLoads);
+        for (ListenerMetricsDTO l : dto.listeners)
+        {
+            if (l.listener.equals(listener.getClass().getName()))
+            {
+                assertEquals(listenerDto.callbacks, l.callbacks);
+            }
+        }
+        context.ungetService(ref);
+    }
+
+    private Bundle install(String bsn) throws Exception
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+
+        String manifest = "Bundle-SymbolicName: " + bsn + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n";
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.putNextEntry(new ZipEntry("test/a.txt"));
+        os.write(bsn.getBytes("utf-8"));
+        os.close();
+
+        return m_framework.getBundleContext().installBundle(f.toURI().toString());
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
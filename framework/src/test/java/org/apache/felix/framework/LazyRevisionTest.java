@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class LazyRevisionTest extends TestCase
+{
+    private File m_cacheDir;
+    private Framework m_framework;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(FelixConstants.LAZY_REVISIONS_PROP, "true");
+        m_framework = new Felix(params);
+        m_framework.init();
+        m_framework.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_framework.stop();
+        m_framework.waitForStop(10000);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testCapabilitiesAreCreatedOnDemand() throws Exception
+    {
+        Bundle exporter = install("test.exporter", "Export-Package: test.a\n");
+        Bundle importer = install("test.importer", "Import-Package: test.a\n");
+        Bundle unrelated = install("test.unrelated", "Export-Package: test.c\n");
+        assertNotNull(getRevision(exporter).getCapabilitySummary());
+        assertNotNull(getRevision(importer).getCapabilitySummary());
+        assertNotNull(getRevision(unrelated).getCapabilitySummary());
+
+        // Resolving the importer only needs the exporter.
+        FrameworkWiring fw = m_framework.adapt(FrameworkWiring.class);
+        assertTrue(fw.resolveBundles(Collections.singletonList(importer)));
+        assertEquals(Bundle.RESOLVED, exporter.getState());
+        assertNull(getRevision(exporter).getCapabilitySummary());
+        assertNull(getRevision(importer).getCapabilitySummary());
+        assertNotNull(getRevision(unrelated).getCapabilitySummary());
+
+        // Asking for the capabilities creates them.
+        List<BundleCapability> caps = getRevision(unrelated)
+            .getDeclaredCapabilities(BundleRevision.PACKAGE_NAMESPACE);
+        assertEquals(1, caps.size());
+        assertEquals("test.c",
+            caps.get(0).getAttributes().get(BundleRevision.PACKAGE_NAMESPACE));
+        assertNull(getRevision(unrelated).getCapabilitySummary());
+
+        // A later importer still finds the package.
+        Bundle importer2 = install("test.importer2", "Import-Package: test.c\n");
+        assertTrue(fw.resolveBundles(Collections.singletonList(importer2)));
+        assertEquals(Bundle.RESOLVED, unrelated.getState());
+    }
+
+    public void testRequireBundleIndexesProvider() throws Exception
+    {
+        Bundle provider = install("test.provider", "Export-Package: test.p\n");
+        Bundle requirer = install("test.requirer", "Require-Bundle: test.provider\n");
+        Bundle unrelated = install("test.other", "Export-Package: test.o\n");
+
+        assertTrue(m_framework.adapt(FrameworkWiring.class)
+            .resolveBundles(Collections.singletonList(requirer)));
+        assertEquals(Bundle.RESOLVED, provider.getState());
+        assertNotNull(getRevision(unrelated).getCapabilitySummary());
+
+        // Uninstalling an unindexed revision does not create its capabilities.
+        unrelated.uninstall();
+        assertTrue(m_framework.adapt(FrameworkWiring.class).resolveBundles(null));
+    }
+
+    private static BundleRevisionImpl getRevision(Bundle bundle)
+    {
+        return (BundleRevisionImpl) bundle.adapt(BundleRevision.class);
+    }
+
+    private Bundle install(String bsn, String headers) throws Exception
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+
+        String manifest = "Bundle-SymbolicName: " + bsn + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + headers;
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.putNextEntry(new ZipEntry("test/entry.txt"));
+        os.write(bsn.getBytes("utf-8"));
+        os.close();
+
+        return m_framework.getBundleContext().installBundle(f.toURI().toString());
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
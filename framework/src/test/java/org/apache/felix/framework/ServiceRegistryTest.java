@@ -331,4 +331,45 @@ public class ServiceRegistryTest extends TestCase
         assertEquals("Unregistration should have no effect", 0, sr.getHooks(FindHook.class).size());
         assertEquals("Unregistration should have no effect", 0, sr.getHooks(ListenerHook.class).size());
     }
+
+    public void testLookupsDoNotWaitForRegistryLock() throws Exception
+    {
+        MockControl control = MockControl.createNiceControl(Bundle.class);
+        final Bundle b = (Bundle) control.getMock();
+        control.replay();
+
+        MockControl controlContext = MockControl.createNiceControl(BundleContext.class);
+        BundleContext c = (BundleContext) controlContext.getMock();
+        controlContext.expectAndReturn(c.getBundle(), b);
+        controlContext.replay();
+
+        final ServiceRegistry sr = new ServiceRegistry(new Logger(), null);
+        sr.registerService(c, new String [] {String.class.getName()}, "hello", new Hashtable());
+
+        final Object[] result = new Object[3];
+        Thread t = new Thread()
+        {
+            public void run()
+            {
+                Collection refs = sr.getServiceReferences(String.class.getName(), null);
+                ServiceReference ref = (ServiceReference) refs.iterator().next();
+                result[0] = refs;
+                result[1] = sr.getService(b, ref, false);
+                result[2] = sr.getServicesInUse(b);
+                sr.ungetService(b, ref, null);
+            }
+        };
+
+        // Registry updates hold the registry lock, lookups do not.
+        synchronized (sr)
+        {
+            t.start();
+            t.join(10000);
+        }
+        assertFalse(t.isAlive());
+        assertEquals(1, ((Collection) result[0]).size());
+        assertEquals("hello", result[1]);
+        assertEquals(1, ((ServiceReference[]) result[2]).length);
+        assertNull(sr.getServicesInUse(b));
+    }
 }
@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+
+public class StartLevelParallelismTest extends TestCase
+{
+    public static final int DELAY = 1000;
+    private static final int BUNDLES = 4;
+    // The system property holding the latch the overlapping activators
+    // wait on; each bundle has its own copy of the activator class, so
+    // they can only share objects of system classes.
+    public static final String LATCH_PROP = "felix.test.startlevel.latch";
+
+    private File m_cacheDir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        deleteDir(m_cacheDir);
+    }
+
+    public void testBundlesOfLevelStartConcurrently() throws Exception
+    {
+        Framework f = createFramework(BUNDLES);
+        System.getProperties().put(LATCH_PROP, new CountDownLatch(BUNDLES));
+        try
+        {
+            List<Bundle> bundles = new ArrayList<Bundle>();
+            for (int i = 0; i < BUNDLES; i++)
+            {
+                bundles.add(install(f, "test.overlapping." + i,
+                    OverlappingActivator.class, 2));
+            }
+            Bundle failing = install(f, "test.failing", FailingActivator.class, 2);
+
+            final List<FrameworkEvent> errors = new ArrayList<FrameworkEvent>();
+            f.getBundleContext().addFrameworkListener(new FrameworkListener()
+            {
+                public void frameworkEvent(FrameworkEvent event)
+                {
+                    if (event.getType() == FrameworkEvent.ERROR)
+                    {
+                        synchronized (errors)
+                        {
+                            errors.add(event);
+                            errors.notifyAll();
+                        }
+                    }
+                }
+            });
+
+            // The activators only return once all of them are running, so
+            // the bundles are only active if they were started concurrently.
+            setStartLevelAndWait(f, 2);
+
+            for (Bundle b : bundles)
+            {
+                assertEquals(Bundle.ACTIVE, b.getState());
+            }
+            assertEquals(Bundle.RESOLVED, failing.getState());
+
+            // Framework events are delivered asynchronously.
+            synchronized (errors)
+            {
+                long end = System.currentTimeMillis() + DELAY * 10;
+                while (errors.isEmpty() && (System.currentTimeMillis() < end))
+                {
+                    errors.wait(DELAY);
+                }
+                assertEquals(1, errors.size());
+                assertEquals(failing, errors.get(0).getBundle());
+            }
+
+            // Stopping is not affected and still happens in order.
+            setStartLevelAndWait(f, 1);
+            for (Bundle b : bundles)
+            {
+                assertEquals(Bundle.RESOLVED, b.getState());
+            }
+        }
+        finally
+        {
+            System.getProperties().remove(LATCH_PROP);
+            f.stop();
+            f.waitForStop(DELAY * 10);
+        }
+    }
+
+    public void testBundlesOfLevelStartSequentiallyByDefault() throws Exception
+    {
+        Framework f = createFramework(1);
+        try
+        {
+            List<Bundle> bundles = installBundles(f, 2);
+
+            long t0 = System.currentTimeMillis();
+            setStartLevelAndWait(f, 2);
+            long t1 = System.currentTimeMillis();
+
+            for (Bundle b : bundles)
+            {
+                assertEquals(Bundle.ACTIVE, b.getState());
+            }
+            assertTrue("Took " + (t1 - t0) + "ms", (t1 - t0) >= DELAY * BUNDLES);
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(DELAY * 10);
+        }
+    }
+
+    private Framework createFramework(int parallelism) throws Exception
+    {
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(FelixConstants.STARTLEVEL_PARALLELISM_PROP,
+            Integer.toString(parallelism));
+        Framework f = new Felix(params);
+        f.init();
+        f.start();
+        return f;
+    }
+
+    private List<Bundle> installBundles(Framework f, int level) throws Exception
+    {
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        for (int i = 0; i < BUNDLES; i++)
+        {
+            bundles.add(install(f, "test.slow." + i, SlowActivator.class, level));
+        }
+        return bundles;
+    }
+
+    private Bundle install(Framework f, String bsn, Class activator, int level)
+        throws Exception
+    {
+        Bundle b = f.getBundleContext().installBundle(
+            createBundle(bsn, activator).toURI().toString());
+        b.adapt(BundleStartLevel.class).setStartLevel(level);
+        b.start();
+        return b;
+    }
+
+    private static void setStartLevelAndWait(Framework f, int level)
+        throws InterruptedException
+    {
+        final Object lock = new Object();
+        final boolean[] done = new boolean[1];
+        f.adapt(FrameworkStartLevel.class).setStartLevel(level, new FrameworkListener()
+        {
+            public void frameworkEvent(FrameworkEvent event)
+            {
+                synchronized (lock)
+                {
+                    done[0] = true;
+                    lock.notifyAll();
+                }
+            }
+        });
+        synchronized (lock)
+        {
+            long end = System.currentTimeMillis() + DELAY * 20;
+            while (!done[0] && (System.currentTimeMillis() < end))
+            {
+                lock.wait(DELAY);
+            }
+        }
+        assertTrue(done[0]);
+    }
+
+    private File createBundle(String bsn, Class activator) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+
+        String manifest = "Bundle-SymbolicName: " + bsn + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: org.osgi.framework\n";
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        mf.getMainAttributes().putValue(Constants.BUNDLE_ACTIVATOR, activator.getName());
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+
+        String path = activator.getName().replace('.', '/') + ".class";
+        os.putNextEntry(new ZipEntry(path));
+
+        InputStream is = activator.getClassLoader().getResourceAsStream(path);
+        byte[] b = new byte[is.available()];
+        is.read(b);
+        is.close();
+        os.write(b);
+
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+
+    public static class SlowActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+            Thread.sleep(DELAY);
+        }
+
+        public void stop(BundleContext context) throws Exception
+        {
+        }
+    }
+
+    public static class OverlappingActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+            CountDownLatch latch = (CountDownLatch) System.getProperties().get(LATCH_PROP);
+            latch.countDown();
+            if (!latch.await(DELAY * 10, TimeUnit.MILLISECONDS))
+            {
+                throw new IllegalStateException("Not started concurrently.");
+            }
+        }
+
+        public void stop(BundleContext context) throws Exception
+        {
+        }
+    }
+
+    public static class FailingActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+            throw new IllegalStateException("Failing on purpose.");
+        }
+
+        public void stop(BundleContext context) throws Exception
+        {
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class WiringSnapshotTest extends TestCase
+{
+    private File m_cacheDir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        deleteDir(m_cacheDir);
+    }
+
+    public void testWiringsRehydratedAfterRestart() throws Exception
+    {
+        Framework f = startFramework(true);
+        Bundle a1 = install(f, "test.a1", "Export-Package: test.a; version=1.0\n");
+        Bundle b = install(f, "test.b", "Import-Package: test.a\n");
+        assertTrue(f.adapt(FrameworkWiring.class)
+            .resolveBundles(null));
+        assertEquals(a1, getPackageProvider(b));
+        stopFramework(f);
+
+        assertTrue(new File(new File(m_cacheDir, "bundle0"),
+            WiringSnapshot.SNAPSHOT_FILE).exists());
+
+        // Unchanged bundles get their previous wiring back.
+        f = startFramework(true);
+        b = f.getBundleContext().getBundle(b.getBundleId());
+        assertTrue(f.adapt(FrameworkWiring.class)
+            .resolveBundles(null));
+        assertEquals(a1.getBundleId(), getPackageProvider(b).getBundleId());
+        stopFramework(f);
+    }
+
+    public void testInstalledProviderInvalidatesSnapshot() throws Exception
+    {
+        Framework f = startFramework(true);
+        install(f, "test.a1", "Export-Package: test.a; version=1.0\n");
+        Bundle b = install(f, "test.b", "Import-Package: test.a\n");
+        assertTrue(f.adapt(FrameworkWiring.class)
+            .resolveBundles(null));
+        stopFramework(f);
+
+        // A better provider installed after the restart is a new input,
+        // so the persisted wirings are not used anymore.
+        f = startFramework(true);
+        Bundle a2 = install(f, "test.a2", "Export-Package: test.a; version=2.0\n");
+        b = f.getBundleContext().getBundle(b.getBundleId());
+        assertTrue(f.adapt(FrameworkWiring.class)
+            .resolveBundles(null));
+        assertEquals(a2.getBundleId(), getPackageProvider(b).getBundleId());
+        stopFramework(f);
+    }
+
+    public void testChangedProviderIsResolvedAgain() throws Exception
+    {
+        Framework f = startFramework(true);
+        Bundle a1 = install(f, "test.a1", "Export-Package: test.a; version=1.0\n");
+        Bundle b = install(f, "test.b", "Import-Package: test.a\n");
+        assertTrue(f.adapt(FrameworkWiring.class)
+            .resolveBundles(null));
+        stopFramework(f);
+
+        // Updating the provider invalidates the snapshot of its dependents.
+        f = startFramework(true);
+        Bundle a2 = install(f, "test.a2", "Export-Package: test.a; version=2.0\n");
+        a1 = f.getBundleContext().getBundle(a1.getBundleId());
+        a1.update(new FileInputStream(createBundle(
+            "test.a1", "Export-Package: test.a; version=1.0\n")));
+        b = f.getBundleContext().getBundle(b.getBundleId());
+        assertTrue(f.adapt(FrameworkWiring.class)
+            .resolveBundles(null));
+        assertEquals(a2.getBundleId(), getPackageProvider(b).getBundleId());
+        stopFramework(f);
+    }
+
+    public void testSnapshotDisabledByDefault() throws Exception
+    {
+        Framework f = startFramework(false);
+        install(f, "test.a1", "Export-Package: test.a; version=1.0\n");
+        Bundle b = install(f, "test.b", "Import-Package: test.a\n");
+        assertTrue(f.adapt(FrameworkWiring.class)
+            .resolveBundles(null));
+        stopFramework(f);
+
+        assertFalse(new File(new File(m_cacheDir, "bundle0"),
+            WiringSnapshot.SNAPSHOT_FILE).exists());
+
+        f = startFramework(false);
+        Bundle a2 = install(f, "test.a2", "Export-Package: test.a; version=2.0\n");
+        b = f.getBundleContext().getBundle(b.getBundleId());
+        assertTrue(f.adapt(FrameworkWiring.class)
+            .resolveBundles(null));
+        assertEquals(a2.getBundleId(), getPackageProvider(b).getBundleId());
+        stopFramework(f);
+    }
+
+    private Framework startFramework(boolean snapshot) throws Exception
+    {
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        if (snapshot)
+        {
+            params.put(FelixConstants.RESOLVER_SNAPSHOT_PROP, "true");
+        }
+        Framework f = new Felix(params);
+        f.init();
+        f.start();
+        return f;
+    }
+
+    private static void stopFramework(Framework f) throws Exception
+    {
+        f.stop();
+        f.waitForStop(10000);
+    }
+
+    private Bundle install(Framework f, String bsn, String headers) throws Exception
+    {
+        return f.getBundleContext().installBundle(
+            createBundle(bsn, headers).toURI().toString());
+    }
+
+    private static Bundle getPackageProvider(Bundle bundle)
+    {
+        BundleWiring wiring = bundle.adapt(BundleWiring.class);
+        List<BundleWire> wires = wiring.getRequiredWires(BundleRevision.PACKAGE_NAMESPACE);
+        assertEquals(1, wires.size());
+        return wires.get(0).getProvider().getBundle();
+    }
+
+    private File createBundle(String bsn, String headers) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+
+        String manifest = "Bundle-SymbolicName: " + bsn + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + headers;
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
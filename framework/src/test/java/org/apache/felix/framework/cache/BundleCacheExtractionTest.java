@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.Logger;
+import org.osgi.framework.Constants;
+
+public class BundleCacheExtractionTest extends TestCase
+{
+    private File m_cacheDir;
+    private BundleCache m_cache;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(BundleCache.CACHE_EXTRACTTHREADS_PROP, "2");
+        m_cache = new BundleCache(new Logger(), params);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_cache.release();
+        deleteDir(m_cacheDir);
+    }
+
+    public void testEmbeddedJarsAreExtracted() throws Exception
+    {
+        BundleArchive archive = m_cache.create(1, 1, "test:1",
+            new ByteArrayInputStream(createBundle(
+                ".,lib/a.jar;lib/b.jar,lib/missing.jar,classes/")));
+
+        assertTrue(archive.awaitExtraction(10000));
+        assertEquals(3, archive.getEmbeddedJarCount());
+        assertEquals(3, archive.getExtractedJarCount());
+        assertEquals(2, countFiles(m_cacheDir, ".jar") - 1);
+
+        // Extracted files are used when the class path is set up.
+        Content content = archive.getCurrentRevision().getContent();
+        Content embedded = content.getEntryAsContent("lib/a.jar");
+        assertNotNull(embedded.getEntryAsBytes("a.txt"));
+        embedded.close();
+        content.close();
+
+        // An update extracts the embedded JAR files of the new revision.
+        archive.revise("test:2", new ByteArrayInputStream(
+            createBundle("lib/a.jar")));
+        assertTrue(archive.awaitExtraction(10000));
+        assertEquals(1, archive.getEmbeddedJarCount());
+        assertEquals(1, archive.getExtractedJarCount());
+
+        archive.closeAndDelete();
+        assertEquals(0, archive.getEmbeddedJarCount());
+    }
+
+    public void testRollbackResumesPreviousExtraction() throws Exception
+    {
+        BundleArchive archive = m_cache.create(1, 1, "test:1",
+            new ByteArrayInputStream(createBundle("lib/a.jar,lib/b.jar")));
+        archive.revise("test:2", new ByteArrayInputStream(
+            createBundle("lib/a.jar")));
+
+        // The extraction of the rolled back revision is stopped before its
+        // directory is deleted, and the previous revision is extracted.
+        assertTrue(archive.rollbackRevise());
+        assertTrue(archive.awaitExtraction(10000));
+        assertEquals(2, archive.getEmbeddedJarCount());
+        assertEquals(2, archive.getExtractedJarCount());
+
+        archive.closeAndDelete();
+    }
+
+    public void testNoEmbeddedJars() throws Exception
+    {
+        BundleArchive archive = m_cache.create(1, 1, "test:1",
+            new ByteArrayInputStream(createBundle(null)));
+        assertTrue(archive.awaitExtraction(0));
+        assertEquals(0, archive.getEmbeddedJarCount());
+        archive.closeAndDelete();
+    }
+
+    private static byte[] createBundle(String classPath) throws IOException
+    {
+        String manifest = "Bundle-SymbolicName: test\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + ((classPath == null) ? "" : "Bundle-ClassPath: " + classPath + "\n");
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        JarOutputStream os = new JarOutputStream(baos, mf);
+        os.putNextEntry(new ZipEntry("lib/a.jar"));
+        os.write(createJar("a.txt"));
+        os.putNextEntry(new ZipEntry("lib/b.jar"));
+        os.write(createJar("b.txt"));
+        os.close();
+        return baos.toByteArray();
+    }
+
+    private static byte[] createJar(String entry) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        JarOutputStream os = new JarOutputStream(baos);
+        os.putNextEntry(new ZipEntry(entry));
+        os.write(entry.getBytes("utf-8"));
+        os.close();
+        return baos.toByteArray();
+    }
+
+    private static int countFiles(File root, String suffix)
+    {
+        int count = 0;
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                count += countFiles(file, suffix);
+            }
+        }
+        else if (root.getName().endsWith(suffix))
+        {
+            count++;
+        }
+        return count;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.Logger;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+
+public class BundleInfoJournalTest extends TestCase
+{
+    private File m_cacheDir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        deleteDir(m_cacheDir);
+    }
+
+    public void testChangesAreJournaledAndExported() throws Exception
+    {
+        BundleCache cache = createCache(true);
+        assertEquals(0, cache.getArchives().length);
+        BundleArchive archive = cache.create(1, 1, "test:1", createBundle());
+        File journal = new File(m_cacheDir, "info.journal");
+
+        for (int i = 2; i <= 50; i++)
+        {
+            archive.setStartLevel(i);
+        }
+        archive.setPersistentState(Bundle.ACTIVE);
+        assertTrue(journal.exists());
+        assertEquals("1", readInfo(1)[3]);
+
+        cache.release();
+        assertFalse(journal.exists());
+        String[] info = readInfo(1);
+        assertEquals(Integer.toString(Bundle.ACTIVE), info[2]);
+        assertEquals("50", info[3]);
+
+        // The exported info is read without the journal.
+        cache = createCache(false);
+        BundleArchive[] archives = cache.getArchives();
+        assertEquals(1, archives.length);
+        assertEquals(50, archives[0].getStartLevel());
+        archives[0].close();
+        cache.release();
+    }
+
+    public void testJournalIsReplayed() throws Exception
+    {
+        BundleCache cache = createCache(true);
+        cache.getArchives();
+        BundleArchive first = cache.create(1, 1, "test:1", createBundle());
+        BundleArchive second = cache.create(2, 1, "test:2", createBundle());
+        first.setStartLevel(3);
+        second.setStartLevel(4);
+        second.closeAndDelete();
+
+        // Simulate a crash leaving an incomplete record behind.
+        FileOutputStream os = new FileOutputStream(
+            new File(m_cacheDir, "info.journal"), true);
+        os.write(new byte[] { 0, 0, 0, 42, 1, 2 });
+        os.close();
+
+        BundleCache recovered = createCache(true);
+        BundleArchive[] archives = recovered.getArchives();
+        assertEquals(1, archives.length);
+        assertEquals(1, archives[0].getId());
+        assertEquals(3, archives[0].getStartLevel());
+        assertEquals("1", readInfo(1)[3]);
+
+        archives[0].setStartLevel(5);
+        archives[0].close();
+        recovered.release();
+        assertEquals("5", readInfo(1)[3]);
+
+        first.close();
+    }
+
+    private BundleCache createCache(boolean journal) throws Exception
+    {
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(BundleCache.CACHE_LOCKING_PROP, "false");
+        params.put(BundleCache.CACHE_JOURNAL_PROP, Boolean.toString(journal));
+        return new BundleCache(new Logger(), params);
+    }
+
+    private String[] readInfo(long id) throws IOException
+    {
+        BufferedReader br = new BufferedReader(new FileReader(
+            new File(new File(m_cacheDir, "bundle" + id), "bundle.info")));
+        try
+        {
+            String[] info = new String[6];
+            for (int i = 0; i < info.length; i++)
+            {
+                info[i] = br.readLine();
+            }
+            return info;
+        }
+        finally
+        {
+            br.close();
+        }
+    }
+
+    private static ByteArrayInputStream createBundle() throws IOException
+    {
+        String manifest = "Bundle-SymbolicName: test\n"
+            + "Bundle-ManifestVersion: 2\n";
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new JarOutputStream(baos, mf).close();
+        return new ByteArrayInputStream(baos.toByteArray());
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+
+public class CapabilitySetTest extends TestCase
+{
+    private static final String NS = BundleRevision.PACKAGE_NAMESPACE;
+
+    private static final String[] FILTERS = {
+        "(&(osgi.wiring.package=a)(version>=1.0.0))",
+        "(&(osgi.wiring.package=a)(version>=1.0.0)(!(version>=2.0.0)))",
+        "(&(osgi.wiring.package=b)(version<=1.5.0))",
+        "(&(osgi.wiring.package=b)(!(version<=1.0.0))(version<=3.0.0))",
+        "(&(version>=2.0.0)(osgi.wiring.package=c))",
+        "(&(osgi.wiring.package=a)(version>=x))",
+        "(&(osgi.wiring.package=a)(version=[1.0.0,2.0.0\\)))",
+        "(&(osgi.wiring.package=d)(version>=0.0.0))",
+        "(|(osgi.wiring.package=a)(version>=2.0.0))",
+        "(osgi.wiring.package=b)"
+    };
+
+    public void testRangeIndexMatchesLikeScan()
+    {
+        CapabilitySet indexed = new CapabilitySet(Collections.singletonList(NS),
+            Collections.singletonMap(NS, "version"), true);
+        CapabilitySet plain = new CapabilitySet(Collections.singletonList(NS), true);
+
+        List<BundleCapability> caps = new ArrayList<BundleCapability>();
+        String[] names = { "a", "b", "c" };
+        for (int i = 0; i < 30; i++)
+        {
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put(NS, names[i % names.length]);
+            switch (i % 5)
+            {
+                case 0:
+                    // No version.
+                    break;
+                case 1:
+                    // A version of another type.
+                    attrs.put("version", Integer.toString(i % 4) + ".5.0");
+                    break;
+                default:
+                    attrs.put("version", new Version(i % 4, i % 3, 0));
+            }
+            BundleCapability cap = new BundleCapabilityImpl(
+                null, NS, Collections.EMPTY_MAP, attrs);
+            caps.add(cap);
+            indexed.addCapability(cap);
+            plain.addCapability(cap);
+        }
+        assertSameMatches(indexed, plain);
+
+        // Only capabilities in range or without a sortable version are
+        // candidates.
+        RangeIndex index = new RangeIndex(NS, "version", true);
+        for (BundleCapability cap : caps)
+        {
+            index.addCapability(cap);
+        }
+        SimpleFilter sf = SimpleFilter.parse(FILTERS[1]);
+        assertEquals(plain.match(sf, false).size() + 4, index.getCandidates(sf).size());
+        assertNull(index.getCandidates(SimpleFilter.parse(
+            "(&(osgi.wiring.package=a)(foo>=1.0.0))")));
+
+        for (int i = 0; i < caps.size(); i += 3)
+        {
+            indexed.removeCapability(caps.get(i));
+            plain.removeCapability(caps.get(i));
+        }
+        assertSameMatches(indexed, plain);
+    }
+
+    private static void assertSameMatches(CapabilitySet indexed, CapabilitySet plain)
+    {
+        for (String filter : FILTERS)
+        {
+            SimpleFilter sf = SimpleFilter.parse(filter);
+            assertEquals(filter, plain.match(sf, false), indexed.match(sf, false));
+        }
+    }
+}
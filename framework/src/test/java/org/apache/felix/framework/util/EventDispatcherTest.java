@@ -19,6 +19,7 @@
 package org.apache.felix.framework.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -26,6 +27,8 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
@@ -35,9 +38,13 @@ import org.easymock.EasyMock;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.UnfilteredServiceListener;
 import org.osgi.framework.hooks.service.EventHook;
 import org.osgi.framework.launch.Framework;
 
@@ -151,6 +158,197 @@ public class EventDispatcherTest extends TestCase
         assertTrue(calledHooks.contains(eh2));
     }
 
+    public void testConcurrentFrameworkEventDelivery() throws Exception
+    {
+        Bundle b1 = getMockBundle();
+        Bundle b2 = getMockBundle();
+
+        Logger logger = new Logger();
+        ServiceRegistry registry = new ServiceRegistry(logger, null);
+        EventDispatcher ed = new EventDispatcher(logger, registry, 2);
+        ed.startDispatching();
+
+        // A slow listener must not delay the events of other listeners.
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<FrameworkEvent> slowEvents =
+            Collections.synchronizedList(new ArrayList<FrameworkEvent>());
+        FrameworkListener slow = new FrameworkListener()
+        {
+            public void frameworkEvent(FrameworkEvent event)
+            {
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                slowEvents.add(event);
+            }
+        };
+        ed.addListener(b1.getBundleContext(), FrameworkListener.class, slow, null);
+
+        final CountDownLatch fastDone = new CountDownLatch(10);
+        final List<FrameworkEvent> fastEvents =
+            Collections.synchronizedList(new ArrayList<FrameworkEvent>());
+        FrameworkListener fast = new FrameworkListener()
+        {
+            public void frameworkEvent(FrameworkEvent event)
+            {
+                fastEvents.add(event);
+                fastDone.countDown();
+            }
+        };
+        ed.addListener(b2.getBundleContext(), FrameworkListener.class, fast, null);
+
+        List<FrameworkEvent> events = new ArrayList<FrameworkEvent>();
+        for (int i = 0; i < 10; i++)
+        {
+            FrameworkEvent event = new FrameworkEvent(FrameworkEvent.INFO, b1, null);
+            events.add(event);
+            ed.fireFrameworkEvent(event);
+        }
+
+        assertTrue(fastDone.await(10, TimeUnit.SECONDS));
+        assertEquals(events, fastEvents);
+        assertEquals(0, slowEvents.size());
+
+        int depth = 0;
+        for (EventDispatcher.ListenerStatistics stats : ed.getListenerStatistics())
+        {
+            if (stats.getListener() == slow)
+            {
+                depth = stats.getQueueDepth();
+            }
+            else
+            {
+                assertEquals(10, stats.getDeliveredEvents());
+            }
+        }
+        assertEquals(9, depth);
+
+        // Stopping delivers the remaining events in order.
+        release.countDown();
+        ed.stopDispatching();
+        assertEquals(events, slowEvents);
+    }
+
+    public void testFireServiceEventToIndexedListeners() throws Exception
+    {
+        Bundle b1 = getMockBundle();
+        Bundle b2 = getMockBundle();
+
+        Logger logger = new Logger();
+        ServiceRegistry registry = new ServiceRegistry(logger, null);
+        EventDispatcher ed = new EventDispatcher(logger, registry);
+
+        final List<String> fired = Collections.synchronizedList(new ArrayList<String>());
+        String[] filters = new String[] {
+            "(objectClass=java.lang.String)",
+            "(&(objectClass=java.lang.Integer)(!(x=1)))",
+            "(|(objectClass=java.lang.String)(objectClass=java.lang.Long))",
+            "(objectClass=java.lang.*)",
+            "(!(objectClass=java.lang.String))",
+            null
+        };
+        for (int i = 0; i < filters.length; i++)
+        {
+            final String id = "sl" + i;
+            ServiceListener sl = new ServiceListener()
+            {
+                public void serviceChanged(ServiceEvent event)
+                {
+                    fired.add(id);
+                }
+            };
+            ed.addListener(((i % 2) == 0) ? b1.getBundleContext() : b2.getBundleContext(),
+                ServiceListener.class, sl,
+                (filters[i] == null) ? null : FrameworkUtil.createFilter(filters[i]));
+        }
+
+        Framework framework = EasyMock.createNiceMock(Framework.class);
+        EasyMock.replay(new Object[] { framework });
+
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.REGISTERED,
+            getMockServiceReference(String.class)), null, framework);
+        assertEquals(new HashSet<String>(Arrays.asList("sl0", "sl2", "sl3", "sl5")),
+            new HashSet<String>(fired));
+
+        fired.clear();
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.REGISTERED,
+            getMockServiceReference(Integer.class)), null, framework);
+        assertEquals(new HashSet<String>(Arrays.asList("sl1", "sl3", "sl4", "sl5")),
+            new HashSet<String>(fired));
+
+        fired.clear();
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.REGISTERED,
+            getMockServiceReference(Object.class)), null, framework);
+        assertEquals(new HashSet<String>(Arrays.asList("sl3", "sl4", "sl5")),
+            new HashSet<String>(fired));
+    }
+
+    public void testServiceListenerFilterObjectClasses() throws Exception
+    {
+        ServiceListener sl = new ServiceListener()
+        {
+            public void serviceChanged(ServiceEvent event)
+            {
+            }
+        };
+
+        assertEquals(Arrays.asList("a"), getObjectClasses(sl, "(objectClass=a)"));
+        assertEquals(Arrays.asList("a"), getObjectClasses(sl, "(OBJECTCLASS=a)"));
+        assertEquals(Arrays.asList("a"), getObjectClasses(sl,
+            "(&(|(objectClass=a)(objectClass=b))(objectClass=a)(x=y))"));
+        assertEquals(Arrays.asList("a", "b"), getObjectClasses(sl,
+            "(|(objectClass=a)(&(objectClass=b)(x=y)))"));
+        assertNull(getObjectClasses(sl, "(|(objectClass=a)(x=y))"));
+        assertNull(getObjectClasses(sl, "(!(objectClass=a))"));
+        assertNull(getObjectClasses(sl, "(objectClass=a*)"));
+        assertNull(getObjectClasses(sl, "(objectClass>=a)"));
+        assertNull(getObjectClasses(sl, "(objectClass=*)"));
+        assertNull(getObjectClasses(sl, null));
+
+        UnfilteredServiceListener usl = new UnfilteredServiceListener()
+        {
+            public void serviceChanged(ServiceEvent event)
+            {
+            }
+        };
+        assertNull(getObjectClasses(usl, "(objectClass=a)"));
+    }
+
+    private static List<String> getObjectClasses(ServiceListener sl, String filter)
+        throws Exception
+    {
+        String[] objectClasses = EventDispatcher.ServiceListenerIndex.getObjectClasses(
+            sl, (filter == null) ? null : FrameworkUtil.createFilter(filter));
+        if (objectClasses == null)
+        {
+            return null;
+        }
+        List<String> result = new ArrayList<String>(Arrays.asList(objectClasses));
+        Collections.sort(result);
+        return result;
+    }
+
+    private ServiceReference getMockServiceReference(Class clazz)
+    {
+        ServiceReference sr = EasyMock.createNiceMock(ServiceReference.class);
+        EasyMock.expect(sr.getProperty(Constants.OBJECTCLASS)).andReturn(new String[]
+            {
+                clazz.getName()
+            }).anyTimes();
+        EasyMock.expect(sr.isAssignableTo((Bundle) EasyMock.anyObject(), (String) EasyMock.anyObject()))
+            .andReturn(Boolean.TRUE).anyTimes();
+        EasyMock.replay(new Object[]
+            {
+                sr
+            });
+        return sr;
+    }
+
     private Bundle getMockBundle()
     {
         BundleContext bc = EasyMock.createNiceMock(BundleContext.class);
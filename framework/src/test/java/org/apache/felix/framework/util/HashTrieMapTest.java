@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class HashTrieMapTest extends TestCase
+{
+    public void testBehavesLikeHashMap()
+    {
+        Random random = new Random(42);
+        Map<Object, Integer> expected = new HashMap<Object, Integer>();
+        HashTrieMap<Object, Integer> map = HashTrieMap.empty();
+        List<HashTrieMap<Object, Integer>> snapshots =
+            new ArrayList<HashTrieMap<Object, Integer>>();
+        List<Map<Object, Integer>> expectedSnapshots =
+            new ArrayList<Map<Object, Integer>>();
+
+        for (int i = 0; i < 5000; i++)
+        {
+            // Colliding keys share a hash code, but are not equal.
+            Object key = (i % 3 == 0)
+                ? new CollidingKey(random.nextInt(20))
+                : (Object) Integer.valueOf(random.nextInt(2000) - 1000);
+            if (random.nextInt(3) == 0)
+            {
+                expected.remove(key);
+                map = map.minus(key);
+            }
+            else
+            {
+                expected.put(key, i);
+                map = map.plus(key, i);
+            }
+            if (i % 500 == 0)
+            {
+                snapshots.add(map);
+                expectedSnapshots.add(new HashMap<Object, Integer>(expected));
+            }
+        }
+
+        assertEquals(expected, map);
+        assertEquals(expected.size(), map.size());
+        for (Object key : expected.keySet())
+        {
+            assertTrue(map.containsKey(key));
+            assertEquals(expected.get(key), map.get(key));
+        }
+        assertNull(map.get(new CollidingKey(100)));
+        for (int i = 0; i < snapshots.size(); i++)
+        {
+            assertEquals(expectedSnapshots.get(i), snapshots.get(i));
+        }
+
+        for (Object key : expected.keySet())
+        {
+            map = map.minus(key);
+        }
+        assertTrue(map.isEmpty());
+        assertFalse(map.entrySet().iterator().hasNext());
+    }
+
+    public void testIteratesLongKeysInOrder()
+    {
+        HashTrieMap<Long, String> map = HashTrieMap.empty();
+        for (long id = 2000; id >= 0; id -= 3)
+        {
+            map = map.plus(new Long(id), Long.toString(id));
+        }
+        map = map.minus(new Long(1001));
+
+        long last = -1;
+        for (Long id : map.keySet())
+        {
+            assertTrue(id.longValue() > last);
+            last = id.longValue();
+        }
+        assertEquals(667 - 1, map.size());
+        assertSame(map, map.plus(new Long(2000), map.get(new Long(2000))));
+        assertSame(map, map.minus(new Long(1)));
+    }
+
+    private static class CollidingKey
+    {
+        private final int m_id;
+
+        CollidingKey(int id)
+        {
+            m_id = id;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 7;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return (o instanceof CollidingKey) && (((CollidingKey) o).m_id == m_id);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+
+public class MappedZipFileTest extends TestCase
+{
+    private File m_tmpZip;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        m_tmpZip = File.createTempFile("felix.test", ".zip");
+        m_tmpZip.deleteOnExit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_tmpZip.delete();
+    }
+
+    public void testReadsLikeZipFile() throws Exception
+    {
+        byte[] content = new byte[100000];
+        for (int i = 0; i < content.length; i++)
+        {
+            content[i] = (byte) ((i % 65) + (i / 1000));
+        }
+
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(m_tmpZip));
+        zos.putNextEntry(new ZipEntry("dir/"));
+        zos.putNextEntry(new ZipEntry("dir/deflated.txt"));
+        zos.write(content);
+        zos.putNextEntry(new ZipEntry("dir/empty.txt"));
+        ZipEntry stored = new ZipEntry("stored.txt");
+        stored.setMethod(ZipEntry.STORED);
+        stored.setSize(content.length);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        stored.setCrc(crc.getValue());
+        zos.putNextEntry(stored);
+        zos.write(content);
+        zos.putNextEntry(new ZipEntry("\u00e9t\u00e9.txt"));
+        zos.write(content, 0, 10);
+        zos.setComment("comment");
+        zos.close();
+
+        MappedZipFile mzf = new MappedZipFile(m_tmpZip);
+        ZipFile zf = new ZipFile(m_tmpZip);
+        try
+        {
+            assertEquals(zf.size(), mzf.size());
+            List<String> names = Collections.list(mzf.names());
+            for (String name : names)
+            {
+                ZipEntry ze = zf.getEntry(name);
+                int idx = mzf.getEntryIndex(name);
+                assertEquals(name, mzf.getName(idx));
+                assertEquals(ze.isDirectory(), mzf.isDirectory(idx));
+                assertEquals(ze.getSize(), mzf.getSize(idx));
+
+                byte[] expected = readFully(zf.getInputStream(ze));
+                assertTrue(name, Arrays.equals(expected, mzf.getBytes(idx)));
+                InputStream is = mzf.getInputStream(idx);
+                assertEquals(expected.length, is.available());
+                assertTrue(name, Arrays.equals(expected, readFully(is)));
+            }
+            assertEquals(mzf.getEntryIndex("dir/"), mzf.getEntryIndex("dir"));
+            assertEquals(-1, mzf.getEntryIndex("missing.txt"));
+            assertEquals(-1, mzf.getEntryIndex("stored"));
+
+            InputStream is = mzf.getInputStream(mzf.getEntryIndex("dir/deflated.txt"));
+            is.close();
+            try
+            {
+                is.read();
+                fail("Closed stream should not be readable");
+            }
+            catch (IOException ex)
+            {
+                // Expected
+            }
+
+            mzf.close();
+            try
+            {
+                mzf.getBytes(0);
+                fail("Closed zip file should not be readable");
+            }
+            catch (IllegalStateException ex)
+            {
+                // Expected
+            }
+        }
+        finally
+        {
+            zf.close();
+        }
+    }
+
+    public void testRejectsInvalidFile() throws Exception
+    {
+        FileOutputStream fos = new FileOutputStream(m_tmpZip);
+        fos.write("not a zip file".getBytes());
+        fos.close();
+        try
+        {
+            new MappedZipFile(m_tmpZip);
+            fail("Invalid zip file should be rejected");
+        }
+        catch (ZipException ex)
+        {
+            // Expected
+        }
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[777];
+        int n;
+        while ((n = is.read(buf)) >= 0)
+        {
+            baos.write(buf, 0, n);
+        }
+        is.close();
+        return baos.toByteArray();
+    }
+}
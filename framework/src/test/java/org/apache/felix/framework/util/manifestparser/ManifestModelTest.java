@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util.manifestparser;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.StringMap;
+import org.apache.felix.framework.wiring.BundleRequirementImpl;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+
+public class ManifestModelTest extends TestCase
+{
+    public void testRestoresParsedManifest() throws Exception
+    {
+        Map headers = createHeaders();
+        Map configMap = createConfig("1.0.0");
+        ManifestParser mp = new ManifestParser(null, configMap, null, headers);
+
+        byte[] model = ManifestModel.write(mp, configMap, headers);
+        assertNotNull(model);
+        ManifestParser restored = ManifestModel.read(
+            new Logger(), configMap, null, headers, model);
+        assertNotNull(restored);
+
+        assertEquals(mp.getManifestVersion(), restored.getManifestVersion());
+        assertEquals(mp.getSymbolicName(), restored.getSymbolicName());
+        assertEquals(mp.getBundleVersion(), restored.getBundleVersion());
+        assertEquals(mp.getActivationPolicy(), restored.getActivationPolicy());
+        assertEquals(mp.getActivationIncludeDirective(),
+            restored.getActivationIncludeDirective());
+        assertEquals(mp.getActivationExcludeDirective(),
+            restored.getActivationExcludeDirective());
+        assertEquals(mp.isExtension(), restored.isExtension());
+
+        List<BundleCapability> caps = mp.getCapabilities();
+        List<BundleCapability> restoredCaps = restored.getCapabilities();
+        assertEquals(caps.size(), restoredCaps.size());
+        for (int i = 0; i < caps.size(); i++)
+        {
+            assertEquals(caps.get(i).getNamespace(), restoredCaps.get(i).getNamespace());
+            assertEquals(caps.get(i).getDirectives(), restoredCaps.get(i).getDirectives());
+            assertEquals(caps.get(i).getAttributes(), restoredCaps.get(i).getAttributes());
+        }
+
+        List<BundleRequirement> reqs = mp.getRequirements();
+        List<BundleRequirement> restoredReqs = restored.getRequirements();
+        assertEquals(reqs.size(), restoredReqs.size());
+        for (int i = 0; i < reqs.size(); i++)
+        {
+            BundleRequirementImpl req = (BundleRequirementImpl) reqs.get(i);
+            BundleRequirementImpl restoredReq = (BundleRequirementImpl) restoredReqs.get(i);
+            assertEquals(req.getNamespace(), restoredReq.getNamespace());
+            assertEquals(req.getDirectives(), restoredReq.getDirectives());
+            assertEquals(req.getAttributes(), restoredReq.getAttributes());
+            assertEquals(req.getFilter().toString(), restoredReq.getFilter().toString());
+            assertEquals(req.isOptional(), restoredReq.isOptional());
+        }
+    }
+
+    public void testIgnoresStaleModel() throws Exception
+    {
+        Map headers = createHeaders();
+        Map configMap = createConfig("1.0.0");
+        ManifestParser mp = new ManifestParser(null, configMap, null, headers);
+        byte[] model = ManifestModel.write(mp, configMap, headers);
+
+        assertNull(ManifestModel.read(
+            new Logger(), createConfig("1.0.1"), null, headers, model));
+
+        Map changed = createHeaders();
+        changed.put(Constants.EXPORT_PACKAGE, "test.api");
+        assertNull(ManifestModel.read(new Logger(), configMap, null, changed, model));
+
+        byte[] truncated = new byte[model.length / 2];
+        System.arraycopy(model, 0, truncated, 0, truncated.length);
+        assertNull(ManifestModel.read(new Logger(), configMap, null, headers, truncated));
+    }
+
+    public void testNativeCodeIsNotStored() throws Exception
+    {
+        Map headers = createHeaders();
+        headers.put(Constants.BUNDLE_NATIVECODE, "lib/test.so;osname=Linux");
+        Map configMap = createConfig("1.0.0");
+        ManifestParser mp = new ManifestParser(null, configMap, null, headers);
+        assertNull(ManifestModel.write(mp, configMap, headers));
+    }
+
+    private static Map createConfig(String version)
+    {
+        Map configMap = new HashMap();
+        configMap.put(FelixConstants.FELIX_VERSION_PROPERTY, version);
+        return configMap;
+    }
+
+    private static Map createHeaders()
+    {
+        Map headers = new StringMap();
+        headers.put(Constants.BUNDLE_MANIFESTVERSION, "2");
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, "test.bundle;singleton:=true");
+        headers.put(Constants.BUNDLE_VERSION, "1.2.3.qualifier");
+        headers.put(Constants.EXPORT_PACKAGE,
+            "test.api;version=\"1.1\";uses:=\"test.spi,org.osgi.framework\","
+            + "test.spi;test.impl;version=2;mandatory:=vendor;vendor=acme");
+        headers.put(Constants.IMPORT_PACKAGE,
+            "org.osgi.framework;version=\"[1.5,2)\","
+            + "test.opt;resolution:=optional;version=\"(1.0,1.5]\","
+            + "test.any.*");
+        headers.put(Constants.DYNAMICIMPORT_PACKAGE, "test.dyn.*,test.other");
+        headers.put(Constants.REQUIRE_BUNDLE,
+            "test.required;bundle-version=\"[1,2)\";visibility:=reexport");
+        headers.put(Constants.REQUIRE_CAPABILITY,
+            "test.ns;filter:=\"(&(size>=3)(!(name=x*)))\"");
+        headers.put(Constants.PROVIDE_CAPABILITY,
+            "test.ns;size:Long=5;ratio:Double=0.5;v:Version=1.0;"
+            + "names:List<String>=\"a,b\";counts:List<Long>=\"1,2\"");
+        headers.put(Constants.BUNDLE_REQUIREDEXECUTIONENVIRONMENT, "JavaSE-1.6");
+        headers.put(Constants.BUNDLE_ACTIVATIONPOLICY,
+            "lazy;include:=\"test.api\";exclude:=\"test.spi\"");
+        return headers;
+    }
+}
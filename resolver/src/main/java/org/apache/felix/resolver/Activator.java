@@ -25,6 +25,7 @@ import org.osgi.service.resolver.Resolver;
 public class Activator implements BundleActivator
 {
     public static final String LOG_LEVEL = "felix.resolver.log.level";
+    public static final String PARALLELISM = "felix.resolver.parallelism";
 
     public void start(BundleContext bc) throws Exception
     {
@@ -40,9 +41,21 @@ public class Activator implements BundleActivator
                 // Use default log level.
             }
         }
+        int parallelism = 1;
+        if (bc.getProperty(PARALLELISM) != null)
+        {
+            try
+            {
+                parallelism = Integer.parseInt(bc.getProperty(PARALLELISM));
+            }
+            catch (NumberFormatException ex)
+            {
+                // Use default parallelism.
+            }
+        }
         bc.registerService(
             Resolver.class,
-            new ResolverImpl(new Logger(logLevel)),
+            new ResolverImpl(new Logger(logLevel), parallelism),
             null);
     }
 
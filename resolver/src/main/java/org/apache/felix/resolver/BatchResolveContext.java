@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.resolver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wiring;
+import org.osgi.service.resolver.HostedCapability;
+import org.osgi.service.resolver.ResolveContext;
+
+/**
+ * Resolve context of one group of resources of a batch resolve operation.
+ * It delegates to the resolve context of the group, except that the
+ * providers found for a requirement are shared with the other groups of
+ * the batch, so each requirement is only looked up once per batch.
+ */
+class BatchResolveContext extends ResolveContext
+    implements FelixResolveContext, BoundedResolveContext
+{
+    private final ResolveContext m_rc;
+    private final Map<Requirement, List<Capability>> m_providers;
+
+    BatchResolveContext(
+        ResolveContext rc, Map<Requirement, List<Capability>> providers)
+    {
+        m_rc = rc;
+        m_providers = providers;
+    }
+
+    @Override
+    public Collection<Resource> getMandatoryResources()
+    {
+        return m_rc.getMandatoryResources();
+    }
+
+    @Override
+    public Collection<Resource> getOptionalResources()
+    {
+        return m_rc.getOptionalResources();
+    }
+
+    @Override
+    public List<Capability> findProviders(Requirement requirement)
+    {
+        List<Capability> providers = m_providers.get(requirement);
+        if (providers == null)
+        {
+            providers = new ArrayList<Capability>(m_rc.findProviders(requirement));
+            m_providers.put(requirement, providers);
+        }
+        // The resolver removes the candidates that cannot resolve from the
+        // returned list, so each group gets its own copy.
+        return new ArrayList<Capability>(providers);
+    }
+
+    @Override
+    public int insertHostedCapability(
+        List<Capability> capabilities, HostedCapability hostedCapability)
+    {
+        return m_rc.insertHostedCapability(capabilities, hostedCapability);
+    }
+
+    @Override
+    public boolean isEffective(Requirement requirement)
+    {
+        return m_rc.isEffective(requirement);
+    }
+
+    @Override
+    public Map<Resource, Wiring> getWirings()
+    {
+        return m_rc.getWirings();
+    }
+
+    public Collection<Resource> getOndemandResources(Resource host)
+    {
+        return (m_rc instanceof FelixResolveContext)
+            ? ((FelixResolveContext) m_rc).getOndemandResources(host)
+            : Collections.<Resource>emptyList();
+    }
+
+    public int getMaxPermutations()
+    {
+        return (m_rc instanceof BoundedResolveContext)
+            ? ((BoundedResolveContext) m_rc).getMaxPermutations() : 0;
+    }
+
+    public long getResolveTimeout()
+    {
+        return (m_rc instanceof BoundedResolveContext)
+            ? ((BoundedResolveContext) m_rc).getResolveTimeout() : 0;
+    }
+
+    public boolean isCancelled()
+    {
+        return (m_rc instanceof BoundedResolveContext)
+            && ((BoundedResolveContext) m_rc).isCancelled();
+    }
+
+    public void onProgress(int permutations, long elapsed)
+    {
+        if (m_rc instanceof BoundedResolveContext)
+        {
+            ((BoundedResolveContext) m_rc).onProgress(permutations, elapsed);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.resolver;
+
+/**
+ * An optional interface a resolve context may implement to limit the search
+ * of the resolver for a consistent class space, to cancel a resolve operation
+ * in progress, or to be notified of its progress. The resolver does not limit
+ * the search of resolve contexts that do not implement this interface.
+ */
+public interface BoundedResolveContext
+{
+    /**
+     * Return the maximum number of candidate permutations the resolver may
+     * check for a resolve operation. A pathological set of uses constraints
+     * may otherwise keep the resolver searching for a very long time. If the
+     * limit is reached before a consistent class space is found, the resolve
+     * operation fails with the resolution exception of the best permutation
+     * checked so far.
+     *
+     * @return The maximum number of permutations to check, or zero if the
+     * number of permutations is not limited.
+     */
+    public int getMaxPermutations();
+
+    /**
+     * Return the maximum time in milliseconds the resolver may spend searching
+     * for a consistent class space for a resolve operation. If the timeout
+     * expires before a consistent class space is found, the resolve operation
+     * fails with the resolution exception of the best permutation checked
+     * so far. At least one permutation is always checked.
+     *
+     * @return The timeout in milliseconds, or zero if the time spent
+     * resolving is not limited.
+     */
+    public long getResolveTimeout();
+
+    /**
+     * Return whether the resolve operation should be cancelled. The resolver
+     * asks before checking each candidate permutation after the first one;
+     * if the resolve operation is cancelled, it fails with a resolution
+     * exception.
+     *
+     * @return <code>true</code> if the resolve operation should stop.
+     */
+    public boolean isCancelled();
+
+    /**
+     * Called periodically while the resolver searches for a consistent class
+     * space through more than one candidate permutation.
+     *
+     * @param permutations The number of candidate permutations checked so far.
+     * @param elapsed The time in milliseconds spent resolving so far.
+     */
+    public void onProgress(int permutations, long elapsed);
+}
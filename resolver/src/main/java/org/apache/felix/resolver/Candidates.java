@@ -33,9 +33,8 @@ import java.util.TreeMap;
 
 import org.apache.felix.resolver.util.CopyOnWriteSet;
 import org.apache.felix.resolver.util.CopyOnWriteList;
-import org.apache.felix.resolver.util.OpenHashMap;
-import org.apache.felix.resolver.util.OpenHashMapList;
-import org.apache.felix.resolver.util.OpenHashMapSet;
+import org.apache.felix.resolver.util.PersistentHashMapList;
+import org.apache.felix.resolver.util.PersistentHashMapSet;
 import org.apache.felix.resolver.util.ShadowList;
 import org.osgi.framework.Version;
 import org.osgi.framework.namespace.HostNamespace;
@@ -57,9 +56,9 @@ class Candidates
 
     private final Set<Resource> m_mandatoryResources;
     // Maps a capability to requirements that match it.
-    private final OpenHashMapSet<Capability, Requirement> m_dependentMap;
+    private final PersistentHashMapSet<Capability, Requirement> m_dependentMap;
     // Maps a requirement to the capability it matches.
-    private final OpenHashMapList<Requirement, Capability> m_candidateMap;
+    private final PersistentHashMapList<Requirement, Capability> m_candidateMap;
     // Maps a bundle revision to its associated wrapped revision; this only happens
     // when a revision being resolved has fragments to attach to it.
     private final Map<Resource, WrappedResource> m_allWrappedHosts;
@@ -73,20 +72,20 @@ class Candidates
 
     private final Map<Capability, Requirement> m_subtitutableMap;
 
-    private final OpenHashMapSet<Requirement, Capability> m_delta;
+    private final PersistentHashMapSet<Requirement, Capability> m_delta;
 
     /**
      * Private copy constructor used by the copy() method.
      */
     private Candidates(
         Set<Resource> mandatoryResources,
-        OpenHashMapSet<Capability, Requirement> dependentMap,
-        OpenHashMapList<Requirement, Capability> candidateMap,
+        PersistentHashMapSet<Capability, Requirement> dependentMap,
+        PersistentHashMapList<Requirement, Capability> candidateMap,
         Map<Resource, WrappedResource> wrappedHosts, Map<Resource, Object> populateResultCache,
         boolean fragmentsPresent,
         Map<Resource, Boolean> onDemandResources,
         Map<Capability, Requirement> substitutableMap,
-        OpenHashMapSet<Requirement, Capability> delta)
+        PersistentHashMapSet<Requirement, Capability> delta)
     {
         m_mandatoryResources = mandatoryResources;
         m_dependentMap = dependentMap;
@@ -105,13 +104,13 @@ class Candidates
     public Candidates(Map<Resource, Boolean> validOnDemandResources)
     {
         m_mandatoryResources = new HashSet<Resource>();
-        m_dependentMap = new OpenHashMapSet<Capability, Requirement>();
-        m_candidateMap = new OpenHashMapList<Requirement, Capability>();
+        m_dependentMap = new PersistentHashMapSet<Capability, Requirement>();
+        m_candidateMap = new PersistentHashMapList<Requirement, Capability>();
         m_allWrappedHosts = new HashMap<Resource, WrappedResource>();
         m_populateResultCache = new LinkedHashMap<Resource, Object>();
         m_validOnDemandResources = validOnDemandResources;
         m_subtitutableMap = new LinkedHashMap<Capability, Requirement>();
-        m_delta = new OpenHashMapSet<Requirement, Capability>(3);
+        m_delta = new PersistentHashMapSet<Requirement, Capability>();
     }
 
     /**
@@ -447,7 +446,7 @@ class Candidates
     private static final int SUBSTITUTED = 2;
     private static final int EXPORTED = 3;
 
-    void checkSubstitutes(List<Candidates> importPermutations) throws ResolutionException
+    void checkSubstitutes(ResolverImpl.ResolveSession session) throws ResolutionException
     {
         Map<Capability, Integer> substituteStatuses = new LinkedHashMap<Capability, Integer>(m_subtitutableMap.size());
         for (Capability substitutable : m_subtitutableMap.keySet())
@@ -476,14 +475,14 @@ class Candidates
             Requirement substitutedReq = m_subtitutableMap.get(substituteStatus.getKey());
             if (substitutedReq != null)
             {
-                permutateIfNeeded(substitutedReq, importPermutations);
+                session.permutateIfNeeded(this, substitutedReq);
             }
             Set<Requirement> dependents = m_dependentMap.get(substituteStatus.getKey());
             if (dependents != null)
             {
                 for (Requirement dependent : dependents)
                 {
-                    List<Capability> candidates = m_candidateMap.get(dependent);
+                    List<Capability> candidates = m_candidateMap.getForUpdate(dependent);
                     if (candidates != null)
                     {
                         candidates:
@@ -832,7 +831,7 @@ class Candidates
 
     public void removeFirstCandidate(Requirement req)
     {
-        List<Capability> candidates = m_candidateMap.get(req);
+        List<Capability> candidates = m_candidateMap.getForUpdate(req);
         // Remove the conflicting candidate.
         Capability cap = candidates.remove(0);
         if (candidates.isEmpty())
@@ -840,7 +839,7 @@ class Candidates
             m_candidateMap.remove(req);
         }
         // Update the delta with the removed capability
-        CopyOnWriteSet<Capability> capPath = m_delta.get(req);
+        CopyOnWriteSet<Capability> capPath = m_delta.getForUpdate(req);
         if (capPath == null) {
             capPath = new CopyOnWriteSet<Capability>();
             m_delta.put(req, capPath);
@@ -850,10 +849,10 @@ class Candidates
 
     public List<Capability> clearCandidates(Requirement req, Collection<Capability> caps)
     {
-        List<Capability> l = m_candidateMap.get(req);
+        List<Capability> l = m_candidateMap.getForUpdate(req);
         l.removeAll(caps);
         // Update candidates delta with the removed capabilities.
-        CopyOnWriteSet<Capability> capPath = m_delta.get(req);
+        CopyOnWriteSet<Capability> capPath = m_delta.getForUpdate(req);
         if (capPath == null) {
             capPath = new CopyOnWriteSet<Capability>();
             m_delta.put(req, capPath);
@@ -938,8 +937,8 @@ class Candidates
                         // unselected for later removal.
                         else
                         {
-                            m_dependentMap.get(hostCap).remove(hostReq);
-                            List<Capability> hosts = m_candidateMap.get(hostReq);
+                            m_dependentMap.getForUpdate(hostCap).remove(hostReq);
+                            List<Capability> hosts = m_candidateMap.getForUpdate(hostReq);
                             hosts.remove(hostCap);
                             if (hosts.isEmpty())
                             {
@@ -1015,7 +1014,7 @@ class Candidates
                             // matter if they come from the host or fragment,
                             // since we are completing replacing the declaring
                             // host and fragments with the wrapped host.
-                            List<Capability> cands = m_candidateMap.get(r);
+                            List<Capability> cands = m_candidateMap.getForUpdate(r);
                             if (!(cands instanceof ShadowList))
                             {
                                 ShadowList<Capability> shadow = new ShadowList<Capability>(cands);
@@ -1064,7 +1063,7 @@ class Candidates
                     m_candidateMap.put(r, new CopyOnWriteList<Capability>(cands));
                     for (Capability cand : cands)
                     {
-                        Set<Requirement> dependents = m_dependentMap.get(cand);
+                        Set<Requirement> dependents = m_dependentMap.getForUpdate(cand);
                         dependents.remove(origReq);
                         dependents.add(r);
                     }
@@ -1084,9 +1083,6 @@ class Candidates
         }
 
         populateSubstitutables();
-
-        m_candidateMap.concat();
-        m_dependentMap.concat();
     }
 
     // Maps a host capability to a map containing its potential fragments;
@@ -1104,7 +1100,7 @@ class Candidates
             for (Capability cap : caps)
             {
                 // Record the requirement as dependent on the capability.
-                CopyOnWriteSet<Requirement> dependents = m_dependentMap.get(cap);
+                CopyOnWriteSet<Requirement> dependents = m_dependentMap.getForUpdate(cap);
                 if (dependents == null)
                 {
                     dependents = new CopyOnWriteSet<Requirement>();
@@ -1213,7 +1209,7 @@ class Candidates
         {
             for (Capability cap : candidates)
             {
-                Set<Requirement> dependents = m_dependentMap.get(cap);
+                Set<Requirement> dependents = m_dependentMap.getForUpdate(cap);
                 if (dependents != null)
                 {
                     dependents.remove(req);
@@ -1241,7 +1237,7 @@ class Candidates
         {
             for (Requirement r : dependents)
             {
-                List<Capability> candidates = m_candidateMap.get(r);
+                List<Capability> candidates = m_candidateMap.getForUpdate(r);
                 candidates.remove(c);
                 if (candidates.isEmpty())
                 {
@@ -1270,14 +1266,14 @@ class Candidates
     {
         return new Candidates(
                 m_mandatoryResources,
-                m_dependentMap.deepClone(),
-                m_candidateMap.deepClone(),
+                m_dependentMap.copy(),
+                m_candidateMap.copy(),
                 m_allWrappedHosts,
                 m_populateResultCache,
                 m_fragmentsPresent,
                 m_validOnDemandResources,
                 m_subtitutableMap,
-                m_delta.deepClone());
+                m_delta.copy());
     }
 
     public void dump(ResolveContext rc)
@@ -1322,14 +1318,22 @@ class Candidates
         System.out.println("=== END CANDIDATE MAP ===");
     }
 
-    public void permutate(Requirement req, List<Candidates> permutations)
+    /**
+     * Creates a permutation of this object that no longer selects the current
+     * first candidate of the specified requirement.
+     *
+     * @param req the requirement whose first candidate should be removed.
+     * @return the new permutation or null if the candidate cannot be removed.
+     */
+    public Candidates permutate(Requirement req)
     {
         if (!Util.isMultiple(req) && canRemoveCandidate(req))
         {
             Candidates perm = copy();
             perm.removeFirstCandidate(req);
-            permutations.add(perm);
+            return perm;
         }
+        return null;
     }
 
     public boolean canRemoveCandidate(Requirement req)
@@ -1338,34 +1342,43 @@ class Candidates
         return ((candidates != null) && (candidates.size() > 1 || Util.isOptional(req)));
     }
 
-    public void permutateIfNeeded(Requirement req, List<Candidates> permutations)
+    /**
+     * Creates a permutation for the specified requirement unless one of the
+     * given permutations already selects a different first candidate for it.
+     *
+     * @param req the requirement to permutate.
+     * @param permutations the existing permutations.
+     * @return the new permutation or null if none is needed.
+     */
+    public Candidates permutateIfNeeded(Requirement req, List<Candidates> permutations)
     {
         List<Capability> candidates = m_candidateMap.get(req);
-        if ((candidates != null) && (candidates.size() > 1))
+        if ((candidates != null) && (candidates.size() > 1)
+            && !isPermutated(req, candidates.get(0), permutations))
         {
-            // Check existing permutations to make sure we haven't
-            // already permutated this requirement. This check for
-            // duplicate permutations is simplistic. It assumes if
-            // there is any permutation that contains a different
-            // initial candidate for the requirement in question,
-            // then it has already been permutated.
-            boolean permutated = false;
-            for (Candidates existingPerm : permutations)
-            {
-                List<Capability> existingPermCands = existingPerm.m_candidateMap.get(req);
-                if (existingPermCands != null && !existingPermCands.get(0).equals(candidates.get(0)))
-                {
-                    permutated = true;
-                    break;
-                }
-            }
-            // If we haven't already permutated the existing
-            // import, do so now.
-            if (!permutated)
+            return permutate(req);
+        }
+        return null;
+    }
+
+    static boolean isPermutated(
+        Requirement req, Capability firstCandidate, List<Candidates> permutations)
+    {
+        // Check existing permutations to make sure we haven't
+        // already permutated this requirement. This check for
+        // duplicate permutations is simplistic. It assumes if
+        // there is any permutation that contains a different
+        // initial candidate for the requirement in question,
+        // then it has already been permutated.
+        for (Candidates existingPerm : permutations)
+        {
+            List<Capability> existingPermCands = existingPerm.m_candidateMap.get(req);
+            if (existingPermCands != null && !existingPermCands.get(0).equals(firstCandidate))
             {
-                permutate(req, permutations);
+                return true;
             }
         }
+        return false;
     }
 
 }
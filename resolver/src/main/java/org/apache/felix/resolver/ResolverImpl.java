@@ -19,10 +19,12 @@
 package org.apache.felix.resolver;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -30,6 +32,20 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.felix.resolver.util.Interner;
 
 import org.osgi.framework.namespace.BundleNamespace;
 import org.osgi.framework.namespace.ExecutionEnvironmentNamespace;
@@ -51,6 +67,27 @@ public class ResolverImpl implements Resolver
 {
     private final Logger m_logger;
 
+    private final int m_parallelism;
+
+    // Checks candidate permutations in parallel for all resolve operations;
+    // created when first needed.
+    private ExecutorService m_permutationExecutor;
+
+    // Minimum time in milliseconds between two progress reports
+    private static final long PROGRESS_INTERVAL = 1000;
+
+    // Maximum number of parsed uses directives kept between resolves
+    private static final int USES_CACHE_SIZE = 16384;
+
+    // Parsed uses directives, shared by all resolve operations.
+    private final Map<String, List<String>> m_usesCache =
+        new ConcurrentHashMap<String, List<String>>();
+
+    // Package spaces of wired resources, which only depend on their wiring
+    // and are therefore reused by successive resolve operations.
+    private final Map<Resource, WiredPackages> m_wiredPackages =
+        new ConcurrentHashMap<Resource, WiredPackages>();
+
     // Note this class is not thread safe.
     // Only use in the context of a single thread.
     class ResolveSession
@@ -69,13 +106,132 @@ public class ResolverImpl implements Resolver
         // removed the offending capabilities
         private Candidates m_multipleCardCandidates = null;
 
-        private final Map<Capability, Set<Capability>> m_packageSourcesCache = new HashMap<Capability, Set<Capability>>(256);
+        // Holds the package sources of capabilities, indexed by capability id.
+        private final List<Set<Capability>> m_packageSourcesCache = new ArrayList<Set<Capability>>(256);
+
+        // Assign dense ids to the resources and capabilities of this session,
+        // so sets of them can be held in bitsets.
+        private final Interner<Resource> m_resourceIds = new Interner<Resource>();
+        private final Interner<Capability> m_capabilityIds = new Interner<Capability>();
+
+        private final Map<String, List<String>> m_usesCache;
 
-        private final Map<String, List<String>> m_usesCache = new HashMap<String, List<String>>();
+        // Records, in order, the permutations created by this session when it
+        // is used to check a permutation on a worker thread; null otherwise.
+        private final List<PendingPermutation> m_pendingPermutations;
+
+        // Holds the resolve context when it limits the search, in which case
+        // the session counts the permutations it checks; null for sessions
+        // checking a permutation on a worker thread.
+        private final BoundedResolveContext m_boundedContext;
+        private final int m_maxPermutations;
+        private final long m_timeout;
+        private final long m_startTime;
+        private long m_lastProgress;
+        private int m_permutationCount;
 
         ResolveSession(ResolveContext resolveContext)
+        {
+            this(resolveContext, ResolverImpl.this.m_usesCache, false);
+        }
+
+        ResolveSession(
+            ResolveContext resolveContext, Map<String, List<String>> usesCache,
+            boolean recordPermutations)
         {
             m_resolveContext = resolveContext;
+            m_usesCache = usesCache;
+            m_pendingPermutations = (recordPermutations)
+                ? new ArrayList<PendingPermutation>() : null;
+            m_boundedContext = (!recordPermutations
+                && (resolveContext instanceof BoundedResolveContext))
+                ? (BoundedResolveContext) resolveContext : null;
+            m_maxPermutations = (m_boundedContext != null)
+                ? m_boundedContext.getMaxPermutations() : 0;
+            m_timeout = (m_boundedContext != null)
+                ? m_boundedContext.getResolveTimeout() : 0;
+            m_startTime = System.currentTimeMillis();
+            m_lastProgress = m_startTime;
+        }
+
+        /**
+         * Returns how many more permutations may be checked before the
+         * search must stop, so that no work is started that the budget of
+         * the resolve context does not allow. Returns zero if the resolve
+         * operation was cancelled or timed out.
+         *
+         * @return the number of permutations that may still be checked.
+         */
+        int getRemainingPermutations()
+        {
+            if (m_boundedContext == null)
+            {
+                return Integer.MAX_VALUE;
+            }
+            if (m_boundedContext.isCancelled()
+                || ((m_timeout > 0)
+                    && (System.currentTimeMillis() - m_startTime >= m_timeout)))
+            {
+                // The first permutation is always checked.
+                return (m_permutationCount == 0) ? 1 : 0;
+            }
+            if (m_maxPermutations <= 0)
+            {
+                return Integer.MAX_VALUE;
+            }
+            return Math.max(m_maxPermutations, 1) - m_permutationCount;
+        }
+
+        /**
+         * Counts a candidate permutation about to be checked. Progress is
+         * reported to the resolve context periodically, and the resolve
+         * operation fails if it was cancelled or its budget is exhausted;
+         * the first permutation is always checked.
+         *
+         * @param best the failure of the best permutation checked so far.
+         * @throws ResolutionException if the search must stop.
+         */
+        void countPermutation(ResolutionException best) throws ResolutionException
+        {
+            int count = m_permutationCount++;
+            if ((m_boundedContext == null) || (count == 0))
+            {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            long elapsed = now - m_startTime;
+            if ((now - m_lastProgress) >= PROGRESS_INTERVAL)
+            {
+                m_lastProgress = now;
+                m_boundedContext.onProgress(count, elapsed);
+            }
+
+            String msg;
+            if (m_boundedContext.isCancelled())
+            {
+                msg = "Resolution cancelled";
+            }
+            else if ((m_maxPermutations > 0) && (count >= m_maxPermutations))
+            {
+                msg = "Resolution exceeded the maximum of "
+                    + m_maxPermutations + " permutations";
+            }
+            else if ((m_timeout > 0) && (elapsed >= m_timeout))
+            {
+                msg = "Resolution exceeded its timeout of " + m_timeout + " ms";
+            }
+            else
+            {
+                return;
+            }
+            msg = msg + " after checking " + count + " permutations in " + elapsed + " ms";
+            if (best == null)
+            {
+                throw new ResolutionException(msg);
+            }
+            throw new ResolutionException(
+                msg + ": " + best.getMessage(), best, best.getUnresolvedRequirements());
         }
 
         List<Candidates> getUsesPermutations()
@@ -88,6 +244,160 @@ public class ResolverImpl implements Resolver
             return m_importPermutations;
         }
 
+        void addUsesPermutation(Candidates permutation)
+        {
+            if (m_pendingPermutations != null)
+            {
+                m_pendingPermutations.add(new PendingPermutation(
+                    PendingPermutation.USES, permutation, null, null, 0));
+            }
+            else
+            {
+                m_usesPermutations.add(permutation);
+            }
+        }
+
+        void permutate(Candidates allCandidates, Requirement req)
+        {
+            Candidates permutation = allCandidates.permutate(req);
+            if (permutation == null)
+            {
+                return;
+            }
+            if (m_pendingPermutations != null)
+            {
+                m_pendingPermutations.add(new PendingPermutation(
+                    PendingPermutation.IMPORT, permutation, null, null, 0));
+            }
+            else
+            {
+                m_importPermutations.add(permutation);
+            }
+        }
+
+        void permutateIfNeeded(Candidates allCandidates, Requirement req)
+        {
+            if (m_pendingPermutations != null)
+            {
+                // Whether the permutation is needed depends on the import
+                // permutations of the owning session, so decide that when
+                // the pending permutations are merged into it.
+                List<Capability> candidates = allCandidates.getCandidates(req);
+                if ((candidates != null) && (candidates.size() > 1))
+                {
+                    Candidates permutation = allCandidates.permutate(req);
+                    if (permutation != null)
+                    {
+                        m_pendingPermutations.add(new PendingPermutation(
+                            PendingPermutation.IMPORT_IF_NEEDED, permutation,
+                            req, candidates.get(0), 0));
+                    }
+                }
+            }
+            else
+            {
+                Candidates permutation =
+                    allCandidates.permutateIfNeeded(req, m_importPermutations);
+                if (permutation != null)
+                {
+                    m_importPermutations.add(permutation);
+                }
+            }
+        }
+
+        /**
+         * Returns a mark for {@link #permutateIfUnchanged}, which reflects
+         * the permutations created so far.
+         */
+        int getPermutationMark()
+        {
+            return (m_pendingPermutations != null)
+                ? m_pendingPermutations.size()
+                : m_usesPermutations.size() + m_importPermutations.size();
+        }
+
+        /**
+         * Creates an import permutation for the specified requirement, but
+         * only if no other permutation was created since the specified mark.
+         */
+        void permutateIfUnchanged(Candidates allCandidates, Requirement req, int mark)
+        {
+            if (m_pendingPermutations != null)
+            {
+                // Nothing to do if an unconditional permutation was recorded
+                // since the mark; otherwise the recorded ones may all be
+                // dropped when merged, so record this one conditionally.
+                for (int i = mark; i < m_pendingPermutations.size(); i++)
+                {
+                    int kind = m_pendingPermutations.get(i).m_kind;
+                    if ((kind == PendingPermutation.USES)
+                        || (kind == PendingPermutation.IMPORT))
+                    {
+                        return;
+                    }
+                }
+                Candidates permutation = allCandidates.permutate(req);
+                if (permutation != null)
+                {
+                    m_pendingPermutations.add(new PendingPermutation(
+                        PendingPermutation.IMPORT_IF_UNCHANGED, permutation,
+                        null, null, mark));
+                }
+            }
+            else if (mark == getPermutationMark())
+            {
+                permutate(allCandidates, req);
+            }
+        }
+
+        List<PendingPermutation> getPendingPermutations()
+        {
+            return m_pendingPermutations;
+        }
+
+        /**
+         * Adds the permutations recorded by a session that checked a
+         * permutation on another thread, deciding the conditional ones
+         * exactly as if they had been created by this session.
+         */
+        void addPendingPermutations(List<PendingPermutation> pending)
+        {
+            boolean[] added = new boolean[pending.size()];
+            for (int i = 0; i < added.length; i++)
+            {
+                PendingPermutation p = pending.get(i);
+                switch (p.m_kind)
+                {
+                    case PendingPermutation.USES:
+                        m_usesPermutations.add(p.m_permutation);
+                        added[i] = true;
+                        break;
+                    case PendingPermutation.IMPORT:
+                        added[i] = true;
+                        break;
+                    case PendingPermutation.IMPORT_IF_NEEDED:
+                        added[i] = !Candidates.isPermutated(
+                            p.m_req, p.m_firstCandidate, m_importPermutations);
+                        break;
+                    default:
+                        added[i] = true;
+                        for (int j = p.m_mark; j < i; j++)
+                        {
+                            if (added[j])
+                            {
+                                added[i] = false;
+                                break;
+                            }
+                        }
+                        break;
+                }
+                if (added[i] && (p.m_kind != PendingPermutation.USES))
+                {
+                    m_importPermutations.add(p.m_permutation);
+                }
+            }
+        }
+
         Candidates getMultipleCardCandidates()
         {
             return m_multipleCardCandidates;
@@ -98,11 +408,21 @@ public class ResolverImpl implements Resolver
             m_multipleCardCandidates = multipleCardCandidates;
         }
 
-        Map<Capability, Set<Capability>> getPackageSourcesCache()
+        List<Set<Capability>> getPackageSourcesCache()
         {
             return m_packageSourcesCache;
         }
 
+        Interner<Resource> getResourceIds()
+        {
+            return m_resourceIds;
+        }
+
+        Interner<Capability> getCapabilityIds()
+        {
+            return m_capabilityIds;
+        }
+
         ResolveContext getContext()
         {
             return m_resolveContext;
@@ -114,12 +434,30 @@ public class ResolverImpl implements Resolver
     }
 
     public ResolverImpl(Logger logger)
+    {
+        this(logger, 1);
+    }
+
+    /**
+     * Creates a resolver that checks up to the specified number of candidate
+     * permutations concurrently when a resolve has to search for a consistent
+     * class space. A parallelism of one (or less) keeps the search on the
+     * calling thread. The chosen wiring does not depend on thread timing, but
+     * when running in parallel the resolve context must support concurrent
+     * calls to {@link ResolveContext#getWirings()}.
+     *
+     * @param logger the logger to use.
+     * @param parallelism the maximum number of permutations to check at once.
+     */
+    public ResolverImpl(Logger logger, int parallelism)
     {
         m_logger = logger;
+        m_parallelism = (parallelism > 1) ? parallelism : 1;
     }
 
     public Map<Resource, List<Wire>> resolve(ResolveContext rc) throws ResolutionException
     {
+        pruneCaches(rc);
         ResolveSession session = new ResolveSession(rc);
         Map<Resource, List<Wire>> wireMap =
             new HashMap<Resource, List<Wire>>();
@@ -133,6 +471,10 @@ public class ResolverImpl implements Resolver
         // a null value or TRUE indicate it is valid
         Map<Resource, Boolean> validOnDemandResources = new HashMap<Resource, Boolean>(0);
 
+        // Only created once a resolve has more than one permutation to check
+        // and the resolver has been configured to check them in parallel.
+        PermutationChecker checker = null;
+
         boolean retry;
         do
         {
@@ -210,17 +552,32 @@ public class ResolverImpl implements Resolver
 
                 Set<Object> processedDeltas = new HashSet<Object>();
                 Map<Resource, ResolutionException> faultyResources = null;
+                // The failure reported if the search stops early
+                ResolutionException best = null;
                 do
                 {
-                    allCandidates = (usesPermutations.size() > 0)
-                            ? usesPermutations.remove(0)
-                            : (importPermutations.size() > 0
-                                    ? importPermutations.remove(0)
-                                    : null);
-                    if (allCandidates == null)
+                    List<Candidates> permutations = (usesPermutations.size() > 0)
+                            ? usesPermutations
+                            : importPermutations;
+                    if (permutations.isEmpty())
                     {
                         break;
                     }
+                    // If there are several permutations waiting and we may
+                    // check them in parallel, do so for the ones at the head
+                    // of the list; their results are then consumed below in
+                    // the same order as a sequential search would.
+                    if ((m_parallelism > 1) && (permutations.size() > 1))
+                    {
+                        if (checker == null)
+                        {
+                            checker = new PermutationChecker(rc);
+                        }
+                        checker.checkAhead(
+                            permutations, processedDeltas, allResources, hostReqs,
+                            session.getRemainingPermutations());
+                    }
+                    allCandidates = permutations.remove(0);
                     // The delta is used to detect that we have already processed this particular permutation
                     if (!processedDeltas.add(allCandidates.getDelta()))
                     {
@@ -228,102 +585,52 @@ public class ResolverImpl implements Resolver
                         // Don't try it again
                         continue;
                     }
+                    session.countPermutation(best);
 
-                    rethrow = null;
-
-                    resourcePkgMap.clear();
-                    session.getPackageSourcesCache().clear();
-                    // Null out each time a new permutation is attempted.
-                    // We only use this to store a valid permutation which is a
-                    // delta of the current permutation.
-                    session.setMultipleCardCandidates(null);
-
-//allCandidates.dump();
-
-                    Map<Resource, ResolutionException> currentFaultyResources = null;
-                    try
+                    PermutationResult result = (checker != null)
+                        ? checker.takeResult(allCandidates)
+                        : null;
+                    if (result != null)
                     {
-                        allCandidates.checkSubstitutes(importPermutations);
+                        // The permutation was checked on another thread, so
+                        // merge the permutations it created into ours.
+                        session.addPendingPermutations(result.m_pendingPermutations);
                     }
-                    catch (ResolutionException e)
-                    {
-                        rethrow = e;
-                        continue;
-                    }
-
-                    // Reuse a resultCache map for checking package consistency
-                    // for all resources.
-                    Map<Resource, Object> resultCache =
-                        new HashMap<Resource, Object>(allResources.size());
-                    // Check the package space consistency for all 'root' resources.
-                    for (Resource resource : allResources)
+                    else
                     {
-                        Resource target = resource;
-
-                        // If we are resolving a fragment, then get its
-                        // host candidate and verify it instead.
-                        Requirement hostReq = hostReqs.get(resource);
-                        if (hostReq != null)
-                        {
-                            Capability hostCap = allCandidates.getFirstCandidate(hostReq);
-                            // If the resource is an already resolved fragment and can not
-                            // be attached to new hosts, there will be no matching host,
-                            // so ignore this resource
-                            if (hostCap == null)
-                            {
-                                continue;
-                            }
-                            target = hostCap.getResource();
-                        }
-
-                        calculatePackageSpaces(
-                            session, allCandidates.getWrappedHost(target), allCandidates,
-                            resourcePkgMap, new HashMap<Capability, Set<Resource>>(256),
-                            new HashSet<Resource>(64));
-//System.out.println("+++ PACKAGE SPACES START +++");
-//dumpResourcePkgMap(resourcePkgMap);
-//System.out.println("+++ PACKAGE SPACES END +++");
+                        session.getPackageSourcesCache().clear();
+                        // Null out each time a new permutation is attempted.
+                        // We only use this to store a valid permutation which is a
+                        // delta of the current permutation.
+                        session.setMultipleCardCandidates(null);
 
-                        try
-                        {
-                            checkPackageSpaceConsistency(
-                                session, allCandidates.getWrappedHost(target),
-                                allCandidates, resourcePkgMap, resultCache);
-                        }
-                        catch (ResolutionException ex)
-                        {
-                            rethrow = ex;
-                            if (currentFaultyResources == null)
-                            {
-                                currentFaultyResources = new HashMap<Resource, ResolutionException>();
-                            }
-                            Resource faultyResource = resource;
-                            // check that the faulty requirement is not from a fragment
-                            for (Requirement faultyReq : ex.getUnresolvedRequirements())
-                            {
-                                if (faultyReq instanceof WrappedRequirement)
-                                {
-                                    faultyResource =
-                                        ((WrappedRequirement) faultyReq)
-                                        .getDeclaredRequirement().getResource();
-                                    break;
-                                }
-                            }
-                            currentFaultyResources.put(faultyResource, ex);
-                        }
+                        result = checkPermutation(session, allCandidates, allResources, hostReqs);
                     }
+                    allCandidates = result.m_candidates;
+                    resourcePkgMap = result.m_resourcePkgMap;
+                    session.setMultipleCardCandidates(result.m_multipleCardCandidates);
+                    rethrow = result.m_rethrow;
+
+                    Map<Resource, ResolutionException> currentFaultyResources =
+                        result.m_faultyResources;
                     if (currentFaultyResources != null)
                     {
                         if (faultyResources == null)
                         {
                             faultyResources = currentFaultyResources;
+                            best = rethrow;
                         }
                         else if (faultyResources.size() > currentFaultyResources.size())
                         {
                             // save the optimal faultyResources which has less
                             faultyResources = currentFaultyResources;
+                            best = rethrow;
                         }
                     }
+                    if (best == null)
+                    {
+                        best = rethrow;
+                    }
                 }
                 while (rethrow != null);
 
@@ -408,6 +715,10 @@ public class ResolverImpl implements Resolver
                 session.setMultipleCardCandidates(null);
                 // TODO this was not cleared out before; but it seems it should be
                 session.getPackageSourcesCache().clear();
+                if (checker != null)
+                {
+                    checker.clearResults();
+                }
             }
         }
         while (retry);
@@ -415,6 +726,138 @@ public class ResolverImpl implements Resolver
         return wireMap;
     }
 
+    /**
+     * Checks the package space consistency of all root resources for the
+     * given candidate permutation. New permutations discovered along the way
+     * are added to the session; the returned result holds the package spaces
+     * and any failure.
+     */
+    private PermutationResult checkPermutation(
+        ResolveSession session, Candidates allCandidates,
+        Set<Resource> allResources, Map<Resource, Requirement> hostReqs)
+    {
+        PermutationResult result = new PermutationResult(allCandidates);
+        Map<Resource, Packages> resourcePkgMap = result.m_resourcePkgMap;
+
+//allCandidates.dump();
+
+        try
+        {
+            allCandidates.checkSubstitutes(session);
+        }
+        catch (ResolutionException e)
+        {
+            result.m_rethrow = e;
+            result.m_multipleCardCandidates = session.getMultipleCardCandidates();
+            return result;
+        }
+
+        // Reuse a resultCache set of resource ids for checking package
+        // consistency for all resources.
+        BitSet resultCache = new BitSet();
+        // Check the package space consistency for all 'root' resources.
+        for (Resource resource : allResources)
+        {
+            Resource target = resource;
+
+            // If we are resolving a fragment, then get its
+            // host candidate and verify it instead.
+            Requirement hostReq = hostReqs.get(resource);
+            if (hostReq != null)
+            {
+                Capability hostCap = allCandidates.getFirstCandidate(hostReq);
+                // If the resource is an already resolved fragment and can not
+                // be attached to new hosts, there will be no matching host,
+                // so ignore this resource
+                if (hostCap == null)
+                {
+                    continue;
+                }
+                target = hostCap.getResource();
+            }
+
+            calculatePackageSpaces(
+                session, allCandidates.getWrappedHost(target), allCandidates,
+                resourcePkgMap, new ArrayList<BitSet>(), new BitSet());
+//System.out.println("+++ PACKAGE SPACES START +++");
+//dumpResourcePkgMap(resourcePkgMap);
+//System.out.println("+++ PACKAGE SPACES END +++");
+
+            try
+            {
+                checkPackageSpaceConsistency(
+                    session, allCandidates.getWrappedHost(target),
+                    allCandidates, resourcePkgMap, resultCache);
+            }
+            catch (ResolutionException ex)
+            {
+                result.m_rethrow = ex;
+                if (result.m_faultyResources == null)
+                {
+                    result.m_faultyResources = new HashMap<Resource, ResolutionException>();
+                }
+                Resource faultyResource = resource;
+                // check that the faulty requirement is not from a fragment
+                for (Requirement faultyReq : ex.getUnresolvedRequirements())
+                {
+                    if (faultyReq instanceof WrappedRequirement)
+                    {
+                        faultyResource =
+                            ((WrappedRequirement) faultyReq)
+                            .getDeclaredRequirement().getResource();
+                        break;
+                    }
+                }
+                result.m_faultyResources.put(faultyResource, ex);
+            }
+        }
+        result.m_multipleCardCandidates = session.getMultipleCardCandidates();
+        return result;
+    }
+
+    /**
+     * Resolves several independent groups of resources, one per resolve
+     * context, concurrently on the specified executor. This is meant for
+     * provisioning tools evaluating many sets of resources against the same
+     * environment: the resolve contexts of a batch must return the same
+     * providers for the same requirement, since the providers found for a
+     * requirement by one context are reused for all the other ones. The
+     * resolve contexts may be called concurrently.
+     * <p>
+     * Each group is resolved as if by {@link #resolve(ResolveContext)}, and
+     * the resolver caches are shared by all of them.
+     *
+     * @param contexts the resolve contexts of the groups to resolve.
+     * @param executor the executor on which the groups are resolved.
+     * @return The futures of the wire maps of the groups, in the order of the
+     * resolve contexts. The future of a group that cannot be resolved fails
+     * with a {@link ResolutionException} as cause.
+     */
+    public List<Future<Map<Resource, List<Wire>>>> resolve(
+        List<? extends ResolveContext> contexts, Executor executor)
+    {
+        Map<Requirement, List<Capability>> providers =
+            new ConcurrentHashMap<Requirement, List<Capability>>();
+        List<Future<Map<Resource, List<Wire>>>> futures =
+            new ArrayList<Future<Map<Resource, List<Wire>>>>(contexts.size());
+        for (ResolveContext rc : contexts)
+        {
+            final ResolveContext batchContext = new BatchResolveContext(rc, providers);
+            FutureTask<Map<Resource, List<Wire>>> task =
+                new FutureTask<Map<Resource, List<Wire>>>(
+                    new Callable<Map<Resource, List<Wire>>>()
+                    {
+                        public Map<Resource, List<Wire>> call() throws ResolutionException
+                        {
+                            return resolve(batchContext);
+                        }
+                    });
+            executor.execute(task);
+            futures.add(task);
+        }
+        return futures;
+    }
+
     /**
      * Resolves a dynamic requirement for the specified host resource using the
      * specified {@link ResolveContext}. The dynamic requirement may contain
@@ -489,10 +932,11 @@ public class ResolverImpl implements Resolver
                     // Record the initial candidate permutation.
                     usesPermutations.add(allCandidates);
 
-                    ResolutionException rethrow;
+                    ResolutionException rethrow = null;
 
                     do
                     {
+                        session.countPermutation(rethrow);
                         rethrow = null;
 
                         resourcePkgMap.clear();
@@ -505,7 +949,7 @@ public class ResolverImpl implements Resolver
 
                         try
                         {
-                            allCandidates.checkSubstitutes(importPermutations);
+                            allCandidates.checkSubstitutes(session);
                         }
                         catch (ResolutionException e)
                         {
@@ -519,8 +963,7 @@ public class ResolverImpl implements Resolver
 
                         calculatePackageSpaces(session,
                             allCandidates.getWrappedHost(host), allCandidates,
-                            resourcePkgMap, new HashMap<Capability, Set<Resource>>(256),
-                            new HashSet<Resource>(64));
+                            resourcePkgMap, new ArrayList<BitSet>(), new BitSet());
 //System.out.println("+++ PACKAGE SPACES START +++");
 //dumpResourcePkgMap(resourcePkgMap);
 //System.out.println("+++ PACKAGE SPACES END +++");
@@ -529,7 +972,7 @@ public class ResolverImpl implements Resolver
                         {
                             checkDynamicPackageSpaceConsistency(session,
                                 allCandidates.getWrappedHost(host),
-                                allCandidates, resourcePkgMap, new HashMap<Resource, Object>(64));
+                                allCandidates, resourcePkgMap, new BitSet());
                         }
                         catch (ResolutionException ex)
                         {
@@ -607,14 +1050,52 @@ public class ResolverImpl implements Resolver
         Resource resource,
         Candidates allCandidates,
         Map<Resource, Packages> resourcePkgMap,
-        Map<Capability, Set<Resource>> usesCycleMap,
-        Set<Resource> cycle)
+        List<BitSet> usesCycleMap,
+        BitSet cycle)
     {
-        if (cycle.contains(resource))
+        int resourceId = session.getResourceIds().intern(resource);
+        if (cycle.get(resourceId))
         {
             return;
         }
-        cycle.add(resource);
+        cycle.set(resourceId);
+
+        // If the resource is resolved, check to see if it is dynamically
+        // importing, in which case there are candidates for one of its
+        // dynamic imports.
+        Wiring wiring = session.getContext().getWirings().get(resource);
+        Requirement dynamicReq = null;
+        Capability dynamicCap = null;
+        if (wiring != null)
+        {
+            for (Requirement req
+                : Util.getDynamicRequirements(wiring.getResourceRequirements(null)))
+            {
+                // Get the candidates for the current requirement.
+                List<Capability> candCaps = allCandidates.getCandidates(req);
+                // Optional requirements may not have any candidates.
+                if (candCaps == null)
+                {
+                    continue;
+                }
+                // Grab first (i.e., highest priority) candidate.
+                dynamicReq = req;
+                dynamicCap = candCaps.get(0);
+                // Can only dynamically import one at a time, so break
+                // out of the loop after the first.
+                break;
+            }
+
+            // Otherwise, the package space of the resource only depends on
+            // its wiring and is consistent by definition, so there is nothing
+            // to calculate; the package spaces of resolved resources are
+            // looked up when they are needed.
+            if (dynamicReq == null)
+            {
+                getPackages(session.getContext(), resource, allCandidates, resourcePkgMap);
+                return;
+            }
+        }
 
         // Make sure package space hasn't already been calculated.
         Packages resourcePkgs = resourcePkgMap.get(resource);
@@ -637,65 +1118,18 @@ public class ResolverImpl implements Resolver
         List<Requirement> reqs = new ArrayList<Requirement>();
         List<Capability> caps = new ArrayList<Capability>();
         boolean isDynamicImporting = false;
-        Wiring wiring = session.getContext().getWirings().get(resource);
         if (wiring != null)
         {
             // Use wires to get actual requirements and satisfying capabilities.
-            for (Wire wire : wiring.getRequiredResourceWires(null))
-            {
-                // Wrap the requirement as a hosted requirement if it comes
-                // from a fragment, since we will need to know the host. We
-                // also need to wrap if the requirement is a dynamic import,
-                // since that requirement will be shared with any other
-                // matching dynamic imports.
-                Requirement r = wire.getRequirement();
-                if (!r.getResource().equals(wire.getRequirer())
-                    || ((r.getDirectives()
-                    .get(PackageNamespace.REQUIREMENT_RESOLUTION_DIRECTIVE) != null)
-                    && r.getDirectives()
-                    .get(PackageNamespace.REQUIREMENT_RESOLUTION_DIRECTIVE)
-                    .equals(PackageNamespace.RESOLUTION_DYNAMIC)))
-                {
-                    r = new WrappedRequirement(wire.getRequirer(), r);
-                }
-                // Wrap the capability as a hosted capability if it comes
-                // from a fragment, since we will need to know the host.
-                Capability c = wire.getCapability();
-                if (!c.getResource().equals(wire.getProvider()))
-                {
-                    c = new WrappedCapability(wire.getProvider(), c);
-                }
-                reqs.add(r);
-                caps.add(c);
-            }
-
-            // Since the resource is resolved, it could be dynamically importing,
-            // so check to see if there are candidates for any of its dynamic
-            // imports.
-            //
-            // NOTE: If the resource is dynamically importing, the fact that
+            addWiredRequirements(wiring.getRequiredResourceWires(null), reqs, caps);
+
+            // NOTE: Since the resource is dynamically importing, the fact that
             // the dynamic import is added here last to the parallel reqs/caps
             // list is used later when checking to see if the package being
             // dynamically imported shadows an existing provider.
-            for (Requirement req
-                : Util.getDynamicRequirements(wiring.getResourceRequirements(null)))
-            {
-                // Get the candidates for the current requirement.
-                List<Capability> candCaps = allCandidates.getCandidates(req);
-                // Optional requirements may not have any candidates.
-                if (candCaps == null)
-                {
-                    continue;
-                }
-                // Grab first (i.e., highest priority) candidate.
-                Capability cap = candCaps.get(0);
-                reqs.add(req);
-                caps.add(cap);
-                isDynamicImporting = true;
-                // Can only dynamically import one at a time, so break
-                // out of the loop after the first.
-                break;
-            }
+            reqs.add(dynamicReq);
+            caps.add(dynamicCap);
+            isDynamicImporting = true;
         }
         else
         {
@@ -742,8 +1176,7 @@ public class ResolverImpl implements Resolver
         {
             Requirement req = reqs.get(i);
             Capability cap = caps.get(i);
-            calculateExportedPackages(
-                session.getContext(), cap.getResource(), allCandidates, resourcePkgMap);
+            getPackages(session.getContext(), cap.getResource(), allCandidates, resourcePkgMap);
 
             // If this resource is dynamically importing, then the last requirement
             // is the dynamic import being resolved, since it is added last to the
@@ -768,7 +1201,7 @@ public class ResolverImpl implements Resolver
 
             mergeCandidatePackages(
                 session.getContext(), resource, req, cap, resourcePkgMap, allCandidates,
-                new HashMap<Resource, Set<Capability>>(), new HashMap<Resource, Set<Resource>>());
+                session.getResourceIds(), session.getCapabilityIds(), null, null);
         }
 
         // Third, have all candidates to calculate their package spaces.
@@ -865,20 +1298,10 @@ public class ResolverImpl implements Resolver
     private void mergeCandidatePackages(
         ResolveContext rc, Resource current, Requirement currentReq,
         Capability candCap, Map<Resource, Packages> resourcePkgMap,
-        Candidates allCandidates, Map<Resource, Set<Capability>> cycles,
-        HashMap<Resource, Set<Resource>> visitedRequiredBundlesMap)
+        Candidates allCandidates, Interner<Resource> resourceIds,
+        Interner<Capability> capabilityIds, BitSet cycleCaps,
+        BitSet visitedRequiredBundles)
     {
-        Set<Capability> cycleCaps = cycles.get(current);
-        if (cycleCaps == null)
-        {
-            cycleCaps = new HashSet<Capability>();
-            cycles.put(current, cycleCaps);
-        }
-        if (!cycleCaps.add(candCap))
-        {
-            return;
-        }
-
         if (candCap.getNamespace().equals(PackageNamespace.PACKAGE_NAMESPACE))
         {
             mergeCandidatePackage(
@@ -886,22 +1309,31 @@ public class ResolverImpl implements Resolver
         }
         else if (candCap.getNamespace().equals(BundleNamespace.BUNDLE_NAMESPACE))
         {
-// TODO: FELIX3 - THIS NEXT LINE IS A HACK. IMPROVE HOW/WHEN WE CALCULATE EXPORTS.
-            calculateExportedPackages(
-                rc, candCap.getResource(), allCandidates, resourcePkgMap);
+            // Only required bundles are merged recursively, so the sets of
+            // visited capability and resource ids are created on demand for
+            // the outermost bundle capability and shared with nested calls.
+            if (cycleCaps == null)
+            {
+                cycleCaps = new BitSet();
+                visitedRequiredBundles = new BitSet();
+            }
+            int candCapId = capabilityIds.intern(candCap);
+            if (cycleCaps.get(candCapId))
+            {
+                return;
+            }
+            cycleCaps.set(candCapId);
 
             // Get the candidate's package space to determine which packages
             // will be visible to the current resource.
-            Packages candPkgs = resourcePkgMap.get(candCap.getResource());
+// TODO: FELIX3 - THIS NEXT LINE IS A HACK. IMPROVE HOW/WHEN WE CALCULATE EXPORTS.
+            Packages candPkgs = getExportedPackages(
+                rc, candCap.getResource(), allCandidates, resourcePkgMap);
 
-            Set<Resource> visitedRequiredBundles = visitedRequiredBundlesMap.get(current);
-            if (visitedRequiredBundles == null)
-            {
-                visitedRequiredBundles = new HashSet<Resource>();
-                visitedRequiredBundlesMap.put(current, visitedRequiredBundles);
-            }
-            if (visitedRequiredBundles.add(candCap.getResource()))
+            int candResourceId = resourceIds.intern(candCap.getResource());
+            if (!visitedRequiredBundles.get(candResourceId))
             {
+                visitedRequiredBundles.set(candResourceId);
                 // We have to merge all exported packages from the candidate,
                 // since the current resource requires it.
                 for (Entry<String, Blame> entry : candPkgs.m_exportedPkgs.entrySet())
@@ -938,7 +1370,8 @@ public class ResolverImpl implements Resolver
                                 w.getCapability(),
                                 resourcePkgMap,
                                 allCandidates,
-                                cycles, visitedRequiredBundlesMap);
+                                resourceIds, capabilityIds,
+                                cycleCaps, visitedRequiredBundles);
                         }
                     }
                 }
@@ -964,16 +1397,18 @@ public class ResolverImpl implements Resolver
                                         cap,
                                         resourcePkgMap,
                                         allCandidates,
-                                        cycles,
-                                        visitedRequiredBundlesMap);
+                                        resourceIds,
+                                        capabilityIds,
+                                        cycleCaps,
+                                        visitedRequiredBundles);
                             }
                         }
                     }
                 }
             }
-        }
 
-        cycles.remove(current);
+            cycleCaps.clear();
+        }
     }
 
     private void mergeCandidatePackage(
@@ -1013,7 +1448,7 @@ public class ResolverImpl implements Resolver
         Capability mergeCap, List<Requirement> blameReqs, Capability matchingCap,
         Map<Resource, Packages> resourcePkgMap,
         Candidates allCandidates,
-        Map<Capability, Set<Resource>> cycleMap)
+        List<BitSet> cycleMap)
     {
         // If there are no uses, then just return.
         // If the candidate resource is the same as the current resource,
@@ -1025,13 +1460,8 @@ public class ResolverImpl implements Resolver
         }
 
         // Check for cycles.
-        Set<Resource> set = cycleMap.get(mergeCap);
-        if (set == null)
-        {
-            set = new HashSet<Resource>();
-            cycleMap.put(mergeCap, set);
-        }
-        if (!set.add(current))
+        if (!addId(cycleMap, session.getCapabilityIds().intern(mergeCap),
+            session.getResourceIds().intern(current)))
         {
             return;
         }
@@ -1064,7 +1494,9 @@ public class ResolverImpl implements Resolver
             }
             for (String usedPkgName : uses)
             {
-                Packages candSourcePkgs = resourcePkgMap.get(candSourceCap.getResource());
+                Packages candSourcePkgs = getPackages(
+                    session.getContext(), candSourceCap.getResource(),
+                    allCandidates, resourcePkgMap);
                 List<Blame> candSourceBlames;
                 // Check to see if the used package is exported.
                 Blame candExportedBlame = candSourcePkgs.m_exportedPkgs.get(usedPkgName);
@@ -1156,6 +1588,31 @@ public class ResolverImpl implements Resolver
         return uses;
     }
 
+    /**
+     * Adds the specified id to the set at the specified index of the list of
+     * sets, growing the list as needed. Returns false if the id was already
+     * in the set.
+     */
+    private static boolean addId(List<BitSet> sets, int index, int id)
+    {
+        while (sets.size() <= index)
+        {
+            sets.add(null);
+        }
+        BitSet set = sets.get(index);
+        if (set == null)
+        {
+            set = new BitSet();
+            sets.set(index, set);
+        }
+        if (set.get(id))
+        {
+            return false;
+        }
+        set.set(id);
+        return true;
+    }
+
     private static void addUsedBlame(
         Map<Capability, UsedBlames> usedBlames, Capability usedCap,
         List<Requirement> blameReqs, Capability matchingCap)
@@ -1181,7 +1638,7 @@ public class ResolverImpl implements Resolver
         Resource resource,
         Candidates allCandidates,
         Map<Resource, Packages> resourcePkgMap,
-        Map<Resource, Object> resultCache) throws ResolutionException
+        BitSet resultCache) throws ResolutionException
     {
         if (session.getContext().getWirings().containsKey(resource))
         {
@@ -1196,9 +1653,10 @@ public class ResolverImpl implements Resolver
         Resource resource,
         Candidates allCandidates,
         Map<Resource, Packages> resourcePkgMap,
-        Map<Resource, Object> resultCache) throws ResolutionException
+        BitSet resultCache) throws ResolutionException
     {
-        if (resultCache.containsKey(resource))
+        int resourceId = session.getResourceIds().intern(resource);
+        if (resultCache.get(resourceId))
         {
             return;
         }
@@ -1209,9 +1667,6 @@ public class ResolverImpl implements Resolver
         Candidates permutation = null;
         Set<Requirement> mutated = null;
 
-        List<Candidates> importPermutations = session.getImportPermutations();
-        List<Candidates> usesPermutations = session.getUsesPermutations();
-
         // Check for conflicting imports from fragments.
         // TODO: Is this only needed for imports or are generic and bundle requirements also needed?
         //       I think this is only a special case for fragment imports because they can overlap
@@ -1230,9 +1685,9 @@ public class ResolverImpl implements Resolver
                     else if (!sourceBlame.m_cap.getResource().equals(blame.m_cap.getResource()))
                     {
                         // Try to permutate the conflicting requirement.
-                        allCandidates.permutate(blame.m_reqs.get(0), importPermutations);
+                        session.permutate(allCandidates, blame.m_reqs.get(0));
                         // Try to permutate the source requirement.
-                        allCandidates.permutate(sourceBlame.m_reqs.get(0), importPermutations);
+                        session.permutate(allCandidates, sourceBlame.m_reqs.get(0));
                         // Report conflict.
                         ResolutionException ex = new ResolutionException(
                             "Uses constraint violation. Unable to resolve resource "
@@ -1342,7 +1797,7 @@ public class ResolverImpl implements Resolver
             {
                 if (!mutated.isEmpty())
                 {
-                    usesPermutations.add(permutation);
+                    session.addUsesPermutation(permutation);
                 }
                 m_logger.log(
                     Logger.LOG_DEBUG,
@@ -1454,7 +1909,7 @@ public class ResolverImpl implements Resolver
                     // Add uses permutation if we mutated any candidates.
                     if (!mutated.isEmpty())
                     {
-                        usesPermutations.add(permutation);
+                        session.addUsesPermutation(permutation);
                     }
 
                     // Try to permutate the candidate for the original
@@ -1469,7 +1924,7 @@ public class ResolverImpl implements Resolver
                             // with existing import decisions, we may end up trying
                             // to permutate the same import a lot of times, so we should
                             // try to check if that the case and only permutate it once.
-                            allCandidates.permutateIfNeeded(req, importPermutations);
+                            session.permutateIfNeeded(allCandidates, req);
                         }
                     }
 
@@ -1483,13 +1938,13 @@ public class ResolverImpl implements Resolver
             }
         }
 
-        resultCache.put(resource, Boolean.TRUE);
+        resultCache.set(resourceId);
 
         // Now check the consistency of all resources on which the
         // current resource depends. Keep track of the current number
         // of permutations so we know if the lower level check was
         // able to create a permutation or not in the case of failure.
-        int permCount = usesPermutations.size() + importPermutations.size();
+        int permMark = session.getPermutationMark();
         for (Requirement req : resource.getRequirements(null))
         {
             Capability cap = allCandidates.getFirstCandidate(req);
@@ -1509,10 +1964,7 @@ public class ResolverImpl implements Resolver
                         // then we should create an import permutation for the
                         // requirement with the dependency on the failing resource
                         // to backtrack on our current candidate selection.
-                        if (permCount == (usesPermutations.size() + importPermutations.size()))
-                        {
-                            allCandidates.permutate(req, importPermutations);
-                        }
+                        session.permutateIfUnchanged(allCandidates, req, permMark);
                         throw ex;
                     }
                 }
@@ -1547,6 +1999,167 @@ public class ResolverImpl implements Resolver
         return (candidates != null) && !candidates.isEmpty();
     }
 
+    /**
+     * Adds the requirements of the specified wires and the capabilities
+     * satisfying them to the parallel lists.
+     */
+    private static void addWiredRequirements(
+        List<Wire> wires, List<Requirement> reqs, List<Capability> caps)
+    {
+        for (Wire wire : wires)
+        {
+            // Wrap the requirement as a hosted requirement if it comes
+            // from a fragment, since we will need to know the host. We
+            // also need to wrap if the requirement is a dynamic import,
+            // since that requirement will be shared with any other
+            // matching dynamic imports.
+            Requirement r = wire.getRequirement();
+            if (!r.getResource().equals(wire.getRequirer())
+                || ((r.getDirectives()
+                .get(PackageNamespace.REQUIREMENT_RESOLUTION_DIRECTIVE) != null)
+                && r.getDirectives()
+                .get(PackageNamespace.REQUIREMENT_RESOLUTION_DIRECTIVE)
+                .equals(PackageNamespace.RESOLUTION_DYNAMIC)))
+            {
+                r = new WrappedRequirement(wire.getRequirer(), r);
+            }
+            // Wrap the capability as a hosted capability if it comes
+            // from a fragment, since we will need to know the host.
+            Capability c = wire.getCapability();
+            if (!c.getResource().equals(wire.getProvider()))
+            {
+                c = new WrappedCapability(wire.getProvider(), c);
+            }
+            reqs.add(r);
+            caps.add(c);
+        }
+    }
+
+    /**
+     * Returns the package space of the specified resource. The package space
+     * of an unresolved resource must have been calculated already, or only
+     * its exported packages are calculated, while the package space of a
+     * wired resource is taken from the wired package spaces. The candidates
+     * may be null if the resource is known to be wired or calculated.
+     */
+    private Packages getPackages(
+        ResolveContext rc,
+        Resource resource,
+        Candidates allCandidates,
+        Map<Resource, Packages> resourcePkgMap)
+    {
+        Packages packages = resourcePkgMap.get(resource);
+        if (packages == null)
+        {
+            Wiring wiring = rc.getWirings().get(resource);
+            if (wiring == null)
+            {
+                calculateExportedPackages(rc, resource, allCandidates, resourcePkgMap);
+                return resourcePkgMap.get(resource);
+            }
+            packages = getWiredPackages(rc, resource, wiring);
+            resourcePkgMap.put(resource, packages);
+        }
+        return packages;
+    }
+
+    /**
+     * Returns a package space holding at least the exported packages of the
+     * specified resource, without calculating the package space of a wired
+     * resource.
+     */
+    private Packages getExportedPackages(
+        ResolveContext rc,
+        Resource resource,
+        Candidates allCandidates,
+        Map<Resource, Packages> resourcePkgMap)
+    {
+        Packages packages = resourcePkgMap.get(resource);
+        if (packages == null)
+        {
+            Wiring wiring = rc.getWirings().get(resource);
+            if (wiring == null)
+            {
+                calculateExportedPackages(rc, resource, allCandidates, resourcePkgMap);
+                return resourcePkgMap.get(resource);
+            }
+            packages = getWiredEntry(rc, resource, wiring).m_exports;
+        }
+        return packages;
+    }
+
+    private WiredPackages getWiredEntry(ResolveContext rc, Resource resource, Wiring wiring)
+    {
+        // Dynamic imports add wires to an existing wiring, so the number of
+        // wires is checked as well.
+        int wireCount = wiring.getRequiredResourceWires(null).size();
+        WiredPackages wired = m_wiredPackages.get(resource);
+        if ((wired == null) || (wired.m_wiring != wiring) || (wired.m_wireCount != wireCount))
+        {
+            Map<Resource, Packages> exports = new HashMap<Resource, Packages>(1);
+            calculateExportedPackages(rc, resource, null, exports);
+            wired = new WiredPackages(wiring, wireCount, exports.get(resource));
+            m_wiredPackages.put(resource, wired);
+        }
+        return wired;
+    }
+
+    /**
+     * Returns the package space of a wired resource, calculating it from
+     * its wires the first time. It only refers to the exported packages of
+     * other resources, so the package spaces of wired resources can be
+     * calculated independently of each other.
+     */
+    private Packages getWiredPackages(ResolveContext rc, Resource resource, Wiring wiring)
+    {
+        WiredPackages wired = getWiredEntry(rc, resource, wiring);
+        Packages packages = wired.m_packages;
+        if (packages == null)
+        {
+            packages = new Packages(resource);
+            packages.m_exportedPkgs.putAll(wired.m_exports.m_exportedPkgs);
+            packages.m_isCalculated = true;
+
+            List<Requirement> reqs = new ArrayList<Requirement>();
+            List<Capability> caps = new ArrayList<Capability>();
+            addWiredRequirements(wiring.getRequiredResourceWires(null), reqs, caps);
+            Map<Resource, Packages> resourcePkgMap = new HashMap<Resource, Packages>(1);
+            resourcePkgMap.put(resource, packages);
+            Interner<Resource> resourceIds = new Interner<Resource>();
+            Interner<Capability> capabilityIds = new Interner<Capability>();
+            for (int i = 0; i < reqs.size(); i++)
+            {
+                mergeCandidatePackages(
+                    rc, resource, reqs.get(i), caps.get(i), resourcePkgMap, null,
+                    resourceIds, capabilityIds, null, null);
+            }
+            wired.m_packages = packages;
+        }
+        return packages;
+    }
+
+    /**
+     * Drops the package spaces of resources whose wiring changed and bounds
+     * the number of parsed uses directives kept between resolves.
+     */
+    private void pruneCaches(ResolveContext rc)
+    {
+        Map<Resource, Wiring> wirings = rc.getWirings();
+        for (Iterator<Entry<Resource, WiredPackages>> it = m_wiredPackages.entrySet().iterator();
+            it.hasNext();)
+        {
+            Entry<Resource, WiredPackages> entry = it.next();
+            if (wirings.get(entry.getKey()) != entry.getValue().m_wiring)
+            {
+                it.remove();
+            }
+        }
+        if (m_usesCache.size() > USES_CACHE_SIZE)
+        {
+            m_usesCache.clear();
+        }
+    }
+
     private static void calculateExportedPackages(
         ResolveContext rc,
         Resource resource,
@@ -1666,17 +2279,40 @@ public class ResolverImpl implements Resolver
     private Set<Capability> getPackageSources(
         ResolveSession session, Capability cap, Map<Resource, Packages> resourcePkgMap)
     {
-        Map<Capability, Set<Capability>> packageSourcesCache = session.getPackageSourcesCache();
+        List<Set<Capability>> packageSourcesCache = session.getPackageSourcesCache();
         // If it is a package, then calculate sources for it.
         if (cap.getNamespace().equals(PackageNamespace.PACKAGE_NAMESPACE))
         {
-            Set<Capability> sources = packageSourcesCache.get(cap);
+            int capId = session.getCapabilityIds().intern(cap);
+            Set<Capability> sources = (capId < packageSourcesCache.size())
+                ? packageSourcesCache.get(capId) : null;
             if (sources == null)
             {
-                sources = getPackageSourcesInternal(
-                    session.getContext(), cap, resourcePkgMap,
-                    new HashSet<Capability>(64), new HashSet<Capability>(64));
-                packageSourcesCache.put(cap, sources);
+                // The sources of a package exported by a wired resource only
+                // depend on wired resources, so they are kept with its
+                // package space unless it is dynamically importing.
+                ResolveContext rc = session.getContext();
+                Packages pkgs = getPackages(rc, cap.getResource(), null, resourcePkgMap);
+                WiredPackages wired = m_wiredPackages.get(cap.getResource());
+                if ((wired != null) && (wired.m_packages == pkgs))
+                {
+                    sources = wired.m_sources.get(cap);
+                }
+                if (sources == null)
+                {
+                    sources = getPackageSourcesInternal(
+                        rc, cap, resourcePkgMap,
+                        new HashSet<Capability>(64), new HashSet<Capability>(64));
+                    if ((wired != null) && (wired.m_packages == pkgs))
+                    {
+                        wired.m_sources.put(cap, sources);
+                    }
+                }
+                while (packageSourcesCache.size() <= capId)
+                {
+                    packageSourcesCache.add(null);
+                }
+                packageSourcesCache.set(capId, sources);
             }
             return sources;
         }
@@ -1693,7 +2329,7 @@ public class ResolverImpl implements Resolver
         return Collections.emptySet();
     }
 
-    private static Set<Capability> getPackageSourcesInternal(
+    private Set<Capability> getPackageSourcesInternal(
         ResolveContext rc, Capability cap, Map<Resource, Packages> resourcePkgMap,
         Set<Capability> sources, Set<Capability> cycleMap)
     {
@@ -1730,7 +2366,9 @@ public class ResolverImpl implements Resolver
             }
 
             // Then get any addition sources for the package from required bundles.
-            Packages pkgs = resourcePkgMap.get(cap.getResource());
+            // The package spaces of unresolved resources are always calculated
+            // by now, so no candidates are needed.
+            Packages pkgs = getPackages(rc, cap.getResource(), null, resourcePkgMap);
             List<Blame> required = pkgs.m_requiredPkgs.get(pkgName);
             if (required != null)
             {
@@ -2148,6 +2786,244 @@ public class ResolverImpl implements Resolver
         return cap;
     }
 
+    /*
+     * Holds the outcome of checking a single candidate permutation.
+     */
+    private static class PermutationResult
+    {
+        public final Candidates m_candidates;
+        public final Map<Resource, Packages> m_resourcePkgMap = new HashMap<Resource, Packages>();
+        public ResolutionException m_rethrow;
+        public Map<Resource, ResolutionException> m_faultyResources;
+        public Candidates m_multipleCardCandidates;
+        public List<PendingPermutation> m_pendingPermutations;
+
+        public PermutationResult(Candidates candidates)
+        {
+            m_candidates = candidates;
+        }
+    }
+
+    /*
+     * A permutation created while checking a permutation on a worker thread.
+     * It is only added to the permutations of the resolving session once the
+     * result of the checked permutation is consumed, since some permutations
+     * are only created depending on the permutations already present.
+     */
+    private static class PendingPermutation
+    {
+        public static final int USES = 0;
+        public static final int IMPORT = 1;
+        // Dropped if an import permutation already replaces the first candidate.
+        public static final int IMPORT_IF_NEEDED = 2;
+        // Dropped if any permutation was added since the mark.
+        public static final int IMPORT_IF_UNCHANGED = 3;
+
+        public final int m_kind;
+        public final Candidates m_permutation;
+        public final Requirement m_req;
+        public final Capability m_firstCandidate;
+        public final int m_mark;
+
+        public PendingPermutation(
+            int kind, Candidates permutation, Requirement req,
+            Capability firstCandidate, int mark)
+        {
+            m_kind = kind;
+            m_permutation = permutation;
+            m_req = req;
+            m_firstCandidate = firstCandidate;
+            m_mark = mark;
+        }
+    }
+
+    /*
+     * Checks the permutations waiting at the head of a permutation list
+     * concurrently. Every permutation is checked on a copy with its own
+     * session, so the waiting permutations remain untouched and the results
+     * are consumed by the resolving thread in list order. This keeps the
+     * selected wiring independent of thread timing.
+     */
+    private class PermutationChecker
+    {
+        private final ResolveContext m_rc;
+        private final Map<Candidates, PermutationResult> m_results =
+            new IdentityHashMap<Candidates, PermutationResult>();
+
+        PermutationChecker(ResolveContext rc)
+        {
+            m_rc = rc;
+        }
+
+        /**
+         * Checks the permutations at the head of the list concurrently,
+         * but not more than the specified number, which is how many more
+         * permutations the resolve operation may check.
+         */
+        void checkAhead(
+            List<Candidates> permutations, Set<Object> processedDeltas,
+            final Set<Resource> allResources, final Map<Resource, Requirement> hostReqs,
+            int limit)
+        {
+            if (m_results.containsKey(permutations.get(0)))
+            {
+                return;
+            }
+            // Results that were not consumed in order belong to permutations
+            // that are no longer next in line; drop them to bound memory.
+            m_results.clear();
+
+            // Select distinct permutations that were not tried yet.
+            int size = Math.min(m_parallelism, limit);
+            if (size < 2)
+            {
+                return;
+            }
+            final List<Candidates> batch = new ArrayList<Candidates>(size);
+            Set<Object> deltas = new HashSet<Object>();
+            for (Candidates permutation : permutations)
+            {
+                if (batch.size() == size)
+                {
+                    break;
+                }
+                if (!processedDeltas.contains(permutation.getDelta())
+                    && deltas.add(permutation.getDelta()))
+                {
+                    batch.add(permutation);
+                }
+            }
+            if (batch.size() < 2)
+            {
+                return;
+            }
+
+            // Index of the first permutation known to be consistent; any
+            // permutation after it will never be consumed, so skip it.
+            final AtomicInteger firstSuccess = new AtomicInteger(batch.size());
+            List<Callable<PermutationResult>> tasks =
+                new ArrayList<Callable<PermutationResult>>(batch.size());
+            for (int i = 0; i < batch.size(); i++)
+            {
+                final int index = i;
+                final Candidates permutation = batch.get(i);
+                tasks.add(new Callable<PermutationResult>()
+                {
+                    public PermutationResult call()
+                    {
+                        if (firstSuccess.get() < index)
+                        {
+                            return null;
+                        }
+                        ResolveSession session = new ResolveSession(m_rc, m_usesCache, true);
+                        PermutationResult result = checkPermutation(
+                            session, permutation.copy(), allResources, hostReqs);
+                        result.m_pendingPermutations = session.getPendingPermutations();
+                        if (result.m_rethrow != null)
+                        {
+                            // Package spaces are only needed for the wiring
+                            // of a consistent permutation.
+                            result.m_resourcePkgMap.clear();
+                        }
+                        else
+                        {
+                            int current = firstSuccess.get();
+                            while ((index < current)
+                                && !firstSuccess.compareAndSet(current, index))
+                            {
+                                current = firstSuccess.get();
+                            }
+                        }
+                        return result;
+                    }
+                });
+            }
+
+            List<Future<PermutationResult>> futures;
+            try
+            {
+                futures = getPermutationExecutor().invokeAll(tasks);
+            }
+            catch (InterruptedException ex)
+            {
+                // Fall back to checking the permutations on this thread.
+                Thread.currentThread().interrupt();
+                return;
+            }
+            for (int i = 0; i < futures.size(); i++)
+            {
+                PermutationResult result;
+                try
+                {
+                    result = futures.get(i).get();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                catch (ExecutionException ex)
+                {
+                    if (ex.getCause() instanceof RuntimeException)
+                    {
+                        throw (RuntimeException) ex.getCause();
+                    }
+                    if (ex.getCause() instanceof Error)
+                    {
+                        throw (Error) ex.getCause();
+                    }
+                    throw new IllegalStateException(ex.getCause());
+                }
+                if (result != null)
+                {
+                    m_results.put(batch.get(i), result);
+                }
+            }
+        }
+
+        PermutationResult takeResult(Candidates permutation)
+        {
+            return m_results.remove(permutation);
+        }
+
+        void clearResults()
+        {
+            m_results.clear();
+        }
+    }
+
+    /**
+     * Returns the executor checking permutations in parallel, which is
+     * shared by all resolve operations, including the ones of a batch. It
+     * never runs more than the configured parallelism of threads at once;
+     * when all of them are busy, a permutation is checked on the thread
+     * submitting it instead, so concurrent resolve operations cannot starve
+     * each other. Idle threads terminate, so the executor never needs to be
+     * shut down.
+     */
+    private synchronized ExecutorService getPermutationExecutor()
+    {
+        if (m_permutationExecutor == null)
+        {
+            m_permutationExecutor = new ThreadPoolExecutor(
+                0, m_parallelism, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory()
+                {
+                    private final AtomicInteger m_count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(
+                            r, "FelixResolver-" + m_count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return m_permutationExecutor;
+    }
+
     private static class Packages
     {
         private final Resource m_resource;
@@ -2163,6 +3039,28 @@ public class ResolverImpl implements Resolver
         }
     }
 
+    /**
+     * The package space of a wired resource, which is immutable once
+     * calculated and valid as long as the wiring of the resource does not
+     * change.
+     */
+    private static class WiredPackages
+    {
+        public final Wiring m_wiring;
+        public final int m_wireCount;
+        public final Packages m_exports;
+        public volatile Packages m_packages;
+        public final Map<Capability, Set<Capability>> m_sources =
+            new ConcurrentHashMap<Capability, Set<Capability>>();
+
+        public WiredPackages(Wiring wiring, int wireCount, Packages exports)
+        {
+            m_wiring = wiring;
+            m_wireCount = wireCount;
+            m_exports = exports;
+        }
+    }
+
     private static class Blame
     {
         public final Capability m_cap;
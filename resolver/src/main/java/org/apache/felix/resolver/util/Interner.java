@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.resolver.util;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Assigns dense int ids to objects, equal objects getting the same id.
+ * Objects already seen are looked up by identity, so that the potentially
+ * expensive hashCode and equals methods of resources and capabilities are
+ * only called the first time a given instance is interned. Ids can then be
+ * used to index arrays and bitsets.
+ * <p>
+ * This class is not thread safe.
+ */
+public class Interner<T> {
+
+    private final Map<T, Integer> identities = new IdentityHashMap<T, Integer>();
+    private final Map<T, Integer> ids = new HashMap<T, Integer>();
+
+    /**
+     * Returns the id of the given object, assigning the next free id if no
+     * equal object has been interned yet.
+     */
+    public int intern(T object) {
+        Integer id = identities.get(object);
+        if (id == null) {
+            id = ids.get(object);
+            if (id == null) {
+                id = ids.size();
+                ids.put(object, id);
+            }
+            identities.put(object, id);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the number of ids assigned so far.
+     */
+    public int size() {
+        return ids.size();
+    }
+
+}
@@ -0,0 +1,489 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.resolver.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A hash array mapped trie whose {@link #copy()} is O(1).
+ * <p>
+ * A map and its copies share their nodes and values.  A node is only
+ * modified in place by the map that created it since the last copy;
+ * other nodes are copied along the path being changed, so that the cost
+ * of modifying a copy is proportional to the number of changes made
+ * rather than to the size of the map.  Values are shared the same way:
+ * callers that want to modify a value in place must obtain it through
+ * {@link #getForUpdate(Object)}, which copies it using
+ * {@link #copyValue(Object)} if it may still be visible to another map.
+ * <p>
+ * Null keys are not supported, and the entry set is read-only.
+ */
+public class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final int MAX_SHIFT = 30;
+
+    private Node root;
+    private int size;
+    private Object edit;
+
+    // Results of the last put or remove
+    private Object oldValue;
+    private boolean found;
+    // Position of the entry found by the last call to find()
+    private int index;
+
+    public PersistentHashMap() {
+        edit = new Object();
+    }
+
+    protected PersistentHashMap(PersistentHashMap<K, V> map) {
+        root = map.root;
+        size = map.size;
+        // Neither map may modify in place anything reachable by the other
+        edit = new Object();
+        map.edit = new Object();
+    }
+
+    /**
+     * Returns a copy of this map sharing all of its structure.
+     */
+    public PersistentHashMap<K, V> copy() {
+        return new PersistentHashMap<K, V>(this);
+    }
+
+    /**
+     * Returns a copy of the given value which can be modified without
+     * affecting other maps.  The default implementation returns the
+     * value itself, which is only correct for immutable values.
+     */
+    protected V copyValue(V value) {
+        return value;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        Object[] a = find(key);
+        return a != null ? (V) a[index + 1] : null;
+    }
+
+    /**
+     * Returns the value for the given key so that it can be modified
+     * in place, copying it first if it may be shared with another map.
+     */
+    @SuppressWarnings("unchecked")
+    public V getForUpdate(K key) {
+        Object[] a = find(key);
+        if (a == null) {
+            return null;
+        }
+        V value = (V) a[index + 1];
+        if (a[index + 2] == edit || value == null) {
+            return value;
+        }
+        value = copyValue(value);
+        put(key, value);
+        return value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        if (key == null) {
+            throw new NullPointerException("Null keys are not supported");
+        }
+        found = false;
+        oldValue = null;
+        int h = hash(key);
+        if (root == null) {
+            root = new Node(edit, 1 << (h & MASK), new Object[] {key, value, edit});
+        } else {
+            root = put(root, 0, h, key, value);
+        }
+        if (!found) {
+            size++;
+        }
+        V old = (V) oldValue;
+        oldValue = null;
+        return old;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        if (key == null || root == null) {
+            return null;
+        }
+        found = false;
+        oldValue = null;
+        root = remove(root, 0, hash(key), key);
+        if (found) {
+            size--;
+        }
+        V old = (V) oldValue;
+        oldValue = null;
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        root = null;
+        size = 0;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return new EntryIterator<K, V>(root);
+            }
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the array of the node holding the given key, and sets
+     * {@link #index} to the position of its entry, or returns null.
+     */
+    private Object[] find(Object key) {
+        if (key == null) {
+            return null;
+        }
+        int h = hash(key);
+        Node node = root;
+        int shift = 0;
+        while (node != null) {
+            Object[] a = node.array;
+            if (node.bitmap == 0) {
+                for (int i = 0; i < a.length; i += 3) {
+                    if (key.equals(a[i])) {
+                        index = i;
+                        return a;
+                    }
+                }
+                return null;
+            }
+            int bit = 1 << ((h >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            int idx = 3 * Integer.bitCount(node.bitmap & (bit - 1));
+            Object k = a[idx];
+            if (k == null) {
+                node = (Node) a[idx + 1];
+                shift += BITS;
+            } else if (key.equals(k)) {
+                index = idx;
+                return a;
+            } else {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private Node editable(Node node) {
+        if (node.edit == edit) {
+            return node;
+        }
+        return new Node(edit, node.bitmap, node.array.clone());
+    }
+
+    private Node put(Node node, int shift, int h, Object key, Object value) {
+        Object[] a = node.array;
+        if (node.bitmap == 0) {
+            // Collision node: all keys have the same hash
+            for (int i = 0; i < a.length; i += 3) {
+                if (key.equals(a[i])) {
+                    found = true;
+                    oldValue = a[i + 1];
+                    Node e = editable(node);
+                    e.array[i + 1] = value;
+                    e.array[i + 2] = edit;
+                    return e;
+                }
+            }
+            return withArray(node, insert(a, a.length, key, value, edit));
+        }
+        int bit = 1 << ((h >>> shift) & MASK);
+        int idx = 3 * Integer.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) == 0) {
+            Node e = withArray(node, insert(a, idx, key, value, edit));
+            e.bitmap |= bit;
+            return e;
+        }
+        Object k = a[idx];
+        if (k == null) {
+            Node child = (Node) a[idx + 1];
+            Node newChild = put(child, shift + BITS, h, key, value);
+            if (newChild == child) {
+                return node;
+            }
+            Node e = editable(node);
+            e.array[idx + 1] = newChild;
+            return e;
+        }
+        if (key.equals(k)) {
+            found = true;
+            oldValue = a[idx + 1];
+            Node e = editable(node);
+            e.array[idx + 1] = value;
+            e.array[idx + 2] = edit;
+            return e;
+        }
+        Node child = createNode(shift + BITS, hash(k), k, a[idx + 1], a[idx + 2], h, key, value);
+        Node e = editable(node);
+        e.array[idx] = null;
+        e.array[idx + 1] = child;
+        e.array[idx + 2] = null;
+        return e;
+    }
+
+    private Node createNode(int shift, int h1, Object k1, Object v1, Object e1,
+                            int h2, Object k2, Object v2) {
+        if (shift > MAX_SHIFT) {
+            return new Node(edit, 0, new Object[] {k1, v1, e1, k2, v2, edit});
+        }
+        int b1 = (h1 >>> shift) & MASK;
+        int b2 = (h2 >>> shift) & MASK;
+        if (b1 == b2) {
+            Node child = createNode(shift + BITS, h1, k1, v1, e1, h2, k2, v2);
+            return new Node(edit, 1 << b1, new Object[] {null, child, null});
+        } else if (b1 < b2) {
+            return new Node(edit, (1 << b1) | (1 << b2), new Object[] {k1, v1, e1, k2, v2, edit});
+        } else {
+            return new Node(edit, (1 << b1) | (1 << b2), new Object[] {k2, v2, edit, k1, v1, e1});
+        }
+    }
+
+    private Node remove(Node node, int shift, int h, Object key) {
+        Object[] a = node.array;
+        if (node.bitmap == 0) {
+            for (int i = 0; i < a.length; i += 3) {
+                if (key.equals(a[i])) {
+                    found = true;
+                    oldValue = a[i + 1];
+                    return a.length == 3 ? null : withArray(node, delete(a, i));
+                }
+            }
+            return node;
+        }
+        int bit = 1 << ((h >>> shift) & MASK);
+        if ((node.bitmap & bit) == 0) {
+            return node;
+        }
+        int idx = 3 * Integer.bitCount(node.bitmap & (bit - 1));
+        Object k = a[idx];
+        if (k == null) {
+            Node child = (Node) a[idx + 1];
+            Node newChild = remove(child, shift + BITS, h, key);
+            if (newChild == child) {
+                return node;
+            }
+            if (newChild != null) {
+                Node e = editable(node);
+                e.array[idx + 1] = newChild;
+                return e;
+            }
+        } else if (key.equals(k)) {
+            found = true;
+            oldValue = a[idx + 1];
+        } else {
+            return node;
+        }
+        if (node.bitmap == bit) {
+            return null;
+        }
+        Node e = withArray(node, delete(a, idx));
+        e.bitmap &= ~bit;
+        return e;
+    }
+
+    private Node withArray(Node node, Object[] array) {
+        if (node.edit == edit) {
+            node.array = array;
+            return node;
+        }
+        return new Node(edit, node.bitmap, array);
+    }
+
+    private static Object[] insert(Object[] a, int idx, Object k, Object v, Object e) {
+        Object[] n = new Object[a.length + 3];
+        System.arraycopy(a, 0, n, 0, idx);
+        System.arraycopy(a, idx, n, idx + 3, a.length - idx);
+        n[idx] = k;
+        n[idx + 1] = v;
+        n[idx + 2] = e;
+        return n;
+    }
+
+    private static Object[] delete(Object[] a, int idx) {
+        Object[] n = new Object[a.length - 3];
+        System.arraycopy(a, 0, n, 0, idx);
+        System.arraycopy(a, idx + 3, n, idx, a.length - idx - 3);
+        return n;
+    }
+
+    /**
+     * A trie node.  The array holds a triplet for each bit set in the
+     * bitmap: either the key, the value and the edit token of the map
+     * which put the value, or null, a child node and null.  A node with
+     * an empty bitmap holds keys which all have the same hash.
+     */
+    static final class Node {
+        final Object edit;
+        int bitmap;
+        Object[] array;
+
+        Node(Object edit, int bitmap, Object[] array) {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+    }
+
+    static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+        // Tries are at most 8 levels deep, including collision nodes
+        private final Object[][] arrays = new Object[8][];
+        private final int[] positions = new int[8];
+        private int depth = -1;
+        private Entry<K, V> next;
+
+        EntryIterator(Node root) {
+            if (root != null) {
+                arrays[0] = root.array;
+                depth = 0;
+                advance();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                Object[] a = arrays[depth];
+                int i = positions[depth];
+                if (i >= a.length) {
+                    arrays[depth] = null;
+                    depth--;
+                    continue;
+                }
+                positions[depth] = i + 3;
+                if (a[i] == null) {
+                    depth++;
+                    arrays[depth] = ((Node) a[i + 1]).array;
+                    positions[depth] = 0;
+                } else {
+                    next = new ImmutableEntry<K, V>((K) a[i], (V) a[i + 1]);
+                    return;
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Entry<K, V> next() {
+            Entry<K, V> e = next;
+            if (e == null) {
+                throw new NoSuchElementException();
+            }
+            advance();
+            return e;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    static final class ImmutableEntry<K, V> implements Entry<K, V> {
+        private final K key;
+        private final V value;
+
+        ImmutableEntry(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return (key == null ? e.getKey() == null : key.equals(e.getKey()))
+                    && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.resolver.util;
+
+public class PersistentHashMapSet<K, V> extends PersistentHashMap<K, CopyOnWriteSet<V>> {
+
+    public PersistentHashMapSet() {
+        super();
+    }
+
+    protected PersistentHashMapSet(PersistentHashMapSet<K, V> map) {
+        super(map);
+    }
+
+    @Override
+    public PersistentHashMapSet<K, V> copy() {
+        return new PersistentHashMapSet<K, V>(this);
+    }
+
+    @Override
+    protected CopyOnWriteSet<V> copyValue(CopyOnWriteSet<V> value) {
+        return new CopyOnWriteSet<V>(value);
+    }
+}
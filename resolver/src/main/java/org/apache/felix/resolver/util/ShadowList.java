@@ -32,6 +32,20 @@ public class ShadowList<T> extends CopyOnWriteList<T>
         m_original = original;
     }
 
+    private ShadowList(ShadowList<T> list)
+    {
+        super(list);
+        m_original = list.m_original;
+    }
+
+    /**
+     * Returns a copy of this list with the same original list.
+     */
+    public ShadowList<T> copy()
+    {
+        return new ShadowList<T>(this);
+    }
+
     public List<T> getOriginal()
     {
         return m_original;
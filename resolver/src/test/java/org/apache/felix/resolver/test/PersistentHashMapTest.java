@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.resolver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.felix.resolver.util.CopyOnWriteList;
+import org.apache.felix.resolver.util.PersistentHashMap;
+import org.apache.felix.resolver.util.PersistentHashMapList;
+import org.apache.felix.resolver.util.ShadowList;
+import org.junit.Test;
+
+public class PersistentHashMapTest {
+
+    @Test
+    public void testCopiesAreIndependent() {
+        Random random = new Random(42);
+        List<PersistentHashMap<Key, Integer>> maps = new ArrayList<PersistentHashMap<Key, Integer>>();
+        List<Map<Key, Integer>> expected = new ArrayList<Map<Key, Integer>>();
+        maps.add(new PersistentHashMap<Key, Integer>());
+        expected.add(new HashMap<Key, Integer>());
+
+        for (int i = 0; i < 20000; i++) {
+            int m = random.nextInt(maps.size());
+            PersistentHashMap<Key, Integer> map = maps.get(m);
+            Map<Key, Integer> exp = expected.get(m);
+            // Few distinct hashes, so that collisions are exercised too
+            Key key = new Key(random.nextInt(2000), random.nextInt(4) == 0 ? 7 : random.nextInt());
+            int op = random.nextInt(10);
+            if (op < 6) {
+                assertEquals(exp.put(key, i), map.put(key, i));
+            } else if (op < 9) {
+                assertEquals(exp.remove(key), map.remove(key));
+            } else if (maps.size() < 16) {
+                maps.add(map.copy());
+                expected.add(new HashMap<Key, Integer>(exp));
+            }
+        }
+
+        for (int m = 0; m < maps.size(); m++) {
+            PersistentHashMap<Key, Integer> map = maps.get(m);
+            Map<Key, Integer> exp = expected.get(m);
+            assertEquals(exp.size(), map.size());
+            assertEquals(exp, map);
+            assertEquals(map, exp);
+            assertEquals(exp.hashCode(), map.hashCode());
+            for (Key key : exp.keySet()) {
+                assertTrue(map.containsKey(key));
+            }
+            for (Key key : new ArrayList<Key>(exp.keySet())) {
+                assertEquals(exp.remove(key), map.remove(key));
+            }
+            assertTrue(map.isEmpty());
+            assertFalse(map.entrySet().iterator().hasNext());
+        }
+    }
+
+    @Test
+    public void testGetForUpdateCopiesSharedValues() {
+        PersistentHashMapList<String, String> map = new PersistentHashMapList<String, String>();
+        CopyOnWriteList<String> list = new CopyOnWriteList<String>();
+        list.add("a");
+        map.put("key", list);
+        assertSame(list, map.getForUpdate("key"));
+
+        PersistentHashMapList<String, String> copy = map.copy();
+        CopyOnWriteList<String> copyList = copy.getForUpdate("key");
+        assertNotSame(list, copyList);
+        copyList.add("b");
+        assertSame(copyList, copy.getForUpdate("key"));
+        assertEquals(1, map.get("key").size());
+        assertEquals(2, copy.get("key").size());
+
+        CopyOnWriteList<String> mapList = map.getForUpdate("key");
+        assertNotSame(list, mapList);
+        mapList.clear();
+        assertEquals(1, list.size());
+        assertEquals(2, copy.get("key").size());
+        assertNull(map.getForUpdate("missing"));
+
+        ShadowList<String> shadow = new ShadowList<String>(list);
+        map.put("shadow", shadow);
+        CopyOnWriteList<String> shadowCopy = map.copy().getForUpdate("shadow");
+        assertNotSame(shadow, shadowCopy);
+        assertSame(list, ((ShadowList<String>) shadowCopy).getOriginal());
+    }
+
+    static class Key {
+        final int id;
+        final int hash;
+
+        Key(int id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).id == id && ((Key) o).hash == hash;
+        }
+
+        @Override
+        public String toString() {
+            return id + "/" + hash;
+        }
+    }
+}
@@ -30,7 +30,13 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.felix.resolver.BoundedResolveContext;
 import org.apache.felix.resolver.Logger;
 import org.apache.felix.resolver.ResolverImpl;
 import org.junit.Ignore;
@@ -393,6 +399,349 @@ public class ResolverTest
         assertEquals(3, wireMap.size());
     }
 
+    @Test
+    public void testParallelPermutationsMatchSequential() throws Exception
+    {
+        Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        List<Resource> mandatory = populateScenario9(wirings, candMap);
+        ResolveContextImpl rci = new ResolveContextImpl(wirings, candMap, mandatory, Collections.<Resource> emptyList());
+
+        Map<Resource, List<Wire>> sequential =
+            new ResolverImpl(new Logger(Logger.LOG_DEBUG)).resolve(rci);
+        Map<Resource, List<Wire>> parallel =
+            new ResolverImpl(new Logger(Logger.LOG_DEBUG), 4).resolve(rci);
+        assertEquals(6, sequential.size());
+        assertEquals(sequential, parallel);
+    }
+
+    @Test
+    public void testParallelPermutationsFailLikeSequential() throws Exception
+    {
+        Resolver resolver = new ResolverImpl(new Logger(Logger.LOG_DEBUG), 4);
+
+        Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        List<Resource> mandatory = populateScenario4(wirings, candMap);
+        ResolveContextImpl rci = new ResolveContextImpl(wirings, candMap, mandatory, Collections.<Resource> emptyList());
+
+        try
+        {
+            resolver.resolve(rci);
+            fail("Should have thrown a resolution exception as bundle A in scenario 4 cannot be resolved due to constraint violations.");
+        }
+        catch (ResolutionException re)
+        {
+            // good
+        }
+    }
+
+    @Test
+    public void testPermutationBudget() throws Exception
+    {
+        Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        List<Resource> mandatory = populateScenario9(wirings, candMap);
+
+        BudgetResolveContext rci = new BudgetResolveContext(wirings, candMap, mandatory, 0, false);
+        assertEquals(6, new ResolverImpl(new Logger(Logger.LOG_DEBUG)).resolve(rci).size());
+
+        rci = new BudgetResolveContext(wirings, candMap, mandatory, 1, false);
+        try
+        {
+            new ResolverImpl(new Logger(Logger.LOG_DEBUG)).resolve(rci);
+            fail("Should have stopped after the first permutation of scenario 9.");
+        }
+        catch (ResolutionException re)
+        {
+            assertTrue(re.getMessage(), re.getMessage().startsWith("Resolution exceeded the maximum of 1 permutations"));
+            assertTrue(re.getCause() instanceof ResolutionException);
+        }
+    }
+
+    @Test
+    public void testParallelPermutationBudget() throws Exception
+    {
+        Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        List<Resource> mandatory = populateScenario9(wirings, candMap);
+
+        // No permutation beyond the budget is checked ahead, so a parallel
+        // resolve does exactly the same work as a sequential one.
+        BudgetResolveContext sequential = new BudgetResolveContext(wirings, candMap, mandatory, 1, false);
+        BudgetResolveContext parallel = new BudgetResolveContext(wirings, candMap, mandatory, 1, false);
+        try
+        {
+            new ResolverImpl(new Logger(Logger.LOG_DEBUG)).resolve(sequential);
+            fail("Should have stopped after the first permutation of scenario 9.");
+        }
+        catch (ResolutionException re)
+        {
+            // good
+        }
+        try
+        {
+            new ResolverImpl(new Logger(Logger.LOG_DEBUG), 4).resolve(parallel);
+            fail("Should have stopped after the first permutation of scenario 9.");
+        }
+        catch (ResolutionException re)
+        {
+            assertTrue(re.getMessage(), re.getMessage().startsWith("Resolution exceeded the maximum of 1 permutations"));
+        }
+        assertEquals(sequential.getWiringsCount(), parallel.getWiringsCount());
+    }
+
+    @Test
+    public void testBatchResolution() throws Exception
+    {
+        ResourceImpl a = new ResourceImpl("A");
+        a.addCapability(new PackageCapability(a, "foo"));
+        ResourceImpl b = new ResourceImpl("B");
+        b.addRequirement(new PackageRequirement(b, "foo"));
+        ResourceImpl c = new ResourceImpl("C");
+        c.addRequirement(new PackageRequirement(c, "foo"));
+        ResourceImpl d = new ResourceImpl("D");
+        d.addRequirement(new PackageRequirement(d, "bar"));
+
+        Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        candMap.put(b.getRequirements(null).get(0), a.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE));
+        candMap.put(c.getRequirements(null).get(0), a.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE));
+        candMap.put(d.getRequirements(null).get(0), Collections.<Capability>emptyList());
+
+        final int[] lookups = new int[1];
+        List<ResolveContextImpl> contexts = new ArrayList<ResolveContextImpl>();
+        for (List<Resource> group : Arrays.asList(
+            Arrays.<Resource>asList(b), Arrays.<Resource>asList(b, c), Arrays.<Resource>asList(d)))
+        {
+            contexts.add(new ResolveContextImpl(wirings, candMap, group, Collections.<Resource> emptyList())
+            {
+                @Override
+                public List<Capability> findProviders(Requirement r)
+                {
+                    lookups[0]++;
+                    return super.findProviders(r);
+                }
+            });
+        }
+
+        // A single thread makes the number of lookups deterministic.
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            List<Future<Map<Resource, List<Wire>>>> results =
+                new ResolverImpl(new Logger(Logger.LOG_DEBUG)).resolve(contexts, executor);
+            assertEquals(3, results.size());
+            assertEquals(2, results.get(0).get().size());
+            assertEquals(a, results.get(1).get().get(c).get(0).getProvider());
+            try
+            {
+                results.get(2).get();
+                fail("D should not resolve without a provider of bar.");
+            }
+            catch (ExecutionException ex)
+            {
+                assertTrue(ex.getCause() instanceof ResolutionException);
+            }
+            // The requirement of B is only looked up once for the batch.
+            assertEquals(3, lookups[0]);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCancelledResolution() throws Exception
+    {
+        Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        List<Resource> mandatory = populateScenario9(wirings, candMap);
+
+        BudgetResolveContext rci = new BudgetResolveContext(wirings, candMap, mandatory, 0, true);
+        try
+        {
+            new ResolverImpl(new Logger(Logger.LOG_DEBUG), 4).resolve(rci);
+            fail("Should have been cancelled after the first permutation of scenario 9.");
+        }
+        catch (ResolutionException re)
+        {
+            assertTrue(re.getMessage(), re.getMessage().startsWith("Resolution cancelled"));
+        }
+
+        // A resolve needing a single permutation is not affected.
+        wirings = new HashMap<Resource, Wiring>();
+        candMap = new HashMap<Requirement, List<Capability>>();
+        mandatory = populateScenario1(wirings, candMap);
+        rci = new BudgetResolveContext(wirings, candMap, mandatory, 0, true);
+        assertEquals(2, new ResolverImpl(new Logger(Logger.LOG_DEBUG)).resolve(rci).size());
+    }
+
+    @Test
+    public void testWiredPackageSpacesFollowWiringChanges() throws Exception
+    {
+        ResolverImpl resolver = new ResolverImpl(new Logger(Logger.LOG_DEBUG));
+
+        ResourceImpl q1 = new ResourceImpl("Q1");
+        Capability q1_q = new PackageCapability(q1, "q");
+        q1.addCapability(q1_q);
+
+        ResourceImpl q2 = new ResourceImpl("Q2");
+        Capability q2_q = new PackageCapability(q2, "q");
+        q2.addCapability(q2_q);
+
+        ResourceImpl a = new ResourceImpl("A");
+        PackageCapability a_p = new PackageCapability(a, "p");
+        a_p.addDirective(Namespace.CAPABILITY_USES_DIRECTIVE, "q");
+        a.addCapability(a_p);
+        Requirement a_q = new PackageRequirement(a, "q");
+        a.addRequirement(a_q);
+
+        ResourceImpl b = new ResourceImpl("B");
+        Requirement b_p = new PackageRequirement(b, "p");
+        b.addRequirement(b_p);
+        Requirement b_q = new PackageRequirement(b, "q");
+        b.addRequirement(b_q);
+
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        candMap.put(b_p, Arrays.<Capability>asList(a_p));
+        candMap.put(b_q, Arrays.asList(q2_q, q1_q));
+
+        // A is wired to Q1, so B has to import q from Q1 as well; the second
+        // resolve reuses the package space of A.
+        Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+        wirings.put(q1, new StaticWiring(q1, Collections.<Wire>emptyList()));
+        wirings.put(q2, new StaticWiring(q2, Collections.<Wire>emptyList()));
+        wirings.put(a, new StaticWiring(a, wireTo(resolver, a, a_q, q1_q)));
+        for (int i = 0; i < 2; i++)
+        {
+            Map<Resource, List<Wire>> wireMap = resolver.resolve(new ResolveContextImpl(
+                wirings, candMap, Collections.<Resource>singletonList(b), Collections.<Resource> emptyList()));
+            assertEquals(q1, getWire(wireMap.get(b), b_q).getProvider());
+        }
+
+        // Once A is wired to Q2, B has to follow.
+        wirings.put(a, new StaticWiring(a, wireTo(resolver, a, a_q, q2_q)));
+        Map<Resource, List<Wire>> wireMap = resolver.resolve(new ResolveContextImpl(
+            wirings, candMap, Collections.<Resource>singletonList(b), Collections.<Resource> emptyList()));
+        assertEquals(q2, getWire(wireMap.get(b), b_q).getProvider());
+    }
+
+    private static List<Wire> wireTo(ResolverImpl resolver, Resource resource, Requirement req, Capability cap)
+        throws ResolutionException
+    {
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        candMap.put(req, Collections.singletonList(cap));
+        return resolver.resolve(new ResolveContextImpl(
+            new HashMap<Resource, Wiring>(), candMap,
+            Collections.singletonList(resource), Collections.<Resource> emptyList())).get(resource);
+    }
+
+    private static Wire getWire(List<Wire> wires, Requirement req)
+    {
+        for (Wire wire : wires)
+        {
+            if (wire.getRequirement().equals(req))
+            {
+                return wire;
+            }
+        }
+        return null;
+    }
+
+    private static class StaticWiring implements Wiring
+    {
+        private final Resource m_resource;
+        private final List<Wire> m_wires;
+
+        StaticWiring(Resource resource, List<Wire> wires)
+        {
+            m_resource = resource;
+            m_wires = wires;
+        }
+
+        public List<Capability> getResourceCapabilities(String namespace)
+        {
+            return m_resource.getCapabilities(namespace);
+        }
+
+        public List<Requirement> getResourceRequirements(String namespace)
+        {
+            return m_resource.getRequirements(namespace);
+        }
+
+        public List<Wire> getProvidedResourceWires(String namespace)
+        {
+            return Collections.emptyList();
+        }
+
+        public List<Wire> getRequiredResourceWires(String namespace)
+        {
+            List<Wire> wires = new ArrayList<Wire>();
+            for (Wire wire : m_wires)
+            {
+                if ((namespace == null) || namespace.equals(wire.getCapability().getNamespace()))
+                {
+                    wires.add(wire);
+                }
+            }
+            return wires;
+        }
+
+        public Resource getResource()
+        {
+            return m_resource;
+        }
+    }
+
+    private static class BudgetResolveContext extends ResolveContextImpl implements BoundedResolveContext
+    {
+        private final int m_maxPermutations;
+        private final boolean m_cancelled;
+        private final AtomicInteger m_wiringsCount = new AtomicInteger();
+
+        BudgetResolveContext(
+            Map<Resource, Wiring> wirings, Map<Requirement, List<Capability>> candMap,
+            Collection<Resource> mandatory, int maxPermutations, boolean cancelled)
+        {
+            super(wirings, candMap, mandatory, Collections.<Resource> emptyList());
+            m_maxPermutations = maxPermutations;
+            m_cancelled = cancelled;
+        }
+
+        @Override
+        public Map<Resource, Wiring> getWirings()
+        {
+            m_wiringsCount.incrementAndGet();
+            return super.getWirings();
+        }
+
+        int getWiringsCount()
+        {
+            return m_wiringsCount.get();
+        }
+
+        public int getMaxPermutations()
+        {
+            return m_maxPermutations;
+        }
+
+        public long getResolveTimeout()
+        {
+            return 0;
+        }
+
+        public boolean isCancelled()
+        {
+            return m_cancelled;
+        }
+
+        public void onProgress(int permutations, long elapsed)
+        {
+        }
+    }
+
     private static String getResourceName(Resource r)
     {
         return r.getCapabilities(IdentityNamespace.IDENTITY_NAMESPACE).get(0).getAttributes()
@@ -712,6 +1061,53 @@ public class ResolverTest
         return Arrays.<Resource>asList(res2);
     }
 
+    private static List<Resource> populateScenario9(Map<Resource, Wiring> wirings, Map<Requirement, List<Capability>> candMap)
+    {
+        // A and D both start out with a uses constraint violation, so
+        // there are several permutations to check at the same time.
+        ResourceImpl b1 = new ResourceImpl("B1");
+        Capability b1_p = new PackageCapability(b1, "p");
+        b1.addCapability(b1_p);
+
+        ResourceImpl b2 = new ResourceImpl("B2");
+        Capability b2_p = new PackageCapability(b2, "p");
+        b2.addCapability(b2_p);
+
+        ResourceImpl c = new ResourceImpl("C");
+        PackageCapability c_q = new PackageCapability(c, "q");
+        c_q.addDirective(Namespace.CAPABILITY_USES_DIRECTIVE, "p");
+        c.addCapability(c_q);
+        Requirement c_p = new PackageRequirement(c, "p");
+        c.addRequirement(c_p);
+
+        ResourceImpl e = new ResourceImpl("E");
+        PackageCapability e_r = new PackageCapability(e, "r");
+        e_r.addDirective(Namespace.CAPABILITY_USES_DIRECTIVE, "p");
+        e.addCapability(e_r);
+        Requirement e_p = new PackageRequirement(e, "p");
+        e.addRequirement(e_p);
+
+        ResourceImpl a = new ResourceImpl("A");
+        Requirement a_p = new PackageRequirement(a, "p");
+        a.addRequirement(a_p);
+        Requirement a_q = new PackageRequirement(a, "q");
+        a.addRequirement(a_q);
+
+        ResourceImpl d = new ResourceImpl("D");
+        Requirement d_p = new PackageRequirement(d, "p");
+        d.addRequirement(d_p);
+        Requirement d_r = new PackageRequirement(d, "r");
+        d.addRequirement(d_r);
+
+        candMap.put(a_p, Arrays.asList(b1_p, b2_p));
+        candMap.put(a_q, Arrays.<Capability>asList(c_q));
+        candMap.put(c_p, Arrays.asList(b2_p, b1_p));
+        candMap.put(d_p, Arrays.asList(b2_p, b1_p));
+        candMap.put(d_r, Arrays.<Capability>asList(e_r));
+        candMap.put(e_p, Arrays.asList(b1_p, b2_p));
+        return Arrays.<Resource>asList(a, d);
+    }
+
     private static Capability addCap(ResourceImpl res, String namespace, String value)
     {
         GenericCapability cap = new GenericCapability(res, namespace);